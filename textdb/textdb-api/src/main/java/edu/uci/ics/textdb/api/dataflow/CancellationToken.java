@@ -0,0 +1,133 @@
+package edu.uci.ics.textdb.api.dataflow;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CancellationToken tells the operators of a query plan that the query should stop,
+ *   either because it's cancelled (e.g. the client disconnected), or because its deadline has passed.
+ *
+ * The token is passed to the operators by open(CancellationToken), each operator passes it on to its inputs.
+ *   The operators check it in their loops, and throw an exception once it's cancelled,
+ *   so that a query stops within one tuple instead of running to the end.
+ *
+ * CancellationToken.NONE is never cancelled, it's used by the operators that are opened by open().
+ *
+ * Threads that wait for something else than a tuple (e.g. the workers of a parallel index search)
+ *   register a listener to be woken up by cancel(), and bound their waits by getRemainingNanos().
+ *
+ */
+public class CancellationToken {
+
+    public static final CancellationToken NONE = new CancellationToken(Long.MAX_VALUE);
+
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    // the System.nanoTime() of the deadline
+    private final long deadlineNanos;
+
+    private volatile boolean cancelled = false;
+    private volatile boolean deadlineExceeded = false;
+
+    private final List<Runnable> cancelListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Creates a token without a deadline, it's only cancelled by cancel().
+     */
+    public CancellationToken() {
+        this(NO_DEADLINE);
+    }
+
+    private CancellationToken(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    /**
+     * Creates a token that's cancelled once the timeout has passed, or by cancel().
+     *
+     * @param timeout
+     * @param unit
+     * @return
+     */
+    public static CancellationToken withTimeout(long timeout, TimeUnit unit) {
+        long now = System.nanoTime();
+        long timeoutNanos = unit.toNanos(timeout);
+        // the deadline saturates instead of overflowing
+        if (timeoutNanos >= NO_DEADLINE - now) {
+            return new CancellationToken();
+        }
+        return new CancellationToken(now + timeoutNanos);
+    }
+
+    /**
+     * Cancels the query, the operators stop the next time they check the token.
+     */
+    public void cancel() {
+        if (this == NONE) {
+            throw new UnsupportedOperationException("CancellationToken.NONE can't be cancelled");
+        }
+        cancelled = true;
+        for (Runnable listener : cancelListeners) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Adds a listener that's run by cancel(), it's run right away if the token is already cancelled.
+     * The listener is not run when the deadline passes, and it may be run more than once.
+     *
+     * @param listener
+     */
+    public void addCancelListener(Runnable listener) {
+        // NONE is never cancelled, its listeners would never be removed
+        if (this == NONE) {
+            return;
+        }
+        cancelListeners.add(listener);
+        if (cancelled) {
+            listener.run();
+        }
+    }
+
+    public void removeCancelListener(Runnable listener) {
+        cancelListeners.remove(listener);
+    }
+
+    /**
+     * Returns true if the query is cancelled, or its deadline has passed.
+     */
+    public boolean isCancelled() {
+        if (cancelled) {
+            return true;
+        }
+        if (deadlineNanos != NO_DEADLINE && System.nanoTime() - deadlineNanos >= 0) {
+            deadlineExceeded = true;
+            cancelled = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the nanoseconds until the deadline, 0 if the query is cancelled,
+     *   Long.MAX_VALUE if the token has no deadline.
+     */
+    public long getRemainingNanos() {
+        if (isCancelled()) {
+            return 0;
+        }
+        if (deadlineNanos == NO_DEADLINE) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, deadlineNanos - System.nanoTime());
+    }
+
+    /**
+     * Returns true if the query is cancelled because its deadline has passed.
+     */
+    public boolean isDeadlineExceeded() {
+        return isCancelled() && deadlineExceeded;
+    }
+
+}
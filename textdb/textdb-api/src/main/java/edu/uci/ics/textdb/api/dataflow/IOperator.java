@@ -1,5 +1,8 @@
 package edu.uci.ics.textdb.api.dataflow;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import edu.uci.ics.textdb.api.common.ITuple;
 import edu.uci.ics.textdb.api.common.Schema;
 import edu.uci.ics.textdb.api.exception.TextDBException;
@@ -12,10 +15,50 @@ public interface IOperator {
     static final int CLOSED = -1;
     static final int OPENED = 0;
 
+    // the number of tuples a consumer usually asks for in one getNextBatch() call
+    static final int DEFAULT_BATCH_SIZE = 1024;
+
     void open() throws TextDBException;
 
+    /**
+     * Opens the operator for a query that can be cancelled (see CancellationToken).
+     * An operator that supports cancellation checks the token while it computes its results,
+     *   and opens its input operators with the same token.
+     * 
+     * The default implementation ignores the token.
+     * 
+     * @param cancellationToken
+     * @throws TextDBException
+     */
+    default void open(CancellationToken cancellationToken) throws TextDBException {
+        open();
+    }
+
     ITuple getNextTuple() throws TextDBException;
 
+    /**
+     * Returns the next tuples, at most maxTuples of them, an empty list if there are no more tuples.
+     * The tuples are the same as the ones returned by calling getNextTuple() repeatedly,
+     *   but the per-tuple overhead of an operator is paid once per batch.
+     * 
+     * An operator may return the same list object in every call,
+     *   so the list is only valid until the next call, a consumer that keeps the tuples should copy them.
+     * 
+     * The default implementation calls getNextTuple().
+     * 
+     * @param maxTuples
+     * @return
+     * @throws TextDBException
+     */
+    default List<ITuple> getNextBatch(int maxTuples) throws TextDBException {
+        List<ITuple> batch = new ArrayList<>();
+        ITuple tuple;
+        while (batch.size() < maxTuples && (tuple = getNextTuple()) != null) {
+            batch.add(tuple);
+        }
+        return batch;
+    }
+
     void close() throws TextDBException;
 
     Schema getOutputSchema();
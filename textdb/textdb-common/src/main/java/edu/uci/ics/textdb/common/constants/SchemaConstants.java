@@ -14,6 +14,9 @@ public class SchemaConstants {
     public static final String PAYLOAD = "payload";
     public static final Attribute PAYLOAD_ATTRIBUTE = new Attribute(PAYLOAD, FieldType.LIST);
 
+    public static final String ANNOTATION = "annotation";
+    public static final Attribute ANNOTATION_ATTRIBUTE = new Attribute(ANNOTATION, FieldType.LIST);
+
     public static final String SPAN_LIST = "spanList";
     public static final Attribute SPAN_LIST_ATTRIBUTE = new Attribute(SPAN_LIST, FieldType.LIST);
     
@@ -11,4 +11,5 @@ public class ErrorMessages {
     public static final String OPERATOR_NOT_OPENED = "The operator is not opened";
     public static final String SCHEMA_CANNOT_BE_NULL = "Schema cannot be null or empty";
     public static final String INPUT_OPERATOR_NOT_SPECIFIED = "Input operator is not specified";
+    public static final String QUERY_CANCELLED = "The query is cancelled";
 }
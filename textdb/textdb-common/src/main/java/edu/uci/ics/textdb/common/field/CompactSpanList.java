@@ -0,0 +1,228 @@
+package edu.uci.ics.textdb.common.field;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+ * CompactSpanList is a read-only list of spans, which is used to store the "payload" of a tuple.
+ *
+ * Instead of keeping one Span object for every token, it keeps the start, end, and token offset
+ *   of the tokens in parallel int arrays. The field names and the analyzed terms are stored once
+ *   in dictionaries, and each token only keeps their ids.
+ * The value of a span (the original text of the token) is not copied,
+ *   it's taken from the field value when the span is materialized.
+ *
+ * A Span object is only created when it's retrieved by get(),
+ *   the operators that only need a few spans of the payload (e.g. the spans with the query tokens)
+ *   should use getSpansWithKeys() instead of iterating over the whole list.
+ *
+ * A payload can be restricted to the spans of a set of terms (see setTermRestriction),
+ *   an operator that needs the spans of other terms must check containsAllSpansOf() first.
+ *
+ */
+public class CompactSpanList extends AbstractList<Span> implements RandomAccess {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    // the dictionary of field names, and the value of each field
+    private final List<String> fieldNames = new ArrayList<>();
+    private final List<String> fieldValues = new ArrayList<>();
+
+    // the dictionary of analyzed terms
+    private final List<String> terms = new ArrayList<>();
+    private final HashMap<String, Integer> termIdMap = new HashMap<>();
+
+    // the parallel arrays of the tokens
+    private int[] fieldIds = new int[INITIAL_CAPACITY];
+    private int[] termIds = new int[INITIAL_CAPACITY];
+    private int[] starts = new int[INITIAL_CAPACITY];
+    private int[] ends = new int[INITIAL_CAPACITY];
+    private int[] tokenOffsets = new int[INITIAL_CAPACITY];
+
+    private int size = 0;
+    
+    // the payload only contains the spans of these terms, it contains all spans if it's null
+    private Set<String> termRestriction = null;
+
+    /**
+     * Adds a field to the field dictionary.
+     * The field value is used to get the original text of the spans in this field.
+     *
+     * @param fieldName
+     * @param fieldValue
+     * @return the id of the field
+     */
+    public int addField(String fieldName, String fieldValue) {
+        fieldNames.add(fieldName);
+        fieldValues.add(fieldValue);
+        return fieldNames.size() - 1;
+    }
+
+    /**
+     * Adds a term to the term dictionary if it's not in the dictionary yet.
+     *
+     * @param term, the analyzed term
+     * @return the id of the term
+     */
+    public int addTerm(String term) {
+        Integer termId = termIdMap.get(term);
+        if (termId == null) {
+            termId = terms.size();
+            terms.add(term);
+            termIdMap.put(term, termId);
+        }
+        return termId;
+    }
+
+    /**
+     * Appends a token to the list.
+     *
+     * @param fieldId, the id returned by addField()
+     * @param termId, the id returned by addTerm()
+     * @param start
+     * @param end
+     * @param tokenOffset
+     */
+    public void addToken(int fieldId, int termId, int start, int end, int tokenOffset) {
+        if (size == starts.length) {
+            int newCapacity = size * 2;
+            fieldIds = Arrays.copyOf(fieldIds, newCapacity);
+            termIds = Arrays.copyOf(termIds, newCapacity);
+            starts = Arrays.copyOf(starts, newCapacity);
+            ends = Arrays.copyOf(ends, newCapacity);
+            tokenOffsets = Arrays.copyOf(tokenOffsets, newCapacity);
+        }
+        fieldIds[size] = fieldId;
+        termIds[size] = termId;
+        starts[size] = start;
+        ends[size] = end;
+        tokenOffsets[size] = tokenOffset;
+        size++;
+        modCount++;
+    }
+
+    /**
+     * Materializes the span at the index.
+     */
+    @Override
+    public Span get(int index) {
+        checkIndex(index);
+        int start = starts[index];
+        int end = ends[index];
+        return new Span(fieldNames.get(fieldIds[index]), start, end, terms.get(termIds[index]),
+                fieldValues.get(fieldIds[index]).substring(start, end), tokenOffsets[index]);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    public String getFieldName(int index) {
+        checkIndex(index);
+        return fieldNames.get(fieldIds[index]);
+    }
+
+    public String getKey(int index) {
+        checkIndex(index);
+        return terms.get(termIds[index]);
+    }
+
+    public int getStart(int index) {
+        checkIndex(index);
+        return starts[index];
+    }
+
+    public int getEnd(int index) {
+        checkIndex(index);
+        return ends[index];
+    }
+
+    public int getTokenOffset(int index) {
+        checkIndex(index);
+        return tokenOffsets[index];
+    }
+
+    /**
+     * Returns the spans whose keys (analyzed terms) are in the given collection.
+     * Only the matching spans are materialized.
+     *
+     * @param keys
+     * @return
+     */
+    public List<Span> getSpansWithKeys(Collection<String> keys) {
+        boolean[] isMatchingTerm = new boolean[terms.size()];
+        boolean hasMatchingTerm = false;
+        for (String key : keys) {
+            Integer termId = termIdMap.get(key);
+            if (termId != null) {
+                isMatchingTerm[termId] = true;
+                hasMatchingTerm = true;
+            }
+        }
+
+        List<Span> matchingSpans = new ArrayList<>();
+        if (! hasMatchingTerm) {
+            return matchingSpans;
+        }
+        for (int i = 0; i < size; i++) {
+            if (isMatchingTerm[termIds[i]]) {
+                matchingSpans.add(get(i));
+            }
+        }
+        return matchingSpans;
+    }
+
+    /**
+     * Marks the payload as restricted to the spans of the given terms.
+     * 
+     * @param termRestriction, null means the payload contains the spans of all the terms
+     */
+    public void setTermRestriction(Set<String> termRestriction) {
+        this.termRestriction = termRestriction;
+    }
+    
+    public Set<String> getTermRestriction() {
+        return this.termRestriction;
+    }
+    
+    /**
+     * Returns true if the payload contains all the spans of the given keys, 
+     *   which is false if the payload is restricted to other terms.
+     * 
+     * @param keys
+     * @return
+     */
+    public boolean containsAllSpansOf(Collection<String> keys) {
+        return termRestriction == null || termRestriction.containsAll(keys);
+    }
+
+    /*
+     * Only removing the tokens at the end of the list is supported,
+     *   e.g. subList(from, size()).clear().
+     */
+    @Override
+    protected void removeRange(int fromIndex, int toIndex) {
+        if (toIndex != size) {
+            throw new UnsupportedOperationException("CompactSpanList only supports removing tokens at the end");
+        }
+        if (fromIndex < 0 || fromIndex > toIndex) {
+            throw new IndexOutOfBoundsException("fromIndex: " + fromIndex + ", size: " + size);
+        }
+        size = fromIndex;
+        modCount++;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+        }
+    }
+
+}
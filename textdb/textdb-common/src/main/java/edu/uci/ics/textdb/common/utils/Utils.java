@@ -7,6 +7,7 @@ import java.nio.file.attribute.BasicFileAttributes;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -37,6 +38,7 @@ import edu.uci.ics.textdb.api.common.IField;
 import edu.uci.ics.textdb.api.common.ITuple;
 import edu.uci.ics.textdb.api.common.Schema;
 import edu.uci.ics.textdb.common.constants.SchemaConstants;
+import edu.uci.ics.textdb.common.field.CompactSpanList;
 import edu.uci.ics.textdb.common.field.DataTuple;
 import edu.uci.ics.textdb.common.field.DateField;
 import edu.uci.ics.textdb.common.field.DoubleField;
@@ -454,19 +456,29 @@ public class Utils {
     }
 
     public static List<Span> generatePayloadFromTuple(ITuple tuple, Analyzer luceneAnalyzer) {
-        List<Span> tuplePayload = tuple.getSchema().getAttributes().stream()
+        CompactSpanList tuplePayload = new CompactSpanList();
+        tuple.getSchema().getAttributes().stream()
                 .filter(attr -> (attr.getFieldType() == FieldType.TEXT)) // generate payload only for TEXT field
                 .map(attr -> attr.getFieldName())
-                .map(fieldName -> generatePayload(fieldName, tuple.getField(fieldName).getValue().toString(),
-                        luceneAnalyzer))
-                .flatMap(payload -> payload.stream()) // flatten a list of lists to a list
-                .collect(Collectors.toList());
+                .forEach(fieldName -> addPayload(tuplePayload, fieldName, tuple.getField(fieldName).getValue().toString(),
+                        luceneAnalyzer));
 
         return tuplePayload;
     }
 
     public static List<Span> generatePayload(String fieldName, String fieldValue, Analyzer luceneAnalyzer) {
-        List<Span> payload = new ArrayList<>();
+        CompactSpanList payload = new CompactSpanList();
+        addPayload(payload, fieldName, fieldValue, luceneAnalyzer);
+        return payload;
+    }
+    
+    /*
+     * Tokenizes the field value and appends the tokens to the payload.
+     * If the field can't be tokenized, no token of this field is added.
+     */
+    private static void addPayload(CompactSpanList payload, String fieldName, String fieldValue, Analyzer luceneAnalyzer) {
+        int fieldId = payload.addField(fieldName, fieldValue);
+        int payloadSize = payload.size();
         
         try {
             TokenStream tokenStream = luceneAnalyzer.tokenStream(null, new StringReader(fieldValue));
@@ -483,17 +495,48 @@ public class Utils {
                 int tokenPosition = tokenPositionCounter;
                 int charStart = offsetAttribute.startOffset();
                 int charEnd = offsetAttribute.endOffset();
-                String analyzedTermStr = charTermAttribute.toString();
-                String originalTermStr = fieldValue.substring(charStart, charEnd);
+                int termId = payload.addTerm(charTermAttribute.toString());
 
-                payload.add(new Span(fieldName, charStart, charEnd, analyzedTermStr, originalTermStr, tokenPosition));
+                payload.addToken(fieldId, termId, charStart, charEnd, tokenPosition);
             }
             tokenStream.close();
         } catch (IOException e) {
-            payload.clear(); // return empty payload
+            payload.subList(payloadSize, payload.size()).clear(); // remove the tokens of this field
         }
-
-        return payload;
+    }
+    
+    /**
+     * Returns the spans in the payload whose keys (analyzed terms) are in the given collection.
+     * If the payload is a CompactSpanList, only the matching spans are materialized.
+     * 
+     * @param payload
+     * @param keys
+     * @return
+     */
+    public static List<Span> getSpansWithKeys(List<Span> payload, Collection<String> keys) {
+        if (payload instanceof CompactSpanList) {
+            return ((CompactSpanList) payload).getSpansWithKeys(keys);
+        }
+        return payload.stream().filter(span -> keys.contains(span.getKey())).collect(Collectors.toList());
+    }
+    
+    /**
+     * Returns the spans in the payload of the tuple whose keys are in the given collection.
+     * If the payload is restricted to other terms (see CompactSpanList.setTermRestriction),
+     *   the spans are generated from the tuple instead.
+     * 
+     * @param tuple, a tuple with the "payload" field
+     * @param keys
+     * @param luceneAnalyzer
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public static List<Span> getSpansWithKeys(ITuple tuple, Collection<String> keys, Analyzer luceneAnalyzer) {
+        List<Span> payload = (List<Span>) tuple.getField(SchemaConstants.PAYLOAD).getValue();
+        if (payload instanceof CompactSpanList && ! ((CompactSpanList) payload).containsAllSpansOf(keys)) {
+            payload = generatePayloadFromTuple(tuple, luceneAnalyzer);
+        }
+        return getSpansWithKeys(payload, keys);
     }
 
     public static void deleteDirectory(String indexDir) throws StorageException {
@@ -0,0 +1,83 @@
+package edu.uci.ics.textdb.common.field;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.junit.Test;
+
+import edu.uci.ics.textdb.common.utils.Utils;
+
+public class CompactSpanListTest {
+
+    @Test
+    public void testGet() {
+        String fieldValue = "The quick brown fox";
+        CompactSpanList payload = new CompactSpanList();
+        int fieldId = payload.addField("description", fieldValue);
+        payload.addToken(fieldId, payload.addTerm("quick"), 4, 9, 1);
+        payload.addToken(fieldId, payload.addTerm("brown"), 10, 15, 2);
+
+        Assert.assertEquals(2, payload.size());
+        Assert.assertEquals(new Span("description", 4, 9, "quick", "quick", 1), payload.get(0));
+        Assert.assertEquals(new Span("description", 10, 15, "brown", "brown", 2), payload.get(1));
+        Assert.assertEquals("brown", payload.getKey(1));
+        Assert.assertEquals(15, payload.getEnd(1));
+    }
+
+    /*
+     * Test that the compact payload generated by Utils is equal to a list of spans.
+     */
+    @Test
+    public void testGeneratePayload() {
+        String fieldValue = "Brown fox, brown dog";
+        List<Span> payload = Utils.generatePayload("content", fieldValue, new StandardAnalyzer());
+
+        List<Span> expectedPayload = Arrays.asList(
+                new Span("content", 0, 5, "brown", "Brown", 0),
+                new Span("content", 6, 9, "fox", "fox", 1),
+                new Span("content", 11, 16, "brown", "brown", 2),
+                new Span("content", 17, 20, "dog", "dog", 3));
+
+        Assert.assertTrue(payload instanceof CompactSpanList);
+        Assert.assertEquals(expectedPayload, new ArrayList<>(payload));
+        Assert.assertEquals(expectedPayload.hashCode(), payload.hashCode());
+    }
+
+    @Test
+    public void testGetSpansWithKeys() {
+        String fieldValue = "Brown fox, brown dog";
+        List<Span> payload = Utils.generatePayload("content", fieldValue, new StandardAnalyzer());
+
+        List<Span> expectedSpans = Arrays.asList(
+                new Span("content", 0, 5, "brown", "Brown", 0),
+                new Span("content", 11, 16, "brown", "brown", 2));
+
+        Assert.assertEquals(expectedSpans, Utils.getSpansWithKeys(payload, Arrays.asList("brown", "cat")));
+        Assert.assertTrue(Utils.getSpansWithKeys(payload, Arrays.asList("cat")).isEmpty());
+    }
+
+    @Test
+    public void testRemoveTokensAtTheEnd() {
+        CompactSpanList payload = new CompactSpanList();
+        int fieldId = payload.addField("description", "a b c");
+        payload.addToken(fieldId, payload.addTerm("a"), 0, 1, 0);
+        payload.addToken(fieldId, payload.addTerm("b"), 2, 3, 1);
+        payload.addToken(fieldId, payload.addTerm("c"), 4, 5, 2);
+
+        payload.subList(1, payload.size()).clear();
+
+        Assert.assertEquals(1, payload.size());
+        Assert.assertEquals("a", payload.getKey(0));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testAddIsNotSupported() {
+        CompactSpanList payload = new CompactSpanList();
+        payload.add(new Span("description", 0, 1, "a", "a", 0));
+    }
+
+}
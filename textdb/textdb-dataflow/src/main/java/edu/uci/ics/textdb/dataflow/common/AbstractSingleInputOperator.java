@@ -1,7 +1,11 @@
 package edu.uci.ics.textdb.dataflow.common;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import edu.uci.ics.textdb.api.common.ITuple;
 import edu.uci.ics.textdb.api.common.Schema;
+import edu.uci.ics.textdb.api.dataflow.CancellationToken;
 import edu.uci.ics.textdb.api.dataflow.IOperator;
 import edu.uci.ics.textdb.common.exception.DataFlowException;
 import edu.uci.ics.textdb.common.exception.ErrorMessages;
@@ -18,21 +22,45 @@ import edu.uci.ics.textdb.api.exception.TextDBException;
  *          It returns the next available matching tuple, null if there's no more match.
  * cleanUp(). It is called in close(). 
  *          Its purpose is to deallocates resources.
+ * 
+ * An operator that produces exactly one output tuple for each input tuple should override
+ *   isOneToOne(), so that the limit pushed down to it is passed on to its input operator.
+ * 
+ * getNextBatch() checks the cursor, the limit and the offset once per batch instead of once per tuple.
+ *   An operator that computes a tuple by processOneInputTuple() on each input tuple can also override
+ *   computeNextMatchingBatch() to read its input in batches, see processInputBatches().
+ * 
+ * The operator opened by open(CancellationToken) opens its input operator with the same token,
+ *   and checks the token before each result, a cancelled query throws a DataFlowException.
 
  * @author Zuozhi Wang (zuozhiw)
  *
  */
-public abstract class AbstractSingleInputOperator implements IOperator {
+public abstract class AbstractSingleInputOperator implements IOperator, ILimitPushdown {
     
     protected IOperator inputOperator;
     protected Schema outputSchema;
     
     protected int cursor = CLOSED;
     
+    protected CancellationToken cancellationToken = CancellationToken.NONE;
+    
     protected int resultCursor = -1;
     protected int limit = Integer.MAX_VALUE;
     protected int offset = 0;
     
+    // the list returned by getNextBatch()
+    private final List<ITuple> tupleBatch = new ArrayList<>();
+    
+    @Override
+    public void open(CancellationToken cancellationToken) throws TextDBException {
+        if (cursor != CLOSED) {
+            return;
+        }
+        this.cancellationToken = cancellationToken;
+        open();
+    }
+    
     @Override
     public void open() throws TextDBException {
         if (cursor != CLOSED) {
@@ -42,7 +70,7 @@ public abstract class AbstractSingleInputOperator implements IOperator {
             if (this.inputOperator == null) {
                 throw new DataFlowException(ErrorMessages.INPUT_OPERATOR_NOT_SPECIFIED);
             }
-            inputOperator.open();
+            inputOperator.open(cancellationToken);
             setUp();
             
         } catch (Exception e) {
@@ -69,6 +97,7 @@ public abstract class AbstractSingleInputOperator implements IOperator {
         try {
             ITuple resultTuple = null;
             while (true) {
+                checkCancelled();
                 resultTuple = computeNextMatchingTuple();
                 if (resultTuple == null) {
                     break;
@@ -84,6 +113,94 @@ public abstract class AbstractSingleInputOperator implements IOperator {
         }
     }
 
+    /**
+     * Returns the next tuples, the same as calling getNextTuple() repeatedly,
+     *   the returned list is reused by the next call.
+     */
+    @Override
+    public List<ITuple> getNextBatch(int maxTuples) throws TextDBException {
+        if (cursor == CLOSED) {
+            throw new DataFlowException(ErrorMessages.OPERATOR_NOT_OPENED);
+        }
+        tupleBatch.clear();
+        try {
+            long resultBound = (long) limit + offset - 1;
+            while (tupleBatch.size() < maxTuples && resultCursor < resultBound) {
+                checkCancelled();
+                int batchSize = tupleBatch.size();
+                computeNextMatchingBatch((int) Math.min(maxTuples - batchSize, resultBound - resultCursor), tupleBatch);
+                int numberOfResults = tupleBatch.size() - batchSize;
+                if (numberOfResults == 0) {
+                    break;
+                }
+                // the results before the offset are skipped
+                int numberOfSkippedResults = (int) Math.max(0, Math.min(numberOfResults, offset - 1 - resultCursor));
+                tupleBatch.subList(batchSize, batchSize + numberOfSkippedResults).clear();
+                resultCursor += numberOfResults;
+            }
+            return tupleBatch;
+        } catch (Exception e) {
+            throw new DataFlowException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Throws a DataFlowException if the query is cancelled.
+     * 
+     * @throws DataFlowException
+     */
+    protected void checkCancelled() throws DataFlowException {
+        if (cancellationToken.isCancelled()) {
+            throw new DataFlowException(ErrorMessages.QUERY_CANCELLED);
+        }
+    }
+
+    /**
+     * Computes the next matching tuples and adds them to the batch, at most maxTuples of them,
+     *   none if there's no more matching tuple.
+     * The default implementation calls computeNextMatchingTuple().
+     * 
+     * @param maxTuples
+     * @param batch
+     * @throws TextDBException
+     */
+    protected void computeNextMatchingBatch(int maxTuples, List<ITuple> batch) throws TextDBException {
+        for (int i = 0; i < maxTuples; i++) {
+            ITuple resultTuple = computeNextMatchingTuple();
+            if (resultTuple == null) {
+                break;
+            }
+            batch.add(resultTuple);
+        }
+    }
+
+    /**
+     * Computes the next matching tuples by processOneInputTuple() on batches of input tuples,
+     *   an implementation of computeNextMatchingBatch() for the operators whose computeNextMatchingTuple()
+     *   returns the first non-null result of processOneInputTuple() on the next input tuples.
+     * Such an operator produces at most one tuple for each input tuple,
+     *   so it doesn't read more input tuples than computeNextMatchingTuple() does.
+     * 
+     * @param maxTuples
+     * @param batch
+     * @throws TextDBException
+     */
+    protected void processInputBatches(int maxTuples, List<ITuple> batch) throws TextDBException {
+        int batchSize = batch.size();
+        while (batch.size() - batchSize < maxTuples) {
+            List<ITuple> inputBatch = inputOperator.getNextBatch(maxTuples - (batch.size() - batchSize));
+            if (inputBatch.isEmpty()) {
+                break;
+            }
+            for (ITuple inputTuple : inputBatch) {
+                ITuple resultTuple = processOneInputTuple(inputTuple);
+                if (resultTuple != null) {
+                    batch.add(resultTuple);
+                }
+            }
+        }
+    }
+
     /**
      * Give the input tuples, compute the next matching tuple. Return null if there's no more matching tuple.
      * 
@@ -108,6 +225,7 @@ public abstract class AbstractSingleInputOperator implements IOperator {
             throw new DataFlowException(e.getMessage(), e);
         }
         cursor = CLOSED;
+        cancellationToken = CancellationToken.NONE;
     }
     
     protected abstract void cleanUp() throws TextDBException;
@@ -141,4 +259,22 @@ public abstract class AbstractSingleInputOperator implements IOperator {
         return offset;
     }
     
+    @Override
+    public void pushDownLimit(int maxNumberOfTuples) {
+        // the consumer won't pull more than maxNumberOfTuples results
+        if (maxNumberOfTuples < limit) {
+            limit = maxNumberOfTuples;
+        }
+        if (isOneToOne() && inputOperator instanceof ILimitPushdown) {
+            ((ILimitPushdown) inputOperator).pushDownLimit(ILimitPushdown.getInputBound(limit, offset));
+        }
+    }
+    
+    /**
+     * Returns true if the operator produces exactly one output tuple for each input tuple.
+     */
+    protected boolean isOneToOne() {
+        return false;
+    }
+    
 }
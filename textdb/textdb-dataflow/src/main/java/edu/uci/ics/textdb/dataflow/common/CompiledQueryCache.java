@@ -0,0 +1,170 @@
+package edu.uci.ics.textdb.dataflow.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.cn.smart.SmartChineseAnalyzer;
+import org.apache.lucene.analysis.custom.CustomAnalyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.util.AbstractAnalysisFactory;
+
+import edu.uci.ics.textdb.common.exception.DataFlowException;
+
+/**
+ * CompiledQueryCache caches the compiled regex patterns and the Lucene queries of the matchers,
+ *   so that the same regex or query is not compiled (or translated) again by every operator that uses it,
+ *   e.g. the web service runs the same few hundred regexes over and over.
+ *
+ * There's one cache in the process, it's shared by all the operators (and threads).
+ * The least recently used entries are evicted when there are more than MAX_CACHE_SIZE of them.
+ * The cached objects are immutable (patterns) or never modified by the operators (queries),
+ *   so the same object can be used by many operators at the same time.
+ *
+ * A key is a list of everything the compiled object depends on, starting with the kind of the object,
+ *   see getKey().
+ *
+ */
+public final class CompiledQueryCache {
+
+    public static final int MAX_CACHE_SIZE = 1000;
+
+    /**
+     * Compiler compiles an object when it's not in the cache.
+     */
+    public interface Compiler<T> {
+        T compile() throws DataFlowException;
+    }
+
+    private static final LinkedHashMap<List<Object>, Object> cache =
+            new LinkedHashMap<List<Object>, Object>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<List<Object>, Object> eldest) {
+                    return size() > MAX_CACHE_SIZE;
+                }
+            };
+
+    private CompiledQueryCache() {
+    }
+
+    /**
+     * Returns the compiled Java regex pattern, the same as java.util.regex.Pattern.compile(regex, flags).
+     *
+     * @throws java.util.regex.PatternSyntaxException if the regex is invalid, invalid regexes are not cached
+     */
+    public static java.util.regex.Pattern getJavaPattern(String regex, int flags) {
+        return getUnchecked(getKey("javaPattern", regex, flags), () -> java.util.regex.Pattern.compile(regex, flags));
+    }
+
+    /**
+     * Returns the compiled RE2J regex pattern, the same as com.google.re2j.Pattern.compile(regex, flags).
+     *
+     * @throws com.google.re2j.PatternSyntaxException if the regex is invalid, invalid regexes are not cached
+     */
+    public static com.google.re2j.Pattern getRe2jPattern(String regex, int flags) {
+        return getUnchecked(getKey("re2jPattern", regex, flags), () -> com.google.re2j.Pattern.compile(regex, flags));
+    }
+
+    /**
+     * Returns the cached object of the key, the object is compiled and cached if it's not in the cache.
+     * The compiler runs without holding the cache's lock, so two operators may compile the same object
+     *   at the same time, then one of them is cached.
+     *
+     * @param key, see getKey()
+     * @param compiler
+     * @return
+     * @throws DataFlowException, if the compiler fails, the failure is not cached
+     */
+    public static <T> T get(List<Object> key, Compiler<T> compiler) throws DataFlowException {
+        synchronized (cache) {
+            @SuppressWarnings("unchecked")
+            T cachedObject = (T) cache.get(key);
+            if (cachedObject != null) {
+                return cachedObject;
+            }
+        }
+        T compiledObject = compiler.compile();
+        synchronized (cache) {
+            cache.put(key, compiledObject);
+        }
+        return compiledObject;
+    }
+
+    /**
+     * Returns a cache key of the kind of the compiled object and the parameters of the compilation.
+     * The parameters must implement equals() and hashCode() by their values.
+     * An analyzer should be passed by getAnalyzerKey(), because analyzers don't implement equals().
+     */
+    public static List<Object> getKey(String kind, Object... parameters) {
+        Object[] keyElements = new Object[parameters.length + 1];
+        keyElements[0] = kind;
+        System.arraycopy(parameters, 0, keyElements, 1, parameters.length);
+        return Arrays.asList(keyElements);
+    }
+
+    /**
+     * Returns the key of an analyzer.
+     * The standard and the Chinese analyzers (see LuceneAnalyzerConstants) always analyze the text in the same way,
+     *   so all the analyzers of such a class have the same key.
+     * A custom analyzer (e.g. the n-gram analyzers, which are created for every predicate) is keyed by its
+     *   configuration: the classes and the arguments of its char filters, tokenizer and token filters.
+     * Other analyzers are configurable in unknown ways, an analyzer object is its own key.
+     */
+    public static Object getAnalyzerKey(Analyzer analyzer) {
+        if (analyzer.getClass() == StandardAnalyzer.class || analyzer.getClass() == SmartChineseAnalyzer.class) {
+            return analyzer.getClass().getName();
+        }
+        if (analyzer.getClass() == CustomAnalyzer.class) {
+            CustomAnalyzer customAnalyzer = (CustomAnalyzer) analyzer;
+            List<Object> analyzerKey = new ArrayList<>();
+            analyzerKey.add(CustomAnalyzer.class.getName());
+            for (AbstractAnalysisFactory factory : customAnalyzer.getCharFilterFactories()) {
+                addFactoryKey(analyzerKey, factory);
+            }
+            addFactoryKey(analyzerKey, customAnalyzer.getTokenizerFactory());
+            for (AbstractAnalysisFactory factory : customAnalyzer.getTokenFilterFactories()) {
+                addFactoryKey(analyzerKey, factory);
+            }
+            analyzerKey.add(customAnalyzer.getPositionIncrementGap(null));
+            analyzerKey.add(customAnalyzer.getOffsetGap(null));
+            return analyzerKey;
+        }
+        return analyzer;
+    }
+
+    private static void addFactoryKey(List<Object> analyzerKey, AbstractAnalysisFactory factory) {
+        analyzerKey.add(factory.getClass().getName());
+        analyzerKey.add(factory.getOriginalArgs());
+    }
+
+    public static int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public static void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    private interface UncheckedCompiler<T> {
+        T compile();
+    }
+
+    private static <T> T getUnchecked(List<Object> key, UncheckedCompiler<T> compiler) {
+        try {
+            return get(key, () -> compiler.compile());
+        } catch (DataFlowException e) {
+            // an unchecked compiler never throws a DataFlowException
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -1,5 +1,8 @@
 package edu.uci.ics.textdb.dataflow.common;
 
+import java.util.Collections;
+import java.util.List;
+
 import edu.uci.ics.textdb.api.common.ITuple;
 import edu.uci.ics.textdb.api.common.Schema;
 import edu.uci.ics.textdb.common.exception.DataFlowException;
@@ -20,4 +23,14 @@ public interface IJoinPredicate {
 	String getInnerAttributeName();
 	
 	String getOuterAttributeName();
+	
+	/**
+	 * Returns the names of the attributes whose values must be equal in the outer tuple
+	 *   and the inner tuple for them to be joined.
+	 * If it's not empty, Join finds the matching pairs with a hash table
+	 *   instead of calling joinTuples on every pair.
+	 */
+	default List<String> getEqualityAttributeNames() {
+		return Collections.emptyList();
+	}
 }
\ No newline at end of file
@@ -0,0 +1,32 @@
+package edu.uci.ics.textdb.dataflow.common;
+
+/**
+ * ILimitPushdown is the interface for operators that can make use of
+ *   the number of tuples their consumer will pull from them.
+ *
+ * If an operator produces exactly one output tuple for each input tuple,
+ *   it never pulls more than (offset + limit) tuples from its input, so the bound
+ *   can be passed further down, until it reaches an operator that filters tuples,
+ *   or a source operator that can stop reading the index early.
+ *
+ * The bound is pushed down by LogicalPlan after the operators are connected.
+ *
+ */
+public interface ILimitPushdown {
+
+    /**
+     * Tells the operator that its consumer will pull at most "maxNumberOfTuples" tuples from it.
+     *
+     * @param maxNumberOfTuples
+     */
+    void pushDownLimit(int maxNumberOfTuples);
+
+    /**
+     * Returns the number of tuples an operator pulls from its input to produce
+     *   "offset" + "limit" results, without overflowing.
+     */
+    static int getInputBound(int limit, int offset) {
+        return (int) Math.min((long) limit + offset, Integer.MAX_VALUE);
+    }
+
+}
@@ -0,0 +1,36 @@
+package edu.uci.ics.textdb.dataflow.common;
+
+import edu.uci.ics.textdb.api.dataflow.ISourceOperator;
+import edu.uci.ics.textdb.storage.IndexMorsels;
+
+/**
+ * IMorselSource is the interface for source operators that can read their table in morsels,
+ *   so that several copies of the operator share the reading of one table (see IndexMorsels).
+ *
+ * The morsels are set by ParallelGatherOperator before the copies are opened.
+ * A single copy that reads the whole table can search the segments of the table concurrently instead.
+ *
+ */
+public interface IMorselSource extends ISourceOperator {
+
+    /**
+     * Returns the table the operator reads.
+     */
+    String getTableName();
+
+    /**
+     * Makes the operator only read the morsels it takes from the shared morsels of its table.
+     *
+     * @param morsels
+     */
+    void setMorsels(IndexMorsels morsels);
+
+    /**
+     * Sets the number of index segments that are searched concurrently (see DataReader.setParallelism),
+     *   it doesn't apply once the morsels are set.
+     *
+     * @param parallelism
+     */
+    void setParallelism(int parallelism);
+
+}
@@ -1,9 +1,11 @@
 package edu.uci.ics.textdb.dataflow.common;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import edu.uci.ics.textdb.api.common.Attribute;
 import edu.uci.ics.textdb.api.common.FieldType;
@@ -194,39 +196,37 @@ public class JoinDistancePredicate implements IJoinPredicate {
 	        outerSpanList = (List<Span>) spanFieldOfOuterTuple.getValue();
 	    }
 	
-	    Iterator<Span> outerSpanIter = outerSpanList.iterator();
-	
-	    // TODO Currently we are using two loops to go over two span lists.
-	    // We can optimize it by sorting the spans based on the start position
-	    // and then doing a "sort merge" of the two lists.
-	    // (Also probably weed out the spans with fields that don't agree with
-	    // the ones specified in the JoinPredicate during "sort merge"?)
-	    while (outerSpanIter.hasNext()) {
-	        Span outerSpan = outerSpanIter.next();
-	        // Check if the field matches the filed over which we want to join.
-	        // If not return null.
-	        if (!outerSpan.getFieldName().equals(this.joinAttributeName)) {
-	            continue;
-	        }
-	        Iterator<Span> innerSpanIter = innerSpanList.iterator();
-	        while (innerSpanIter.hasNext()) {
-	            Span innerSpan = innerSpanIter.next();
-	            if (!innerSpan.getFieldName().equals(this.joinAttributeName)) {
-	                continue;
-	            }
-	            Integer threshold = this.getThreshold();
-	            if (Math.abs(outerSpan.getStart() - innerSpan.getStart()) <= threshold
-	                    && Math.abs(outerSpan.getEnd() - innerSpan.getEnd()) <= threshold) {
-	                Integer newSpanStartIndex = Math.min(outerSpan.getStart(), innerSpan.getStart());
-	                Integer newSpanEndIndex = Math.max(outerSpan.getEnd(), innerSpan.getEnd());
-	                String fieldName = this.joinAttributeName;
-	                String fieldValue = (String) innerTuple.getField(fieldName).getValue();
-	                String newFieldValue = fieldValue.substring(newSpanStartIndex, newSpanEndIndex);
-	                String spanKey = outerSpan.getKey() + "_" + innerSpan.getKey();
-	                Span newSpan = new Span(fieldName, newSpanStartIndex, newSpanEndIndex, spanKey, newFieldValue);
-	                newJoinSpanList.add(newSpan);
+	    // only the spans of the join attribute are joined, they are sorted by their start positions,
+	    //   so that the inner spans within the threshold of an outer span can be found by binary search
+	    SortedSpans outerSpans = new SortedSpans(outerSpanList, this.joinAttributeName);
+	    SortedSpans innerSpans = new SortedSpans(innerSpanList, this.joinAttributeName);
+	    int threshold = this.getThreshold();
+	    String fieldValue = (String) innerTuple.getField(this.joinAttributeName).getValue();
+	    
+	    // the outer spans and the matching inner spans are visited in their original order,
+	    //   which keeps the order of the result spans the same as comparing every pair
+	    int[] matchingInnerSpans = new int[innerSpans.spans.length];
+	    for (Span outerSpan : outerSpans.spans) {
+	        int numberOfMatches = 0;
+	        int windowStart = innerSpans.lowerBound((long) outerSpan.getStart() - threshold);
+	        int windowEnd = innerSpans.lowerBound((long) outerSpan.getStart() + threshold + 1);
+	        for (int k = windowStart; k < windowEnd; k++) {
+	            int innerSpanIndex = innerSpans.startOrder[k];
+	            if (Math.abs(outerSpan.getEnd() - innerSpans.spans[innerSpanIndex].getEnd()) <= threshold) {
+	                matchingInnerSpans[numberOfMatches++] = innerSpanIndex;
 	            }
 	        }
+	        Arrays.sort(matchingInnerSpans, 0, numberOfMatches);
+	        
+	        for (int i = 0; i < numberOfMatches; i++) {
+	            Span innerSpan = innerSpans.spans[matchingInnerSpans[i]];
+	            int newSpanStartIndex = Math.min(outerSpan.getStart(), innerSpan.getStart());
+	            int newSpanEndIndex = Math.max(outerSpan.getEnd(), innerSpan.getEnd());
+	            String newFieldValue = fieldValue.substring(newSpanStartIndex, newSpanEndIndex);
+	            String spanKey = outerSpan.getKey() + "_" + innerSpan.getKey();
+	            Span newSpan = new Span(this.joinAttributeName, newSpanStartIndex, newSpanEndIndex, spanKey, newFieldValue);
+	            newJoinSpanList.add(newSpan);
+	        }
 	    }
 	
 	    if (newJoinSpanList.isEmpty()) {
@@ -247,6 +247,43 @@ public class JoinDistancePredicate implements IJoinPredicate {
 	    return new DataTuple(outputSchema, outputFields.stream().toArray(IField[]::new));
 	}
 
+	/*
+	 * The spans of one field in their original order, and their indexes sorted by the start positions.
+	 * They are sorted again for every pair of tuples, so that a predicate shared by several Join operators
+	 *   (e.g. the copies of a parallel plan) keeps no state.
+	 */
+	private static class SortedSpans {
+	    private final Span[] spans;
+	    private final int[] startOrder;
+	    private final int[] sortedStarts;
+	    
+	    private SortedSpans(List<Span> spanList, String fieldName) {
+	        this.spans = spanList.stream().filter(span -> span.getFieldName().equals(fieldName))
+	                .toArray(Span[]::new);
+	        this.startOrder = IntStream.range(0, spans.length).boxed()
+	                .sorted(Comparator.comparingInt(i -> spans[i].getStart()))
+	                .mapToInt(Integer::intValue).toArray();
+	        this.sortedStarts = Arrays.stream(startOrder).map(i -> spans[i].getStart()).toArray();
+	    }
+	    
+	    /*
+	     * Returns the position of the first span in startOrder whose start is not less than the given value.
+	     */
+	    private int lowerBound(long start) {
+	        int low = 0;
+	        int high = sortedStarts.length;
+	        while (low < high) {
+	            int mid = (low + high) >>> 1;
+	            if (sortedStarts[mid] < start) {
+	                low = mid + 1;
+	            } else {
+	                high = mid;
+	            }
+	        }
+	        return low;
+	    }
+	}
+	
 	/**
 	 * Used to compare the value's of a field from the outer and inner tuples'.
 	 * 
@@ -275,4 +312,12 @@ public class JoinDistancePredicate implements IJoinPredicate {
     public String getOuterAttributeName() {
         return this.joinAttributeName;
     }
+    
+    /**
+     * Two tuples are only joined if their _ID and join attribute are the same.
+     */
+    @Override
+    public List<String> getEqualityAttributeNames() {
+        return Arrays.asList(SchemaConstants._ID, this.joinAttributeName);
+    }
 }
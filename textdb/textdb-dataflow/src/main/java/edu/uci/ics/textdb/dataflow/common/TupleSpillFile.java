@@ -0,0 +1,339 @@
+package edu.uci.ics.textdb.dataflow.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.uci.ics.textdb.api.common.Attribute;
+import edu.uci.ics.textdb.api.common.FieldType;
+import edu.uci.ics.textdb.api.common.IField;
+import edu.uci.ics.textdb.api.common.ITuple;
+import edu.uci.ics.textdb.api.common.Schema;
+import edu.uci.ics.textdb.common.exception.DataFlowException;
+import edu.uci.ics.textdb.common.field.CompactSpanList;
+import edu.uci.ics.textdb.common.field.DataTuple;
+import edu.uci.ics.textdb.common.field.DateField;
+import edu.uci.ics.textdb.common.field.DoubleField;
+import edu.uci.ics.textdb.common.field.IDField;
+import edu.uci.ics.textdb.common.field.IntegerField;
+import edu.uci.ics.textdb.common.field.ListField;
+import edu.uci.ics.textdb.common.field.Span;
+import edu.uci.ics.textdb.common.field.StringField;
+import edu.uci.ics.textdb.common.field.TextField;
+
+/**
+ * TupleSpillFile is a temporary file that operators use to move tuples out of memory,
+ *   e.g. the partitions of a hash join, or the tuples a slow consumer of a connector hasn't read yet.
+ *
+ * Tuples are appended to the end of the file, and read back in the same order by one or more readers.
+ * A reader can read the tuples that are written after it's opened.
+ *
+ * All the tuples in a file have the same schema, the fields are written in the order of the attributes.
+ * LIST fields are expected to be lists of spans (e.g. "spanList" and "payload").
+ * The term restriction of a payload (see CompactSpanList.setTermRestriction) is written with its spans,
+ *   a restricted payload is read back as a CompactSpanList with the same restriction,
+ *   so that the operators after the spill still regenerate the spans of the other terms.
+ *
+ */
+public class TupleSpillFile {
+
+    private final Path path;
+    private final Schema schema;
+
+    private DataOutputStream output;
+    private final List<Reader> readers = new ArrayList<>();
+    private int size = 0;
+    private int flushedSize = 0;
+
+    public TupleSpillFile(Path path, Schema schema) throws DataFlowException {
+        this.path = path;
+        this.schema = schema;
+        try {
+            this.output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+        } catch (IOException e) {
+            throw new DataFlowException(e.getMessage(), e);
+        }
+    }
+
+    public void write(ITuple tuple) throws DataFlowException {
+        try {
+            List<Attribute> attributes = schema.getAttributes();
+            for (int i = 0; i < attributes.size(); i++) {
+                writeField(output, attributes.get(i), tuple.getField(i));
+            }
+            size++;
+        } catch (IOException e) {
+            throw new DataFlowException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Returns the number of tuples written to the file.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Opens a reader that reads the tuples from the beginning of the file.
+     */
+    public Reader openReader() throws DataFlowException {
+        Reader reader = new Reader();
+        readers.add(reader);
+        return reader;
+    }
+
+    /**
+     * Closes the file and its readers, and deletes it from the disk.
+     */
+    public void delete() throws DataFlowException {
+        try {
+            for (Reader reader : readers) {
+                reader.close();
+            }
+            readers.clear();
+            output.close();
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            throw new DataFlowException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reader reads the tuples of a TupleSpillFile in the order they are written.
+     */
+    public class Reader {
+
+        private DataInputStream input;
+        private int readCount = 0;
+
+        private Reader() {
+        }
+
+        /**
+         * Returns the next tuple, or null if all the tuples written so far are read.
+         */
+        public ITuple read() throws DataFlowException {
+            if (readCount >= size) {
+                return null;
+            }
+            try {
+                // make the buffered tuples visible to the reader
+                if (readCount >= flushedSize) {
+                    output.flush();
+                    flushedSize = size;
+                }
+                if (input == null) {
+                    input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)));
+                }
+                List<Attribute> attributes = schema.getAttributes();
+                IField[] fields = new IField[attributes.size()];
+                Map<Integer, Set<String>> termRestrictions = new HashMap<>();
+                for (int i = 0; i < attributes.size(); i++) {
+                    fields[i] = readField(input, attributes.get(i));
+                    if (attributes.get(i).getFieldType() == FieldType.LIST) {
+                        Set<String> termRestriction = readTermRestriction(input);
+                        if (termRestriction != null) {
+                            termRestrictions.put(i, termRestriction);
+                        }
+                    }
+                }
+                // the restricted payloads are rebuilt after all the fields are read, they need the field values
+                for (Map.Entry<Integer, Set<String>> entry : termRestrictions.entrySet()) {
+                    @SuppressWarnings("unchecked")
+                    List<Span> spanList = (List<Span>) fields[entry.getKey()].getValue();
+                    fields[entry.getKey()] = new ListField<Span>(
+                            toRestrictedPayload(spanList, entry.getValue(), fields));
+                }
+                readCount++;
+                return new DataTuple(schema, fields);
+            } catch (IOException e) {
+                throw new DataFlowException(e.getMessage(), e);
+            }
+        }
+
+        /*
+         * Rebuilds a restricted payload, the value of a span is taken from the field of the tuple it's in.
+         * If a field of the spans isn't in the tuple, the payload is restricted to no term at all,
+         *   so that the operators after the spill generate all the spans they need from the tuple.
+         */
+        private CompactSpanList toRestrictedPayload(List<Span> spanList, Set<String> termRestriction,
+                IField[] fields) {
+            CompactSpanList payload = new CompactSpanList();
+            Map<String, Integer> fieldIds = new HashMap<>();
+            for (Span span : spanList) {
+                Integer fieldId = fieldIds.get(span.getFieldName());
+                if (fieldId == null) {
+                    String fieldValue = getFieldValue(span.getFieldName(), fields);
+                    if (fieldValue == null) {
+                        CompactSpanList emptyPayload = new CompactSpanList();
+                        emptyPayload.setTermRestriction(Collections.emptySet());
+                        return emptyPayload;
+                    }
+                    fieldId = payload.addField(span.getFieldName(), fieldValue);
+                    fieldIds.put(span.getFieldName(), fieldId);
+                }
+                payload.addToken(fieldId, payload.addTerm(span.getKey()), span.getStart(), span.getEnd(),
+                        span.getTokenOffset());
+            }
+            payload.setTermRestriction(termRestriction);
+            return payload;
+        }
+
+        private String getFieldValue(String fieldName, IField[] fields) {
+            if (! schema.containsField(fieldName)) {
+                return null;
+            }
+            Object fieldValue = fields[schema.getIndex(fieldName)].getValue();
+            return fieldValue instanceof String ? (String) fieldValue : null;
+        }
+
+        /**
+         * Skips the next tuples, returns the number of tuples skipped.
+         */
+        public int skip(int numberOfTuples) throws DataFlowException {
+            int skipped = 0;
+            while (skipped < numberOfTuples && read() != null) {
+                skipped++;
+            }
+            return skipped;
+        }
+
+        private void close() throws IOException {
+            if (input != null) {
+                input.close();
+                input = null;
+            }
+        }
+    }
+
+    private static void writeField(DataOutputStream output, Attribute attribute, IField field) throws IOException {
+        switch (attribute.getFieldType()) {
+        case _ID_TYPE:
+        case STRING:
+        case TEXT:
+            writeString(output, (String) field.getValue());
+            break;
+        case INTEGER:
+            output.writeInt((Integer) field.getValue());
+            break;
+        case DOUBLE:
+            output.writeDouble((Double) field.getValue());
+            break;
+        case DATE:
+            output.writeLong(((Date) field.getValue()).getTime());
+            break;
+        case LIST:
+            @SuppressWarnings("unchecked")
+            List<Span> spanList = (List<Span>) field.getValue();
+            output.writeInt(spanList.size());
+            for (Span span : spanList) {
+                writeString(output, span.getFieldName());
+                output.writeInt(span.getStart());
+                output.writeInt(span.getEnd());
+                writeString(output, span.getKey());
+                writeString(output, span.getValue());
+                output.writeInt(span.getTokenOffset());
+            }
+            writeTermRestriction(output, spanList);
+            break;
+        }
+    }
+
+    /*
+     * Writes the term restriction of a payload, -1 if the list isn't restricted.
+     */
+    private static void writeTermRestriction(DataOutputStream output, List<Span> spanList) throws IOException {
+        Set<String> termRestriction = spanList instanceof CompactSpanList
+                ? ((CompactSpanList) spanList).getTermRestriction() : null;
+        if (termRestriction == null) {
+            output.writeInt(-1);
+            return;
+        }
+        output.writeInt(termRestriction.size());
+        for (String term : termRestriction) {
+            writeString(output, term);
+        }
+    }
+
+    private static Set<String> readTermRestriction(DataInputStream input) throws IOException {
+        int restrictionSize = input.readInt();
+        if (restrictionSize < 0) {
+            return null;
+        }
+        Set<String> termRestriction = new HashSet<>();
+        for (int i = 0; i < restrictionSize; i++) {
+            termRestriction.add(readString(input));
+        }
+        return termRestriction;
+    }
+
+    private static IField readField(DataInputStream input, Attribute attribute) throws IOException {
+        switch (attribute.getFieldType()) {
+        case _ID_TYPE:
+            return new IDField(readString(input));
+        case STRING:
+            return new StringField(readString(input));
+        case TEXT:
+            return new TextField(readString(input));
+        case INTEGER:
+            return new IntegerField(input.readInt());
+        case DOUBLE:
+            return new DoubleField(input.readDouble());
+        case DATE:
+            return new DateField(new Date(input.readLong()));
+        case LIST:
+            int listSize = input.readInt();
+            List<Span> spanList = new ArrayList<>(listSize);
+            for (int i = 0; i < listSize; i++) {
+                String fieldName = readString(input);
+                int start = input.readInt();
+                int end = input.readInt();
+                String key = readString(input);
+                String value = readString(input);
+                int tokenOffset = input.readInt();
+                spanList.add(new Span(fieldName, start, end, key, value, tokenOffset));
+            }
+            return new ListField<Span>(spanList);
+        default:
+            throw new IOException("unsupported field type " + attribute.getFieldType());
+        }
+    }
+
+    /*
+     * writeUTF() is limited to 64KB, TEXT fields can be longer.
+     */
+    private static void writeString(DataOutputStream output, String str) throws IOException {
+        if (str == null) {
+            output.writeInt(-1);
+            return;
+        }
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,385 @@
+package edu.uci.ics.textdb.dataflow.connector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import edu.uci.ics.textdb.api.common.ITuple;
+import edu.uci.ics.textdb.api.common.Schema;
+import edu.uci.ics.textdb.api.dataflow.CancellationToken;
+import edu.uci.ics.textdb.api.dataflow.IConnector;
+import edu.uci.ics.textdb.api.dataflow.IOperator;
+import edu.uci.ics.textdb.api.exception.TextDBException;
+import edu.uci.ics.textdb.common.exception.DataFlowException;
+import edu.uci.ics.textdb.common.exception.ErrorMessages;
+
+/**
+ * ConcurrentOneToNBroadcastConnector connects one input operator with multiple output operators,
+ *   like OneToNBroadcastConnector, but its input operator runs on its own thread.
+ *
+ * The input thread reads the input operator in batches, and puts every batch to a bounded queue of each output.
+ *   It waits without polling while the queue of an output is full (backpressure), so the slowest output
+ *   decides how far ahead the input runs. It's woken up when the output takes a batch, when the output is closed,
+ *   or when the query is cancelled. If an output takes no batch from its full queue for the consumer timeout,
+ *   the input thread gives up, and every output gets an exception.
+ *
+ * The outputs have to be read by different threads, e.g. through PrefetchOperator, so that each branch
+ *   after the connector progresses on its own core. An output that isn't read blocks the input thread once its queue
+ *   is full, so two outputs read one after the other by the same thread would wait for each other forever.
+ *   LogicalPlan only uses this connector in plans whose branches end with a PrefetchOperator.
+ *
+ * The input operator is opened by the first output that's opened, and closed once all the outputs are closed,
+ *   on the threads of the outputs. An output can't be opened again before all the outputs are closed.
+ *
+ */
+public class ConcurrentOneToNBroadcastConnector implements IConnector {
+
+    private static final int PRE_OPEN = -2;
+
+    // the maximum number of batches in the queue of each output
+    public static final int QUEUE_CAPACITY = 4;
+
+    // how long the input thread waits for an output to take a batch from its full queue by default
+    public static final long CONSUMER_TIMEOUT_MINUTES = 10;
+
+    private static final ExecutorService INPUT_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "textdb-broadcast-input");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // put to the queue of every output when the input has no more tuples
+    private static final Object INPUT_FINISHED = new Object();
+
+    private final int outputOperatorNumber;
+    private final ArrayList<ConnectorOutputOperator> outputOperatorList = new ArrayList<>();
+
+    private IOperator inputOperator;
+    private int batchSize = IOperator.DEFAULT_BATCH_SIZE;
+    private long consumerTimeout = CONSUMER_TIMEOUT_MINUTES;
+    private TimeUnit consumerTimeoutUnit = TimeUnit.MINUTES;
+
+    private boolean inputOperatorOpened = false;
+    // read by the threads of the outputs
+    private volatile CancellationToken cancellationToken = CancellationToken.NONE;
+    private CountDownLatch inputThreadStopped;
+    private final Runnable cancelListener = this::wakeUpInputThread;
+    private volatile boolean stopped;
+
+    /**
+     * Constructs a ConcurrentOneToNBroadcastConnector with n output operators.
+     * @param outputOperatorNumber, the number of output operators this connector has
+     */
+    public ConcurrentOneToNBroadcastConnector(int outputOperatorNumber) {
+        this.outputOperatorNumber = outputOperatorNumber;
+        for (int i = 0; i < outputOperatorNumber; i++) {
+            outputOperatorList.add(new ConnectorOutputOperator(this, i));
+        }
+    }
+
+    @Override
+    public int getOutputNumber() {
+        return outputOperatorNumber;
+    }
+
+    /**
+     * Get the output operator corresponding to the index, null if outputIndex is out of bound.
+     */
+    @Override
+    public IOperator getOutputOperator(int outputIndex) {
+        if (outputIndex < outputOperatorNumber) {
+            return this.outputOperatorList.get(outputIndex);
+        } else {
+            return null;
+        }
+    }
+
+    /*
+     * The input operator is opened by the first output operator that's opened, with its token,
+     *   then the input thread starts.
+     */
+    private synchronized void openOutput(ConnectorOutputOperator output, CancellationToken cancellationToken)
+            throws TextDBException {
+        if (output.status == IOperator.OPENED) {
+            return;
+        }
+        if (output.status == IOperator.CLOSED) {
+            throw new DataFlowException(String.format(
+                    "output operator %d can't be opened again before all the output operators are closed",
+                    output.outputIndex));
+        }
+        if (! inputOperatorOpened) {
+            inputOperator.open(cancellationToken);
+            inputOperatorOpened = true;
+            this.cancellationToken = cancellationToken;
+            stopped = false;
+            inputThreadStopped = new CountDownLatch(1);
+            // the outputs that aren't opened yet get the batches as well
+            for (ConnectorOutputOperator outputOperator : outputOperatorList) {
+                outputOperator.reset();
+            }
+            cancellationToken.addCancelListener(cancelListener);
+            INPUT_EXECUTOR.execute(() -> runInputThread());
+        }
+        output.status = IOperator.OPENED;
+    }
+
+    /*
+     * The input operator is closed once all the output operators are closed,
+     *   the outputs can then be opened again as if they were never opened.
+     */
+    private synchronized void closeOutput(ConnectorOutputOperator output) throws TextDBException {
+        output.status = IOperator.CLOSED;
+        if (output.batchPermits != null) {
+            // the input thread may be waiting for this output
+            output.batchPermits.release();
+        }
+        for (ConnectorOutputOperator outputOperator : outputOperatorList) {
+            if (outputOperator.status != IOperator.CLOSED) {
+                return;
+            }
+        }
+        for (ConnectorOutputOperator outputOperator : outputOperatorList) {
+            outputOperator.status = PRE_OPEN;
+        }
+        if (! inputOperatorOpened) {
+            return;
+        }
+        inputOperatorOpened = false;
+        stopped = true;
+        cancellationToken.removeCancelListener(cancelListener);
+        wakeUpInputThread();
+        try {
+            inputThreadStopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DataFlowException(e.getMessage(), e);
+        } finally {
+            cancellationToken = CancellationToken.NONE;
+            for (ConnectorOutputOperator outputOperator : outputOperatorList) {
+                outputOperator.clear();
+            }
+        }
+        inputOperator.close();
+    }
+
+    /*
+     * Wakes up the input thread if it waits for a permit, it checks if the connector is stopped or cancelled.
+     */
+    private void wakeUpInputThread() {
+        for (ConnectorOutputOperator output : outputOperatorList) {
+            Semaphore batchPermits = output.batchPermits;
+            if (batchPermits != null) {
+                batchPermits.release();
+            }
+        }
+    }
+
+    private void runInputThread() {
+        try {
+            while (! stopped) {
+                List<ITuple> batch = inputOperator.getNextBatch(batchSize);
+                if (batch.isEmpty()) {
+                    break;
+                }
+                // the batch returned by an operator is reused by its next call, the outputs share the copy
+                List<ITuple> batchCopy = new ArrayList<>(batch);
+                for (ConnectorOutputOperator output : outputOperatorList) {
+                    if (! put(output, batchCopy)) {
+                        return;
+                    }
+                }
+            }
+        } catch (Exception e) {
+            stopped = true;
+            for (ConnectorOutputOperator output : outputOperatorList) {
+                output.batchQueue.add(new InputFailure(e));
+            }
+        } finally {
+            for (ConnectorOutputOperator output : outputOperatorList) {
+                output.batchQueue.add(INPUT_FINISHED);
+            }
+            inputThreadStopped.countDown();
+        }
+    }
+
+    /*
+     * Puts a batch to the queue of an output, waits while the queue is full, a closed output is skipped.
+     * Returns false if the connector is stopped, or the query is cancelled.
+     */
+    private boolean put(ConnectorOutputOperator output, List<ITuple> batch)
+            throws InterruptedException, DataFlowException {
+        while (output.status != IOperator.CLOSED) {
+            if (stopped || cancellationToken.isCancelled()) {
+                return false;
+            }
+            long waitNanos = Math.min(consumerTimeoutUnit.toNanos(consumerTimeout),
+                    cancellationToken.getRemainingNanos());
+            if (! output.batchPermits.tryAcquire(waitNanos, TimeUnit.NANOSECONDS)) {
+                if (stopped || cancellationToken.isCancelled()) {
+                    return false;
+                }
+                throw new DataFlowException(String.format("output operator %d of the connector took no tuples in %d %s",
+                        output.outputIndex, consumerTimeout, consumerTimeoutUnit.toString().toLowerCase()));
+            }
+            // the permit may be released to wake up the input thread, the output is checked again
+            if (output.status == IOperator.CLOSED || stopped || cancellationToken.isCancelled()) {
+                continue;
+            }
+            output.batchQueue.add(batch);
+            return true;
+        }
+        return ! stopped;
+    }
+
+    /**
+     * Set the input operator of this connector
+     * @param inputOperator
+     */
+    public void setInputOperator(IOperator inputOperator) {
+        this.inputOperator = inputOperator;
+    }
+
+    public IOperator getInputOperator() {
+        return this.inputOperator;
+    }
+
+    /**
+     * Sets the number of tuples the input thread reads from the input operator at a time.
+     *
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets how long the input thread waits for an output to take a batch from its full queue before it gives up.
+     *
+     * @param timeout
+     * @param unit
+     */
+    public void setConsumerTimeout(long timeout, TimeUnit unit) {
+        this.consumerTimeout = timeout;
+        this.consumerTimeoutUnit = unit;
+    }
+
+
+    public class ConnectorOutputOperator implements IOperator {
+
+        private final ConcurrentOneToNBroadcastConnector ownerConnector;
+        private final int outputIndex;
+
+        private volatile int status = PRE_OPEN;
+        // the input thread takes a permit before it puts a batch, the output gives it back when it takes the batch,
+        //   INPUT_FINISHED and the failures are put without a permit, so they never wait
+        private LinkedBlockingQueue<Object> batchQueue;
+        private volatile Semaphore batchPermits;
+        private List<ITuple> currentBatch;
+        private int currentBatchIndex;
+        private boolean inputFinished;
+
+        private ConnectorOutputOperator(ConcurrentOneToNBroadcastConnector ownerConnector, int outputIndex) {
+            this.ownerConnector = ownerConnector;
+            this.outputIndex = outputIndex;
+        }
+
+        private void reset() {
+            batchQueue = new LinkedBlockingQueue<>();
+            batchPermits = new Semaphore(QUEUE_CAPACITY);
+            currentBatch = null;
+            inputFinished = false;
+        }
+
+        private void clear() {
+            batchQueue = null;
+            batchPermits = null;
+            currentBatch = null;
+        }
+
+        @Override
+        public void open() throws TextDBException {
+            open(CancellationToken.NONE);
+        }
+
+        @Override
+        public void open(CancellationToken cancellationToken) throws TextDBException {
+            ownerConnector.openOutput(this, cancellationToken);
+        }
+
+        @Override
+        public ITuple getNextTuple() throws TextDBException {
+            if (status != OPENED) {
+                throw new DataFlowException(ErrorMessages.OPERATOR_NOT_OPENED);
+            }
+            if (cancellationToken.isCancelled()) {
+                throw new DataFlowException(ErrorMessages.QUERY_CANCELLED);
+            }
+            try {
+                while (currentBatch == null || currentBatchIndex >= currentBatch.size()) {
+                    if (inputFinished) {
+                        return null;
+                    }
+                    Object item = batchQueue.take();
+                    if (item == INPUT_FINISHED) {
+                        inputFinished = true;
+                        // the input thread stops without a result once the query is cancelled
+                        if (cancellationToken.isCancelled()) {
+                            throw new DataFlowException(ErrorMessages.QUERY_CANCELLED);
+                        }
+                    } else if (item instanceof InputFailure) {
+                        Exception e = ((InputFailure) item).exception;
+                        throw new DataFlowException(e.getMessage(), e);
+                    } else {
+                        batchPermits.release();
+                        @SuppressWarnings("unchecked")
+                        List<ITuple> batch = (List<ITuple>) item;
+                        currentBatch = batch;
+                        currentBatchIndex = 0;
+                    }
+                }
+                return currentBatch.get(currentBatchIndex++);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DataFlowException(e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public void close() throws TextDBException {
+            ownerConnector.closeOutput(this);
+        }
+
+        @Override
+        public Schema getOutputSchema() {
+            return ownerConnector.getInputOperator().getOutputSchema();
+        }
+
+        public ConcurrentOneToNBroadcastConnector getOwnerConnector() {
+            return this.ownerConnector;
+        }
+
+        public int getOutputIndex() {
+            return this.outputIndex;
+        }
+
+    }
+
+    private static class InputFailure {
+        private final Exception exception;
+
+        InputFailure(Exception exception) {
+            this.exception = exception;
+        }
+    }
+
+}
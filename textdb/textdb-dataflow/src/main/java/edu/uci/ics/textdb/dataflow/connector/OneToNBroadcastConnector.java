@@ -1,18 +1,33 @@
 package edu.uci.ics.textdb.dataflow.connector;
 
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 
 import edu.uci.ics.textdb.api.common.ITuple;
 import edu.uci.ics.textdb.api.common.Schema;
+import edu.uci.ics.textdb.api.dataflow.CancellationToken;
 import edu.uci.ics.textdb.api.dataflow.IConnector;
 import edu.uci.ics.textdb.api.dataflow.IOperator;
 import edu.uci.ics.textdb.api.exception.TextDBException;
+import edu.uci.ics.textdb.common.exception.DataFlowException;
+import edu.uci.ics.textdb.dataflow.common.TupleSpillFile;
 
 /**
  * OneToNBroadcastConnector connects one input operator with multiple output operators.
  * The tuples from the input operator will be broadcast to every output operator.
  * 
  * It is required that all output operators need to be opened prior to calling getNextTuple().
+ * 
+ * The tuples that are not read by every output operator yet are kept in a buffer.
+ * A tuple is removed from the buffer once all the opened (or not yet opened) output operators have read it.
+ * If the buffer has more tuples than the memory budget, the oldest tuples are moved to a spill file,
+ *   the output operators that lag behind will read them from the file.
+ * 
+ * An output operator that's closed and opened again reads from the first tuple again,
+ *   it fails to open if the first tuple is already removed. Once all the output operators are closed,
+ *   the input operator is closed, and the output operators can be opened again as if they were never opened.
+ * 
  * @author Zuozhi Wang (zuozhiw)
  *
  */
@@ -22,26 +37,41 @@ public class OneToNBroadcastConnector implements IConnector {
     private static final int OPENED = 0;
     private static final int CLOSED = -1;
     
+    public static final int DEFAULT_MEMORY_BUDGET = 100000;
+    private static final int INITIAL_BUFFER_SIZE = 16;
+    
     private int outputOperatorNumber;
     
     // A list of all output operators
     private ArrayList<IOperator> outputOperatorList;
-    // A list to maintain cursors of all operators
+    // A list to maintain cursors of all operators, a cursor is the position of the next tuple to read
     private ArrayList<Integer> outputCursorList;
     // A list to maintain operators' status (pre-open, opened or closed)
     private ArrayList<Integer> outputStatusList;
     private boolean inputOperatorOpened;
     
     private IOperator inputOperator;
-    // an in-memory list to cache tuples from input tuple, see getNextTuple() for more details
-    private ArrayList<ITuple> inputTupleList;
+    // the number of tuples read from the input operator
+    private int inputTupleCount;
+    
+    // the maximum number of tuples kept in memory
+    private int memoryBudget = DEFAULT_MEMORY_BUDGET;
+    // an in-memory ring buffer of the tuples at positions [bufferStart, inputTupleCount),
+    //   the tuple at position p is at index (p % tupleBuffer.length) 
+    private ITuple[] tupleBuffer;
+    private int bufferStart;
+    // a file of the tuples at positions [spillStart, bufferStart), null if no tuple is spilled
+    private TupleSpillFile spillFile;
+    private int spillStart;
+    // the reader of the spill file of each output operator, null if it's not reading the spill file
+    private ArrayList<TupleSpillFile.Reader> spillReaderList;
     
     /**
      * Constructs a OneToNBroadcastConnector with n output operators.
      * @param outputOperatorNumber, the number of output operators this connector has
      */
     public OneToNBroadcastConnector(int outputOperatorNumber) {        
-        this.inputTupleList = new ArrayList<>();
+        this.tupleBuffer = new ITuple[INITIAL_BUFFER_SIZE];
         inputOperatorOpened = false;
         this.outputOperatorNumber = outputOperatorNumber;
         initializeOutputOperators();
@@ -51,10 +81,12 @@ public class OneToNBroadcastConnector implements IConnector {
         this.outputOperatorList = new ArrayList<>();
         this.outputCursorList = new ArrayList<>();
         this.outputStatusList = new ArrayList<>();
+        this.spillReaderList = new ArrayList<>();
         
         for (int i = 0; i < this.outputOperatorNumber; i++) {
-            outputCursorList.add(-1);
+            outputCursorList.add(0);
             outputStatusList.add(PRE_OPEN);
+            spillReaderList.add(null);
             outputOperatorList.add(new ConnectorOutputOperator(this, i));
         }
     }
@@ -83,33 +115,150 @@ public class OneToNBroadcastConnector implements IConnector {
         }
     }
         
+    /**
+     * Sets the maximum number of tuples kept in memory, 
+     *   the tuples that exceed the budget are spilled to disk until the slowest output operator reads them.
+     * @param memoryBudget, the number of tuples
+     */
+    public void setMemoryBudget(int memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+    
+    public int getMemoryBudget() {
+        return this.memoryBudget;
+    }
+        
     /*
      * This returns the nextTuple of the operator corresponding to the index.
      * A cursor will be maintained for each operator. 
-     * Tuples from input operators are cached in an in-memory list.
-     * A new tuple will be fetched from input operator whenever a cursor exceeds the list size.
+     * Tuples from input operators are cached in a buffer (and the spill file).
+     * A new tuple will be fetched from input operator whenever a cursor reaches the end of the buffer.
+     * The tuples that all operators have read are removed from the buffer.
      */
     private ITuple getNextTuple(int outputOperatorIndex) throws TextDBException {
-        int nextPosition = outputCursorList.get(outputOperatorIndex) + 1;
-        outputCursorList.set(outputOperatorIndex, nextPosition);
+        int nextPosition = outputCursorList.get(outputOperatorIndex);
         
-        if (nextPosition < inputTupleList.size()) {
-            return inputTupleList.get(nextPosition);
+        ITuple nextTuple;
+        if (nextPosition < spillStart) {
+            throw new DataFlowException(String.format(
+                    "tuple %d of output operator %d is not available anymore", nextPosition, outputOperatorIndex));
+        } else if (nextPosition < bufferStart) {
+            nextTuple = readSpillFile(outputOperatorIndex, nextPosition);
+        } else if (nextPosition < inputTupleCount) {
+            nextTuple = tupleBuffer[nextPosition % tupleBuffer.length];
         } else {
-            ITuple nextInputTuple = inputOperator.getNextTuple();
-            if (nextInputTuple == null) {
+            nextTuple = inputOperator.getNextTuple();
+            if (nextTuple == null) {
                 return null;
-            } else {
-                inputTupleList.add(nextInputTuple);
-                return nextInputTuple;
             }
+            addToBuffer(nextTuple);
         }
+        
+        outputCursorList.set(outputOperatorIndex, nextPosition + 1);
+        evictTuples();
+        return nextTuple;
     }
     
-    private void openInputOperator(int outputOperatorIndex) throws TextDBException {
+    private ITuple readSpillFile(int outputOperatorIndex, int position) throws TextDBException {
+        TupleSpillFile.Reader spillReader = spillReaderList.get(outputOperatorIndex);
+        if (spillReader == null) {
+            spillReader = spillFile.openReader();
+            spillReader.skip(position - spillStart);
+            spillReaderList.set(outputOperatorIndex, spillReader);
+        }
+        return spillReader.read();
+    }
+    
+    private void addToBuffer(ITuple tuple) throws TextDBException {
+        if (inputTupleCount - bufferStart == tupleBuffer.length) {
+            growBuffer();
+        }
+        tupleBuffer[inputTupleCount % tupleBuffer.length] = tuple;
+        inputTupleCount++;
+        
+        while (inputTupleCount - bufferStart > memoryBudget && bufferStart < inputTupleCount) {
+            if (spillFile == null) {
+                try {
+                    spillFile = new TupleSpillFile(Files.createTempFile("textdb-connector", ".spill"), 
+                            inputOperator.getOutputSchema());
+                } catch (IOException e) {
+                    throw new DataFlowException(e.getMessage(), e);
+                }
+                spillStart = bufferStart;
+            }
+            spillFile.write(removeFirstBufferedTuple());
+        }
+    }
+    
+    private void growBuffer() {
+        ITuple[] newTupleBuffer = new ITuple[tupleBuffer.length * 2];
+        for (int position = bufferStart; position < inputTupleCount; position++) {
+            newTupleBuffer[position % newTupleBuffer.length] = tupleBuffer[position % tupleBuffer.length];
+        }
+        tupleBuffer = newTupleBuffer;
+    }
+    
+    private ITuple removeFirstBufferedTuple() {
+        int index = bufferStart % tupleBuffer.length;
+        ITuple tuple = tupleBuffer[index];
+        tupleBuffer[index] = null;
+        bufferStart++;
+        return tuple;
+    }
+    
+    /*
+     * Removes the tuples before the cursor of the slowest operator.
+     * The operators that are not opened yet will read from the first tuple, 
+     *   the operators that are closed won't read any more tuples, unless they are opened again
+     *   before any tuple is removed.
+     */
+    private void evictTuples() throws TextDBException {
+        int minCursor = inputTupleCount;
+        for (int i = 0; i < outputOperatorNumber; i++) {
+            if (outputStatusList.get(i) != CLOSED) {
+                minCursor = Math.min(minCursor, outputCursorList.get(i));
+            }
+        }
+        
+        if (spillFile != null) {
+            if (minCursor < bufferStart) {
+                return;
+            }
+            deleteSpillFile();
+        }
+        while (bufferStart < minCursor) {
+            removeFirstBufferedTuple();
+        }
+        spillStart = bufferStart;
+    }
+    
+    private void deleteSpillFile() throws TextDBException {
+        if (spillFile != null) {
+            spillFile.delete();
+            spillFile = null;
+        }
+        for (int i = 0; i < outputOperatorNumber; i++) {
+            spillReaderList.set(i, null);
+        }
+    }
+    
+    /*
+     * The input operator is opened by the first output operator that's opened, with its token.
+     */
+    private void openInputOperator(int outputOperatorIndex, CancellationToken cancellationToken) throws TextDBException {
+        if (outputStatusList.get(outputOperatorIndex) == CLOSED) {
+            // an output operator that's opened again reads from the first tuple again
+            if (spillStart > 0) {
+                throw new DataFlowException(String.format(
+                        "output operator %d can't be opened again before all the output operators are closed, "
+                        + "its tuples are not available anymore", outputOperatorIndex));
+            }
+            outputCursorList.set(outputOperatorIndex, 0);
+            spillReaderList.set(outputOperatorIndex, null);
+        }
         outputStatusList.set(outputOperatorIndex, OPENED);
         if (! inputOperatorOpened) {
-            inputOperator.open();
+            inputOperator.open(cancellationToken);
             inputOperatorOpened = true;
         }
     }
@@ -120,6 +269,19 @@ public class OneToNBroadcastConnector implements IConnector {
         if (isAllClosed) {
             inputOperator.close();
             inputOperatorOpened = false;
+            
+            // the input operator will start from the beginning if it's opened again
+            deleteSpillFile();
+            tupleBuffer = new ITuple[INITIAL_BUFFER_SIZE];
+            inputTupleCount = 0;
+            bufferStart = 0;
+            spillStart = 0;
+            for (int i = 0; i < outputOperatorNumber; i++) {
+                outputCursorList.set(i, 0);
+                outputStatusList.set(i, PRE_OPEN);
+            }
+        } else {
+            evictTuples();
         }
     }
     
@@ -152,7 +314,12 @@ public class OneToNBroadcastConnector implements IConnector {
 
         @Override
         public void open() throws TextDBException {
-            ownerConnector.openInputOperator(outputIndex);
+            open(CancellationToken.NONE);
+        }
+
+        @Override
+        public void open(CancellationToken cancellationToken) throws TextDBException {
+            ownerConnector.openInputOperator(outputIndex, cancellationToken);
         }
 
         @Override
@@ -0,0 +1,423 @@
+package edu.uci.ics.textdb.dataflow.connector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import edu.uci.ics.textdb.api.common.ITuple;
+import edu.uci.ics.textdb.api.common.Schema;
+import edu.uci.ics.textdb.api.dataflow.CancellationToken;
+import edu.uci.ics.textdb.api.dataflow.IOperator;
+import edu.uci.ics.textdb.api.exception.TextDBException;
+import edu.uci.ics.textdb.common.exception.DataFlowException;
+import edu.uci.ics.textdb.common.exception.ErrorMessages;
+import edu.uci.ics.textdb.dataflow.common.AbstractSingleInputOperator;
+import edu.uci.ics.textdb.dataflow.common.ILimitPushdown;
+import edu.uci.ics.textdb.dataflow.common.IMorselSource;
+import edu.uci.ics.textdb.storage.IndexMorsels;
+import edu.uci.ics.textdb.storage.RelationManager;
+
+/**
+ * ParallelGatherOperator runs several copies of a chain of operators on their own threads,
+ *   and gathers their results into one output (morsel-driven parallelism).
+ *
+ * A chain is a source operator that reads its table in morsels (see IMorselSource),
+ *   followed by operators that extend AbstractSingleInputOperator, e.g. KeywordMatcher, RegexMatcher,
+ *   FuzzyTokenMatcher, NlpExtractor, ProjectionOperator and ComparableMatcher.
+ *   Each of them computes its results by processOneInputTuple() on each input tuple,
+ *   so a copy of the chain on a part of the table produces the results of that part.
+ * The copies are built by a ChainBuilder, and their sources share the morsels of the table,
+ *   a worker thread takes the next morsel whenever its copy finishes one, so the faster workers read more morsels.
+ *
+ * The limit of the last operator of the chain is applied by ParallelGatherOperator instead,
+ *   each copy only produces up to limit results. The other operators of the chain can't have a limit,
+ *   because it would apply to each copy separately.
+ * The results of the copies are interleaved, in no particular order, so a limit returns the first results
+ *   that the copies produce, not the first results in the order of the table as a single chain does.
+ *   A chain with an offset can't be run in parallel, the results it skips would be different on every run.
+ *
+ * The workers put the batches of their results to a bounded queue, and wait without polling if it's full (backpressure).
+ *   A worker is woken up when the consumer takes a batch, when the gather is closed, or when the query is cancelled.
+ *   If the consumer takes no batch from a full queue for the consumer timeout (e.g. it went away without
+ *   closing the gather), the workers give up, and the consumer gets an exception if it comes back.
+ *
+ * The copies are opened with the token of ParallelGatherOperator, a cancelled query stops every worker,
+ *   and the failure of the first one is thrown by getNextTuple().
+ *
+ */
+public class ParallelGatherOperator implements IOperator, ILimitPushdown {
+
+    /**
+     * ChainBuilder builds a new copy of the chain, and returns the last operator of the chain.
+     */
+    @FunctionalInterface
+    public interface ChainBuilder {
+        IOperator buildChain() throws TextDBException;
+    }
+
+    // the maximum number of batches in the queue for each worker
+    public static final int QUEUE_CAPACITY_PER_WORKER = 2;
+
+    // how long the workers wait for the consumer to take a batch from a full queue by default
+    public static final long CONSUMER_TIMEOUT_MINUTES = 10;
+
+    private static final ExecutorService WORKER_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "textdb-parallel-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // put to the queue by a worker when its copy has no more results
+    private static final Object WORKER_FINISHED = new Object();
+
+    private final List<IOperator> chainList = new ArrayList<>();
+    private final IndexMorsels morsels;
+
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private long consumerTimeout = CONSUMER_TIMEOUT_MINUTES;
+    private TimeUnit consumerTimeoutUnit = TimeUnit.MINUTES;
+
+    private int cursor = CLOSED;
+    private CancellationToken cancellationToken = CancellationToken.NONE;
+    private int resultCursor = -1;
+    private int limit = Integer.MAX_VALUE;
+
+    // a worker takes a permit before it puts a batch, the consumer gives it back when it takes the batch,
+    //   WORKER_FINISHED and the failures are put without a permit, so they never wait
+    private LinkedBlockingQueue<Object> batchQueue;
+    private Semaphore batchPermits;
+    private CountDownLatch workersStopped;
+    private final Runnable cancelListener = this::wakeUpWorkers;
+    private volatile boolean stopped;
+    // the workers whose WORKER_FINISHED hasn't been taken from the queue
+    private int runningWorkers;
+    private List<ITuple> currentBatch;
+    private int currentBatchIndex;
+
+    /**
+     * Builds "parallelism" copies of the chain.
+     *
+     * @param parallelism, the number of copies that run at the same time
+     * @param chainBuilder
+     * @throws TextDBException, if the chain can't be run in parallel, e.g. it has an offset
+     */
+    public ParallelGatherOperator(int parallelism, ChainBuilder chainBuilder) throws TextDBException {
+        if (parallelism < 1) {
+            throw new DataFlowException("parallelism must be at least 1, got " + parallelism);
+        }
+        String tableName = null;
+        for (int i = 0; i < parallelism; i++) {
+            IOperator chain = chainBuilder.buildChain();
+            IMorselSource source = findMorselSource(chain);
+            if (source == null) {
+                throw new DataFlowException("the chain can't be run in parallel: " + chain.getClass().getSimpleName());
+            }
+            if (tableName == null) {
+                tableName = source.getTableName();
+            } else if (! tableName.equals(source.getTableName())) {
+                throw new DataFlowException("the copies of the chain read different tables");
+            }
+            // the last operator's limit is applied after the results are gathered
+            if (chain instanceof AbstractSingleInputOperator) {
+                this.limit = ((AbstractSingleInputOperator) chain).getLimit();
+            }
+            chainList.add(chain);
+        }
+        this.morsels = RelationManager.getRelationManager().getTableMorsels(tableName);
+        for (IOperator chain : chainList) {
+            findMorselSource(chain).setMorsels(morsels);
+        }
+    }
+
+    /**
+     * Returns true if the chain ending with the operator can be run in parallel:
+     *   it starts with an IMorselSource, the other operators extend AbstractSingleInputOperator,
+     *   only the last operator has a limit, and none of them has an offset.
+     *
+     * @param chain
+     * @return
+     */
+    public static boolean isParallelizable(IOperator chain) {
+        return findMorselSource(chain) != null;
+    }
+
+    /*
+     * Walks down the chain to its source, returns null if the chain can't be run in parallel.
+     */
+    private static IMorselSource findMorselSource(IOperator chain) {
+        IOperator operator = chain;
+        while (true) {
+            if (operator instanceof AbstractSingleInputOperator) {
+                AbstractSingleInputOperator chainOperator = (AbstractSingleInputOperator) operator;
+                if (chainOperator.getOffset() != 0
+                        || (operator != chain && chainOperator.getLimit() != Integer.MAX_VALUE)) {
+                    return null;
+                }
+            }
+            if (operator instanceof IMorselSource) {
+                return (IMorselSource) operator;
+            }
+            if (! (operator instanceof AbstractSingleInputOperator)) {
+                return null;
+            }
+            operator = ((AbstractSingleInputOperator) operator).getInputOperator();
+        }
+    }
+
+    @Override
+    public void open(CancellationToken cancellationToken) throws TextDBException {
+        if (cursor != CLOSED) {
+            return;
+        }
+        this.cancellationToken = cancellationToken;
+        open();
+    }
+
+    @Override
+    public void open() throws TextDBException {
+        if (cursor != CLOSED) {
+            return;
+        }
+        // every copy is opened before any worker starts, so that the morsels are handed out once
+        try {
+            for (IOperator chain : chainList) {
+                if (chain instanceof AbstractSingleInputOperator) {
+                    ((AbstractSingleInputOperator) chain).setLimit(limit);
+                }
+                chain.open(cancellationToken);
+            }
+        } catch (TextDBException e) {
+            closeChains();
+            throw new DataFlowException(e.getMessage(), e);
+        }
+
+        batchQueue = new LinkedBlockingQueue<>();
+        batchPermits = new Semaphore(QUEUE_CAPACITY_PER_WORKER * chainList.size());
+        workersStopped = new CountDownLatch(chainList.size());
+        stopped = false;
+        runningWorkers = chainList.size();
+        currentBatch = null;
+        resultCursor = -1;
+        cancellationToken.addCancelListener(cancelListener);
+        for (IOperator chain : chainList) {
+            WORKER_EXECUTOR.execute(() -> runWorker(chain));
+        }
+        cursor = OPENED;
+    }
+
+    @Override
+    public ITuple getNextTuple() throws TextDBException {
+        if (cursor == CLOSED) {
+            throw new DataFlowException(ErrorMessages.OPERATOR_NOT_OPENED);
+        }
+        if (resultCursor >= limit - 1) {
+            return null;
+        }
+        if (cancellationToken.isCancelled()) {
+            throw new DataFlowException(ErrorMessages.QUERY_CANCELLED);
+        }
+        ITuple resultTuple = nextGatheredTuple();
+        if (resultTuple == null) {
+            // the workers stop without a result once the query is cancelled
+            if (cancellationToken.isCancelled()) {
+                throw new DataFlowException(ErrorMessages.QUERY_CANCELLED);
+            }
+            return null;
+        }
+        resultCursor++;
+        return resultTuple;
+    }
+
+    /*
+     * Returns the next result of any copy, waits until a worker produces it, null if all the copies are finished.
+     */
+    private ITuple nextGatheredTuple() throws DataFlowException {
+        try {
+            while (currentBatch == null || currentBatchIndex >= currentBatch.size()) {
+                if (runningWorkers == 0) {
+                    return null;
+                }
+                Object item = batchQueue.take();
+                if (item == WORKER_FINISHED) {
+                    runningWorkers--;
+                } else if (item instanceof WorkerFailure) {
+                    Exception e = ((WorkerFailure) item).exception;
+                    throw new DataFlowException(e.getMessage(), e);
+                } else {
+                    batchPermits.release();
+                    @SuppressWarnings("unchecked")
+                    List<ITuple> batch = (List<ITuple>) item;
+                    currentBatch = batch;
+                    currentBatchIndex = 0;
+                }
+            }
+            return currentBatch.get(currentBatchIndex++);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DataFlowException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void close() throws TextDBException {
+        if (cursor == CLOSED) {
+            return;
+        }
+        cursor = CLOSED;
+        // the workers are stopped first, they may still be reading the copies
+        stopped = true;
+        cancellationToken.removeCancelListener(cancelListener);
+        wakeUpWorkers();
+        try {
+            workersStopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DataFlowException(e.getMessage(), e);
+        } finally {
+            batchQueue = null;
+            currentBatch = null;
+            cancellationToken = CancellationToken.NONE;
+        }
+        closeChains();
+    }
+
+    /*
+     * Closes all the copies, the first exception is thrown after all of them are closed.
+     */
+    private void closeChains() throws DataFlowException {
+        DataFlowException closeException = null;
+        for (IOperator chain : chainList) {
+            try {
+                chain.close();
+            } catch (TextDBException e) {
+                if (closeException == null) {
+                    closeException = new DataFlowException(e.getMessage(), e);
+                }
+            }
+        }
+        if (closeException != null) {
+            throw closeException;
+        }
+    }
+
+    /*
+     * Wakes up the workers that wait for a permit, they check if the gather is stopped or cancelled.
+     */
+    private void wakeUpWorkers() {
+        batchPermits.release(chainList.size());
+    }
+
+    private void runWorker(IOperator chain) {
+        try {
+            while (! stopped) {
+                List<ITuple> batch = chain.getNextBatch(batchSize);
+                // the batch returned by an operator is reused by its next call
+                if (batch.isEmpty() || ! put(new ArrayList<>(batch))) {
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            // the other workers stop as well, the consumer fails once it takes the failure
+            stopped = true;
+            batchQueue.add(new WorkerFailure(e));
+        } finally {
+            batchQueue.add(WORKER_FINISHED);
+            workersStopped.countDown();
+        }
+    }
+
+    /*
+     * Puts a batch to the queue, waits while the queue is full.
+     * Returns false if the gather is stopped, or the query is cancelled.
+     */
+    private boolean put(List<ITuple> batch) throws InterruptedException, DataFlowException {
+        long waitNanos = Math.min(consumerTimeoutUnit.toNanos(consumerTimeout), cancellationToken.getRemainingNanos());
+        if (! batchPermits.tryAcquire(waitNanos, TimeUnit.NANOSECONDS)) {
+            if (stopped || cancellationToken.isCancelled()) {
+                return false;
+            }
+            throw new DataFlowException("the consumer of the parallel gather took no results in "
+                    + consumerTimeout + " " + consumerTimeoutUnit.toString().toLowerCase());
+        }
+        if (stopped || cancellationToken.isCancelled()) {
+            return false;
+        }
+        batchQueue.add(batch);
+        return true;
+    }
+
+    @Override
+    public Schema getOutputSchema() {
+        return chainList.get(0).getOutputSchema();
+    }
+
+    @Override
+    public void pushDownLimit(int maxNumberOfTuples) {
+        if (maxNumberOfTuples < limit) {
+            limit = maxNumberOfTuples;
+        }
+        for (IOperator chain : chainList) {
+            if (chain instanceof ILimitPushdown) {
+                ((ILimitPushdown) chain).pushDownLimit(limit);
+            }
+        }
+    }
+
+    public List<IOperator> getChainList() {
+        return chainList;
+    }
+
+    public int getParallelism() {
+        return chainList.size();
+    }
+
+    public IndexMorsels getMorsels() {
+        return morsels;
+    }
+
+    /**
+     * Sets the number of tuples a worker reads from its copy at a time.
+     *
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets how long the workers wait for the consumer to take a batch from a full queue before they give up.
+     *
+     * @param timeout
+     * @param unit
+     */
+    public void setConsumerTimeout(long timeout, TimeUnit unit) {
+        this.consumerTimeout = timeout;
+        this.consumerTimeoutUnit = unit;
+    }
+
+    public void setLimit(int limit) {
+        this.limit = limit;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    private static class WorkerFailure {
+        private final Exception exception;
+
+        WorkerFailure(Exception exception) {
+            this.exception = exception;
+        }
+    }
+
+}
@@ -0,0 +1,301 @@
+package edu.uci.ics.textdb.dataflow.connector;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import edu.uci.ics.textdb.api.common.ITuple;
+import edu.uci.ics.textdb.api.common.Schema;
+import edu.uci.ics.textdb.api.dataflow.CancellationToken;
+import edu.uci.ics.textdb.api.dataflow.IOperator;
+import edu.uci.ics.textdb.api.exception.TextDBException;
+import edu.uci.ics.textdb.common.exception.DataFlowException;
+import edu.uci.ics.textdb.common.exception.ErrorMessages;
+import edu.uci.ics.textdb.dataflow.common.TupleSpillFile;
+
+/**
+ * PrefetchOperator reads its input operator on its own thread, ahead of its consumer,
+ *   so that the operators before it run on a different core than the operators after it,
+ *   e.g. the two sides of a Join, or the branches after a ConcurrentOneToNBroadcastConnector.
+ *
+ * The worker thread puts the batches of its input to a bounded queue, and waits without polling if it's full
+ *   (backpressure). It's woken up when the consumer takes a batch, when the operator is closed,
+ *   or when the query is cancelled. If the consumer takes no batch from a full queue for the consumer timeout,
+ *   the worker gives up, and the consumer gets an exception if it comes back.
+ *
+ * Until the consumer reads its first tuple, the worker doesn't wait for a full queue, it writes the rest of its input
+ *   to a spill file instead. A Join reads its inner side before its outer side, so the outer side is computed
+ *   at the same time on disk, and never holds up a connector that feeds both sides.
+ *   The consumer reads the spill file after the queue, once the worker is finished.
+ *
+ */
+public class PrefetchOperator implements IOperator {
+
+    // the maximum number of batches in the queue
+    public static final int QUEUE_CAPACITY = 4;
+
+    // how long the worker waits for the consumer to take a batch from a full queue by default
+    public static final long CONSUMER_TIMEOUT_MINUTES = 10;
+
+    private static final ExecutorService WORKER_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "textdb-prefetch-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // put to the queue by the worker when it's finished
+    private static final Object WORKER_FINISHED = new Object();
+
+    private IOperator inputOperator;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private long consumerTimeout = CONSUMER_TIMEOUT_MINUTES;
+    private TimeUnit consumerTimeoutUnit = TimeUnit.MINUTES;
+
+    private int cursor = CLOSED;
+    private CancellationToken cancellationToken = CancellationToken.NONE;
+
+    // the worker takes a permit before it puts a batch, the consumer gives it back when it takes the batch,
+    //   WORKER_FINISHED and the failures are put without a permit, so they never wait
+    private LinkedBlockingQueue<Object> batchQueue;
+    private Semaphore batchPermits;
+    private CountDownLatch workerStopped;
+    private final Runnable cancelListener = this::wakeUpWorker;
+    private volatile boolean stopped;
+    private volatile boolean consumerStarted;
+    // written by the worker, read by the consumer after WORKER_FINISHED, null if nothing is spilled
+    private TupleSpillFile spillFile;
+    private TupleSpillFile.Reader spillReader;
+    private boolean workerFinished;
+    private List<ITuple> currentBatch;
+    private int currentBatchIndex;
+
+    @Override
+    public void open(CancellationToken cancellationToken) throws TextDBException {
+        if (cursor != CLOSED) {
+            return;
+        }
+        this.cancellationToken = cancellationToken;
+        open();
+    }
+
+    @Override
+    public void open() throws TextDBException {
+        if (cursor != CLOSED) {
+            return;
+        }
+        if (inputOperator == null) {
+            throw new DataFlowException(ErrorMessages.INPUT_OPERATOR_NOT_SPECIFIED);
+        }
+        // the input is opened on the consumer's thread, so that its failures are thrown by open()
+        inputOperator.open(cancellationToken);
+
+        batchQueue = new LinkedBlockingQueue<>();
+        batchPermits = new Semaphore(QUEUE_CAPACITY);
+        workerStopped = new CountDownLatch(1);
+        stopped = false;
+        consumerStarted = false;
+        spillFile = null;
+        spillReader = null;
+        workerFinished = false;
+        currentBatch = null;
+        cancellationToken.addCancelListener(cancelListener);
+        WORKER_EXECUTOR.execute(() -> runWorker());
+        cursor = OPENED;
+    }
+
+    @Override
+    public ITuple getNextTuple() throws TextDBException {
+        if (cursor == CLOSED) {
+            throw new DataFlowException(ErrorMessages.OPERATOR_NOT_OPENED);
+        }
+        if (cancellationToken.isCancelled()) {
+            throw new DataFlowException(ErrorMessages.QUERY_CANCELLED);
+        }
+        consumerStarted = true;
+        try {
+            while (currentBatch == null || currentBatchIndex >= currentBatch.size()) {
+                if (spillReader != null) {
+                    return spillReader.read();
+                }
+                if (workerFinished) {
+                    return null;
+                }
+                Object item = batchQueue.take();
+                if (item == WORKER_FINISHED) {
+                    // the worker stops without a result once the query is cancelled
+                    if (cancellationToken.isCancelled()) {
+                        throw new DataFlowException(ErrorMessages.QUERY_CANCELLED);
+                    }
+                    workerFinished = true;
+                    if (spillFile != null) {
+                        spillReader = spillFile.openReader();
+                    }
+                } else if (item instanceof WorkerFailure) {
+                    Exception e = ((WorkerFailure) item).exception;
+                    throw new DataFlowException(e.getMessage(), e);
+                } else {
+                    batchPermits.release();
+                    @SuppressWarnings("unchecked")
+                    List<ITuple> batch = (List<ITuple>) item;
+                    currentBatch = batch;
+                    currentBatchIndex = 0;
+                }
+            }
+            return currentBatch.get(currentBatchIndex++);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DataFlowException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void close() throws TextDBException {
+        if (cursor == CLOSED) {
+            return;
+        }
+        cursor = CLOSED;
+        // the worker is stopped first, it may still be reading the input
+        stopped = true;
+        cancellationToken.removeCancelListener(cancelListener);
+        wakeUpWorker();
+        try {
+            workerStopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DataFlowException(e.getMessage(), e);
+        } finally {
+            if (spillFile != null) {
+                spillFile.delete();
+                spillFile = null;
+            }
+            spillReader = null;
+            batchQueue = null;
+            currentBatch = null;
+            cancellationToken = CancellationToken.NONE;
+        }
+        inputOperator.close();
+    }
+
+    /*
+     * Wakes up the worker if it waits for a permit, it checks if the operator is stopped or cancelled.
+     */
+    private void wakeUpWorker() {
+        batchPermits.release();
+    }
+
+    private void runWorker() {
+        try {
+            while (! stopped) {
+                List<ITuple> batch = inputOperator.getNextBatch(batchSize);
+                // the batch returned by an operator is reused by its next call
+                if (batch.isEmpty() || ! put(new ArrayList<>(batch))) {
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            stopped = true;
+            batchQueue.add(new WorkerFailure(e));
+        } finally {
+            batchQueue.add(WORKER_FINISHED);
+            workerStopped.countDown();
+        }
+    }
+
+    /*
+     * Puts a batch to the queue, waits while the queue is full, or spills it if the consumer hasn't started reading.
+     * Returns false if the operator is stopped, or the query is cancelled.
+     */
+    private boolean put(List<ITuple> batch) throws InterruptedException, TextDBException {
+        // once a batch is spilled, the batches after it are spilled as well, to keep their order
+        if (spillFile == null) {
+            if (! batchPermits.tryAcquire()) {
+                if (consumerStarted) {
+                    long waitNanos = Math.min(consumerTimeoutUnit.toNanos(consumerTimeout),
+                            cancellationToken.getRemainingNanos());
+                    if (! batchPermits.tryAcquire(waitNanos, TimeUnit.NANOSECONDS)) {
+                        if (stopped || cancellationToken.isCancelled()) {
+                            return false;
+                        }
+                        throw new DataFlowException("the consumer of the prefetch took no results in "
+                                + consumerTimeout + " " + consumerTimeoutUnit.toString().toLowerCase());
+                    }
+                } else {
+                    spillFile = createSpillFile();
+                }
+            }
+        }
+        if (stopped || cancellationToken.isCancelled()) {
+            return false;
+        }
+        if (spillFile != null) {
+            for (ITuple tuple : batch) {
+                spillFile.write(tuple);
+            }
+        } else {
+            batchQueue.add(batch);
+        }
+        return true;
+    }
+
+    private TupleSpillFile createSpillFile() throws DataFlowException {
+        try {
+            return new TupleSpillFile(Files.createTempFile("textdb-prefetch", ".spill"),
+                    inputOperator.getOutputSchema());
+        } catch (IOException e) {
+            throw new DataFlowException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public Schema getOutputSchema() {
+        return inputOperator.getOutputSchema();
+    }
+
+    public void setInputOperator(IOperator inputOperator) {
+        this.inputOperator = inputOperator;
+    }
+
+    public IOperator getInputOperator() {
+        return inputOperator;
+    }
+
+    /**
+     * Sets the number of tuples the worker reads from the input at a time.
+     *
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets how long the worker waits for the consumer to take a batch from a full queue before it gives up.
+     *
+     * @param timeout
+     * @param unit
+     */
+    public void setConsumerTimeout(long timeout, TimeUnit unit) {
+        this.consumerTimeout = timeout;
+        this.consumerTimeoutUnit = unit;
+    }
+
+    private static class WorkerFailure {
+        private final Exception exception;
+
+        WorkerFailure(Exception exception) {
+            this.exception = exception;
+        }
+    }
+
+}
@@ -0,0 +1,184 @@
+package edu.uci.ics.textdb.dataflow.dictionarymatcher;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * AhoCorasickAutomaton finds all the occurrences of a set of patterns in a text in one pass,
+ *   the time is linear in the length of the text plus the number of occurrences,
+ *   no matter how many patterns there are.
+ *
+ * The patterns and the text are case-folded character by character (see fold()),
+ *   so the offsets of the occurrences are the offsets in the original text.
+ *
+ * The automaton is immutable after it's built, it can be shared by multiple threads.
+ *
+ */
+class AhoCorasickAutomaton {
+
+    /**
+     * MatchHandler receives the occurrences of the patterns.
+     */
+    interface MatchHandler {
+        void onMatch(int patternIndex, int start, int end);
+    }
+
+    private static final int ROOT = 0;
+    private static final int NO_NODE = -1;
+
+    // the transitions of the trie, the key is (node << 16 | character)
+    private final HashMap<Long, Integer> transitions = new HashMap<>();
+
+    private int numberOfNodes = 1;
+    // the node of the longest proper suffix of a node that's in the trie
+    private int[] failureLink = new int[16];
+    // the nearest node on the failure chain that ends a pattern, NO_NODE if there isn't one
+    private int[] outputLink = new int[16];
+    // the indexes of the patterns that end at a node, null if there's none
+    private int[][] nodePatterns = new int[16][];
+
+    private final int[] patternLengths;
+
+    /**
+     * Builds the automaton of the patterns, the index of a pattern is its position in the list.
+     * Empty patterns never match.
+     *
+     * @param patterns
+     */
+    AhoCorasickAutomaton(List<String> patterns) {
+        patternLengths = new int[patterns.size()];
+        for (int patternIndex = 0; patternIndex < patterns.size(); patternIndex++) {
+            String pattern = patterns.get(patternIndex);
+            patternLengths[patternIndex] = pattern.length();
+            if (pattern.isEmpty()) {
+                continue;
+            }
+            int node = ROOT;
+            for (int i = 0; i < pattern.length(); i++) {
+                long key = transitionKey(node, fold(pattern.charAt(i)));
+                Integer nextNode = transitions.get(key);
+                if (nextNode == null) {
+                    nextNode = addNode();
+                    transitions.put(key, nextNode);
+                }
+                node = nextNode;
+            }
+            nodePatterns[node] = appendInt(nodePatterns[node], patternIndex);
+        }
+        buildLinks();
+    }
+
+    /**
+     * Reports all the occurrences (including the overlapping ones) of the patterns in the text,
+     *   in the order of their end offsets.
+     *
+     * @param text
+     * @param handler
+     */
+    void search(String text, MatchHandler handler) {
+        int node = ROOT;
+        for (int i = 0; i < text.length(); i++) {
+            char c = fold(text.charAt(i));
+            Integer nextNode;
+            while ((nextNode = transitions.get(transitionKey(node, c))) == null && node != ROOT) {
+                node = failureLink[node];
+            }
+            node = nextNode == null ? ROOT : nextNode;
+
+            int outputNode = nodePatterns[node] != null ? node : outputLink[node];
+            while (outputNode != NO_NODE) {
+                for (int patternIndex : nodePatterns[outputNode]) {
+                    handler.onMatch(patternIndex, i + 1 - patternLengths[patternIndex], i + 1);
+                }
+                outputNode = outputLink[outputNode];
+            }
+        }
+    }
+
+    /**
+     * Case-folds a character, in the same way as String.toLowerCase() for the characters
+     *   whose lower case is a single character.
+     */
+    static char fold(char c) {
+        return Character.toLowerCase(c);
+    }
+
+    /*
+     * Computes the failure links and the output links in breadth-first order,
+     *   so that the links of a node's suffixes are computed before the node.
+     */
+    private void buildLinks() {
+        // the children of each node and their characters, only needed during the construction
+        int[] numberOfChildren = new int[numberOfNodes];
+        for (long transitionKey : transitions.keySet()) {
+            numberOfChildren[(int) (transitionKey >>> 16)]++;
+        }
+        int[][] children = new int[numberOfNodes][];
+        char[][] childCharacters = new char[numberOfNodes][];
+        for (int node = 0; node < numberOfNodes; node++) {
+            children[node] = new int[numberOfChildren[node]];
+            childCharacters[node] = new char[numberOfChildren[node]];
+            numberOfChildren[node] = 0;
+        }
+        for (Map.Entry<Long, Integer> transition : transitions.entrySet()) {
+            int parent = (int) (transition.getKey() >>> 16);
+            int j = numberOfChildren[parent]++;
+            children[parent][j] = transition.getValue();
+            childCharacters[parent][j] = (char) (transition.getKey() & 0xFFFF);
+        }
+
+        int[] queue = new int[numberOfNodes];
+        int queueHead = 0;
+        int queueTail = 0;
+        failureLink[ROOT] = ROOT;
+        outputLink[ROOT] = NO_NODE;
+        queue[queueTail++] = ROOT;
+        while (queueHead < queueTail) {
+            int node = queue[queueHead++];
+            for (int j = 0; j < children[node].length; j++) {
+                int child = children[node][j];
+                char c = childCharacters[node][j];
+                if (node == ROOT) {
+                    failureLink[child] = ROOT;
+                } else {
+                    int fallback = failureLink[node];
+                    Integer fallbackChild;
+                    while ((fallbackChild = transitions.get(transitionKey(fallback, c))) == null
+                            && fallback != ROOT) {
+                        fallback = failureLink[fallback];
+                    }
+                    failureLink[child] = fallbackChild == null ? ROOT : fallbackChild;
+                }
+                int failureNode = failureLink[child];
+                outputLink[child] = nodePatterns[failureNode] != null ? failureNode : outputLink[failureNode];
+                queue[queueTail++] = child;
+            }
+        }
+    }
+
+    private int addNode() {
+        if (numberOfNodes == failureLink.length) {
+            int newLength = failureLink.length * 2;
+            failureLink = Arrays.copyOf(failureLink, newLength);
+            outputLink = Arrays.copyOf(outputLink, newLength);
+            nodePatterns = Arrays.copyOf(nodePatterns, newLength);
+        }
+        return numberOfNodes++;
+    }
+
+    private static long transitionKey(int node, char c) {
+        return ((long) node << 16) | c;
+    }
+
+    private static int[] appendInt(int[] array, int value) {
+        if (array == null) {
+            return new int[] { value };
+        }
+        int[] newArray = Arrays.copyOf(array, array.length + 1);
+        newArray[array.length] = value;
+        return newArray;
+    }
+
+}
@@ -4,6 +4,7 @@ import java.util.ArrayList;
 
 import edu.uci.ics.textdb.api.common.ITuple;
 import edu.uci.ics.textdb.api.common.Schema;
+import edu.uci.ics.textdb.api.dataflow.CancellationToken;
 import edu.uci.ics.textdb.api.dataflow.IOperator;
 import edu.uci.ics.textdb.common.exception.DataFlowException;
 import edu.uci.ics.textdb.common.exception.ErrorMessages;
@@ -12,6 +13,14 @@ import edu.uci.ics.textdb.dataflow.common.DictionaryPredicate;
 import edu.uci.ics.textdb.dataflow.common.KeywordPredicate;
 import edu.uci.ics.textdb.dataflow.keywordmatch.KeywordMatcher;
 
+/**
+ * DictionaryMatcher matches the entries of a dictionary one by one, with a KeywordMatcher for each entry,
+ *   over the input tuples, which are cached (see DictionaryTupleCacheOperator).
+ * 
+ * DictionaryMatcher opened by open(CancellationToken) opens its input operator and the keyword matchers
+ *   with the same token, a cancelled query throws a DataFlowException.
+ *
+ */
 public class DictionaryMatcher implements IOperator {
 
     private DictionaryPredicate predicate;
@@ -30,6 +39,7 @@ public class DictionaryMatcher implements IOperator {
     private int offset;
 
     private int cursor = CLOSED;
+    private CancellationToken cancellationToken = CancellationToken.NONE;
 
     public DictionaryMatcher(DictionaryPredicate predicate) {
         this.predicate = predicate;
@@ -39,6 +49,15 @@ public class DictionaryMatcher implements IOperator {
         this.offset = 0;
     }
 
+    @Override
+    public void open(CancellationToken cancellationToken) throws TextDBException {
+        if (cursor != CLOSED) {
+            return;
+        }
+        this.cancellationToken = cancellationToken;
+        open();
+    }
+
     @Override
     public void open() throws DataFlowException {
         if (cursor != CLOSED) {
@@ -66,8 +85,8 @@ public class DictionaryMatcher implements IOperator {
             
             keywordMatcher.setInputOperator(cacheOperator);
 
-            cacheOperator.openAll();
-            keywordMatcher.open();
+            cacheOperator.openAll(cancellationToken);
+            keywordMatcher.open(cancellationToken);
             outputSchema = keywordMatcher.getOutputSchema();
 
         } catch (Exception e) {
@@ -87,6 +106,9 @@ public class DictionaryMatcher implements IOperator {
 
         ITuple sourceTuple;
         while (true) {
+            if (cancellationToken.isCancelled()) {
+                throw new DataFlowException(ErrorMessages.QUERY_CANCELLED);
+            }
             // If there's result from current keywordMatcher, return it.
             if ((sourceTuple = keywordMatcher.getNextTuple()) != null) {
                 resultCursor++;
@@ -111,7 +133,7 @@ public class DictionaryMatcher implements IOperator {
             keywordMatcher = new KeywordMatcher(keywordPredicate);
             keywordMatcher.setInputOperator(cacheOperator);
 
-            keywordMatcher.open();
+            keywordMatcher.open(cancellationToken);
         }
     }
 
@@ -131,6 +153,7 @@ public class DictionaryMatcher implements IOperator {
             throw new DataFlowException(e.getMessage(), e);
         }
         cursor = CLOSED;
+        cancellationToken = CancellationToken.NONE;
     }
     
     
@@ -164,18 +187,18 @@ public class DictionaryMatcher implements IOperator {
         
         /*
          * openAll() is the actual "open" function for this cache operator.
-         * It will open this operator and its input operator.
+         * It will open this operator and its input operator with the token of the query.
          * 
          * It's the caller's responsibility to make sure openAll() is called before everything.
          */
-        public void openAll() throws TextDBException {
+        public void openAll(CancellationToken cancellationToken) throws TextDBException {
             if (isOpen) {
                 return;
             }
             if (inputOperator == null) {
                 throw new DataFlowException(ErrorMessages.INPUT_OPERATOR_NOT_SPECIFIED);
             }
-            inputOperator.open();
+            inputOperator.open(cancellationToken);
             outputSchema = inputOperator.getOutputSchema();
             isOpen = true;
         }
@@ -2,32 +2,47 @@
 package edu.uci.ics.textdb.dataflow.dictionarymatcher;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
 
 import edu.uci.ics.textdb.api.common.FieldType;
 import edu.uci.ics.textdb.api.common.ITuple;
 import edu.uci.ics.textdb.api.common.Schema;
+import edu.uci.ics.textdb.api.dataflow.CancellationToken;
 import edu.uci.ics.textdb.api.dataflow.ISourceOperator;
 import edu.uci.ics.textdb.common.constants.DataConstants;
 import edu.uci.ics.textdb.common.constants.DataConstants.KeywordMatchingType;
 import edu.uci.ics.textdb.common.constants.SchemaConstants;
 import edu.uci.ics.textdb.common.exception.DataFlowException;
+import edu.uci.ics.textdb.common.exception.ErrorMessages;
 import edu.uci.ics.textdb.api.exception.TextDBException;
 import edu.uci.ics.textdb.common.field.Span;
 import edu.uci.ics.textdb.common.utils.Utils;
 import edu.uci.ics.textdb.dataflow.common.DictionaryPredicate;
+import edu.uci.ics.textdb.dataflow.common.ILimitPushdown;
 import edu.uci.ics.textdb.dataflow.common.KeywordPredicate;
+import edu.uci.ics.textdb.dataflow.keywordmatch.KeywordMatcher;
 import edu.uci.ics.textdb.dataflow.keywordmatch.KeywordMatcherSourceOperator;
 import edu.uci.ics.textdb.dataflow.source.ScanBasedSourceOperator;
+import edu.uci.ics.textdb.storage.DataReader;
+import edu.uci.ics.textdb.storage.RelationManager;
 
 /**
  * @author Sudeep (inkudo)
  * @author Zuozhi Wang (zuozhi)
  * 
  */
-public class DictionaryMatcherSourceOperator implements ISourceOperator {
+public class DictionaryMatcherSourceOperator implements ISourceOperator, ILimitPushdown {
 
     private ISourceOperator indexSource;
     
@@ -39,9 +54,26 @@ public class DictionaryMatcherSourceOperator implements ISourceOperator {
     private ITuple sourceTuple;
     private String currentDictionaryEntry;
 
+    // the distinct dictionary entries and their indexes, used by substring matching and the single-pass mode
+    private List<String> dictionaryEntries;
+    private HashMap<String, Integer> dictionaryEntryIndexes;
+    // the automaton of the entries, only used by substring matching
+    private AhoCorasickAutomaton dictionaryAutomaton;
+
+    // the single-pass mode of conjunction and phrase matching, see setSinglePass()
+    private boolean singlePass;
+    private DataReader dataReader;
+    private List<KeywordPredicate> entryPredicates;
+    // the keyword matcher of each entry, it's created when the entry is a candidate for the first time
+    private KeywordMatcher[] entryMatchers;
+    // the indexes of the entries that contain each (analyzed) token
+    private HashMap<String, List<Integer>> tokenEntries;
+
     private final DictionaryPredicate predicate;
     private String tableName;
 
+    private CancellationToken cancellationToken = CancellationToken.NONE;
+
     private int resultCursor;
     private int limit;
     private int offset;
@@ -60,6 +92,16 @@ public class DictionaryMatcherSourceOperator implements ISourceOperator {
         this.tableName = tableName;
     }
 
+    /**
+     * @about Opens dictionary matcher with the token, the sources of the entries
+     *        are opened with the same token, and the matching stops once the query is cancelled.
+     */
+    @Override
+    public void open(CancellationToken cancellationToken) throws DataFlowException {
+        this.cancellationToken = cancellationToken;
+        open();
+    }
+
     /**
      * @about Opens dictionary matcher. Must call open() before calling
      *        getNextTuple().
@@ -73,9 +115,14 @@ public class DictionaryMatcherSourceOperator implements ISourceOperator {
             }
 
             if (predicate.getKeywordMatchingType() == DataConstants.KeywordMatchingType.SUBSTRING_SCANBASED) {
-                // For Substring matching, create a scan source operator.
+                // For Substring matching, the dictionary is compiled into an automaton once,
+                // which finds all the entries in a field value in one pass.
+                readDictionaryEntries();
+                dictionaryAutomaton = new AhoCorasickAutomaton(dictionaryEntries);
+
+                // create a scan source operator.
                 indexSource = new ScanBasedSourceOperator(tableName);
-                indexSource.open();
+                indexSource.open(cancellationToken);
 
                 // Substring matching's output schema needs to contains span
                 // list.
@@ -85,6 +132,12 @@ public class DictionaryMatcherSourceOperator implements ISourceOperator {
                     outputSchema = Utils.addAttributeToSchema(outputSchema, SchemaConstants.SPAN_LIST_ATTRIBUTE);
                 }
 
+            } else if (singlePass) {
+                // For conjunction and phrase matching in the single-pass mode,
+                // read the documents of all the entries with one index query.
+                readDictionaryEntries();
+                openSinglePassReader();
+
             } else {
                 // For other keyword matching types (conjunction and phrase),
                 // create keyword matcher based on index.
@@ -94,7 +147,8 @@ public class DictionaryMatcherSourceOperator implements ISourceOperator {
                         predicate.getKeywordMatchingType());
 
                 keywordSource = new KeywordMatcherSourceOperator(keywordPredicate, tableName);
-                keywordSource.open();
+                keywordSource.pushDownLimit(getRemainingResultBound());
+                keywordSource.open(cancellationToken);
 
                 // Other keyword matching types uses a KeywordMatcher, so the
                 // output schema is the same as keywordMatcher's schema
@@ -116,10 +170,9 @@ public class DictionaryMatcherSourceOperator implements ISourceOperator {
      * 
      *        DictionaryOperatorType.SCAN: <br>
      *        Scan the tuples using ScanSourceOperator. <br>
-     *        For each tuple, loop through the dictionary and find results. <br>
-     *        We assume the dictionary is smaller than the data at the source
-     *        operator, we treat the data source as the outer relation to reduce
-     *        the number of disk IOs. <br>
+     *        For each tuple, find the results of all the dictionary entries
+     *        with the Aho-Corasick automaton of the dictionary, which scans each
+     *        field value only once. <br>
      * 
      *        DictionaryOperatorType.KEYWORD_BASIC, KEYWORD_PHRASE: <br>
      *        Use KeywordMatcher to find results. <br>
@@ -139,12 +192,30 @@ public class DictionaryMatcherSourceOperator implements ISourceOperator {
         if (resultCursor >= limit + offset - 1) {
             return null;
         }
+        if (dataReader != null) {
+            // Single-pass mode: each document is read once,
+            // and is matched against the candidate entries.
+            ITuple inputTuple;
+            while ((inputTuple = dataReader.getNextTuple()) != null) {
+                checkCancelled();
+                ITuple resultTuple = computeSinglePassResult(inputTuple);
+                if (resultTuple == null) {
+                    continue;
+                }
+                resultCursor++;
+                if (resultCursor >= offset) {
+                    return resultTuple;
+                }
+            }
+            return null;
+        }
         if (predicate.getKeywordMatchingType() == DataConstants.KeywordMatchingType.PHRASE_INDEXBASED
                 || predicate.getKeywordMatchingType() == DataConstants.KeywordMatchingType.CONJUNCTION_INDEXBASED) {
             // For each dictionary entry,
             // get all result from KeywordMatcher.
 
             while (true) {
+                checkCancelled();
                 // If there's result from current keywordMatcher, return it.
                 if ((sourceTuple = keywordSource.getNextTuple()) != null) {
                     resultCursor++;
@@ -175,7 +246,8 @@ public class DictionaryMatcherSourceOperator implements ISourceOperator {
                         predicate.getAnalyzer(), keywordMatchingType);
 
                 keywordSource = new KeywordMatcherSourceOperator(keywordPredicate, tableName);
-                keywordSource.open();
+                keywordSource.pushDownLimit(getRemainingResultBound());
+                keywordSource.open(cancellationToken);
             }
         }
         // Substring matching (based on scan)
@@ -183,10 +255,11 @@ public class DictionaryMatcherSourceOperator implements ISourceOperator {
             ITuple sourceTuple;
             ITuple resultTuple = null;
             while ((sourceTuple = indexSource.getNextTuple()) != null) {
+                checkCancelled();
                 if (!inputSchema.containsField(SchemaConstants.SPAN_LIST)) {
                     sourceTuple = Utils.getSpanTuple(sourceTuple.getFields(), new ArrayList<Span>(), outputSchema);
                 }
-                resultTuple = computeMatchingResult(currentDictionaryEntry, sourceTuple);
+                resultTuple = computeMatchingResult(sourceTuple);
                 if (resultTuple != null) {
                     resultCursor++;
                 }
@@ -214,24 +287,196 @@ public class DictionaryMatcherSourceOperator implements ISourceOperator {
         return this.offset;
     }
 
+    /**
+     * Sets the single-pass mode of conjunction and phrase matching, it's off by default.
+     * 
+     * By default, the entries are matched one by one, each with its own index query,
+     *   a document is read once for each entry it matches, and it's returned once for each of them.
+     * In the single-pass mode, one disjunctive index query of all the entries finds the documents,
+     *   each document is read once, and the entries it matches are found in one pass over its payload.
+     *   A document is returned once, with the spans of all the entries it matches.
+     * 
+     * Substring matching always scans the table once, it's not affected.
+     * 
+     * @param singlePass
+     */
+    public void setSinglePass(boolean singlePass) {
+        this.singlePass = singlePass;
+    }
+
+    public boolean isSinglePass() {
+        return this.singlePass;
+    }
+
+    @Override
+    public void pushDownLimit(int maxNumberOfTuples) {
+        if (maxNumberOfTuples < limit) {
+            limit = maxNumberOfTuples;
+        }
+    }
+
+    private void checkCancelled() throws DataFlowException {
+        if (cancellationToken.isCancelled()) {
+            throw new DataFlowException(ErrorMessages.QUERY_CANCELLED);
+        }
+    }
+
+    /*
+     * Returns the number of results (including the skipped ones) that are still needed,
+     *   a keyword source of the next dictionary entry never needs to return more than this.
+     */
+    private int getRemainingResultBound() {
+        return ILimitPushdown.getInputBound(limit, offset) - (resultCursor + 1);
+    }
+
+    /*
+     * Reads the distinct dictionary entries, starting from the current entry.
+     */
+    private void readDictionaryEntries() {
+        Set<String> entrySet = new LinkedHashSet<>();
+        for (String entry = currentDictionaryEntry; entry != null; entry = predicate.getNextDictionaryEntry()) {
+            entrySet.add(entry);
+        }
+        dictionaryEntries = new ArrayList<>(entrySet);
+        dictionaryEntryIndexes = new HashMap<>();
+        for (int entryIndex = 0; entryIndex < dictionaryEntries.size(); entryIndex++) {
+            dictionaryEntryIndexes.put(dictionaryEntries.get(entryIndex), entryIndex);
+        }
+    }
+
+    /*
+     * Opens the data reader of the disjunction of all the entries' keyword queries,
+     *   its payload only contains the spans of the entries' tokens.
+     */
+    private void openSinglePassReader() throws TextDBException {
+        RelationManager relationManager = RelationManager.getRelationManager();
+        Schema tableSchema = relationManager.getTableDataStore(tableName).getSchema();
+
+        entryPredicates = new ArrayList<>();
+        entryMatchers = new KeywordMatcher[dictionaryEntries.size()];
+        tokenEntries = new HashMap<>();
+        List<Query> entryQueries = new ArrayList<>();
+        for (int entryIndex = 0; entryIndex < dictionaryEntries.size(); entryIndex++) {
+            KeywordPredicate keywordPredicate = new KeywordPredicate(dictionaryEntries.get(entryIndex),
+                    predicate.getAttributeNames(),
+                    predicate.getAnalyzer(),
+                    predicate.getKeywordMatchingType());
+            entryPredicates.add(keywordPredicate);
+            entryQueries.add(KeywordMatcherSourceOperator.createLuceneQuery(keywordPredicate, tableSchema));
+            for (String token : keywordPredicate.getQueryTokenSet()) {
+                tokenEntries.computeIfAbsent(token, key -> new ArrayList<>()).add(entryIndex);
+            }
+        }
+
+        dataReader = relationManager.getTableDataReader(tableName, buildDisjunctionQuery(entryQueries));
+        dataReader.setPayloadAdded(true);
+        dataReader.setPayloadTerms(tokenEntries.keySet());
+        dataReader.open(cancellationToken);
+
+        // the same schema as a KeywordMatcher on the data reader
+        inputSchema = dataReader.getOutputSchema();
+        outputSchema = inputSchema;
+        if (!inputSchema.containsField(SchemaConstants.SPAN_LIST)) {
+            outputSchema = Utils.addAttributeToSchema(outputSchema, SchemaConstants.SPAN_LIST_ATTRIBUTE);
+        }
+    }
+
+    /*
+     * Combines the queries by SHOULD clauses. A boolean query can't have more than
+     *   BooleanQuery.getMaxClauseCount() clauses, so the clauses of a large dictionary are nested.
+     */
+    private static Query buildDisjunctionQuery(List<Query> queries) {
+        int maxClauseCount = BooleanQuery.getMaxClauseCount();
+        while (queries.size() > maxClauseCount) {
+            List<Query> groupQueries = new ArrayList<>();
+            for (int i = 0; i < queries.size(); i += maxClauseCount) {
+                groupQueries.add(buildDisjunctionQuery(queries.subList(i, Math.min(i + maxClauseCount, queries.size()))));
+            }
+            queries = groupQueries;
+        }
+        BooleanQuery.Builder booleanQueryBuilder = new BooleanQuery.Builder();
+        for (Query query : queries) {
+            booleanQueryBuilder.add(query, BooleanClause.Occur.SHOULD);
+        }
+        return booleanQueryBuilder.build();
+    }
+
+    /*
+     * Matches the candidate entries against a document read by the single-pass data reader.
+     * Returns null if none of them matches, otherwise returns the document with the spans of all the
+     *   matching entries, in the order of the dictionary, each entry's spans are the same as its KeywordMatcher's.
+     */
+    private ITuple computeSinglePassResult(ITuple inputTuple) throws TextDBException {
+        List<Span> matchingResults = new ArrayList<>();
+        for (int entryIndex : getCandidateEntries(inputTuple)) {
+            // the input tuple doesn't have a span list, so the matcher returns a new tuple
+            ITuple entryResult = getEntryMatcher(entryIndex).processOneInputTuple(inputTuple);
+            if (entryResult != null) {
+                @SuppressWarnings("unchecked")
+                List<Span> entrySpans = (List<Span>) entryResult.getField(SchemaConstants.SPAN_LIST).getValue();
+                matchingResults.addAll(entrySpans);
+            }
+        }
+
+        if (matchingResults.isEmpty()) {
+            return null;
+        }
+        return Utils.getSpanTuple(inputTuple.getFields(), matchingResults, outputSchema);
+    }
+
+    /*
+     * Returns the indexes of the entries that may match the document:
+     *   the entries whose tokens are all in the payload of a TEXT attribute,
+     *   and the entries that are equal to the value of a STRING attribute.
+     * The other entries can't match, so their matchers are not run.
+     */
+    private Set<Integer> getCandidateEntries(ITuple inputTuple) {
+        HashMap<String, Set<String>> fieldTokens = new HashMap<>();
+        for (Span span : Utils.getSpansWithKeys(inputTuple, tokenEntries.keySet(), predicate.getAnalyzer())) {
+            fieldTokens.computeIfAbsent(span.getFieldName(), key -> new HashSet<>()).add(span.getKey());
+        }
+
+        Set<Integer> candidateEntries = new TreeSet<>();
+        for (String fieldName : predicate.getAttributeNames()) {
+            if (inputSchema.getAttribute(fieldName).getFieldType() == FieldType.TEXT) {
+                Set<String> tokens = fieldTokens.getOrDefault(fieldName, Collections.emptySet());
+                for (String token : tokens) {
+                    for (int entryIndex : tokenEntries.get(token)) {
+                        if (tokens.containsAll(entryPredicates.get(entryIndex).getQueryTokenSet())) {
+                            candidateEntries.add(entryIndex);
+                        }
+                    }
+                }
+            } else {
+                Integer entryIndex = dictionaryEntryIndexes.get(inputTuple.getField(fieldName).getValue().toString());
+                if (entryIndex != null) {
+                    candidateEntries.add(entryIndex);
+                }
+            }
+        }
+        return candidateEntries;
+    }
+
     /*
-     * Advance the cursor of dictionary. if reach the end of the dictionary,
-     * advance the cursor of tuples and reset dictionary
+     * The matchers share the opened data reader, opening a matcher only sets up its schemas.
+     * They are never closed, so that they don't close the data reader.
      */
-    private void advanceDictionaryCursor() throws TextDBException {
-        if ((currentDictionaryEntry = predicate.getNextDictionaryEntry()) != null) {
-            return;
+    private KeywordMatcher getEntryMatcher(int entryIndex) throws TextDBException {
+        if (entryMatchers[entryIndex] == null) {
+            KeywordMatcher keywordMatcher = new KeywordMatcher(entryPredicates.get(entryIndex));
+            keywordMatcher.setInputOperator(dataReader);
+            keywordMatcher.open();
+            entryMatchers[entryIndex] = keywordMatcher;
         }
-        predicate.resetDictCursor();
-        currentDictionaryEntry = predicate.getNextDictionaryEntry();
+        return entryMatchers[entryIndex];
     }
 
     /*
-     * Match the key against the dataTuple. if there's no match, returns the
-     * original dataTuple object, if there's a match, return a new dataTuple
-     * with span list added
+     * Match all the dictionary entries against the dataTuple. if there's no match, returns null,
+     * if there's a match, return the dataTuple with the spans added to its span list.
+     * The spans of a field are ordered by their start offsets, and then by their end offsets.
      */
-    private ITuple computeMatchingResult(String key, ITuple sourceTuple) throws TextDBException {
+    private ITuple computeMatchingResult(ITuple sourceTuple) throws TextDBException {
 
         List<String> attributeNames = predicate.getAttributeNames();
         List<Span> matchingResults = new ArrayList<>();
@@ -243,27 +488,17 @@ public class DictionaryMatcherSourceOperator implements ISourceOperator {
             // if attribute type is not TEXT, then key needs to match the
             // fieldValue exactly
             if (fieldType != FieldType.TEXT) {
-                if (fieldValue.equals(key)) {
-                    matchingResults.add(new Span(fieldName, 0, fieldValue.length(), key, fieldValue));
+                if (dictionaryEntryIndexes.containsKey(fieldValue)) {
+                    matchingResults.add(new Span(fieldName, 0, fieldValue.length(), fieldValue, fieldValue));
                 }
             }
             // if attribute type is TEXT, then key can match a substring of
-            // fieldValue
+            // fieldValue (case insensitive)
             else {
-                String regex = key.toLowerCase();
-                Pattern pattern = Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
-                Matcher matcher = pattern.matcher(fieldValue.toLowerCase());
-                while (matcher.find()) {
-                    int start = matcher.start();
-                    int end = matcher.end();
-
-                    matchingResults.add(new Span(fieldName, start, end, key, fieldValue.substring(start, end)));
-                }
+                matchingResults.addAll(findEntriesInText(fieldName, fieldValue));
             }
         }
 
-        advanceDictionaryCursor();
-
         if (matchingResults.size() == 0) {
             return null;
         }
@@ -274,6 +509,30 @@ public class DictionaryMatcherSourceOperator implements ISourceOperator {
         return sourceTuple;
     }
 
+    /*
+     * Finds the occurrences of the dictionary entries in a TEXT field value.
+     * The occurrences of the same entry don't overlap, a new one starts after the end of the previous one.
+     */
+    private List<Span> findEntriesInText(String fieldName, String fieldValue) {
+        List<Span> fieldResults = new ArrayList<>();
+        // the end of the last occurrence of each entry found in the field value
+        HashMap<Integer, Integer> lastMatchEnds = new HashMap<>();
+
+        dictionaryAutomaton.search(fieldValue, (entryIndex, start, end) -> {
+            Integer lastMatchEnd = lastMatchEnds.get(entryIndex);
+            if (lastMatchEnd != null && start < lastMatchEnd) {
+                return;
+            }
+            lastMatchEnds.put(entryIndex, end);
+            fieldResults.add(new Span(fieldName, start, end, dictionaryEntries.get(entryIndex),
+                    fieldValue.substring(start, end)));
+        });
+
+        // the automaton reports the occurrences by their end offsets, the sort is stable
+        fieldResults.sort(Comparator.comparingInt(Span::getStart));
+        return fieldResults;
+    }
+
     /**
      * @about Closes the operator
      */
@@ -286,10 +545,14 @@ public class DictionaryMatcherSourceOperator implements ISourceOperator {
             if (indexSource != null) {
                 indexSource.close();
             }
+            if (dataReader != null) {
+                dataReader.close();
+            }
         } catch (Exception e) {
             e.printStackTrace();
             throw new DataFlowException(e.getMessage(), e);
         }
+        cancellationToken = CancellationToken.NONE;
     }
 
     @Override
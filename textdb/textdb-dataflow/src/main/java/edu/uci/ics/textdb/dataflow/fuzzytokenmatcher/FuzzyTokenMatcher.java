@@ -1,7 +1,6 @@
 package edu.uci.ics.textdb.dataflow.fuzzytokenmatcher;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -77,8 +76,7 @@ public class FuzzyTokenMatcher extends AbstractSingleInputOperator {
 
     @Override
     public ITuple processOneInputTuple(ITuple inputTuple) throws TextDBException {
-        List<Span> payload = (List<Span>) inputTuple.getField(SchemaConstants.PAYLOAD).getValue();
-        List<Span> relevantSpans = filterRelevantSpans(payload);
+        List<Span> relevantSpans = filterRelevantSpans(inputTuple);
         List<Span> matchResults = new ArrayList<>();
 
         /*
@@ -116,16 +114,8 @@ public class FuzzyTokenMatcher extends AbstractSingleInputOperator {
         return inputTuple;
     }
     
-    private List<Span> filterRelevantSpans(List<Span> spanList) {
-        List<Span> relevantSpans = new ArrayList<>();
-        Iterator<Span> iterator = spanList.iterator();
-        while (iterator.hasNext()) {
-            Span span = iterator.next();
-            if (predicate.getQueryTokens().contains(span.getKey())) {
-                relevantSpans.add(span);
-            }
-        }
-        return relevantSpans;
+    private List<Span> filterRelevantSpans(ITuple inputTuple) {
+        return Utils.getSpansWithKeys(inputTuple, predicate.getQueryTokens(), predicate.getLuceneAnalyzer());
     }
 
     @Override
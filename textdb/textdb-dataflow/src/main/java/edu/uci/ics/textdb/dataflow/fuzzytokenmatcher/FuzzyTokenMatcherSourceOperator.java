@@ -7,18 +7,20 @@ import org.apache.lucene.search.Query;
 import org.apache.lucene.search.BooleanClause.Occur;
 
 import edu.uci.ics.textdb.api.common.ITuple;
-import edu.uci.ics.textdb.api.dataflow.ISourceOperator;
 import edu.uci.ics.textdb.api.exception.TextDBException;
 import edu.uci.ics.textdb.common.exception.DataFlowException;
 import edu.uci.ics.textdb.common.exception.StorageException;
 import edu.uci.ics.textdb.dataflow.common.AbstractSingleInputOperator;
 import edu.uci.ics.textdb.dataflow.common.FuzzyTokenPredicate;
+import edu.uci.ics.textdb.dataflow.common.IMorselSource;
 import edu.uci.ics.textdb.storage.DataReader;
+import edu.uci.ics.textdb.storage.IndexMorsels;
 import edu.uci.ics.textdb.storage.RelationManager;
 
-public class FuzzyTokenMatcherSourceOperator extends AbstractSingleInputOperator implements ISourceOperator {
+public class FuzzyTokenMatcherSourceOperator extends AbstractSingleInputOperator implements IMorselSource {
     
     private FuzzyTokenPredicate predicate;
+    private String tableName;
 
     private DataReader dataReader;
     private FuzzyTokenMatcher fuzzyTokenMatcher;
@@ -26,11 +28,14 @@ public class FuzzyTokenMatcherSourceOperator extends AbstractSingleInputOperator
     public FuzzyTokenMatcherSourceOperator(FuzzyTokenPredicate predicate, String tableName) 
             throws DataFlowException, StorageException {
         this.predicate = predicate;
+        this.tableName = tableName;
 
         // generate dataReader
         Query luceneQuery = createLuceneQueryObject(this.predicate);   
         this.dataReader = RelationManager.getRelationManager().getTableDataReader(tableName, luceneQuery);
         this.dataReader.setPayloadAdded(true);
+        // FuzzyTokenMatcher only looks at the spans of the query tokens
+        this.dataReader.setPayloadTerms(predicate.getQueryTokens());
         
         // generate FuzzyTokenMatcher
         fuzzyTokenMatcher = new FuzzyTokenMatcher(predicate);
@@ -57,6 +62,21 @@ public class FuzzyTokenMatcherSourceOperator extends AbstractSingleInputOperator
     @Override
     protected void cleanUp() throws TextDBException {        
     }
+
+    @Override
+    public String getTableName() {
+        return this.tableName;
+    }
+
+    @Override
+    public void setMorsels(IndexMorsels morsels) {
+        this.dataReader.setMorsels(morsels);
+    }
+
+    @Override
+    public void setParallelism(int parallelism) {
+        this.dataReader.setParallelism(parallelism);
+    }
     
     public static Query createLuceneQueryObject(FuzzyTokenPredicate predicate) throws DataFlowException {
         try {
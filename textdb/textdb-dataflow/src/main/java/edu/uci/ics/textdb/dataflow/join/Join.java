@@ -1,15 +1,26 @@
 package edu.uci.ics.textdb.dataflow.join;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 
+import edu.uci.ics.textdb.api.common.IField;
 import edu.uci.ics.textdb.api.common.ITuple;
 import edu.uci.ics.textdb.api.common.Schema;
+import edu.uci.ics.textdb.api.dataflow.CancellationToken;
 import edu.uci.ics.textdb.api.dataflow.IOperator;
 import edu.uci.ics.textdb.common.exception.DataFlowException;
 import edu.uci.ics.textdb.common.exception.ErrorMessages;
 import edu.uci.ics.textdb.api.exception.TextDBException;
 import edu.uci.ics.textdb.dataflow.common.IJoinPredicate;
+import edu.uci.ics.textdb.dataflow.common.ILimitPushdown;
+import edu.uci.ics.textdb.dataflow.common.TupleSpillFile;
 
 
 /**
@@ -37,10 +48,20 @@ import edu.uci.ics.textdb.dataflow.common.IJoinPredicate;
  * join attribute, the tuple is discarded. If the attribute is not join attribute,
  * then one of the values will be chosen to become the output value.
  * 
+ * If the JoinPredicate has equality attributes (e.g. _ID and the join attribute of JoinDistancePredicate),
+ * Join performs a hash join instead of comparing every pair of tuples:
+ * the tuples of the smaller side are put in a hash table keyed by the equality attributes,
+ * and each tuple of the other side is only joined with the tuples with the same key.
+ * If the inner operator has more tuples than the memory budget, both inputs are
+ * partitioned into temporary files by the key, and the partitions are joined one by one.
+ * 
+ * Join opened by open(CancellationToken) opens both operators with the same token,
+ * and checks it for each pair of tuples it compares, a cancelled query throws a DataFlowException.
+ * 
  * @author Sripad Kowshik Subramanyam (sripadks)
  *
  */
-public class Join implements IOperator {
+public class Join implements IOperator, ILimitPushdown {
 
     private IOperator outerOperator;
     private IOperator innerOperator;
@@ -56,11 +77,44 @@ public class Join implements IOperator {
     private Schema outputSchema;
 
     private int cursor = CLOSED;
+    private CancellationToken cancellationToken = CancellationToken.NONE;
     
     private int resultCursor = -1;
     private int limit = Integer.MAX_VALUE;
     private int offset = 0;
     
+    // the maximum number of tuples the hash join keeps in memory before it spills to disk
+    public static final int DEFAULT_HASH_JOIN_MEMORY_BUDGET = 100000;
+    private static final int NUM_SPILL_PARTITIONS = 16;
+    
+    private boolean hashJoinEnabled = true;
+    private int hashJoinMemoryBudget = DEFAULT_HASH_JOIN_MEMORY_BUDGET;
+    
+    // the state of the hash join
+    private boolean isHashJoin;
+    private List<String> equalityAttributeNames;
+    private HashMap<List<Object>, List<ITuple>> hashTable;
+    // whether the hash table is built on the outer tuples, and probed by the inner tuples
+    private boolean isBuildOnOuter;
+    private ProbeInput probeInput;
+    private ITuple probeTuple;
+    private List<ITuple> probeMatches = Collections.emptyList();
+    private int probeMatchCursor = 0;
+    
+    // the partitions of the hash join when it spills to disk
+    private Path spillDirectory;
+    private List<TupleSpillFile> innerPartitions;
+    private List<TupleSpillFile> outerPartitions;
+    private int partitionCursor;
+    
+    /*
+     * The tuples that probe the hash table, one at a time.
+     */
+    @FunctionalInterface
+    private interface ProbeInput {
+        ITuple next() throws Exception;
+    }
+    
     /**
      * Constructs a Join operator using a predicate which specifies the fields and
      *   constraints over which join happens.
@@ -71,6 +125,15 @@ public class Join implements IOperator {
         this.joinPredicate = joinPredicate;
     }
 
+    @Override
+    public void open(CancellationToken cancellationToken) throws TextDBException {
+        if (cursor != CLOSED) {
+            return;
+        }
+        this.cancellationToken = cancellationToken;
+        open();
+    }
+
     @Override
     public void open() throws TextDBException {
         if (cursor != CLOSED) {
@@ -84,30 +147,240 @@ public class Join implements IOperator {
             throw new DataFlowException("Outer Input Operator is not set.");
         }
         
+        // the inner and outer operators are opened only once, so that their inputs don't run twice,
+        //   e.g. when both of them read the same connector
+        innerOperator.open(cancellationToken);
+        try {
+            outerOperator.open(cancellationToken);
+        } catch (TextDBException e) {
+            innerOperator.close();
+            throw e;
+        }
+        
         // generate output schema from schema of inner and outer operator
-        innerOperator.open();
         Schema innerOperatorSchema = innerOperator.getOutputSchema();
-        innerOperator.close();
-        
-        outerOperator.open();
         Schema outerOperatorSchema = outerOperator.getOutputSchema();
-        outerOperator.close();
+        try {
+            this.outputSchema = joinPredicate.generateOutputSchema(outerOperatorSchema, innerOperatorSchema);
+        } catch (DataFlowException e) {
+            innerOperator.close();
+            outerOperator.close();
+            throw e;
+        }
         
-        this.outputSchema = joinPredicate.generateOutputSchema(outerOperatorSchema, innerOperatorSchema);
+        equalityAttributeNames = joinPredicate.getEqualityAttributeNames();
+        isHashJoin = hashJoinEnabled && ! equalityAttributeNames.isEmpty();
         
-        // load all tuples from inner operator into memory
-        innerOperator.open();
+        if (isHashJoin) {
+            try {
+                openHashJoin(innerOperatorSchema, outerOperatorSchema);
+            } catch (Exception e) {
+                deleteSpillFiles();
+                throw new DataFlowException(e.getMessage(), e);
+            }
+            cursor = OPENED;
+            return;
+        }
+        
+        // load all tuples from inner operator into memory, the outer operator is read by getNextTuple()
         while ((innerTuple = innerOperator.getNextTuple()) != null) {
             innerTupleList.add(innerTuple);
         }
         innerOperator.close();
 
-        // open outer operator
-        outerOperator.open();
-
         shouldIGetOuterOperatorNextTuple = true;
         cursor = OPENED;
     }
+    
+    /*
+     * Reads the inner operator, and builds the hash table on the smaller side if it fits in the memory budget.
+     * Otherwise both operators are partitioned to disk.
+     */
+    private void openHashJoin(Schema innerOperatorSchema, Schema outerOperatorSchema) throws Exception {
+        hashTable = new HashMap<>();
+        probeMatches = Collections.emptyList();
+        probeMatchCursor = 0;
+        
+        while ((innerTuple = innerOperator.getNextTuple()) != null) {
+            if (innerTupleList.size() < hashJoinMemoryBudget) {
+                innerTupleList.add(innerTuple);
+                continue;
+            }
+            // the inner operator doesn't fit in memory, spill both sides to disk
+            spillDirectory = Files.createTempDirectory("textdb-join");
+            innerPartitions = createPartitions("inner", innerOperatorSchema);
+            for (ITuple tuple : innerTupleList) {
+                addToPartition(innerPartitions, tuple);
+            }
+            innerTupleList.clear();
+            addToPartition(innerPartitions, innerTuple);
+            while ((innerTuple = innerOperator.getNextTuple()) != null) {
+                addToPartition(innerPartitions, innerTuple);
+            }
+        }
+        innerOperator.close();
+        
+        if (innerPartitions != null) {
+            outerPartitions = createPartitions("outer", outerOperatorSchema);
+            ITuple outerTuple;
+            while ((outerTuple = outerOperator.getNextTuple()) != null) {
+                addToPartition(outerPartitions, outerTuple);
+            }
+            partitionCursor = 0;
+            loadNextPartition();
+            return;
+        }
+        
+        if (innerTupleList.isEmpty()) {
+            probeInput = () -> null;
+            return;
+        }
+        
+        // read the outer operator until it has more tuples than the inner operator,
+        //   if it ends before that, the outer tuples are the smaller side
+        List<ITuple> outerTupleBuffer = new ArrayList<>();
+        ITuple outerTuple = null;
+        while (outerTupleBuffer.size() <= innerTupleList.size() 
+                && (outerTuple = outerOperator.getNextTuple()) != null) {
+            outerTupleBuffer.add(outerTuple);
+        }
+        
+        if (outerTuple == null) {
+            buildHashTable(outerTupleBuffer, true);
+            Iterator<ITuple> innerIterator = innerTupleList.iterator();
+            probeInput = () -> innerIterator.hasNext() ? innerIterator.next() : null;
+        } else {
+            buildHashTable(innerTupleList, false);
+            Iterator<ITuple> outerBufferIterator = outerTupleBuffer.iterator();
+            probeInput = () -> outerBufferIterator.hasNext() ? outerBufferIterator.next() : outerOperator.getNextTuple();
+        }
+    }
+    
+    private void buildHashTable(List<ITuple> buildTuples, boolean isBuildOnOuter) {
+        this.isBuildOnOuter = isBuildOnOuter;
+        hashTable.clear();
+        for (ITuple tuple : buildTuples) {
+            List<Object> joinKey = getJoinKey(tuple);
+            if (joinKey != null) {
+                hashTable.computeIfAbsent(joinKey, key -> new ArrayList<>()).add(tuple);
+            }
+        }
+    }
+    
+    /*
+     * Returns the values of the equality attributes, or null if one of them is missing,
+     *   in which case the tuple can't be joined.
+     */
+    private List<Object> getJoinKey(ITuple tuple) {
+        List<Object> joinKey = new ArrayList<>(equalityAttributeNames.size());
+        for (String attributeName : equalityAttributeNames) {
+            if (! tuple.getSchema().containsField(attributeName)) {
+                return null;
+            }
+            IField field = tuple.getField(attributeName);
+            if (field == null || field.getValue() == null) {
+                return null;
+            }
+            joinKey.add(field.getValue());
+        }
+        return joinKey;
+    }
+    
+    private List<TupleSpillFile> createPartitions(String side, Schema schema) throws DataFlowException {
+        List<TupleSpillFile> partitions = new ArrayList<>();
+        for (int i = 0; i < NUM_SPILL_PARTITIONS; i++) {
+            partitions.add(new TupleSpillFile(spillDirectory.resolve(side + "_" + i), schema));
+        }
+        return partitions;
+    }
+    
+    private void addToPartition(List<TupleSpillFile> partitions, ITuple tuple) throws DataFlowException {
+        List<Object> joinKey = getJoinKey(tuple);
+        if (joinKey == null) {
+            return;
+        }
+        partitions.get(Math.floorMod(joinKey.hashCode(), partitions.size())).write(tuple);
+    }
+    
+    /*
+     * Builds the hash table on the smaller side of the next pair of partitions, 
+     *   and probes it with the other side.
+     * Returns false if there are no more partitions.
+     */
+    private boolean loadNextPartition() throws Exception {
+        if (innerPartitions == null || partitionCursor >= innerPartitions.size()) {
+            return false;
+        }
+        TupleSpillFile innerPartition = innerPartitions.get(partitionCursor);
+        TupleSpillFile outerPartition = outerPartitions.get(partitionCursor);
+        partitionCursor++;
+        
+        boolean buildOnOuter = outerPartition.size() < innerPartition.size();
+        TupleSpillFile buildPartition = buildOnOuter ? outerPartition : innerPartition;
+        TupleSpillFile probePartition = buildOnOuter ? innerPartition : outerPartition;
+        
+        List<ITuple> buildTuples = new ArrayList<>(buildPartition.size());
+        TupleSpillFile.Reader buildReader = buildPartition.openReader();
+        ITuple tuple;
+        while ((tuple = buildReader.read()) != null) {
+            buildTuples.add(tuple);
+        }
+        buildPartition.delete();
+        buildHashTable(buildTuples, buildOnOuter);
+        
+        TupleSpillFile.Reader probeReader = probePartition.openReader();
+        probeInput = () -> probeReader.read();
+        return true;
+    }
+    
+    private ITuple computeNextHashJoinTuple() throws Exception {
+        while (true) {
+            checkCancelled();
+            while (probeMatchCursor < probeMatches.size()) {
+                ITuple buildTuple = probeMatches.get(probeMatchCursor);
+                probeMatchCursor++;
+                ITuple resultTuple = isBuildOnOuter
+                        ? joinPredicate.joinTuples(buildTuple, probeTuple, outputSchema)
+                        : joinPredicate.joinTuples(probeTuple, buildTuple, outputSchema);
+                if (resultTuple != null) {
+                    return resultTuple;
+                }
+            }
+            
+            probeTuple = probeInput.next();
+            if (probeTuple == null) {
+                if (! loadNextPartition()) {
+                    return null;
+                }
+                continue;
+            }
+            List<Object> joinKey = getJoinKey(probeTuple);
+            probeMatches = joinKey == null ? Collections.emptyList() 
+                    : hashTable.getOrDefault(joinKey, Collections.emptyList());
+            probeMatchCursor = 0;
+        }
+    }
+    
+    private void deleteSpillFiles() throws DataFlowException {
+        for (List<TupleSpillFile> partitions : Arrays.asList(innerPartitions, outerPartitions)) {
+            if (partitions == null) {
+                continue;
+            }
+            for (TupleSpillFile partition : partitions) {
+                partition.delete();
+            }
+        }
+        innerPartitions = null;
+        outerPartitions = null;
+        if (spillDirectory != null) {
+            try {
+                Files.deleteIfExists(spillDirectory);
+            } catch (IOException e) {
+                throw new DataFlowException(e.getMessage(), e);
+            }
+            spillDirectory = null;
+        }
+    }
 
     /**
      * Gets the next tuple which is a joint of two tuples which passed the
@@ -151,12 +424,17 @@ public class Join implements IOperator {
      * It returns null if there's no more tuples.
      */
     protected  ITuple computeNextMatchingTuple() throws Exception {
+        if (isHashJoin) {
+            return computeNextHashJoinTuple();
+        }
+        
         if (innerTupleList.isEmpty()) {
             return null;
         }
         
         ITuple nextTuple = null;
         while (nextTuple == null) {
+            checkCancelled();
             if (shouldIGetOuterOperatorNextTuple == true) {
                 if ((outerTuple = outerOperator.getNextTuple()) == null) {
                     return null;
@@ -195,7 +473,21 @@ public class Join implements IOperator {
         }
         // Clear the inner tuple list from memory on close.
         innerTupleList.clear();
+        if (isHashJoin) {
+            hashTable = null;
+            probeInput = null;
+            probeTuple = null;
+            probeMatches = Collections.emptyList();
+            deleteSpillFiles();
+        }
         cursor = CLOSED;
+        cancellationToken = CancellationToken.NONE;
+    }
+
+    private void checkCancelled() throws DataFlowException {
+        if (cancellationToken.isCancelled()) {
+            throw new DataFlowException(ErrorMessages.QUERY_CANCELLED);
+        }
     }
 
 
@@ -221,6 +513,34 @@ public class Join implements IOperator {
         return outputSchema;
     }
 
+    /**
+     * Sets whether Join uses a hash join when the predicate has equality attributes.
+     * It's enabled by default, otherwise every pair of tuples is passed to the predicate.
+     * 
+     * @param hashJoinEnabled
+     */
+    public void setHashJoinEnabled(boolean hashJoinEnabled) {
+        this.hashJoinEnabled = hashJoinEnabled;
+    }
+    
+    public boolean isHashJoinEnabled() {
+        return this.hashJoinEnabled;
+    }
+    
+    /**
+     * Sets the maximum number of inner tuples the hash join keeps in memory,
+     *   both inputs are partitioned into temporary files if the inner operator has more tuples.
+     * 
+     * @param hashJoinMemoryBudget
+     */
+    public void setHashJoinMemoryBudget(int hashJoinMemoryBudget) {
+        this.hashJoinMemoryBudget = hashJoinMemoryBudget;
+    }
+    
+    public int getHashJoinMemoryBudget() {
+        return this.hashJoinMemoryBudget;
+    }
+
     public void setLimit(int limit) {
         this.limit = limit;
     }
@@ -237,6 +557,17 @@ public class Join implements IOperator {
         return offset;
     }
     
+    /**
+     * Join doesn't produce one tuple for each input tuple, 
+     *   so the limit is not pushed further down to the inner and outer operators.
+     */
+    @Override
+    public void pushDownLimit(int maxNumberOfTuples) {
+        if (maxNumberOfTuples < limit) {
+            limit = maxNumberOfTuples;
+        }
+    }
+    
     public IJoinPredicate getPredicate() {
         return this.joinPredicate;
     }
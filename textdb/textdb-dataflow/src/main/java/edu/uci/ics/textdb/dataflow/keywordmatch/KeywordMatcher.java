@@ -2,7 +2,6 @@ package edu.uci.ics.textdb.dataflow.keywordmatch;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.regex.Matcher;
@@ -19,6 +18,7 @@ import edu.uci.ics.textdb.api.exception.TextDBException;
 import edu.uci.ics.textdb.common.field.Span;
 import edu.uci.ics.textdb.common.utils.Utils;
 import edu.uci.ics.textdb.dataflow.common.AbstractSingleInputOperator;
+import edu.uci.ics.textdb.dataflow.common.CompiledQueryCache;
 import edu.uci.ics.textdb.dataflow.common.KeywordPredicate;
 
 public class KeywordMatcher extends AbstractSingleInputOperator {
@@ -26,6 +26,8 @@ public class KeywordMatcher extends AbstractSingleInputOperator {
     private KeywordPredicate predicate;
 
     private Schema inputSchema;
+    // the pattern of substring matching, null for the other matching types
+    private Pattern substringPattern;
 
     public KeywordMatcher(KeywordPredicate predicate) {
         this.predicate = predicate;
@@ -41,6 +43,10 @@ public class KeywordMatcher extends AbstractSingleInputOperator {
         if (!inputSchema.containsField(SchemaConstants.SPAN_LIST)) {
             outputSchema = Utils.addAttributeToSchema(outputSchema, SchemaConstants.SPAN_LIST_ATTRIBUTE);
         }
+        if (predicate.getOperatorType() == DataConstants.KeywordMatchingType.SUBSTRING_SCANBASED) {
+            substringPattern = CompiledQueryCache.getJavaPattern(predicate.getQuery().toLowerCase(),
+                    Pattern.CASE_INSENSITIVE);
+        }
     }
 
     @Override
@@ -58,6 +64,11 @@ public class KeywordMatcher extends AbstractSingleInputOperator {
         return resultTuple;
     }
 
+    @Override
+    protected void computeNextMatchingBatch(int maxTuples, List<ITuple> batch) throws TextDBException {
+        processInputBatches(maxTuples, batch);
+    }
+
     @Override
     public ITuple processOneInputTuple(ITuple inputTuple) throws TextDBException {
         ITuple resultTuple = null;
@@ -91,8 +102,7 @@ public class KeywordMatcher extends AbstractSingleInputOperator {
     }
 
     private ITuple computeConjunctionMatchingResult(ITuple sourceTuple) throws DataFlowException {
-        List<Span> payload = (List<Span>) sourceTuple.getField(SchemaConstants.PAYLOAD).getValue();
-        List<Span> relevantSpans = filterRelevantSpans(payload);
+        List<Span> relevantSpans = filterRelevantSpans(sourceTuple);
         List<Span> matchingResults = new ArrayList<>();
 
         for (String fieldName : this.predicate.getAttributeNames()) {
@@ -136,8 +146,7 @@ public class KeywordMatcher extends AbstractSingleInputOperator {
     }
 
     private ITuple computePhraseMatchingResult(ITuple sourceTuple) throws DataFlowException {
-        List<Span> payload = (List<Span>) sourceTuple.getField(SchemaConstants.PAYLOAD).getValue();
-        List<Span> relevantSpans = filterRelevantSpans(payload);
+        List<Span> relevantSpans = filterRelevantSpans(sourceTuple);
         List<Span> matchingResults = new ArrayList<>();
 
         for (String fieldName : this.predicate.getAttributeNames()) {
@@ -253,9 +262,7 @@ public class KeywordMatcher extends AbstractSingleInputOperator {
             }
 
             if (fieldType == FieldType.TEXT) {
-                String regex = predicate.getQuery().toLowerCase();
-                Pattern pattern = Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
-                Matcher matcher = pattern.matcher(fieldValue.toLowerCase());
+                Matcher matcher = substringPattern.matcher(fieldValue.toLowerCase());
                 while (matcher.find()) {
                     int start = matcher.start();
                     int end = matcher.end();
@@ -281,16 +288,8 @@ public class KeywordMatcher extends AbstractSingleInputOperator {
         return fieldSpanKeys.equals(queryTokenSet);
     }
 
-    private List<Span> filterRelevantSpans(List<Span> spanList) {
-        List<Span> relevantSpans = new ArrayList<>();
-        Iterator<Span> iterator = spanList.iterator();
-        while (iterator.hasNext()) {
-            Span span = iterator.next();
-            if (predicate.getQueryTokenSet().contains(span.getKey())) {
-                relevantSpans.add(span);
-            }
-        }
-        return relevantSpans;
+    private List<Span> filterRelevantSpans(ITuple sourceTuple) {
+        return Utils.getSpansWithKeys(sourceTuple, predicate.getQueryTokenSet(), predicate.getLuceneAnalyzer());
     }
 
     public KeywordPredicate getPredicate() {
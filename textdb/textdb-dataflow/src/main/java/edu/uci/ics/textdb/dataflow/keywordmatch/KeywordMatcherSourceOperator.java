@@ -1,8 +1,9 @@
 package edu.uci.ics.textdb.dataflow.keywordmatch;
 
+import java.util.List;
+
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.index.Term;
-import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.MatchAllDocsQuery;
@@ -14,14 +15,16 @@ import edu.uci.ics.textdb.api.common.FieldType;
 import edu.uci.ics.textdb.api.common.ITuple;
 import edu.uci.ics.textdb.api.common.Schema;
 import edu.uci.ics.textdb.api.dataflow.IOperator;
-import edu.uci.ics.textdb.api.dataflow.ISourceOperator;
 import edu.uci.ics.textdb.common.constants.DataConstants.KeywordMatchingType;
 import edu.uci.ics.textdb.common.exception.DataFlowException;
 import edu.uci.ics.textdb.common.exception.StorageException;
 import edu.uci.ics.textdb.api.exception.TextDBException;
 import edu.uci.ics.textdb.dataflow.common.AbstractSingleInputOperator;
+import edu.uci.ics.textdb.dataflow.common.ILimitPushdown;
+import edu.uci.ics.textdb.dataflow.common.IMorselSource;
 import edu.uci.ics.textdb.dataflow.common.KeywordPredicate;
 import edu.uci.ics.textdb.storage.DataReader;
+import edu.uci.ics.textdb.storage.IndexMorsels;
 import edu.uci.ics.textdb.storage.RelationManager;
 
 /**
@@ -31,13 +34,11 @@ import edu.uci.ics.textdb.storage.RelationManager;
  * @author Zhenfeng Qi
  *
  */
-public class KeywordMatcherSourceOperator extends AbstractSingleInputOperator implements ISourceOperator {
+public class KeywordMatcherSourceOperator extends AbstractSingleInputOperator implements IMorselSource {
 
     private KeywordPredicate predicate;
     private String tableName;
 
-    private String keywordQuery;
-
     private DataReader dataReader;
     private KeywordMatcher keywordMatcher;
     
@@ -48,16 +49,16 @@ public class KeywordMatcherSourceOperator extends AbstractSingleInputOperator im
         this.predicate = predicate;
         this.tableName = tableName;
         
-        this.keywordQuery = predicate.getQuery();
-        
         // input schema must be specified before creating query
         this.inputSchema = RelationManager.getRelationManager().getTableDataStore(tableName).getSchema();
         
         // generate dataReader
-        Query luceneQuery = createLuceneQueryObject();
+        Query luceneQuery = createLuceneQuery(predicate, inputSchema);
 
         this.dataReader = RelationManager.getRelationManager().getTableDataReader(tableName, luceneQuery);
         this.dataReader.setPayloadAdded(true);
+        // KeywordMatcher only looks at the spans of the query tokens
+        this.dataReader.setPayloadTerms(predicate.getQueryTokenSet());
         
         // generate KeywordMatcher
         keywordMatcher = new KeywordMatcher(predicate);
@@ -81,6 +82,11 @@ public class KeywordMatcherSourceOperator extends AbstractSingleInputOperator im
         return this.keywordMatcher.getNextTuple();
     }
 
+    @Override
+    protected void computeNextMatchingBatch(int maxTuples, List<ITuple> batch) throws TextDBException {
+        batch.addAll(this.keywordMatcher.getNextBatch(maxTuples));
+    }
+
     @Override
     public ITuple processOneInputTuple(ITuple inputTuple) throws TextDBException {
         return this.keywordMatcher.processOneInputTuple(inputTuple);
@@ -98,44 +104,84 @@ public class KeywordMatcherSourceOperator extends AbstractSingleInputOperator im
     public void setInputOperator(IOperator inputOperator) {
     }
 
+    @Override
+    public void pushDownLimit(int maxNumberOfTuples) {
+        super.pushDownLimit(maxNumberOfTuples);
+        // if every document returned by the index is a result, 
+        //   the index only needs to return offset + limit documents
+        if (isIndexExact()) {
+            int bound = ILimitPushdown.getInputBound(limit, offset);
+            if (bound < dataReader.getLimit()) {
+                dataReader.setLimit(bound);
+            }
+        }
+    }
+    
+    /*
+     * Conjunction matching is decided by the index alone: a document matches the lucene query
+     *   if and only if every (lower case) query token is in one of the TEXT fields, 
+     *   or the query equals one of the STRING fields, which is exactly what KeywordMatcher checks.
+     * Phrase matching is not, because stopwords are removed from the lucene phrase query.
+     */
+    private boolean isIndexExact() {
+        return this.predicate.getOperatorType() == KeywordMatchingType.CONJUNCTION_INDEXBASED
+                && this.predicate.getQueryTokenSet().stream().allMatch(token -> token.equals(token.toLowerCase()));
+    }
+
     public KeywordPredicate getPredicate() {
         return this.predicate;
     }
     
+    @Override
     public String getTableName() {
         return this.tableName;
     }
 
+    @Override
+    public void setMorsels(IndexMorsels morsels) {
+        this.dataReader.setMorsels(morsels);
+    }
+
+    @Override
+    public void setParallelism(int parallelism) {
+        this.dataReader.setParallelism(parallelism);
+    }
+
     /**
      * Creates a Query object as a boolean Query on all attributes Example: For
      * creating a query like (TestConstants.DESCRIPTION + ":lin" + " AND " +
      * TestConstants.LAST_NAME + ":lin") we provide a list of AttributeFields
      * (Description, Last_name) to search on and a query string (lin)
+     * 
+     * It's also used by the operators that combine the queries of many predicates,
+     *   e.g. the single-pass mode of DictionaryMatcherSourceOperator.
      *
+     * @param predicate
+     * @param inputSchema, the schema of the table
      * @return Query
-     * @throws ParseException
      * @throws DataFlowException
      */
-    private Query createLuceneQueryObject() throws DataFlowException {
+    public static Query createLuceneQuery(KeywordPredicate predicate, Schema inputSchema) throws DataFlowException {
         Query query = null;
-        if (this.predicate.getOperatorType() == KeywordMatchingType.CONJUNCTION_INDEXBASED) {
-            query = buildConjunctionQuery();
+        if (predicate.getOperatorType() == KeywordMatchingType.CONJUNCTION_INDEXBASED) {
+            query = buildConjunctionQuery(predicate, inputSchema);
         }
-        if (this.predicate.getOperatorType() == KeywordMatchingType.PHRASE_INDEXBASED) {
-            query = buildPhraseQuery();
+        if (predicate.getOperatorType() == KeywordMatchingType.PHRASE_INDEXBASED) {
+            query = buildPhraseQuery(predicate, inputSchema);
         }
-        if (this.predicate.getOperatorType() == KeywordMatchingType.SUBSTRING_SCANBASED) {
-            query = buildScanQuery();
+        if (predicate.getOperatorType() == KeywordMatchingType.SUBSTRING_SCANBASED) {
+            query = buildScanQuery(predicate, inputSchema);
         }
 
         return query;
     }
 
-    private Query buildConjunctionQuery() throws DataFlowException {
+    private static Query buildConjunctionQuery(KeywordPredicate predicate, Schema inputSchema)
+            throws DataFlowException {
         BooleanQuery.Builder booleanQueryBuilder = new BooleanQuery.Builder();
 
-        for (String fieldName : this.predicate.getAttributeNames()) {
-            FieldType fieldType = this.inputSchema.getAttribute(fieldName).getFieldType();
+        for (String fieldName : predicate.getAttributeNames()) {
+            FieldType fieldType = inputSchema.getAttribute(fieldName).getFieldType();
 
             // types other than TEXT and STRING: throw Exception for now
             if (fieldType != FieldType.STRING && fieldType != FieldType.TEXT) {
@@ -144,12 +190,12 @@ public class KeywordMatcherSourceOperator extends AbstractSingleInputOperator im
             }
 
             if (fieldType == FieldType.STRING) {
-                Query termQuery = new TermQuery(new Term(fieldName, this.keywordQuery));
+                Query termQuery = new TermQuery(new Term(fieldName, predicate.getQuery()));
                 booleanQueryBuilder.add(termQuery, BooleanClause.Occur.SHOULD);
             }
             if (fieldType == FieldType.TEXT) {
                 BooleanQuery.Builder fieldQueryBuilder = new BooleanQuery.Builder();
-                for (String token : this.predicate.getQueryTokenSet()) {
+                for (String token : predicate.getQueryTokenSet()) {
                     Query termQuery = new TermQuery(new Term(fieldName, token.toLowerCase()));
                     fieldQueryBuilder.add(termQuery, BooleanClause.Occur.MUST);
                 }
@@ -161,11 +207,11 @@ public class KeywordMatcherSourceOperator extends AbstractSingleInputOperator im
         return booleanQueryBuilder.build();
     }
 
-    private Query buildPhraseQuery() throws DataFlowException {
+    private static Query buildPhraseQuery(KeywordPredicate predicate, Schema inputSchema) throws DataFlowException {
         BooleanQuery.Builder booleanQueryBuilder = new BooleanQuery.Builder();
 
-        for (String fieldName : this.predicate.getAttributeNames()) {
-            FieldType fieldType = this.inputSchema.getAttribute(fieldName).getFieldType();
+        for (String fieldName : predicate.getAttributeNames()) {
+            FieldType fieldType = inputSchema.getAttribute(fieldName).getFieldType();
 
             // types other than TEXT and STRING: throw Exception for now
             if (fieldType != FieldType.STRING && fieldType != FieldType.TEXT) {
@@ -174,20 +220,20 @@ public class KeywordMatcherSourceOperator extends AbstractSingleInputOperator im
             }
 
             if (fieldType == FieldType.STRING) {
-                Query termQuery = new TermQuery(new Term(fieldName, this.keywordQuery));
+                Query termQuery = new TermQuery(new Term(fieldName, predicate.getQuery()));
                 booleanQueryBuilder.add(termQuery, BooleanClause.Occur.SHOULD);
             }
             if (fieldType == FieldType.TEXT) {
-                if (this.predicate.getQueryTokenList().size() == 1) {
-                    Query termQuery = new TermQuery(new Term(fieldName, this.keywordQuery.toLowerCase()));
+                if (predicate.getQueryTokenList().size() == 1) {
+                    Query termQuery = new TermQuery(new Term(fieldName, predicate.getQuery().toLowerCase()));
                     booleanQueryBuilder.add(termQuery, BooleanClause.Occur.SHOULD);
                 } else {
                     PhraseQuery.Builder phraseQueryBuilder = new PhraseQuery.Builder();
-                    for (int i = 0; i < this.predicate.getQueryTokensWithStopwords().size(); i++) {
+                    for (int i = 0; i < predicate.getQueryTokensWithStopwords().size(); i++) {
                         if (!StandardAnalyzer.STOP_WORDS_SET
-                                .contains(this.predicate.getQueryTokensWithStopwords().get(i))) {
+                                .contains(predicate.getQueryTokensWithStopwords().get(i))) {
                             phraseQueryBuilder.add(new Term(fieldName,
-                                    this.predicate.getQueryTokensWithStopwords().get(i).toLowerCase()), i);
+                                    predicate.getQueryTokensWithStopwords().get(i).toLowerCase()), i);
                         }
                     }
                     PhraseQuery phraseQuery = phraseQueryBuilder.build();
@@ -200,9 +246,9 @@ public class KeywordMatcherSourceOperator extends AbstractSingleInputOperator im
         return booleanQueryBuilder.build();
     }
 
-    private Query buildScanQuery() throws DataFlowException {
-        for (String fieldName : this.predicate.getAttributeNames()) {
-            FieldType fieldType = this.inputSchema.getAttribute(fieldName).getFieldType();
+    private static Query buildScanQuery(KeywordPredicate predicate, Schema inputSchema) throws DataFlowException {
+        for (String fieldName : predicate.getAttributeNames()) {
+            FieldType fieldType = inputSchema.getAttribute(fieldName).getFieldType();
 
             // types other than TEXT and STRING: throw Exception for now
             if (fieldType != FieldType.STRING && fieldType != FieldType.TEXT) {
@@ -0,0 +1,320 @@
+package edu.uci.ics.textdb.dataflow.nlpextrator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.OutputStreamDataOutput;
+import org.apache.lucene.util.BytesRef;
+
+import edu.uci.ics.textdb.common.exception.DataFlowException;
+import edu.uci.ics.textdb.common.exception.StorageException;
+import edu.uci.ics.textdb.storage.RelationManager;
+
+/**
+ * NlpAnnotationCache caches the tokens annotated by the Stanford NLP pipeline,
+ *   so that the same text is not annotated again by the same set of annotators.
+ *
+ * The cache key is the SHA-256 hash of the annotator set and the text,
+ *   the value is the list of tokens with their offsets and labels (POS or NER tag).
+ *
+ * The recently used entries are kept in an in-memory LRU cache.
+ * All entries are stored in a Lucene index in the cache directory, which is usually under a table's directory
+ *   (see CACHE_DIRECTORY_NAME), so that the cache is kept between runs and deleted with the table.
+ * New entries are written to the index when flush() is called, or when there are too many of them.
+ *
+ * There's one cache object for each directory, it's shared by all the operators (and threads) that use it.
+ * When a table's directory is cleared or deleted by RelationManager, the caches under it are emptied and dropped,
+ *   so that a table created again in the same directory doesn't see the entries of the old one.
+ *
+ */
+public class NlpAnnotationCache {
+
+    // the name of the cache directory under a table's directory
+    public static final String CACHE_DIRECTORY_NAME = "nlp_annotation_cache";
+
+    public static final int MEMORY_CACHE_SIZE = 10000;
+    private static final int MAX_PENDING_ENTRIES = 1000;
+
+    private static final String KEY_FIELD = "key";
+    private static final String TOKENS_FIELD = "tokens";
+
+    private static final HashMap<Path, NlpAnnotationCache> annotationCacheMap = new HashMap<>();
+    private static boolean tableDirectoryListenerAdded = false;
+
+    /**
+     * Gets the cache of the directory.
+     *
+     * @throws StorageException, if the RelationManager can't be created
+     */
+    static synchronized NlpAnnotationCache getAnnotationCache(String cacheDirectory) throws StorageException {
+        if (! tableDirectoryListenerAdded) {
+            RelationManager.getRelationManager().addTableDirectoryListener(
+                    tableDirectory -> invalidateAnnotationCaches(tableDirectory));
+            tableDirectoryListenerAdded = true;
+        }
+        Path cachePath = Paths.get(cacheDirectory).toAbsolutePath().normalize();
+        return annotationCacheMap.computeIfAbsent(cachePath, path -> new NlpAnnotationCache(path));
+    }
+
+    /**
+     * Empties and drops the caches in the directory or under it.
+     * Operators that still hold a dropped cache can keep using it, it starts empty.
+     */
+    static synchronized void invalidateAnnotationCaches(String directory) {
+        Path directoryPath = Paths.get(directory).toAbsolutePath().normalize();
+        Iterator<Map.Entry<Path, NlpAnnotationCache>> cacheIterator = annotationCacheMap.entrySet().iterator();
+        while (cacheIterator.hasNext()) {
+            Map.Entry<Path, NlpAnnotationCache> cacheEntry = cacheIterator.next();
+            if (cacheEntry.getKey().startsWith(directoryPath)) {
+                cacheEntry.getValue().clear();
+                cacheIterator.remove();
+            }
+        }
+    }
+
+    /**
+     * AnnotatedToken is a token of the text and its label.
+     */
+    static class AnnotatedToken {
+        final int start;
+        final int end;
+        final String word;
+        final String label;
+
+        AnnotatedToken(int start, int end, String word, String label) {
+            this.start = start;
+            this.end = end;
+            this.word = word;
+            this.label = label;
+        }
+    }
+
+    private final Path cachePath;
+
+    // guarded by itself
+    private final LinkedHashMap<String, List<AnnotatedToken>> memoryCache =
+            new LinkedHashMap<String, List<AnnotatedToken>>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, List<AnnotatedToken>> eldest) {
+                    return size() > MEMORY_CACHE_SIZE;
+                }
+            };
+
+    // the entries that are not written to the index yet, guarded by this
+    private final LinkedHashMap<String, List<AnnotatedToken>> pendingEntries = new LinkedHashMap<>();
+    // null if the index doesn't exist yet, guarded by this
+    private SearcherManager searcherManager;
+    private Directory searcherDirectory;
+
+    private NlpAnnotationCache(Path cachePath) {
+        this.cachePath = cachePath;
+    }
+
+    /**
+     * Returns the cached tokens of the text, or null if the text is not cached.
+     */
+    List<AnnotatedToken> get(String text, String annotators) throws DataFlowException {
+        String key = getKey(text, annotators);
+        synchronized (memoryCache) {
+            List<AnnotatedToken> tokens = memoryCache.get(key);
+            if (tokens != null) {
+                return tokens;
+            }
+        }
+
+        SearcherManager searcherManager = getSearcherManager();
+        if (searcherManager == null) {
+            return null;
+        }
+        try {
+            IndexSearcher searcher = searcherManager.acquire();
+            try {
+                TopDocs topDocs = searcher.search(new TermQuery(new Term(KEY_FIELD, key)), 1);
+                if (topDocs.scoreDocs.length == 0) {
+                    return null;
+                }
+                BytesRef value = searcher.doc(topDocs.scoreDocs[0].doc).getBinaryValue(TOKENS_FIELD);
+                List<AnnotatedToken> tokens = decode(value);
+                synchronized (memoryCache) {
+                    memoryCache.put(key, tokens);
+                }
+                return tokens;
+            } finally {
+                searcherManager.release(searcher);
+            }
+        } catch (AlreadyClosedException e) {
+            // the cache is invalidated concurrently
+            return null;
+        } catch (IOException e) {
+            throw new DataFlowException(e.getMessage(), e);
+        }
+    }
+
+    void put(String text, String annotators, List<AnnotatedToken> tokens) throws DataFlowException {
+        String key = getKey(text, annotators);
+        synchronized (memoryCache) {
+            memoryCache.put(key, tokens);
+        }
+        synchronized (this) {
+            pendingEntries.put(key, tokens);
+            if (pendingEntries.size() >= MAX_PENDING_ENTRIES) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Writes the new entries to the index.
+     */
+    synchronized void flush() throws DataFlowException {
+        if (pendingEntries.isEmpty()) {
+            return;
+        }
+        // the writer is not kept open, so that the cache doesn't lock the directory
+        try (Directory directory = FSDirectory.open(cachePath);
+                IndexWriter indexWriter = new IndexWriter(directory, new IndexWriterConfig(new KeywordAnalyzer()))) {
+            for (String key : pendingEntries.keySet()) {
+                Document document = new Document();
+                document.add(new StringField(KEY_FIELD, key, Field.Store.NO));
+                document.add(new StoredField(TOKENS_FIELD, encode(pendingEntries.get(key))));
+                indexWriter.updateDocument(new Term(KEY_FIELD, key), document);
+            }
+            indexWriter.commit();
+        } catch (IOException e) {
+            throw new DataFlowException(e.getMessage(), e);
+        }
+        pendingEntries.clear();
+
+        try {
+            if (searcherManager == null) {
+                searcherDirectory = FSDirectory.open(cachePath);
+                searcherManager = new SearcherManager(searcherDirectory, null);
+            } else {
+                searcherManager.maybeRefresh();
+            }
+        } catch (IOException e) {
+            throw new DataFlowException(e.getMessage(), e);
+        }
+    }
+
+    private synchronized SearcherManager getSearcherManager() throws DataFlowException {
+        if (searcherManager == null) {
+            try {
+                Directory directory = FSDirectory.open(cachePath);
+                if (! DirectoryReader.indexExists(directory)) {
+                    directory.close();
+                    return null;
+                }
+                searcherManager = new SearcherManager(directory, null);
+                searcherDirectory = directory;
+            } catch (IOException e) {
+                throw new DataFlowException(e.getMessage(), e);
+            }
+        }
+        return searcherManager;
+    }
+
+    /*
+     * Drops the entries in memory, the pending entries, and closes the searcher of the index.
+     * The searchers that are still borrowed are closed once they are released.
+     */
+    private void clear() {
+        synchronized (memoryCache) {
+            memoryCache.clear();
+        }
+        synchronized (this) {
+            pendingEntries.clear();
+            try {
+                if (searcherManager != null) {
+                    searcherManager.close();
+                }
+                if (searcherDirectory != null) {
+                    searcherDirectory.close();
+                }
+            } catch (IOException e) {
+                // the index is dropped anyway, there's nothing else to clean up
+            }
+            searcherManager = null;
+            searcherDirectory = null;
+        }
+    }
+
+    private static String getKey(String text, String annotators) throws DataFlowException {
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            messageDigest.update(annotators.getBytes(StandardCharsets.UTF_8));
+            messageDigest.update((byte) 0);
+            messageDigest.update(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder key = new StringBuilder();
+            for (byte b : messageDigest.digest()) {
+                key.append(String.format("%02x", b));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new DataFlowException(e.getMessage(), e);
+        }
+    }
+
+    /*
+     * Format (all integers are variable-length):
+     *   numberOfTokens, (start, length, word, label) * numberOfTokens
+     */
+    private static BytesRef encode(List<AnnotatedToken> tokens) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        OutputStreamDataOutput output = new OutputStreamDataOutput(outputStream);
+        output.writeVInt(tokens.size());
+        for (AnnotatedToken token : tokens) {
+            output.writeVInt(token.start);
+            output.writeVInt(token.end - token.start);
+            output.writeString(token.word);
+            output.writeString(token.label == null ? "" : token.label);
+        }
+        output.close();
+        return new BytesRef(outputStream.toByteArray());
+    }
+
+    private static List<AnnotatedToken> decode(BytesRef value) throws IOException {
+        ByteArrayDataInput input = new ByteArrayDataInput(value.bytes, value.offset, value.length);
+        int numberOfTokens = input.readVInt();
+        List<AnnotatedToken> tokens = new ArrayList<>(numberOfTokens);
+        for (int i = 0; i < numberOfTokens; i++) {
+            int start = input.readVInt();
+            int end = start + input.readVInt();
+            String word = input.readString();
+            String label = input.readString();
+            tokens.add(new AnnotatedToken(start, end, word, label.isEmpty() ? null : label));
+        }
+        return tokens;
+    }
+
+}
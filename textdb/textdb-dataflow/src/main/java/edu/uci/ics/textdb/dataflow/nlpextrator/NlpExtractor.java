@@ -1,8 +1,13 @@
 package edu.uci.ics.textdb.dataflow.nlpextrator;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import edu.stanford.nlp.ling.CoreAnnotations;
 import edu.stanford.nlp.ling.CoreLabel;
@@ -14,9 +19,11 @@ import edu.uci.ics.textdb.api.common.ITuple;
 import edu.uci.ics.textdb.api.common.Schema;
 import edu.uci.ics.textdb.common.constants.SchemaConstants;
 import edu.uci.ics.textdb.api.exception.TextDBException;
+import edu.uci.ics.textdb.common.exception.DataFlowException;
 import edu.uci.ics.textdb.common.field.Span;
 import edu.uci.ics.textdb.common.utils.Utils;
 import edu.uci.ics.textdb.dataflow.common.AbstractSingleInputOperator;
+import edu.uci.ics.textdb.dataflow.nlpextrator.NlpAnnotationCache.AnnotatedToken;
 import edu.uci.ics.textdb.dataflow.nlpextrator.NlpPredicate.NlpTokenType;
 
 /**
@@ -32,6 +39,16 @@ import edu.uci.ics.textdb.dataflow.nlpextrator.NlpPredicate.NlpTokenType;
  *        headquarters are in Mountain View."] Appends a list of spans as a
  *        field for the returned tuple: ["sentence1,0,6,Google, Organization",
  *        "sentence2,24,37,Mountain View, Location"]
+ *        <p>
+ *        If the number of threads is more than 1, the input tuples are annotated
+ *        by a pool of worker threads that share the pipeline (CoreNLP pipelines
+ *        are thread-safe). Up to (number of threads * WINDOW_SIZE_PER_THREAD)
+ *        tuples are annotated ahead of the consumer, and the results are
+ *        returned in the same order as the input tuples.
+ *        <p>
+ *        If an annotation cache directory is set, the annotated tokens are
+ *        cached (see NlpAnnotationCache), the text that has been annotated
+ *        before is not annotated again.
  */
 public class NlpExtractor extends AbstractSingleInputOperator {
 
@@ -39,8 +56,20 @@ public class NlpExtractor extends AbstractSingleInputOperator {
 
     private Schema inputSchema;
     
-    private static StanfordCoreNLP posPipeline = null;
-    private static StanfordCoreNLP nerPipeline = null;
+    private static volatile StanfordCoreNLP posPipeline = null;
+    private static volatile StanfordCoreNLP nerPipeline = null;
+    
+    // the number of tuples annotated ahead for each worker thread
+    public static final int WINDOW_SIZE_PER_THREAD = 4;
+    
+    private int numberOfThreads = 1;
+    private ExecutorService workerPool;
+    // the results of the input tuples that are being annotated, in the order of the input tuples
+    private ArrayDeque<Future<ITuple>> pendingResults;
+    private boolean inputExhausted;
+    
+    private String annotationCacheDirectory;
+    private NlpAnnotationCache annotationCache;
 
     /**
      * @param NlpPredicate
@@ -61,17 +90,30 @@ public class NlpExtractor extends AbstractSingleInputOperator {
         if (!inputSchema.containsField(SchemaConstants.SPAN_LIST)) {
             outputSchema = Utils.addAttributeToSchema(outputSchema, SchemaConstants.SPAN_LIST_ATTRIBUTE);
         }
+        if (annotationCacheDirectory != null) {
+            annotationCache = NlpAnnotationCache.getAnnotationCache(annotationCacheDirectory);
+        }
+        if (numberOfThreads > 1) {
+            workerPool = Executors.newFixedThreadPool(numberOfThreads, runnable -> {
+                Thread thread = new Thread(runnable, "textdb-nlp-worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+            pendingResults = new ArrayDeque<>();
+            inputExhausted = false;
+        }
     }
     
     @Override
     protected ITuple computeNextMatchingTuple() throws TextDBException {
+        if (workerPool != null) {
+            return computeNextMatchingTupleInParallel();
+        }
+        
         ITuple inputTuple = null;
         ITuple resultTuple = null;
         
-        while ((inputTuple = inputOperator.getNextTuple()) != null) {
-            if (!inputSchema.containsField(SchemaConstants.SPAN_LIST)) {
-                inputTuple = Utils.getSpanTuple(inputTuple.getFields(), new ArrayList<Span>(), outputSchema);
-            }            
+        while ((inputTuple = getNextInputTuple()) != null) {
             resultTuple = processOneInputTuple(inputTuple);
             if (resultTuple != null) {
                 break;
@@ -80,6 +122,47 @@ public class NlpExtractor extends AbstractSingleInputOperator {
         
         return resultTuple;
     }
+    
+    /*
+     * Keeps the worker pool busy by submitting the next input tuples, 
+     *   and waits for the result of the oldest one.
+     */
+    private ITuple computeNextMatchingTupleInParallel() throws TextDBException {
+        while (true) {
+            while (! inputExhausted && pendingResults.size() < numberOfThreads * WINDOW_SIZE_PER_THREAD) {
+                ITuple inputTuple = getNextInputTuple();
+                if (inputTuple == null) {
+                    inputExhausted = true;
+                } else {
+                    pendingResults.addLast(workerPool.submit(() -> processOneInputTuple(inputTuple)));
+                }
+            }
+            if (pendingResults.isEmpty()) {
+                return null;
+            }
+            
+            ITuple resultTuple;
+            try {
+                resultTuple = pendingResults.pollFirst().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DataFlowException(e.getMessage(), e);
+            } catch (ExecutionException e) {
+                throw new DataFlowException(e.getCause().getMessage(), e.getCause());
+            }
+            if (resultTuple != null) {
+                return resultTuple;
+            }
+        }
+    }
+    
+    private ITuple getNextInputTuple() throws TextDBException {
+        ITuple inputTuple = inputOperator.getNextTuple();
+        if (inputTuple != null && !inputSchema.containsField(SchemaConstants.SPAN_LIST)) {
+            inputTuple = Utils.getSpanTuple(inputTuple.getFields(), new ArrayList<Span>(), outputSchema);
+        }
+        return inputTuple;
+    }
 
     @Override
     public ITuple processOneInputTuple(ITuple inputTuple) throws TextDBException {
@@ -149,26 +232,90 @@ public class NlpExtractor extends AbstractSingleInputOperator {
      *           to the returned list. In this case, token "Microsoft" would be
      *           span: ["Sentence1", 0, 9, Organization, "Microsoft"]
      */
-    private List<Span> extractNlpSpans(IField iField, String fieldName) {
-        List<Span> spanList = new ArrayList<>();
+    private List<Span> extractNlpSpans(IField iField, String fieldName) throws TextDBException {
         String text = (String) iField.getValue();
+        List<AnnotatedToken> tokens = annotateText(text, predicate.getNlpTypeIndicator(), annotationCache);
+        return getNlpSpans(tokens, fieldName, predicate.getNlpTokenType(), predicate.getNlpTypeIndicator());
+    }
+    
+    /*
+     * Converts the annotated tokens of a field to the spans of the token type,
+     *   NE_ALL matches all the types of the tokens.
+     * If the nlpTypeIndicator is "NE_ALL", the adjacent tokens of the same type are merged into one span.
+     */
+    static List<Span> getNlpSpans(List<AnnotatedToken> tokens, String fieldName, NlpTokenType nlpTokenType,
+            String nlpTypeIndicator) {
+        List<Span> spanList = new ArrayList<>();
+        for (AnnotatedToken token : tokens) {
+            String stanfordNlpConstant = token.label;
+            if (stanfordNlpConstant == null) {
+                continue;
+            }
+            
+            NlpTokenType thisNlpTokenType = getNlpTokenType(stanfordNlpConstant);
+            if (thisNlpTokenType == null) {
+                continue;
+            }
+            if (nlpTokenType.equals(NlpTokenType.NE_ALL) || nlpTokenType.equals(thisNlpTokenType)) {
+                Span span = new Span(fieldName, token.start, token.end, thisNlpTokenType.toString(), token.word);
+                if (spanList.size() >= 1 && (nlpTypeIndicator.equals("NE_ALL"))) {
+                    Span previousSpan = spanList.get(spanList.size() - 1);
+                    if (previousSpan.getFieldName().equals(span.getFieldName())
+                            && (span.getStart() - previousSpan.getEnd() <= 1)
+                            && previousSpan.getKey().equals(span.getKey())) {
+                        Span newSpan = mergeTwoSpans(previousSpan, span);
+                        span = newSpan;
+                        spanList.remove(spanList.size() - 1);
+                    }
+                }
+                spanList.add(span);
+            }
+        }
+        return spanList;
+    }
+    
+    /*
+     * Annotates the text with the Stanford NLP pipeline, 
+     *   the label of a token is its POS tag or NER tag depending on the nlpTypeIndicator.
+     * The tokens are taken from the annotation cache (if it's not null) if the text has been annotated before.
+     */
+    static List<AnnotatedToken> annotateText(String text, String nlpTypeIndicator, NlpAnnotationCache annotationCache)
+            throws TextDBException {
         Properties props = new Properties();
 
         // Setup Stanford NLP pipeline based on nlpTypeIndicator
+        // the pipelines are shared by all the threads, they are created only once
         StanfordCoreNLP pipeline = null;
-        if (predicate.getNlpTypeIndicator().equals("POS")) {
+        if (nlpTypeIndicator.equals("POS")) {
             props.setProperty("annotators", "tokenize, ssplit, pos");
             if (posPipeline == null) {
-                posPipeline = new StanfordCoreNLP(props);
+                synchronized (NlpExtractor.class) {
+                    if (posPipeline == null) {
+                        posPipeline = new StanfordCoreNLP(props);
+                    }
+                }
             }
             pipeline = posPipeline;
         } else {
             props.setProperty("annotators", "tokenize, ssplit, pos, lemma, " + "ner");
             if (nerPipeline == null) {
-                nerPipeline = new StanfordCoreNLP(props);
+                synchronized (NlpExtractor.class) {
+                    if (nerPipeline == null) {
+                        nerPipeline = new StanfordCoreNLP(props);
+                    }
+                }
             }
             pipeline = nerPipeline;
         }
+        String annotators = props.getProperty("annotators");
+        if (annotationCache != null) {
+            List<AnnotatedToken> cachedTokens = annotationCache.get(text, annotators);
+            if (cachedTokens != null) {
+                return cachedTokens;
+            }
+        }
+        
+        List<AnnotatedToken> tokens = new ArrayList<>();
         Annotation documentAnnotation = new Annotation(text);
         pipeline.annotate(documentAnnotation);
         List<CoreMap> sentences = documentAnnotation.get(CoreAnnotations.SentencesAnnotation.class);
@@ -178,37 +325,23 @@ public class NlpExtractor extends AbstractSingleInputOperator {
                 String stanfordNlpConstant;
 
                 // Extract annotations based on nlpTypeIndicator
-                if (predicate.getNlpTypeIndicator().equals("POS")) {
+                if (nlpTypeIndicator.equals("POS")) {
                     stanfordNlpConstant = token.get(CoreAnnotations.PartOfSpeechAnnotation.class);
                 } else {
                     stanfordNlpConstant = token.get(CoreAnnotations.NamedEntityTagAnnotation.class);
                 }
 
-                NlpTokenType thisNlpTokenType = getNlpTokenType(stanfordNlpConstant);
-                if (thisNlpTokenType == null) {
-                    continue;
-                }
-                if (predicate.getNlpTokenType().equals(NlpTokenType.NE_ALL) || predicate.getNlpTokenType().equals(thisNlpTokenType)) {
-                    int start = token.get(CoreAnnotations.CharacterOffsetBeginAnnotation.class);
-                    int end = token.get(CoreAnnotations.CharacterOffsetEndAnnotation.class);
-                    String word = token.get(CoreAnnotations.TextAnnotation.class);
-
-                    Span span = new Span(fieldName, start, end, thisNlpTokenType.toString(), word);
-                    if (spanList.size() >= 1 && (predicate.getNlpTypeIndicator().equals("NE_ALL"))) {
-                        Span previousSpan = spanList.get(spanList.size() - 1);
-                        if (previousSpan.getFieldName().equals(span.getFieldName())
-                                && (span.getStart() - previousSpan.getEnd() <= 1)
-                                && previousSpan.getKey().equals(span.getKey())) {
-                            Span newSpan = mergeTwoSpans(previousSpan, span);
-                            span = newSpan;
-                            spanList.remove(spanList.size() - 1);
-                        }
-                    }
-                    spanList.add(span);
-                }
+                int start = token.get(CoreAnnotations.CharacterOffsetBeginAnnotation.class);
+                int end = token.get(CoreAnnotations.CharacterOffsetEndAnnotation.class);
+                String word = token.get(CoreAnnotations.TextAnnotation.class);
+                tokens.add(new AnnotatedToken(start, end, word, stanfordNlpConstant));
             }
         }
-        return spanList;
+        
+        if (annotationCache != null) {
+            annotationCache.put(text, annotators, tokens);
+        }
+        return tokens;
     }
 
     /**
@@ -229,7 +362,7 @@ public class NlpExtractor extends AbstractSingleInputOperator {
      *        fieldName. 3. The two spans have the same key (Organization,
      *        Person,... etc)
      */
-    private Span mergeTwoSpans(Span previousSpan, Span currentSpan) {
+    private static Span mergeTwoSpans(Span previousSpan, Span currentSpan) {
         String newWord = previousSpan.getValue() + " " + currentSpan.getValue();
         return new Span(previousSpan.getFieldName(), previousSpan.getStart(), currentSpan.getEnd(),
                 previousSpan.getKey(), newWord);
@@ -245,7 +378,7 @@ public class NlpExtractor extends AbstractSingleInputOperator {
      *        Stanford Constant to only 4 types: Noun, Verb, Adjective and
      *        Adverb.
      */
-    private NlpTokenType getNlpTokenType(String stanfordConstant) {
+    static NlpTokenType getNlpTokenType(String stanfordConstant) {
         switch (stanfordConstant) {
         case "NUMBER":
             return NlpTokenType.Number;
@@ -302,10 +435,48 @@ public class NlpExtractor extends AbstractSingleInputOperator {
 
     @Override
     protected void cleanUp() throws TextDBException {
+        if (workerPool != null) {
+            // the tuples annotated ahead are not needed anymore
+            pendingResults.forEach(result -> result.cancel(true));
+            pendingResults = null;
+            workerPool.shutdownNow();
+            workerPool = null;
+        }
+        if (annotationCache != null) {
+            annotationCache.flush();
+            annotationCache = null;
+        }
     }
 
     public NlpPredicate getPredicate() {
         return this.predicate;
     }
+    
+    /**
+     * Sets the number of threads that annotate the input tuples, the default is 1.
+     * The input tuples are annotated on the caller's thread if it's 1.
+     * 
+     * @param numberOfThreads
+     */
+    public void setNumberOfThreads(int numberOfThreads) {
+        this.numberOfThreads = numberOfThreads;
+    }
+    
+    public int getNumberOfThreads() {
+        return this.numberOfThreads;
+    }
+    
+    /**
+     * Sets the directory of the annotation cache, the annotations are not cached if it's null (the default).
+     * 
+     * @param annotationCacheDirectory
+     */
+    public void setAnnotationCacheDirectory(String annotationCacheDirectory) {
+        this.annotationCacheDirectory = annotationCacheDirectory;
+    }
+    
+    public String getAnnotationCacheDirectory() {
+        return this.annotationCacheDirectory;
+    }
 
 }
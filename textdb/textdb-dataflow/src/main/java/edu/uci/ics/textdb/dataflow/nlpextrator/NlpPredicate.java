@@ -42,7 +42,7 @@ public class NlpPredicate implements IPredicate {
         }
     }
     
-    private static boolean isPOSTokenType(NlpTokenType tokenType) {
+    static boolean isPOSTokenType(NlpTokenType tokenType) {
         if (tokenType.equals(NlpTokenType.Adjective) || tokenType.equals(NlpTokenType.Adverb)
                 || tokenType.equals(NlpTokenType.Noun) || tokenType.equals(NlpTokenType.Verb)) {
             return true;
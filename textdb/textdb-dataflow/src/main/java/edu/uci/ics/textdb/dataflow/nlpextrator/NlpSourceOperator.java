@@ -0,0 +1,268 @@
+package edu.uci.ics.textdb.dataflow.nlpextrator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+
+import edu.uci.ics.textdb.api.common.IField;
+import edu.uci.ics.textdb.api.common.ITuple;
+import edu.uci.ics.textdb.api.common.Schema;
+import edu.uci.ics.textdb.api.dataflow.IOperator;
+import edu.uci.ics.textdb.api.dataflow.ISourceOperator;
+import edu.uci.ics.textdb.api.exception.TextDBException;
+import edu.uci.ics.textdb.common.constants.SchemaConstants;
+import edu.uci.ics.textdb.common.exception.DataFlowException;
+import edu.uci.ics.textdb.common.exception.StorageException;
+import edu.uci.ics.textdb.common.field.Span;
+import edu.uci.ics.textdb.common.utils.Utils;
+import edu.uci.ics.textdb.dataflow.common.AbstractSingleInputOperator;
+import edu.uci.ics.textdb.dataflow.common.ILimitPushdown;
+import edu.uci.ics.textdb.dataflow.nlpextrator.NlpPredicate.NlpTokenType;
+import edu.uci.ics.textdb.storage.AnnotationCodec;
+import edu.uci.ics.textdb.storage.DataReader;
+import edu.uci.ics.textdb.storage.ISpanAnnotator;
+import edu.uci.ics.textdb.storage.RelationManager;
+
+/**
+ * NlpSourceOperator is a source operator that returns the spans of an NLP token type in a table,
+ *   optionally only the spans that contain a keyword, e.g. all the Location entities containing "york".
+ * The output is the same as an NlpExtractor over the table followed by the keyword filter.
+ *
+ * If the table is annotated when the tuples are written (see NlpSpanAnnotator),
+ *   the tuples that have such spans are found by a Lucene query on the annotation field,
+ *   and the stored spans are used, the NLP pipeline is not run at all.
+ * Otherwise, the table is scanned and annotated by an NlpExtractor.
+ *
+ */
+public class NlpSourceOperator extends AbstractSingleInputOperator implements ISourceOperator {
+
+    // the named entity types matched by NE_ALL
+    private static final List<NlpTokenType> NAMED_ENTITY_TYPES = Arrays.asList(NlpTokenType.Number,
+            NlpTokenType.Location, NlpTokenType.Person, NlpTokenType.Organization, NlpTokenType.Money,
+            NlpTokenType.Percent, NlpTokenType.Date, NlpTokenType.Time);
+
+    private NlpPredicate predicate;
+    private String tableName;
+    private String entityKeyword;
+
+    private Analyzer luceneAnalyzer;
+    // the analyzed tokens of the entity keyword, empty if there's no keyword
+    private List<String> keywordTokens;
+
+    private Schema inputSchema;
+    private DataReader dataReader;
+    // the extractor that annotates the tuples if the table is not annotated, null otherwise
+    private NlpExtractor nlpExtractor;
+
+    public NlpSourceOperator(NlpPredicate predicate, String tableName) throws TextDBException {
+        this(predicate, tableName, null);
+    }
+
+    /**
+     * @param predicate
+     * @param tableName
+     * @param entityKeyword, the spans must contain all the (analyzed) tokens of the keyword,
+     *   null means all the spans are returned
+     * @throws TextDBException
+     */
+    public NlpSourceOperator(NlpPredicate predicate, String tableName, String entityKeyword)
+            throws TextDBException {
+        this.predicate = predicate;
+        this.tableName = tableName;
+        this.entityKeyword = entityKeyword;
+
+        RelationManager relationManager = RelationManager.getRelationManager();
+        this.inputSchema = relationManager.getTableDataStore(tableName).getSchema();
+        this.luceneAnalyzer = relationManager.getTableAnalyzer(tableName);
+        this.keywordTokens = entityKeyword == null ?
+                new ArrayList<>() : Utils.tokenizeQuery(luceneAnalyzer, entityKeyword);
+
+        if (isTableAnnotated(relationManager)) {
+            this.dataReader = relationManager.getTableDataReader(tableName, createLuceneQueryObject());
+            this.dataReader.setPayloadAdded(false);
+            this.dataReader.setAnnotationAdded(true);
+            this.inputOperator = this.dataReader;
+        } else {
+            this.dataReader = relationManager.getTableDataReader(tableName, new MatchAllDocsQuery());
+            this.dataReader.setPayloadAdded(false);
+            this.nlpExtractor = new NlpExtractor(predicate);
+            this.nlpExtractor.setInputOperator(this.dataReader);
+            this.inputOperator = this.nlpExtractor;
+        }
+    }
+
+    /*
+     * The table's annotation can be used if its annotator annotates the token type in all the attributes.
+     */
+    private boolean isTableAnnotated(RelationManager relationManager) throws StorageException {
+        ISpanAnnotator tableSpanAnnotator = relationManager.getTableSpanAnnotator(tableName);
+        if (! (tableSpanAnnotator instanceof NlpSpanAnnotator)) {
+            return false;
+        }
+        NlpSpanAnnotator spanAnnotator = (NlpSpanAnnotator) tableSpanAnnotator;
+        for (String attributeName : predicate.getAttributeNames()) {
+            if (! spanAnnotator.isAnnotated(predicate.getNlpTokenType(), inputSchema.getAttribute(attributeName))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    protected void setUp() throws TextDBException {
+        this.outputSchema = inputSchema;
+        if (! outputSchema.containsField(SchemaConstants.SPAN_LIST)) {
+            this.outputSchema = Utils.addAttributeToSchema(outputSchema, SchemaConstants.SPAN_LIST_ATTRIBUTE);
+        }
+    }
+
+    @Override
+    protected ITuple computeNextMatchingTuple() throws TextDBException {
+        ITuple inputTuple = null;
+        ITuple resultTuple = null;
+
+        while ((inputTuple = inputOperator.getNextTuple()) != null) {
+            resultTuple = processOneInputTuple(inputTuple);
+            if (resultTuple != null) {
+                break;
+            }
+        }
+
+        return resultTuple;
+    }
+
+    @Override
+    public ITuple processOneInputTuple(ITuple inputTuple) throws TextDBException {
+        List<Span> spanList;
+        List<IField> fieldList = new ArrayList<>(inputTuple.getFields());
+        if (nlpExtractor == null) {
+            // the annotation is the last field added by the data reader
+            @SuppressWarnings("unchecked")
+            List<Span> annotation = (List<Span>) inputTuple.getField(SchemaConstants.ANNOTATION).getValue();
+            spanList = annotation;
+            fieldList.remove(fieldList.size() - 1);
+        } else {
+            // the span list is the last field added by the extractor
+            @SuppressWarnings("unchecked")
+            List<Span> extractedSpans = (List<Span>) inputTuple.getField(SchemaConstants.SPAN_LIST).getValue();
+            spanList = extractedSpans;
+            fieldList.remove(fieldList.size() - 1);
+        }
+
+        // the spans are ordered by the attributes of the predicate, in the same way as NlpExtractor
+        List<Span> matchingResults = new ArrayList<>();
+        for (String attributeName : predicate.getAttributeNames()) {
+            for (Span span : spanList) {
+                if (span.getFieldName().equals(attributeName) && isTokenTypeMatched(span)
+                        && isKeywordContained(span)) {
+                    matchingResults.add(span);
+                }
+            }
+        }
+
+        if (matchingResults.isEmpty()) {
+            return null;
+        }
+        return Utils.getSpanTuple(fieldList, matchingResults, outputSchema);
+    }
+
+    private boolean isTokenTypeMatched(Span span) {
+        if (predicate.getNlpTokenType() == NlpTokenType.NE_ALL) {
+            return NAMED_ENTITY_TYPES.stream().anyMatch(type -> type.toString().equals(span.getKey()));
+        }
+        return predicate.getNlpTokenType().toString().equals(span.getKey());
+    }
+
+    private boolean isKeywordContained(Span span) {
+        if (keywordTokens.isEmpty()) {
+            return true;
+        }
+        return Utils.tokenizeQuery(luceneAnalyzer, span.getValue()).containsAll(keywordTokens);
+    }
+
+    @Override
+    protected void cleanUp() throws DataFlowException {
+    }
+
+    /**
+     * Source Operator doesn't need an input operator. Calling setInputOperator
+     * won't have any effects.
+     */
+    @Override
+    public void setInputOperator(IOperator inputOperator) {
+    }
+
+    @Override
+    public void pushDownLimit(int maxNumberOfTuples) {
+        super.pushDownLimit(maxNumberOfTuples);
+        // without a keyword, a document matches the annotation query
+        //   if and only if it has a span of the type in one of the attributes
+        if (nlpExtractor == null && keywordTokens.isEmpty()) {
+            int bound = ILimitPushdown.getInputBound(limit, offset);
+            if (bound < dataReader.getLimit()) {
+                dataReader.setLimit(bound);
+            }
+        }
+    }
+
+    public NlpPredicate getPredicate() {
+        return this.predicate;
+    }
+
+    public String getTableName() {
+        return this.tableName;
+    }
+
+    public String getEntityKeyword() {
+        return this.entityKeyword;
+    }
+
+    /**
+     * Returns true if the spans are found by a query on the table's annotation,
+     *   false if the table is scanned and annotated by an NlpExtractor.
+     */
+    public boolean isAnnotationIndexUsed() {
+        return this.nlpExtractor == null;
+    }
+
+    /*
+     * Creates a boolean query on the annotation field, for example,
+     *   the query of the Location spans containing "new york" in the attributes "content" and "title" is:
+     *   (+content:Location:new +content:Location:york) (+title:Location:new +title:Location:york)
+     * The query only tells if a document has the tokens in some spans of the type,
+     *   whether a single span contains all of them is checked by processOneInputTuple.
+     */
+    private Query createLuceneQueryObject() {
+        List<NlpTokenType> tokenTypes = predicate.getNlpTokenType() == NlpTokenType.NE_ALL ?
+                NAMED_ENTITY_TYPES : Arrays.asList(predicate.getNlpTokenType());
+
+        BooleanQuery.Builder booleanQueryBuilder = new BooleanQuery.Builder();
+        for (String fieldName : predicate.getAttributeNames()) {
+            for (NlpTokenType tokenType : tokenTypes) {
+                if (keywordTokens.isEmpty()) {
+                    Query termQuery = new TermQuery(new Term(AnnotationCodec.ANNOTATION_FIELD,
+                            AnnotationCodec.getTypeTerm(fieldName, tokenType.toString())));
+                    booleanQueryBuilder.add(termQuery, BooleanClause.Occur.SHOULD);
+                } else {
+                    BooleanQuery.Builder typeQueryBuilder = new BooleanQuery.Builder();
+                    for (String token : keywordTokens) {
+                        Query termQuery = new TermQuery(new Term(AnnotationCodec.ANNOTATION_FIELD,
+                                AnnotationCodec.getValueTerm(fieldName, tokenType.toString(), token)));
+                        typeQueryBuilder.add(termQuery, BooleanClause.Occur.MUST);
+                    }
+                    booleanQueryBuilder.add(typeQueryBuilder.build(), BooleanClause.Occur.SHOULD);
+                }
+            }
+        }
+        return booleanQueryBuilder.build();
+    }
+
+}
@@ -0,0 +1,61 @@
+package edu.uci.ics.textdb.dataflow.nlpextrator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.uci.ics.textdb.api.common.Attribute;
+import edu.uci.ics.textdb.api.common.FieldType;
+import edu.uci.ics.textdb.api.common.IField;
+import edu.uci.ics.textdb.api.common.ITuple;
+import edu.uci.ics.textdb.api.exception.TextDBException;
+import edu.uci.ics.textdb.common.field.Span;
+import edu.uci.ics.textdb.dataflow.nlpextrator.NlpPredicate.NlpTokenType;
+import edu.uci.ics.textdb.storage.ISpanAnnotator;
+
+/**
+ * NlpSpanAnnotator annotates the TEXT fields of a tuple with the Stanford NLP pipeline
+ *   when the tuple is written to a table (see RelationManager.createTable).
+ * 
+ * The spans are the same as the spans of NlpExtractor with the token type NE_ALL (the named entities)
+ *   plus the spans of each Part of Speech token, so that NlpSourceOperator can find them with a Lucene query.
+ *
+ */
+public class NlpSpanAnnotator implements ISpanAnnotator {
+
+    @Override
+    public List<Span> annotate(ITuple tuple) throws TextDBException {
+        List<Span> spans = new ArrayList<>();
+        for (Attribute attribute : tuple.getSchema().getAttributes()) {
+            if (attribute.getFieldType() != FieldType.TEXT) {
+                continue;
+            }
+            IField field = tuple.getField(attribute.getFieldName());
+            if (field.getValue() == null) {
+                continue;
+            }
+            spans.addAll(annotateField((String) field.getValue(), attribute.getFieldName()));
+        }
+        return spans;
+    }
+    
+    protected List<Span> annotateField(String text, String fieldName) throws TextDBException {
+        List<Span> spans = new ArrayList<>();
+        spans.addAll(NlpExtractor.getNlpSpans(NlpExtractor.annotateText(text, "NE_ALL", null),
+                fieldName, NlpTokenType.NE_ALL, "NE_ALL"));
+        spans.addAll(NlpExtractor.getNlpSpans(NlpExtractor.annotateText(text, "POS", null),
+                fieldName, NlpTokenType.NE_ALL, "POS"));
+        return spans;
+    }
+    
+    /**
+     * Returns true if the spans of the token type in the attribute are annotated by this annotator.
+     * 
+     * @param nlpTokenType
+     * @param attribute
+     * @return
+     */
+    public boolean isAnnotated(NlpTokenType nlpTokenType, Attribute attribute) {
+        return attribute.getFieldType() == FieldType.TEXT;
+    }
+
+}
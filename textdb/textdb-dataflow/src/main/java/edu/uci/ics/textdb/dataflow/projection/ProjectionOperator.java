@@ -47,6 +47,11 @@ public class ProjectionOperator extends AbstractSingleInputOperator {
         return processOneInputTuple(inputTuple);
     }
 
+    @Override
+    protected void computeNextMatchingBatch(int maxTuples, List<ITuple> batch) throws TextDBException {
+        processInputBatches(maxTuples, batch);
+    }
+
     @Override
     public ITuple processOneInputTuple(ITuple inputTuple) throws TextDBException {
         IField[] outputFields =
@@ -61,6 +66,11 @@ public class ProjectionOperator extends AbstractSingleInputOperator {
     @Override
     protected void cleanUp() throws DataFlowException {        
     }
+    
+    @Override
+    protected boolean isOneToOne() {
+        return true;
+    }
 
     public ProjectionPredicate getPredicate() {
         return predicate;
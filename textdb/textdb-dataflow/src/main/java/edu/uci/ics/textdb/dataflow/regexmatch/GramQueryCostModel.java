@@ -0,0 +1,158 @@
+package edu.uci.ics.textdb.dataflow.regexmatch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+
+import edu.uci.ics.textdb.common.exception.StorageException;
+import edu.uci.ics.textdb.storage.IndexStatistics;
+import edu.uci.ics.textdb.storage.RelationManager;
+
+/**
+ * GramQueryCostModel decides whether the gram query of a regex should be used to find the candidate documents,
+ *   or the table should be scanned, both of them are followed by the verification of RegexMatcher.
+ *
+ * The number of documents matching the query is estimated by the document frequencies of its terms,
+ *   assuming the terms are independent:
+ *   a term matches df(term) documents,
+ *   a conjunction matches N * (s1 * s2 * ...) documents, where si is the selectivity (fraction) of a clause,
+ *   a disjunction matches N * (1 - (1 - s1) * (1 - s2) * ...) documents.
+ *
+ * The costs are in the unit of reading one document in a scan:
+ *   a scan costs N,
+ *   the index costs POSTING_COST for each entry of the posting lists of the terms,
+ *   and INDEX_DOCUMENT_COST for each matching document, which is read in random order.
+ * Every candidate document is then verified by RegexMatcher, which costs VERIFICATION_COST,
+ *   so a scan pays it for N documents, and the index only for the matching documents.
+ * If a gram query is weak, e.g. a single common gram, nearly every document matches,
+ *   so the index is more expensive than a scan.
+ *
+ */
+class GramQueryCostModel {
+
+    static final double POSTING_COST = 0.05;
+    static final double INDEX_DOCUMENT_COST = 1.5;
+    static final double VERIFICATION_COST = 1.0;
+
+    private final int numberOfDocuments;
+    private final double estimatedMatchingDocuments;
+    private final double indexCost;
+
+    /**
+     * Estimates the costs of the query on the table.
+     *
+     * @param tableName
+     * @param query
+     * @throws StorageException
+     */
+    GramQueryCostModel(String tableName, Query query) throws StorageException {
+        List<Term> terms = new ArrayList<>();
+        collectTerms(query, terms);
+        IndexStatistics indexStatistics = RelationManager.getRelationManager().getTableIndexStatistics(tableName, terms);
+
+        this.numberOfDocuments = indexStatistics.getNumberOfDocuments();
+        this.estimatedMatchingDocuments = numberOfDocuments * estimateSelectivity(query, indexStatistics);
+        long postings = 0;
+        for (Term term : terms) {
+            postings += indexStatistics.getDocumentFrequency(term);
+        }
+        this.indexCost = postings * POSTING_COST 
+                + estimatedMatchingDocuments * (INDEX_DOCUMENT_COST + VERIFICATION_COST);
+    }
+
+    int getNumberOfDocuments() {
+        return numberOfDocuments;
+    }
+
+    double getEstimatedMatchingDocuments() {
+        return estimatedMatchingDocuments;
+    }
+
+    /**
+     * Returns the estimated fraction of the documents that match the query, 1 if the table is empty.
+     */
+    double getEstimatedSelectivity() {
+        return numberOfDocuments == 0 ? 1.0 : estimatedMatchingDocuments / numberOfDocuments;
+    }
+
+    double getIndexCost() {
+        return indexCost;
+    }
+
+    double getScanCost() {
+        return numberOfDocuments * (1.0 + VERIFICATION_COST);
+    }
+
+    boolean isIndexCheaper() {
+        return indexCost < getScanCost();
+    }
+
+    /*
+     * Collects the terms whose document frequencies are needed.
+     */
+    private static void collectTerms(Query query, List<Term> terms) {
+        if (query instanceof TermQuery) {
+            terms.add(((TermQuery) query).getTerm());
+        } else if (query instanceof PhraseQuery) {
+            terms.addAll(Arrays.asList(((PhraseQuery) query).getTerms()));
+        } else if (query instanceof BooleanQuery) {
+            for (BooleanClause clause : ((BooleanQuery) query).clauses()) {
+                if (clause.getOccur() != BooleanClause.Occur.MUST_NOT) {
+                    collectTerms(clause.getQuery(), terms);
+                }
+            }
+        }
+    }
+
+    /*
+     * Estimates the fraction of the documents that match the query.
+     * The queries that are not supported are assumed to match every document.
+     */
+    private static double estimateSelectivity(Query query, IndexStatistics indexStatistics) {
+        int numberOfDocuments = indexStatistics.getNumberOfDocuments();
+        if (numberOfDocuments == 0 || query instanceof MatchAllDocsQuery) {
+            return 1.0;
+        }
+        if (query instanceof TermQuery) {
+            return (double) indexStatistics.getDocumentFrequency(((TermQuery) query).getTerm()) / numberOfDocuments;
+        }
+        if (query instanceof PhraseQuery) {
+            // a phrase matches at most the documents that contain all its terms
+            double selectivity = 1.0;
+            for (Term term : ((PhraseQuery) query).getTerms()) {
+                selectivity *= (double) indexStatistics.getDocumentFrequency(term) / numberOfDocuments;
+            }
+            return selectivity;
+        }
+        if (query instanceof BooleanQuery) {
+            double requiredSelectivity = 1.0;
+            double optionalNonSelectivity = 1.0;
+            boolean hasRequiredClause = false;
+            boolean hasOptionalClause = false;
+            for (BooleanClause clause : ((BooleanQuery) query).clauses()) {
+                if (clause.isRequired()) {
+                    requiredSelectivity *= estimateSelectivity(clause.getQuery(), indexStatistics);
+                    hasRequiredClause = true;
+                } else if (clause.getOccur() == BooleanClause.Occur.SHOULD) {
+                    optionalNonSelectivity *= 1.0 - estimateSelectivity(clause.getQuery(), indexStatistics);
+                    hasOptionalClause = true;
+                }
+            }
+            // the optional clauses don't filter the documents if there's a required clause
+            if (hasRequiredClause || ! hasOptionalClause) {
+                return requiredSelectivity;
+            }
+            return 1.0 - optionalNonSelectivity;
+        }
+        return 1.0;
+    }
+
+}
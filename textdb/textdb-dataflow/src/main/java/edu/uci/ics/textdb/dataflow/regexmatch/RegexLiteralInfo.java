@@ -0,0 +1,269 @@
+package edu.uci.ics.textdb.dataflow.regexmatch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.re2j.PublicParser;
+import com.google.re2j.PublicRE2;
+import com.google.re2j.PublicRegexp;
+import com.google.re2j.PublicRegexp.PublicOp;
+
+/**
+ * RegexLiteralInfo describes the literals that every match of a regex contains,
+ *   and the maximum length of a match, by the parse tree of RE2J.
+ *
+ * The required literals are used in two ways:
+ *   the consecutive grams of a literal must be adjacent in the n-gram index, which is stronger than
+ *   the presence of the grams checked by the gram query (see RegexMatcherSourceOperator),
+ *   and a match of a regex with a bounded length is near an occurrence of a required literal,
+ *   so RegexMatcher only runs the regex in the windows around the occurrences (see getCandidateWindows()).
+ *
+ * For example, every match of "follow(-| )?up" contains "follow" and "up", and is at most 10 characters long,
+ *   a match that contains "follow" at offset p is within [p + 6 - 10, p + 10).
+ *
+ * The info is immutable, it can be shared by multiple threads.
+ *
+ */
+class RegexLiteralInfo {
+
+    static final int UNBOUNDED = -1;
+
+    private final List<String> requiredLiterals;
+    private final int maxMatchLength;
+    private final boolean hasEmptyWidthAssertion;
+
+    // the literal whose occurrences are the centers of the candidate windows, null if there's none
+    private final String windowLiteral;
+    private final boolean isWindowLiteralCaseInsensitive;
+
+    private RegexLiteralInfo(List<String> requiredLiterals, int maxMatchLength, boolean hasEmptyWidthAssertion,
+            String windowLiteral, boolean isWindowLiteralCaseInsensitive) {
+        this.requiredLiterals = Collections.unmodifiableList(requiredLiterals);
+        this.maxMatchLength = maxMatchLength;
+        this.hasEmptyWidthAssertion = hasEmptyWidthAssertion;
+        this.windowLiteral = windowLiteral;
+        this.isWindowLiteralCaseInsensitive = isWindowLiteralCaseInsensitive;
+    }
+
+    /**
+     * Analyzes the regex.
+     * Nothing is known about a regex that RE2J can't parse (e.g. a regex with a backreference):
+     *   it has no required literals and its matches are unbounded.
+     *
+     * @param regex
+     * @param isCaseInsensitive
+     * @return
+     */
+    static RegexLiteralInfo analyze(String regex, boolean isCaseInsensitive) {
+        PublicRegexp re;
+        try {
+            re = PublicParser.parse(regex, isCaseInsensitive ? PublicRE2.PERL | PublicRE2.FOLD_CASE : PublicRE2.PERL);
+        } catch (com.google.re2j.PatternSyntaxException e) {
+            return new RegexLiteralInfo(new ArrayList<>(), UNBOUNDED, false, null, false);
+        }
+
+        List<PublicRegexp> literalNodes = new ArrayList<>();
+        collectRequiredLiterals(re, literalNodes);
+
+        List<String> requiredLiterals = new ArrayList<>();
+        String windowLiteral = null;
+        boolean isWindowLiteralCaseInsensitive = false;
+        for (PublicRegexp literalNode : literalNodes) {
+            String literal = new String(literalNode.getRunes(), 0, literalNode.getRunes().length);
+            requiredLiterals.add(literal);
+            // only the letters and digits are searched in the text,
+            //   other characters may be escapes that Java Regex and RE2J interpret differently
+            for (String segment : literal.split("[^\\p{L}\\p{N}]+")) {
+                if (windowLiteral == null || segment.length() > windowLiteral.length()) {
+                    windowLiteral = segment;
+                    isWindowLiteralCaseInsensitive = (literalNode.getFlags() & PublicRE2.FOLD_CASE) != 0;
+                }
+            }
+        }
+        if (windowLiteral != null && windowLiteral.isEmpty()) {
+            windowLiteral = null;
+        }
+
+        long maxMatchLength = computeMaxMatchLength(re);
+        return new RegexLiteralInfo(requiredLiterals, (int) maxMatchLength, hasEmptyWidthAssertion(re),
+                windowLiteral, isWindowLiteralCaseInsensitive);
+    }
+
+    /**
+     * Returns the literals that every match contains.
+     */
+    List<String> getRequiredLiterals() {
+        return requiredLiterals;
+    }
+
+    /**
+     * Returns the maximum number of (UTF-16) characters of a match, UNBOUNDED if there's no limit.
+     */
+    int getMaxMatchLength() {
+        return maxMatchLength;
+    }
+
+    /**
+     * Returns true if the regex can be matched in the candidate windows:
+     *   its matches are bounded and contain a required literal,
+     *   and it doesn't have any empty-width assertion (e.g. "^", "\b"), which could match at the border of a window.
+     */
+    boolean hasCandidateWindows() {
+        return windowLiteral != null && maxMatchLength != UNBOUNDED && ! hasEmptyWidthAssertion;
+    }
+
+    /**
+     * Returns the windows of the text that contain all the matches of the regex, as {start, end} pairs,
+     *   sorted and disjoint.
+     * Every match is in one of the windows, and the regex finds the same matches in a window as in the whole text.
+     * Only valid if hasCandidateWindows() is true.
+     *
+     * @param text
+     * @return
+     */
+    List<int[]> getCandidateWindows(String text) {
+        List<int[]> windows = new ArrayList<>();
+        int literalLength = windowLiteral.length();
+        for (int offset = indexOfWindowLiteral(text, 0); offset != -1;
+                offset = indexOfWindowLiteral(text, offset + 1)) {
+            int start = Math.max(0, offset + literalLength - maxMatchLength);
+            int end = (int) Math.min(text.length(), (long) offset + maxMatchLength);
+            int[] lastWindow = windows.isEmpty() ? null : windows.get(windows.size() - 1);
+            if (lastWindow != null && start <= lastWindow[1]) {
+                lastWindow[1] = Math.max(lastWindow[1], end);
+            } else {
+                windows.add(new int[] { start, end });
+            }
+        }
+        return windows;
+    }
+
+    private int indexOfWindowLiteral(String text, int fromIndex) {
+        if (! isWindowLiteralCaseInsensitive) {
+            return text.indexOf(windowLiteral, fromIndex);
+        }
+        for (int i = fromIndex; i + windowLiteral.length() <= text.length(); i++) {
+            if (text.regionMatches(true, i, windowLiteral, 0, windowLiteral.length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Collects the literal nodes that every match contains.
+     * Only the repetitions that happen at least once are followed, and none of the alternatives.
+     */
+    private static void collectRequiredLiterals(PublicRegexp re, List<PublicRegexp> literalNodes) {
+        switch (re.getOp()) {
+        case LITERAL:
+            literalNodes.add(re);
+            break;
+        case CAPTURE:
+        case PLUS:
+            collectRequiredLiterals(re.getSubs()[0], literalNodes);
+            break;
+        case REPEAT:
+            if (re.getMin() >= 1) {
+                collectRequiredLiterals(re.getSubs()[0], literalNodes);
+            }
+            break;
+        case CONCAT:
+            for (PublicRegexp sub : re.getSubs()) {
+                collectRequiredLiterals(sub, literalNodes);
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    /*
+     * Computes the maximum number of characters of a match, a code point is at most 2 characters.
+     */
+    private static long computeMaxMatchLength(PublicRegexp re) {
+        switch (re.getOp()) {
+        case LITERAL: {
+            // a case-folded rune may match a rune of a different length
+            boolean isCaseInsensitive = (re.getFlags() & PublicRE2.FOLD_CASE) != 0;
+            long length = 0;
+            for (int rune : re.getRunes()) {
+                length += isCaseInsensitive ? 2 : Character.charCount(rune);
+            }
+            return bound(length);
+        }
+        case CHAR_CLASS:
+        case ANY_CHAR:
+        case ANY_CHAR_NOT_NL:
+            return 2;
+        case CAPTURE:
+        case QUEST:
+            return computeMaxMatchLength(re.getSubs()[0]);
+        case STAR:
+        case PLUS: {
+            long subLength = computeMaxMatchLength(re.getSubs()[0]);
+            return subLength == 0 ? 0 : UNBOUNDED;
+        }
+        case REPEAT: {
+            long subLength = computeMaxMatchLength(re.getSubs()[0]);
+            if (subLength == 0) {
+                return 0;
+            }
+            if (subLength == UNBOUNDED || re.getMax() == -1) {
+                return UNBOUNDED;
+            }
+            return bound(subLength * re.getMax());
+        }
+        case CONCAT: {
+            long length = 0;
+            for (PublicRegexp sub : re.getSubs()) {
+                long subLength = computeMaxMatchLength(sub);
+                if (subLength == UNBOUNDED) {
+                    return UNBOUNDED;
+                }
+                length = bound(length + subLength);
+                if (length == UNBOUNDED) {
+                    return UNBOUNDED;
+                }
+            }
+            return length;
+        }
+        case ALTERNATE: {
+            long length = 0;
+            for (PublicRegexp sub : re.getSubs()) {
+                long subLength = computeMaxMatchLength(sub);
+                if (subLength == UNBOUNDED) {
+                    return UNBOUNDED;
+                }
+                length = Math.max(length, subLength);
+            }
+            return length;
+        }
+        default:
+            // the empty matches and the assertions
+            return 0;
+        }
+    }
+
+    private static long bound(long length) {
+        return length > Integer.MAX_VALUE ? UNBOUNDED : length;
+    }
+
+    private static boolean hasEmptyWidthAssertion(PublicRegexp re) {
+        PublicOp op = re.getOp();
+        if (op == PublicOp.BEGIN_LINE || op == PublicOp.END_LINE || op == PublicOp.BEGIN_TEXT
+                || op == PublicOp.END_TEXT || op == PublicOp.WORD_BOUNDARY || op == PublicOp.NO_WORD_BOUNDARY) {
+            return true;
+        }
+        if (re.getSubs() != null) {
+            for (PublicRegexp sub : re.getSubs()) {
+                if (hasEmptyWidthAssertion(sub)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+}
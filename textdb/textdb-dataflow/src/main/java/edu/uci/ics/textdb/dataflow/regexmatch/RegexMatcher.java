@@ -3,6 +3,11 @@ package edu.uci.ics.textdb.dataflow.regexmatch;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.google.re2j.PublicParser;
+import com.google.re2j.PublicRE2;
+import com.google.re2j.PublicRegexp;
+import com.google.re2j.PublicRegexp.PublicOp;
+
 import edu.uci.ics.textdb.api.common.FieldType;
 import edu.uci.ics.textdb.api.common.ITuple;
 import edu.uci.ics.textdb.api.common.Schema;
@@ -12,11 +17,27 @@ import edu.uci.ics.textdb.api.exception.TextDBException;
 import edu.uci.ics.textdb.common.field.Span;
 import edu.uci.ics.textdb.common.utils.Utils;
 import edu.uci.ics.textdb.dataflow.common.AbstractSingleInputOperator;
+import edu.uci.ics.textdb.dataflow.common.CompiledQueryCache;
 import edu.uci.ics.textdb.dataflow.common.RegexPredicate;
 
 /**
  * Created by chenli on 3/25/16.
  * 
+ * RegexMatcher selects its regex engine by the parse tree of the regex (see selectRegexEngine()):
+ *   a regex with repetitions is matched by RE2J, which runs in linear time and can't be slowed down
+ *   by catastrophic backtracking, e.g. "(a+)+b".
+ *   Java Regex is used for the regexes without repetitions, which are usually faster in Java,
+ *   and for the regexes that RE2J doesn't support (backreferences, lookarounds).
+ *   A regex without repetitions can still backtrack exponentially, e.g. "(a|aa)(a|aa)...(a|aa)b",
+ *   the step limit below is the safeguard against it.
+ * 
+ * A match of Java Regex is aborted if it reads the text too many times (see setMatchStepsPerCharacter()),
+ *   then the regex is matched by RE2J if RE2J supports it, otherwise an exception is thrown.
+ * 
+ * If every match of the regex is bounded and contains a literal, e.g. "follow(-| )?up",
+ *   the regex only runs in the windows around the occurrences of the literal (see RegexLiteralInfo),
+ *   instead of the whole text of the field.
+ * 
  * @author Shuying Lai (laisycs)
  * @author Zuozhi Wang (zuozhiw)
  */
@@ -28,14 +49,22 @@ public class RegexMatcher extends AbstractSingleInputOperator {
 
     private boolean isCaseInsensitive = false;
 
-    // two available regex engines, RegexMatcher will try RE2J first
+    // the default limit of the characters read by Java Regex in one match, per character of the text
+    public static final int DEFAULT_MATCH_STEPS_PER_CHARACTER = 1000;
+
+    // two available regex engines
     private enum RegexEngine {
         JavaRegex, RE2J
     }
 
     private RegexEngine regexEngine;
+    // the engine set by setRegexEngineToJava() or setRegexEngineToRE2J(), null if it's selected by the regex
+    private RegexEngine preferredRegexEngine;
+    private long matchStepsPerCharacter = DEFAULT_MATCH_STEPS_PER_CHARACTER;
     private com.google.re2j.Pattern re2jPattern;
     private java.util.regex.Pattern javaPattern;
+    // the info of the candidate windows, null if the regex runs on the whole text
+    private RegexLiteralInfo windowInfo;
     
     private Schema inputSchema;
 
@@ -55,32 +84,71 @@ public class RegexMatcher extends AbstractSingleInputOperator {
             outputSchema = Utils.createSpanSchema(inputSchema);
         }
         
-        // try Java Regex first
+        // the selection and the compiled patterns are shared by all the matchers of the same regex
+        if (preferredRegexEngine != null) {
+            this.regexEngine = preferredRegexEngine;
+        } else {
+            this.regexEngine = CompiledQueryCache.get(
+                    CompiledQueryCache.getKey("regexEngine", regex, isCaseInsensitive),
+                    () -> selectRegexEngine(regex, isCaseInsensitive));
+        }
+
+        RegexLiteralInfo literalInfo = CompiledQueryCache.get(
+                CompiledQueryCache.getKey("regexLiterals", regex, isCaseInsensitive),
+                () -> RegexLiteralInfo.analyze(regex, isCaseInsensitive));
+        this.windowInfo = literalInfo.hasCandidateWindows() ? literalInfo : null;
+
         try {
-            if (isCaseInsensitive) {
-                this.javaPattern = java.util.regex.Pattern.compile(regex, java.util.regex.Pattern.CASE_INSENSITIVE);
-                this.regexEngine = RegexEngine.JavaRegex; 
+            if (regexEngine == RegexEngine.RE2J) {
+                this.re2jPattern = compileRe2jPattern();
             } else {
-                this.javaPattern = java.util.regex.Pattern.compile(regex);
-                this.regexEngine = RegexEngine.JavaRegex; 
+                this.javaPattern = compileJavaPattern();
             }
+        } catch (java.util.regex.PatternSyntaxException e) {
+            throw new DataFlowException(e.getMessage(), e);
+        } catch (com.google.re2j.PatternSyntaxException e) {
+            throw new DataFlowException(e.getMessage(), e);
+        }
+    }
 
-            // if Java Regex fails, try RE2J
-        } catch (java.util.regex.PatternSyntaxException javaException) {
-            try {
-                if (isCaseInsensitive) {
-                    this.re2jPattern = com.google.re2j.Pattern.compile(regexPredicate.getRegex(), com.google.re2j.Pattern.CASE_INSENSITIVE);
-                    this.regexEngine = RegexEngine.RE2J;
-                } else {
-                    this.re2jPattern = com.google.re2j.Pattern.compile(regexPredicate.getRegex());
-                    this.regexEngine = RegexEngine.RE2J;                    
-                }
+    /*
+     * Selects the engine of the regex by its parse tree:
+     *   Java Regex if RE2J can't parse it, it needs a feature of Java Regex,
+     *   Java Regex if it doesn't have any repetition (its backtracking is only bounded by the step limit
+     *     of StepLimitedCharSequence, e.g. for a chain of alternations),
+     *   RE2J otherwise.
+     */
+    private static RegexEngine selectRegexEngine(String regex, boolean isCaseInsensitive) throws DataFlowException {
+        PublicRegexp re;
+        try {
+            re = PublicParser.parse(regex, isCaseInsensitive ? PublicRE2.PERL | PublicRE2.FOLD_CASE : PublicRE2.PERL);
+        } catch (com.google.re2j.PatternSyntaxException e) {
+            return RegexEngine.JavaRegex;
+        }
+        return hasRepetition(re) ? RegexEngine.RE2J : RegexEngine.JavaRegex;
+    }
 
-                // if RE2J also fails, throw exception
-            } catch (com.google.re2j.PatternSyntaxException re2jException) {
-                throw new DataFlowException(javaException.getMessage(), javaException);
+    private static boolean hasRepetition(PublicRegexp re) {
+        PublicOp op = re.getOp();
+        if (op == PublicOp.STAR || op == PublicOp.PLUS || op == PublicOp.QUEST || op == PublicOp.REPEAT) {
+            return true;
+        }
+        if (re.getSubs() != null) {
+            for (PublicRegexp sub : re.getSubs()) {
+                if (hasRepetition(sub)) {
+                    return true;
+                }
             }
         }
+        return false;
+    }
+
+    private java.util.regex.Pattern compileJavaPattern() {
+        return CompiledQueryCache.getJavaPattern(regex, isCaseInsensitive ? java.util.regex.Pattern.CASE_INSENSITIVE : 0);
+    }
+
+    private com.google.re2j.Pattern compileRe2jPattern() {
+        return CompiledQueryCache.getRe2jPattern(regex, isCaseInsensitive ? com.google.re2j.Pattern.CASE_INSENSITIVE : 0);
     }
     
     @Override
@@ -89,9 +157,6 @@ public class RegexMatcher extends AbstractSingleInputOperator {
         ITuple resultTuple = null;
         
         while ((inputTuple = inputOperator.getNextTuple()) != null) {
-            if (!inputSchema.containsField(SchemaConstants.SPAN_LIST)) {
-                inputTuple = Utils.getSpanTuple(inputTuple.getFields(), new ArrayList<Span>(), outputSchema);
-            }            
             resultTuple = processOneInputTuple(inputTuple);
             if (resultTuple != null) {
                 break;
@@ -101,6 +166,11 @@ public class RegexMatcher extends AbstractSingleInputOperator {
         return resultTuple;
     }
 
+    @Override
+    protected void computeNextMatchingBatch(int maxTuples, List<ITuple> batch) throws TextDBException {
+        processInputBatches(maxTuples, batch);
+    }
+
     /**
      * This function returns a list of spans in the given tuple that match the
      * regex For example, given tuple ("george watson", "graduate student", 23,
@@ -122,6 +192,10 @@ public class RegexMatcher extends AbstractSingleInputOperator {
 
         List<Span> matchingResults = new ArrayList<>();
 
+        if (!inputSchema.containsField(SchemaConstants.SPAN_LIST)) {
+            inputTuple = Utils.getSpanTuple(inputTuple.getFields(), new ArrayList<Span>(), outputSchema);
+        }
+
         for (String fieldName : attributeNames) {
             FieldType fieldType = inputSchema.getAttribute(fieldName).getFieldType();
             String fieldValue = inputTuple.getField(fieldName).getValue().toString();
@@ -133,7 +207,12 @@ public class RegexMatcher extends AbstractSingleInputOperator {
 
             switch (regexEngine) {
             case JavaRegex:
-                matchingResults.addAll(javaRegexMatch(fieldValue, fieldName));
+                try {
+                    matchingResults.addAll(javaRegexMatch(fieldValue, fieldName));
+                } catch (MatchStepLimitException e) {
+                    switchToRE2J(e);
+                    matchingResults.addAll(re2jRegexMatch(fieldValue, fieldName));
+                }
                 break;
             case RE2J:
                 matchingResults.addAll(re2jRegexMatch(fieldValue, fieldName));
@@ -153,28 +232,68 @@ public class RegexMatcher extends AbstractSingleInputOperator {
 
     private List<Span> javaRegexMatch(String fieldValue, String fieldName) {
         List<Span> matchingResults = new ArrayList<>();
-        java.util.regex.Matcher javaMatcher = this.javaPattern.matcher(fieldValue);
-        while (javaMatcher.find()) {
-            int start = javaMatcher.start();
-            int end = javaMatcher.end();
-            matchingResults.add(
-                    new Span(fieldName, start, end, this.regexPredicate.getRegex(), fieldValue.substring(start, end)));
+        StepLimitedCharSequence text = new StepLimitedCharSequence(fieldValue);
+        long matchStepLimit = matchStepsPerCharacter * (fieldValue.length() + 1);
+        java.util.regex.Matcher javaMatcher = this.javaPattern.matcher(text);
+        for (int[] window : getCandidateWindows(fieldValue)) {
+            javaMatcher.region(window[0], window[1]);
+            while (true) {
+                // each match has its own step limit
+                text.resetSteps(matchStepLimit);
+                if (! javaMatcher.find()) {
+                    break;
+                }
+                int start = javaMatcher.start();
+                int end = javaMatcher.end();
+                matchingResults.add(new Span(fieldName, start, end, this.regexPredicate.getRegex(),
+                        fieldValue.substring(start, end)));
+            }
         }
         return matchingResults;
     }
 
+    /*
+     * Matches the rest of the tuples by RE2J after a match of Java Regex is aborted,
+     *   throws an exception if RE2J doesn't support the regex.
+     */
+    private void switchToRE2J(MatchStepLimitException stepLimitException) throws DataFlowException {
+        try {
+            this.re2jPattern = compileRe2jPattern();
+            this.regexEngine = RegexEngine.RE2J;
+        } catch (com.google.re2j.PatternSyntaxException e) {
+            throw new DataFlowException("regex " + regex + " is aborted after reading the text "
+                    + stepLimitException.getSteps() + " times", stepLimitException);
+        }
+    }
+
     private List<Span> re2jRegexMatch(String fieldValue, String fieldName) {
         List<Span> matchingResults = new ArrayList<>();
-        com.google.re2j.Matcher re2jMatcher = this.re2jPattern.matcher(fieldValue);
-        while (re2jMatcher.find()) {
-            int start = re2jMatcher.start();
-            int end = re2jMatcher.end();
-            matchingResults.add(
-                    new Span(fieldName, start, end, this.regexPredicate.getRegex(), fieldValue.substring(start, end)));
+        for (int[] window : getCandidateWindows(fieldValue)) {
+            // RE2J can't match in a region, it matches the text of the window
+            com.google.re2j.Matcher re2jMatcher = this.re2jPattern.matcher(
+                    fieldValue.subSequence(window[0], window[1]));
+            while (re2jMatcher.find()) {
+                int start = window[0] + re2jMatcher.start();
+                int end = window[0] + re2jMatcher.end();
+                matchingResults.add(new Span(fieldName, start, end, this.regexPredicate.getRegex(),
+                        fieldValue.substring(start, end)));
+            }
         }
         return matchingResults;
     }
 
+    /*
+     * Returns the windows of the text that the regex runs in, the whole text if the regex has no candidate windows.
+     */
+    private List<int[]> getCandidateWindows(String fieldValue) {
+        if (windowInfo == null) {
+            List<int[]> windows = new ArrayList<>();
+            windows.add(new int[] { 0, fieldValue.length() });
+            return windows;
+        }
+        return windowInfo.getCandidateWindows(fieldValue);
+    }
+
     /**
      * Use Java's built-in Regex Engine. <br>
      * RegexMatcher is set to use Java Regex Engine by default. <br>
@@ -182,10 +301,11 @@ public class RegexMatcher extends AbstractSingleInputOperator {
      * @throws java.util.regex.PatternSyntaxException
      */
     public void setRegexEngineToJava() throws java.util.regex.PatternSyntaxException {
+        this.preferredRegexEngine = RegexEngine.JavaRegex;
         if (this.regexEngine == RegexEngine.JavaRegex) {
             return;
         } else {
-            this.javaPattern = java.util.regex.Pattern.compile(this.regex);
+            this.javaPattern = compileJavaPattern();
             this.regexEngine = RegexEngine.JavaRegex;
         }
     }
@@ -198,11 +318,12 @@ public class RegexMatcher extends AbstractSingleInputOperator {
      * @throws java.util.regex.PatternSyntaxException
      */
     public void setRegexEngineToRE2J() throws java.util.regex.PatternSyntaxException {
+        this.preferredRegexEngine = RegexEngine.RE2J;
         if (this.regexEngine == RegexEngine.RE2J) {
             return;
         } else {
             try {
-                this.re2jPattern = com.google.re2j.Pattern.compile(this.regex);
+                this.re2jPattern = compileRe2jPattern();
                 this.regexEngine = RegexEngine.RE2J;
             } catch (com.google.re2j.PatternSyntaxException e) {
                 throw new java.util.regex.PatternSyntaxException(e.getDescription(), e.getPattern(), e.getIndex());
@@ -218,6 +339,20 @@ public class RegexMatcher extends AbstractSingleInputOperator {
         this.isCaseInsensitive = isCaseInsensitive;
     }
 
+    /**
+     * Sets the limit of the characters read by Java Regex in one match, per character of the text.
+     * A match that reads more than (matchStepsPerCharacter * (text length + 1)) characters is aborted.
+     * 
+     * @param matchStepsPerCharacter
+     */
+    public void setMatchStepsPerCharacter(long matchStepsPerCharacter) {
+        this.matchStepsPerCharacter = matchStepsPerCharacter;
+    }
+
+    public long getMatchStepsPerCharacter() {
+        return this.matchStepsPerCharacter;
+    }
+
     public String getRegexEngineString() {
         return this.regexEngine.toString();
     }
@@ -233,5 +368,64 @@ public class RegexMatcher extends AbstractSingleInputOperator {
     public RegexPredicate getPredicate() {
         return this.regexPredicate;
     }
+
+    /*
+     * The text of Java Regex, it counts the characters read by the engine,
+     *   and aborts the match when the count exceeds the limit.
+     */
+    private static class StepLimitedCharSequence implements CharSequence {
+
+        private final String text;
+        private long steps;
+        private long stepLimit;
+
+        StepLimitedCharSequence(String text) {
+            this.text = text;
+        }
+
+        void resetSteps(long stepLimit) {
+            this.steps = 0;
+            this.stepLimit = stepLimit;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (++steps > stepLimit) {
+                throw new MatchStepLimitException(steps);
+            }
+            return text.charAt(index);
+        }
+
+        @Override
+        public int length() {
+            return text.length();
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return text.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    private static class MatchStepLimitException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long steps;
+
+        MatchStepLimitException(long steps) {
+            super("the match is aborted after " + steps + " steps");
+            this.steps = steps;
+        }
+
+        long getSteps() {
+            return steps;
+        }
+    }
     
 }
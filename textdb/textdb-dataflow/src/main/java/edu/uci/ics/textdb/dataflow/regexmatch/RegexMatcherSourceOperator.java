@@ -1,21 +1,49 @@
 package edu.uci.ics.textdb.dataflow.regexmatch;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
 import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.PhraseQuery;
 import org.apache.lucene.search.Query;
 
 import edu.uci.ics.textdb.api.common.ITuple;
-import edu.uci.ics.textdb.api.dataflow.ISourceOperator;
 import edu.uci.ics.textdb.api.exception.TextDBException;
 import edu.uci.ics.textdb.common.constants.DataConstants;
 import edu.uci.ics.textdb.common.exception.DataFlowException;
 import edu.uci.ics.textdb.common.exception.StorageException;
 import edu.uci.ics.textdb.dataflow.common.AbstractSingleInputOperator;
+import edu.uci.ics.textdb.dataflow.common.CompiledQueryCache;
+import edu.uci.ics.textdb.dataflow.common.IMorselSource;
 import edu.uci.ics.textdb.dataflow.common.RegexPredicate;
 import edu.uci.ics.textdb.storage.DataReader;
+import edu.uci.ics.textdb.storage.IndexMorsels;
 import edu.uci.ics.textdb.storage.RelationManager;
 
-public class RegexMatcherSourceOperator extends AbstractSingleInputOperator implements ISourceOperator {
+/**
+ * RegexMatcherSourceOperator is a source operator with a regex query.
+ * 
+ * The candidate documents are found either by the gram query of the regex (see RegexToGramQueryTranslator),
+ *   or by a scan of the table, whichever is estimated to be cheaper (see GramQueryCostModel),
+ *   then they are verified by a RegexMatcher.
+ * The decision can be checked by isIndexUsed() and getEstimatedSelectivity().
+ * 
+ * The gram query only checks the presence of the grams, so the grams of each literal that every match contains
+ *   are also required to be adjacent, by a phrase query of the grams (see createLuceneQuery()).
+ * 
+ */
+public class RegexMatcherSourceOperator extends AbstractSingleInputOperator implements IMorselSource {
     
     private RegexPredicate predicate;
     private String tableName;
@@ -23,12 +51,27 @@ public class RegexMatcherSourceOperator extends AbstractSingleInputOperator impl
     private DataReader dataReader;
     private RegexMatcher regexMatcher;
     
+    private boolean isIndexUsed;
+    private double estimatedSelectivity;
+    
     public RegexMatcherSourceOperator(RegexPredicate predicate, String tableName) throws StorageException, DataFlowException {
         this.predicate = predicate;
         this.tableName = tableName;
         
+        Query gramQuery = createGramQuery(this.predicate);
+        if (gramQuery instanceof MatchAllDocsQuery) {
+            // the regex can't be translated, the table is scanned anyway
+            this.isIndexUsed = false;
+            this.estimatedSelectivity = 1.0;
+        } else {
+            // the phrases only filter the documents that have all their grams, they're not estimated
+            GramQueryCostModel costModel = new GramQueryCostModel(this.tableName, gramQuery);
+            this.isIndexUsed = costModel.isIndexCheaper();
+            this.estimatedSelectivity = costModel.getEstimatedSelectivity();
+        }
+        
         this.dataReader = RelationManager.getRelationManager().getTableDataReader(this.tableName, 
-                createLuceneQuery(this.predicate));
+                this.isIndexUsed ? createLuceneQuery(this.predicate) : new MatchAllDocsQuery());
         
         regexMatcher = new RegexMatcher(this.predicate);
         regexMatcher.setInputOperator(dataReader);
@@ -46,6 +89,11 @@ public class RegexMatcherSourceOperator extends AbstractSingleInputOperator impl
         return this.regexMatcher.getNextTuple();
     }
 
+    @Override
+    protected void computeNextMatchingBatch(int maxTuples, List<ITuple> batch) throws TextDBException {
+        batch.addAll(this.regexMatcher.getNextBatch(maxTuples));
+    }
+
     @Override
     public ITuple processOneInputTuple(ITuple inputTuple) throws TextDBException {
         return this.regexMatcher.processOneInputTuple(inputTuple);
@@ -55,7 +103,154 @@ public class RegexMatcherSourceOperator extends AbstractSingleInputOperator impl
     protected void cleanUp() throws TextDBException {
     }
     
+    /**
+     * Returns true if the candidate documents are found by the gram query,
+     *   false if the table is scanned.
+     */
+    public boolean isIndexUsed() {
+        return this.isIndexUsed;
+    }
+    
+    /**
+     * Returns the estimated fraction of the documents that match the gram query,
+     *   1 if the regex can't be translated to a gram query.
+     */
+    public double getEstimatedSelectivity() {
+        return this.estimatedSelectivity;
+    }
+    
+    public RegexPredicate getPredicate() {
+        return this.predicate;
+    }
+    
+    @Override
+    public String getTableName() {
+        return this.tableName;
+    }
+
+    @Override
+    public void setMorsels(IndexMorsels morsels) {
+        this.dataReader.setMorsels(morsels);
+    }
+
+    @Override
+    public void setParallelism(int parallelism) {
+        this.dataReader.setParallelism(parallelism);
+    }
+    
+    /**
+     * Creates the Lucene query of the regex on the attributes:
+     *   the gram query (see createGramQuery()), and for each literal of 2 or more grams that every match contains,
+     *   a phrase query of its grams on one of the attributes, e.g. "follow(-| )?up" requires the phrase
+     *   "fol oll llo low" besides the grams.
+     * The queries are cached (see CompiledQueryCache),
+     *   the same query is returned for the same regex, attributes and analyzer.
+     * 
+     * @param predicate
+     * @return
+     * @throws DataFlowException
+     */
     public static Query createLuceneQuery(RegexPredicate predicate) throws DataFlowException {
+        return CompiledQueryCache.get(
+                CompiledQueryCache.getKey("regexQuery", predicate.getRegex(), predicate.getAttributeNames(),
+                        CompiledQueryCache.getAnalyzerKey(predicate.getLuceneAnalyzer())),
+                () -> addPositionalQueries(createGramQuery(predicate), predicate));
+    }
+    
+    /**
+     * Creates the Lucene query of the regex's grams on the attributes.
+     * The translation of a complex regex is expensive, so the queries are cached (see CompiledQueryCache),
+     *   the same query is returned for the same regex, attributes and analyzer.
+     * 
+     * @param predicate
+     * @return
+     * @throws DataFlowException
+     */
+    public static Query createGramQuery(RegexPredicate predicate) throws DataFlowException {
+        return CompiledQueryCache.get(
+                CompiledQueryCache.getKey("regexGramQuery", predicate.getRegex(), predicate.getAttributeNames(),
+                        CompiledQueryCache.getAnalyzerKey(predicate.getLuceneAnalyzer())),
+                () -> translateLuceneQuery(predicate));
+    }
+    
+    /*
+     * Adds the phrase queries of the required literals to the gram query.
+     * A scan query stays a scan query, the regex can't be translated.
+     */
+    private static Query addPositionalQueries(Query gramQuery, RegexPredicate predicate) throws DataFlowException {
+        if (gramQuery instanceof MatchAllDocsQuery) {
+            return gramQuery;
+        }
+        
+        List<Query> positionalQueries = new ArrayList<>();
+        for (String literal : RegexLiteralInfo.analyze(predicate.getRegex(), false).getRequiredLiterals()) {
+            // the literal can be on any of the attributes, but all its grams must be on the same one
+            BooleanQuery.Builder attributesQuery = new BooleanQuery.Builder();
+            boolean isPhraseOnEveryAttribute = true;
+            for (String attributeName : predicate.getAttributeNames()) {
+                PhraseQuery phraseQuery = createGramPhraseQuery(predicate.getLuceneAnalyzer(), attributeName, literal);
+                if (phraseQuery == null) {
+                    isPhraseOnEveryAttribute = false;
+                    break;
+                }
+                attributesQuery.add(phraseQuery, BooleanClause.Occur.SHOULD);
+            }
+            if (isPhraseOnEveryAttribute && ! predicate.getAttributeNames().isEmpty()) {
+                positionalQueries.add(attributesQuery.build());
+            }
+        }
+        if (positionalQueries.isEmpty()) {
+            return gramQuery;
+        }
+        
+        BooleanQuery.Builder luceneQuery = new BooleanQuery.Builder();
+        luceneQuery.add(gramQuery, BooleanClause.Occur.MUST);
+        for (Query positionalQuery : positionalQueries) {
+            luceneQuery.add(positionalQuery, BooleanClause.Occur.MUST);
+        }
+        return luceneQuery.build();
+    }
+    
+    /*
+     * Creates the phrase query of the grams of a literal,
+     *   returns null if the literal has less than 2 grams, or the analyzer isn't an n-gram analyzer:
+     *   the consecutive grams of a literal overlap, while e.g. the words of the standard analyzer don't.
+     */
+    private static PhraseQuery createGramPhraseQuery(Analyzer analyzer, String attributeName, String literal)
+            throws DataFlowException {
+        PhraseQuery.Builder phraseQuery = new PhraseQuery.Builder();
+        int numberOfGrams = 0;
+        boolean isGramSequence = true;
+        try (TokenStream tokenStream = analyzer.tokenStream(attributeName, literal)) {
+            CharTermAttribute termAttribute = tokenStream.addAttribute(CharTermAttribute.class);
+            OffsetAttribute offsetAttribute = tokenStream.addAttribute(OffsetAttribute.class);
+            PositionIncrementAttribute positionIncrementAttribute = 
+                    tokenStream.addAttribute(PositionIncrementAttribute.class);
+            
+            tokenStream.reset();
+            int position = -1;
+            int lastStartOffset = -1;
+            int lastEndOffset = -1;
+            while (tokenStream.incrementToken()) {
+                if (numberOfGrams > 0 && (offsetAttribute.startOffset() <= lastStartOffset 
+                        || offsetAttribute.startOffset() >= lastEndOffset)) {
+                    isGramSequence = false;
+                }
+                lastStartOffset = offsetAttribute.startOffset();
+                lastEndOffset = offsetAttribute.endOffset();
+                position += positionIncrementAttribute.getPositionIncrement();
+                phraseQuery.add(new Term(attributeName, termAttribute.toString()), position);
+                numberOfGrams++;
+            }
+            tokenStream.end();
+        } catch (IOException e) {
+            throw new DataFlowException(e.getMessage(), e);
+        }
+        
+        return isGramSequence && numberOfGrams >= 2 ? phraseQuery.build() : null;
+    }
+    
+    private static Query translateLuceneQuery(RegexPredicate predicate) throws DataFlowException {
         Query luceneQuery;
         String queryString;
         
@@ -1,7 +1,10 @@
 package edu.uci.ics.textdb.dataflow.sink;
 
+import java.util.List;
+
 import edu.uci.ics.textdb.api.common.ITuple;
 import edu.uci.ics.textdb.api.common.Schema;
+import edu.uci.ics.textdb.api.dataflow.CancellationToken;
 import edu.uci.ics.textdb.api.dataflow.IOperator;
 import edu.uci.ics.textdb.api.dataflow.ISink;
 import edu.uci.ics.textdb.api.exception.TextDBException;
@@ -18,12 +21,23 @@ public abstract class AbstractSink implements ISink {
 
     private IOperator inputOperator;
 
+    private CancellationToken cancellationToken = CancellationToken.NONE;
+
     /**
      * @about Opens the child operator.
      */
     @Override
     public void open() throws TextDBException {
-        inputOperator.open();
+        inputOperator.open(cancellationToken);
+    }
+
+    /**
+     * @about Opens the child operator with the token, the plan stops once the query is cancelled.
+     */
+    @Override
+    public void open(CancellationToken cancellationToken) throws TextDBException {
+        this.cancellationToken = cancellationToken;
+        open();
     }
 
     public void setInputOperator(IOperator inputOperator) {
@@ -34,12 +48,17 @@ public abstract class AbstractSink implements ISink {
         return this.inputOperator;
     }
 
+    /**
+     * Processes all the tuples of the child operator, which are read in batches.
+     */
     @Override
     public void processTuples() throws TextDBException {
-        ITuple nextTuple;
+        List<ITuple> tupleBatch;
 
-        while ((nextTuple = inputOperator.getNextTuple()) != null) {
-            processOneTuple(nextTuple);
+        while (! (tupleBatch = inputOperator.getNextBatch(IOperator.DEFAULT_BATCH_SIZE)).isEmpty()) {
+            for (ITuple nextTuple : tupleBatch) {
+                processOneTuple(nextTuple);
+            }
         }
     }
 
@@ -53,6 +72,7 @@ public abstract class AbstractSink implements ISink {
     @Override
     public void close() throws TextDBException {
         inputOperator.close();
+        cancellationToken = CancellationToken.NONE;
     }
     
     public Schema getOutputSchema() {
@@ -5,6 +5,7 @@ import java.util.List;
 
 import edu.uci.ics.textdb.api.common.ITuple;
 import edu.uci.ics.textdb.api.common.Schema;
+import edu.uci.ics.textdb.api.dataflow.CancellationToken;
 import edu.uci.ics.textdb.api.dataflow.IOperator;
 import edu.uci.ics.textdb.api.dataflow.ISink;
 import edu.uci.ics.textdb.api.exception.TextDBException;
@@ -52,10 +53,18 @@ public class TupleStreamSink implements ISink {
 
     @Override
     public void open() throws TextDBException {
+        open(CancellationToken.NONE);
+    }
+
+    /**
+     * Opens the input operator with the token, the results stop once the query is cancelled.
+     */
+    @Override
+    public void open(CancellationToken cancellationToken) throws TextDBException {
         if (isOpen) {
             return;
         }     
-        inputOperator.open();
+        inputOperator.open(cancellationToken);
         inputSchema = inputOperator.getOutputSchema();
         outputSchema = Utils.removeAttributeFromSchema(inputSchema, SchemaConstants._ID, SchemaConstants.PAYLOAD);
         isOpen = true;
@@ -75,6 +84,15 @@ public class TupleStreamSink implements ISink {
         return Utils.removeFields(tuple, SchemaConstants._ID, SchemaConstants.PAYLOAD);
     }
 
+    @Override
+    public List<ITuple> getNextBatch(int maxTuples) throws TextDBException {
+        List<ITuple> tupleBatch = new ArrayList<>();
+        for (ITuple tuple : inputOperator.getNextBatch(maxTuples)) {
+            tupleBatch.add(Utils.removeFields(tuple, SchemaConstants._ID, SchemaConstants.PAYLOAD));
+        }
+        return tupleBatch;
+    }
+
     @Override
     public void close() throws TextDBException {
         if (! isOpen) {
@@ -91,9 +109,9 @@ public class TupleStreamSink implements ISink {
      */
     public List<ITuple> collectAllTuples() throws TextDBException {
         ArrayList<ITuple> results = new ArrayList<>();
-        ITuple tuple;
-        while ((tuple = inputOperator.getNextTuple()) != null) {
-            results.add(Utils.removeFields(tuple, SchemaConstants._ID, SchemaConstants.PAYLOAD));
+        List<ITuple> tupleBatch;
+        while (! (tupleBatch = getNextBatch(IOperator.DEFAULT_BATCH_SIZE)).isEmpty()) {
+            results.addAll(tupleBatch);
         }
         return results;
     }
@@ -4,24 +4,29 @@ import org.apache.lucene.search.Query;
 
 import edu.uci.ics.textdb.api.common.ITuple;
 import edu.uci.ics.textdb.api.common.Schema;
-import edu.uci.ics.textdb.api.dataflow.ISourceOperator;
-import edu.uci.ics.textdb.api.storage.IDataReader;
+import edu.uci.ics.textdb.api.dataflow.CancellationToken;
 import edu.uci.ics.textdb.common.exception.DataFlowException;
 import edu.uci.ics.textdb.common.exception.ErrorMessages;
 import edu.uci.ics.textdb.common.exception.StorageException;
 import edu.uci.ics.textdb.api.exception.TextDBException;
+import edu.uci.ics.textdb.dataflow.common.ILimitPushdown;
+import edu.uci.ics.textdb.dataflow.common.IMorselSource;
+import edu.uci.ics.textdb.storage.DataReader;
+import edu.uci.ics.textdb.storage.IndexMorsels;
 import edu.uci.ics.textdb.storage.RelationManager;
 
 /**
  * Created by chenli on 3/28/16.
  */
-public class IndexBasedSourceOperator implements ISourceOperator {
+public class IndexBasedSourceOperator implements IMorselSource, ILimitPushdown {
 
-    private IDataReader dataReader;
+    private String tableName;
+    private DataReader dataReader;
     
     private int cursor = CLOSED;
 
     public IndexBasedSourceOperator(String tableName, Query query) throws DataFlowException {
+        this.tableName = tableName;
         try {
             this.dataReader = RelationManager.getRelationManager().getTableDataReader(tableName, query);
         } catch (StorageException e) {
@@ -31,8 +36,16 @@ public class IndexBasedSourceOperator implements ISourceOperator {
 
     @Override
     public void open() throws TextDBException {
+        open(CancellationToken.NONE);
+    }
+
+    /**
+     * Opens the data reader with the token, it stops reading once the query is cancelled.
+     */
+    @Override
+    public void open(CancellationToken cancellationToken) throws TextDBException {
         try {
-            dataReader.open();
+            dataReader.open(cancellationToken);
             cursor = OPENED;
         } catch (TextDBException e) {
             throw new DataFlowException(e.getMessage(), e);
@@ -66,5 +79,27 @@ public class IndexBasedSourceOperator implements ISourceOperator {
     public Schema getOutputSchema() {
         return dataReader.getOutputSchema();
     }
+    
+    @Override
+    public void pushDownLimit(int maxNumberOfTuples) {
+        if (maxNumberOfTuples < dataReader.getLimit()) {
+            dataReader.setLimit(maxNumberOfTuples);
+        }
+    }
+
+    @Override
+    public String getTableName() {
+        return this.tableName;
+    }
+
+    @Override
+    public void setMorsels(IndexMorsels morsels) {
+        this.dataReader.setMorsels(morsels);
+    }
+
+    @Override
+    public void setParallelism(int parallelism) {
+        this.dataReader.setParallelism(parallelism);
+    }
 
 }
@@ -1,28 +1,35 @@
 package edu.uci.ics.textdb.dataflow.source;
 
+import java.util.List;
+
 import edu.uci.ics.textdb.api.exception.TextDBException;
 
 import org.apache.lucene.search.MatchAllDocsQuery;
 
 import edu.uci.ics.textdb.api.common.ITuple;
 import edu.uci.ics.textdb.api.common.Schema;
-import edu.uci.ics.textdb.api.dataflow.ISourceOperator;
+import edu.uci.ics.textdb.api.dataflow.CancellationToken;
 import edu.uci.ics.textdb.common.exception.DataFlowException;
 import edu.uci.ics.textdb.common.exception.ErrorMessages;
 import edu.uci.ics.textdb.common.exception.StorageException;
+import edu.uci.ics.textdb.dataflow.common.ILimitPushdown;
+import edu.uci.ics.textdb.dataflow.common.IMorselSource;
 import edu.uci.ics.textdb.storage.DataReader;
+import edu.uci.ics.textdb.storage.IndexMorsels;
 import edu.uci.ics.textdb.storage.RelationManager;
 
 /**
  * Created by chenli on 3/28/16.
  */
-public class ScanBasedSourceOperator implements ISourceOperator {
+public class ScanBasedSourceOperator implements IMorselSource, ILimitPushdown {
 
+    private String tableName;
     private DataReader dataReader;
     
     private boolean isOpen = false;
 
     public ScanBasedSourceOperator(String tableName) throws DataFlowException {
+        this.tableName = tableName;
         try {
             this.dataReader = RelationManager.getRelationManager().getTableDataReader(tableName, new MatchAllDocsQuery());
             // TODO add an option to set if payload is added in the future.
@@ -34,11 +41,19 @@ public class ScanBasedSourceOperator implements ISourceOperator {
 
     @Override
     public void open() throws TextDBException {
+        open(CancellationToken.NONE);
+    }
+
+    /**
+     * Opens the data reader with the token, it stops reading once the query is cancelled.
+     */
+    @Override
+    public void open(CancellationToken cancellationToken) throws TextDBException {
         if (isOpen) {
             return;
         }
         try {
-            dataReader.open();
+            dataReader.open(cancellationToken);
             isOpen = true;
         } catch (Exception e) {
             throw new DataFlowException(e.getMessage(), e);
@@ -58,6 +73,18 @@ public class ScanBasedSourceOperator implements ISourceOperator {
         }
     }
 
+    @Override
+    public List<ITuple> getNextBatch(int maxTuples) throws TextDBException {
+        if (! isOpen) {
+            throw new DataFlowException(ErrorMessages.OPERATOR_NOT_OPENED);
+        }
+        try {
+            return dataReader.getNextBatch(maxTuples);
+        } catch (Exception e) {
+            throw new DataFlowException(e.getMessage(), e);
+        }
+    }
+
     @Override
     public void close() throws TextDBException {
         if (! isOpen) {
@@ -75,4 +102,36 @@ public class ScanBasedSourceOperator implements ISourceOperator {
     public Schema getOutputSchema() {
         return dataReader.getOutputSchema();
     }
+    
+    @Override
+    public void pushDownLimit(int maxNumberOfTuples) {
+        if (maxNumberOfTuples < dataReader.getLimit()) {
+            dataReader.setLimit(maxNumberOfTuples);
+        }
+    }
+
+    /**
+     * Sets the number of index segments that are read concurrently (see DataReader.setParallelism),
+     *   the tuples are returned in no particular order if it's more than 1.
+     * 
+     * @param parallelism
+     */
+    @Override
+    public void setParallelism(int parallelism) {
+        dataReader.setParallelism(parallelism);
+    }
+
+    public int getParallelism() {
+        return dataReader.getParallelism();
+    }
+
+    @Override
+    public String getTableName() {
+        return this.tableName;
+    }
+
+    @Override
+    public void setMorsels(IndexMorsels morsels) {
+        this.dataReader.setMorsels(morsels);
+    }
 }
@@ -1,5 +1,6 @@
 package edu.uci.ics.textdb.engine;
 
+import edu.uci.ics.textdb.api.dataflow.CancellationToken;
 import edu.uci.ics.textdb.api.dataflow.ISink;
 import edu.uci.ics.textdb.api.plan.Plan;
 
@@ -10,6 +11,8 @@ public class Engine {
 
     private static volatile Engine singletonEngine = null;
 
+    private volatile EngineService engineService = null;
+
     private Engine() {
     }
 
@@ -31,5 +34,42 @@ public class Engine {
         root.close();
     }
 
+    /**
+     * Evaluates the plan, its operators stop once the query is cancelled by the token.
+     * The plan is closed even if it's cancelled.
+     *
+     * @param plan
+     * @param cancellationToken
+     * @throws Exception
+     */
+    public void evaluate(Plan plan, CancellationToken cancellationToken) throws Exception {
+        ISink root = plan.getRoot();
+        root.open(cancellationToken);
+        try {
+            root.processTuples();
+        } finally {
+            root.close();
+        }
+    }
+
+    /**
+     * Returns the service that runs the plans of concurrent queries on a shared pool of workers.
+     * It's created on the first call, with one worker per processor, and half of the heap as the memory capacity.
+     *
+     * @return
+     */
+    public EngineService getService() {
+        if (engineService == null) {
+            synchronized (this) {
+                if (engineService == null) {
+                    int workerThreads = Runtime.getRuntime().availableProcessors();
+                    engineService = new EngineService(workerThreads, Math.max(1, workerThreads / 2),
+                            EngineService.DEFAULT_QUEUE_CAPACITY, Runtime.getRuntime().maxMemory() / 2);
+                }
+            }
+        }
+        return engineService;
+    }
+
     ;
 }
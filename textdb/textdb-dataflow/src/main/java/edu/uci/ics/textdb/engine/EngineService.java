@@ -0,0 +1,276 @@
+package edu.uci.ics.textdb.engine;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import edu.uci.ics.textdb.api.dataflow.CancellationToken;
+import edu.uci.ics.textdb.api.plan.Plan;
+import edu.uci.ics.textdb.common.exception.DataFlowException;
+
+/**
+ * EngineService runs the submitted plans on a bounded pool of worker threads, so that many queries
+ *   can run on one server at the same time, and the caller gets a QueryHandle instead of waiting for the plan.
+ *
+ * A submitted query waits in the queue until it's admitted, a query is admitted if:
+ *   a worker is free,
+ *   it's light, or less than maxHeavyQueries heavy queries are running (see PlanCost),
+ *   its memory budget fits in the memory that's not reserved by the running queries.
+ * The queue is scanned in the order of submission, a query that can't be admitted doesn't block
+ *   the queries after it, so the light queries (e.g. keyword lookups) still run
+ *   while the heavy queries (e.g. NLP plans) wait for each other.
+ *
+ * The queue is bounded, submit() rejects a query if the queue is full.
+ * The memory budget is reserved when a query is admitted and released when it finishes.
+ *   It's divided among the memory-bounded operators of the plan (see PlanCost.applyMemoryBudget()),
+ *   which spill the tuples beyond their share to disk, the memory used by the other operators isn't tracked.
+ *
+ * Each query has a CancellationToken, which the task passes to the operators of the plan
+ *   (see Engine.evaluate(Plan, CancellationToken)). A queued query whose token is cancelled is never started.
+ *
+ */
+public class EngineService {
+
+    /**
+     * QueryTask runs a plan and returns the result of the query,
+     *   the plan should be opened with the token, so that the query can be cancelled while it's running.
+     */
+    @FunctionalInterface
+    public interface QueryTask<T> {
+        T execute(Plan plan, CancellationToken cancellationToken) throws Exception;
+    }
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+    public static final long DEFAULT_QUERY_MEMORY_BUDGET = 64L * 1024 * 1024;
+
+    private final int workerThreads;
+    private final int maxHeavyQueries;
+    private final int queueCapacity;
+    private final long memoryCapacity;
+
+    private final ExecutorService workerExecutor;
+
+    // the fields below are guarded by this
+    private final LinkedList<QueryHandle<?>> queryQueue = new LinkedList<>();
+    private int runningQueries = 0;
+    private int runningHeavyQueries = 0;
+    private long reservedMemory = 0;
+    private boolean isShutdown = false;
+
+    /**
+     * @param workerThreads, the maximum number of queries that run at the same time
+     * @param maxHeavyQueries, the maximum number of heavy queries that run at the same time
+     * @param queueCapacity, the maximum number of queries waiting in the queue
+     * @param memoryCapacity, the total memory budget of the running queries, in bytes
+     */
+    public EngineService(int workerThreads, int maxHeavyQueries, int queueCapacity, long memoryCapacity) {
+        if (workerThreads < 1 || maxHeavyQueries < 1 || queueCapacity < 0 || memoryCapacity < workerThreads) {
+            throw new IllegalArgumentException("invalid engine service configuration");
+        }
+        this.workerThreads = workerThreads;
+        this.maxHeavyQueries = maxHeavyQueries;
+        this.queueCapacity = queueCapacity;
+        this.memoryCapacity = memoryCapacity;
+        this.workerExecutor = Executors.newFixedThreadPool(workerThreads, runnable -> {
+            Thread thread = new Thread(runnable, "textdb-engine-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Submits a plan whose sink processes the results itself, see Engine.evaluate().
+     *
+     * @param plan
+     * @return
+     * @throws DataFlowException, if the query is rejected
+     */
+    public QueryHandle<Void> submit(Plan plan) throws DataFlowException {
+        return submit(plan, (queryPlan, cancellationToken) -> {
+            Engine.getEngine().evaluate(queryPlan, cancellationToken);
+            return null;
+        }, new CancellationToken());
+    }
+
+    /**
+     * Submits a plan with the default memory budget,
+     *   which is DEFAULT_QUERY_MEMORY_BUDGET, or the share of each worker of the memory capacity if it's smaller.
+     *
+     * @param plan
+     * @param queryTask, runs the plan on a worker and returns the result
+     * @return
+     * @throws DataFlowException, if the query is rejected
+     */
+    public <T> QueryHandle<T> submit(Plan plan, QueryTask<T> queryTask) throws DataFlowException {
+        return submit(plan, queryTask, new CancellationToken());
+    }
+
+    /**
+     * Submits a plan with the default memory budget, the query is cancelled by the token.
+     *
+     * @param plan
+     * @param queryTask, runs the plan on a worker and returns the result
+     * @param cancellationToken
+     * @return
+     * @throws DataFlowException, if the query is rejected
+     */
+    public <T> QueryHandle<T> submit(Plan plan, QueryTask<T> queryTask, CancellationToken cancellationToken)
+            throws DataFlowException {
+        return submit(plan, queryTask, Math.min(DEFAULT_QUERY_MEMORY_BUDGET, memoryCapacity / workerThreads),
+                cancellationToken);
+    }
+
+    /**
+     * Submits a plan, the query is queued until it's admitted.
+     *
+     * @param plan
+     * @param queryTask, runs the plan on a worker and returns the result
+     * @param memoryBudget, the memory reserved for the query while it's running, in bytes
+     * @return
+     * @throws DataFlowException, if the service is shut down, the queue is full,
+     *   or the memory budget is larger than the memory capacity
+     */
+    public <T> QueryHandle<T> submit(Plan plan, QueryTask<T> queryTask, long memoryBudget) throws DataFlowException {
+        return submit(plan, queryTask, memoryBudget, new CancellationToken());
+    }
+
+    /**
+     * Submits a plan, the query is queued until it's admitted, and it's cancelled by the token.
+     * The memory budget is applied to the hash joins and the broadcast connectors of the plan.
+     *
+     * @param plan
+     * @param queryTask, runs the plan on a worker and returns the result
+     * @param memoryBudget, the memory reserved for the query while it's running, in bytes
+     * @param cancellationToken
+     * @return
+     * @throws DataFlowException, if the service is shut down, the queue is full,
+     *   or the memory budget is larger than the memory capacity
+     */
+    public <T> QueryHandle<T> submit(Plan plan, QueryTask<T> queryTask, long memoryBudget,
+            CancellationToken cancellationToken) throws DataFlowException {
+        if (memoryBudget > memoryCapacity) {
+            throw new DataFlowException("the memory budget " + memoryBudget
+                    + " is larger than the memory capacity " + memoryCapacity);
+        }
+        PlanCost planCost = PlanCost.estimate(plan);
+        planCost.applyMemoryBudget(memoryBudget);
+        QueryHandle<T> queryHandle = new QueryHandle<>(this, plan, queryTask, planCost, memoryBudget,
+                cancellationToken);
+        synchronized (this) {
+            if (isShutdown) {
+                throw new DataFlowException("the engine service is shut down");
+            }
+            if (queryQueue.size() >= queueCapacity && ! canAdmit(queryHandle)) {
+                throw new DataFlowException("the query queue is full, " + queryQueue.size() + " queries are waiting");
+            }
+            queryQueue.add(queryHandle);
+            dispatch();
+        }
+        return queryHandle;
+    }
+
+    /*
+     * Starts the queued queries that can be admitted, in the order of submission.
+     */
+    private synchronized void dispatch() {
+        Iterator<QueryHandle<?>> queueIterator = queryQueue.iterator();
+        while (queueIterator.hasNext() && runningQueries < workerThreads) {
+            QueryHandle<?> queryHandle = queueIterator.next();
+            if (queryHandle.getCancellationToken().isCancelled()) {
+                queueIterator.remove();
+                queryHandle.setCancelled();
+                continue;
+            }
+            if (! canAdmit(queryHandle)) {
+                continue;
+            }
+            queueIterator.remove();
+            runningQueries++;
+            if (queryHandle.getPlanCost().isHeavy()) {
+                runningHeavyQueries++;
+            }
+            reservedMemory += queryHandle.getMemoryBudget();
+            queryHandle.setRunning();
+            workerExecutor.execute(() -> runQuery(queryHandle));
+        }
+    }
+
+    private boolean canAdmit(QueryHandle<?> queryHandle) {
+        if (runningQueries >= workerThreads) {
+            return false;
+        }
+        if (queryHandle.getPlanCost().isHeavy() && runningHeavyQueries >= maxHeavyQueries) {
+            return false;
+        }
+        return reservedMemory + queryHandle.getMemoryBudget() <= memoryCapacity;
+    }
+
+    private void runQuery(QueryHandle<?> queryHandle) {
+        try {
+            queryHandle.run();
+        } finally {
+            synchronized (this) {
+                runningQueries--;
+                if (queryHandle.getPlanCost().isHeavy()) {
+                    runningHeavyQueries--;
+                }
+                reservedMemory -= queryHandle.getMemoryBudget();
+                if (! isShutdown) {
+                    dispatch();
+                }
+            }
+        }
+    }
+
+    /*
+     * Removes a query from the queue, returns false if it's not in the queue anymore.
+     */
+    synchronized boolean removeQueuedQuery(QueryHandle<?> queryHandle) {
+        return queryQueue.remove(queryHandle);
+    }
+
+    /**
+     * Stops accepting queries, the queued queries are cancelled, the running queries run to the end.
+     */
+    public void shutdown() {
+        LinkedList<QueryHandle<?>> queuedQueries;
+        synchronized (this) {
+            isShutdown = true;
+            queuedQueries = new LinkedList<>(queryQueue);
+        }
+        for (QueryHandle<?> queryHandle : queuedQueries) {
+            queryHandle.cancel(false);
+        }
+        workerExecutor.shutdown();
+    }
+
+    public synchronized int getRunningQueries() {
+        return runningQueries;
+    }
+
+    public synchronized int getQueuedQueries() {
+        return queryQueue.size();
+    }
+
+    public synchronized long getReservedMemory() {
+        return reservedMemory;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public int getMaxHeavyQueries() {
+        return maxHeavyQueries;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public long getMemoryCapacity() {
+        return memoryCapacity;
+    }
+
+}
@@ -0,0 +1,150 @@
+package edu.uci.ics.textdb.engine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import edu.uci.ics.textdb.api.dataflow.IOperator;
+import edu.uci.ics.textdb.api.plan.Plan;
+import edu.uci.ics.textdb.dataflow.common.AbstractSingleInputOperator;
+import edu.uci.ics.textdb.dataflow.connector.ConcurrentOneToNBroadcastConnector;
+import edu.uci.ics.textdb.dataflow.connector.OneToNBroadcastConnector;
+import edu.uci.ics.textdb.dataflow.connector.ParallelGatherOperator;
+import edu.uci.ics.textdb.dataflow.connector.PrefetchOperator;
+import edu.uci.ics.textdb.dataflow.join.Join;
+import edu.uci.ics.textdb.dataflow.nlpextrator.NlpExtractor;
+import edu.uci.ics.textdb.dataflow.nlpextrator.NlpSourceOperator;
+import edu.uci.ics.textdb.dataflow.sink.AbstractSink;
+import edu.uci.ics.textdb.dataflow.sink.TupleStreamSink;
+
+/**
+ * PlanCost is the estimated cost of a plan, which EngineService uses to decide when a plan is admitted.
+ *
+ * The cost is the sum of the relative costs of processing one tuple by each operator of the plan.
+ *   The NLP operators run the Stanford NLP pipeline on every tuple, which is orders of magnitude slower
+ *   than matching keywords or regexes, so they cost NLP_OPERATOR_COST, and the other operators cost 1.
+ * A plan is heavy if its cost is at least HEAVY_COST_THRESHOLD, e.g. any plan with an NLP operator.
+ *
+ * PlanCost also keeps the memory-bounded operators of the plan (the hash joins and the broadcast connectors),
+ *   so that the memory budget of the query can be divided among them, see applyMemoryBudget().
+ *
+ */
+public class PlanCost {
+
+    public static final double OPERATOR_COST = 1.0;
+    public static final double NLP_OPERATOR_COST = 100.0;
+    public static final double HEAVY_COST_THRESHOLD = NLP_OPERATOR_COST;
+    
+    // the estimated size of a tuple in memory, including its payload, in bytes
+    public static final long ESTIMATED_TUPLE_SIZE = 4 * 1024;
+
+    private final double cost;
+    private final List<Object> memoryBoundedOperators;
+
+    public PlanCost(double cost) {
+        this(cost, new ArrayList<>());
+    }
+
+    private PlanCost(double cost, List<Object> memoryBoundedOperators) {
+        this.cost = cost;
+        this.memoryBoundedOperators = memoryBoundedOperators;
+    }
+
+    /**
+     * Estimates the cost of the plan by the operators reachable from its sink.
+     *
+     * @param plan
+     * @return
+     */
+    public static PlanCost estimate(Plan plan) {
+        Set<IOperator> visitedOperators = Collections.newSetFromMap(new IdentityHashMap<>());
+        double cost = estimateOperatorCost(plan.getRoot(), visitedOperators);
+
+        Set<Object> memoryBoundedOperators = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (IOperator operator : visitedOperators) {
+            if (operator instanceof Join) {
+                memoryBoundedOperators.add(operator);
+            } else if (operator instanceof OneToNBroadcastConnector.ConnectorOutputOperator) {
+                memoryBoundedOperators.add(
+                        ((OneToNBroadcastConnector.ConnectorOutputOperator) operator).getOwnerConnector());
+            }
+        }
+        return new PlanCost(cost, new ArrayList<>(memoryBoundedOperators));
+    }
+
+    /**
+     * Divides the memory budget of the query evenly among the memory-bounded operators of the plan,
+     *   each of them keeps at most its share / ESTIMATED_TUPLE_SIZE tuples in memory, and spills the rest to disk.
+     *
+     * @param memoryBudget, in bytes
+     */
+    public void applyMemoryBudget(long memoryBudget) {
+        if (memoryBoundedOperators.isEmpty()) {
+            return;
+        }
+        long tupleBudget = memoryBudget / ESTIMATED_TUPLE_SIZE / memoryBoundedOperators.size();
+        int operatorTupleBudget = (int) Math.max(1, Math.min(Integer.MAX_VALUE, tupleBudget));
+        for (Object operator : memoryBoundedOperators) {
+            if (operator instanceof Join) {
+                ((Join) operator).setHashJoinMemoryBudget(operatorTupleBudget);
+            } else {
+                ((OneToNBroadcastConnector) operator).setMemoryBudget(operatorTupleBudget);
+            }
+        }
+    }
+
+    public int getMemoryBoundedOperatorCount() {
+        return memoryBoundedOperators.size();
+    }
+
+    public double getCost() {
+        return cost;
+    }
+
+    public boolean isHeavy() {
+        return cost >= HEAVY_COST_THRESHOLD;
+    }
+
+    /*
+     * Adds up the costs of the operator and its inputs, an operator shared by several consumers is counted once.
+     */
+    private static double estimateOperatorCost(IOperator operator, Set<IOperator> visitedOperators) {
+        if (operator == null || ! visitedOperators.add(operator)) {
+            return 0;
+        }
+        double operatorCost = (operator instanceof NlpExtractor || operator instanceof NlpSourceOperator) ?
+                NLP_OPERATOR_COST : OPERATOR_COST;
+        for (IOperator inputOperator : getInputOperators(operator)) {
+            operatorCost += estimateOperatorCost(inputOperator, visitedOperators);
+        }
+        return operatorCost;
+    }
+
+    private static List<IOperator> getInputOperators(IOperator operator) {
+        List<IOperator> inputOperators = new ArrayList<>();
+        if (operator instanceof AbstractSingleInputOperator) {
+            inputOperators.add(((AbstractSingleInputOperator) operator).getInputOperator());
+        } else if (operator instanceof AbstractSink) {
+            inputOperators.add(((AbstractSink) operator).getInputOperator());
+        } else if (operator instanceof TupleStreamSink) {
+            inputOperators.add(((TupleStreamSink) operator).getInputOperator());
+        } else if (operator instanceof Join) {
+            inputOperators.add(((Join) operator).getInnerInputOperator());
+            inputOperators.add(((Join) operator).getOuterInputOperator());
+        } else if (operator instanceof ParallelGatherOperator) {
+            inputOperators.addAll(((ParallelGatherOperator) operator).getChainList());
+        } else if (operator instanceof OneToNBroadcastConnector.ConnectorOutputOperator) {
+            inputOperators.add(((OneToNBroadcastConnector.ConnectorOutputOperator) operator)
+                    .getOwnerConnector().getInputOperator());
+        } else if (operator instanceof ConcurrentOneToNBroadcastConnector.ConnectorOutputOperator) {
+            inputOperators.add(((ConcurrentOneToNBroadcastConnector.ConnectorOutputOperator) operator)
+                    .getOwnerConnector().getInputOperator());
+        } else if (operator instanceof PrefetchOperator) {
+            inputOperators.add(((PrefetchOperator) operator).getInputOperator());
+        }
+        return inputOperators;
+    }
+
+}
@@ -0,0 +1,166 @@
+package edu.uci.ics.textdb.engine;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.uci.ics.textdb.api.dataflow.CancellationToken;
+import edu.uci.ics.textdb.api.plan.Plan;
+
+/**
+ * QueryHandle is the handle of a query submitted to EngineService, it's the Future of the result of the query.
+ *
+ * A query that's still waiting in the queue is cancelled by removing it from the queue.
+ * A running query is cancelled by its CancellationToken, its operators stop the next time they check the token,
+ *   its worker and its memory budget are released then.
+ *
+ * @param <T> the type of the result
+ */
+public class QueryHandle<T> implements Future<T> {
+
+    public enum QueryState {
+        QUEUED, RUNNING, SUCCEEDED, FAILED, CANCELLED
+    }
+
+    private static final AtomicLong nextQueryID = new AtomicLong();
+
+    private final long queryID = nextQueryID.incrementAndGet();
+    private final EngineService engineService;
+    private final Plan plan;
+    private final EngineService.QueryTask<T> queryTask;
+    private final PlanCost planCost;
+    private final long memoryBudget;
+    private final CancellationToken cancellationToken;
+
+    // the state is changed while holding the lock of the handle
+    private volatile QueryState state = QueryState.QUEUED;
+    private T result;
+    private Throwable failure;
+    private final CountDownLatch completion = new CountDownLatch(1);
+
+    QueryHandle(EngineService engineService, Plan plan, EngineService.QueryTask<T> queryTask, PlanCost planCost,
+            long memoryBudget, CancellationToken cancellationToken) {
+        this.engineService = engineService;
+        this.plan = plan;
+        this.queryTask = queryTask;
+        this.planCost = planCost;
+        this.memoryBudget = memoryBudget;
+        this.cancellationToken = cancellationToken;
+    }
+
+    /*
+     * Runs the query on the caller's thread, called by a worker of EngineService.
+     * The result of a query that's cancelled while it's running is discarded.
+     * An Error thrown by the task (e.g. StackOverflowError) fails the query as well,
+     *   so that the callers waiting for the result are always released.
+     */
+    void run() {
+        T taskResult = null;
+        Throwable taskFailure = null;
+        try {
+            taskResult = queryTask.execute(plan, cancellationToken);
+        } catch (Throwable e) {
+            taskFailure = e;
+        } finally {
+            synchronized (this) {
+                if (state == QueryState.RUNNING) {
+                    result = taskResult;
+                    failure = taskFailure;
+                    state = taskFailure == null ? QueryState.SUCCEEDED : QueryState.FAILED;
+                }
+            }
+            completion.countDown();
+        }
+    }
+
+    synchronized void setRunning() {
+        state = QueryState.RUNNING;
+    }
+
+    /*
+     * Marks the query as cancelled, returns false if it's already finished.
+     */
+    synchronized boolean setCancelled() {
+        if (state != QueryState.QUEUED && state != QueryState.RUNNING) {
+            return false;
+        }
+        state = QueryState.CANCELLED;
+        completion.countDown();
+        return true;
+    }
+
+    /**
+     * Cancels the query if it's still waiting in the queue,
+     *   or cancels its token if it's running and mayInterruptIfRunning is true.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (engineService.removeQueuedQuery(this)) {
+            return setCancelled();
+        }
+        if (! mayInterruptIfRunning || ! setCancelled()) {
+            return false;
+        }
+        cancellationToken.cancel();
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return state == QueryState.CANCELLED;
+    }
+
+    @Override
+    public boolean isDone() {
+        return completion.getCount() == 0;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        completion.await();
+        return getResult();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (! completion.await(timeout, unit)) {
+            throw new TimeoutException("query " + queryID + " is not finished in " + timeout + " " + unit);
+        }
+        return getResult();
+    }
+
+    private T getResult() throws ExecutionException {
+        if (state == QueryState.CANCELLED) {
+            throw new CancellationException("query " + queryID + " is cancelled");
+        }
+        if (state == QueryState.FAILED) {
+            throw new ExecutionException(failure.getMessage(), failure);
+        }
+        return result;
+    }
+
+    public long getQueryID() {
+        return queryID;
+    }
+
+    public QueryState getState() {
+        return state;
+    }
+
+    public PlanCost getPlanCost() {
+        return planCost;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public CancellationToken getCancellationToken() {
+        return cancellationToken;
+    }
+
+}
@@ -2,16 +2,26 @@ package edu.uci.ics.textdb.plangen;
 
 import java.io.Serializable;
 import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 
 import edu.uci.ics.textdb.api.dataflow.IOperator;
 import edu.uci.ics.textdb.api.dataflow.ISink;
+import edu.uci.ics.textdb.api.exception.TextDBException;
 import edu.uci.ics.textdb.api.plan.Plan;
 import edu.uci.ics.textdb.common.exception.PlanGenException;
+import edu.uci.ics.textdb.dataflow.common.ILimitPushdown;
+import edu.uci.ics.textdb.dataflow.common.IMorselSource;
+import edu.uci.ics.textdb.dataflow.connector.ConcurrentOneToNBroadcastConnector;
 import edu.uci.ics.textdb.dataflow.connector.OneToNBroadcastConnector;
+import edu.uci.ics.textdb.dataflow.connector.ParallelGatherOperator;
+import edu.uci.ics.textdb.dataflow.connector.PrefetchOperator;
 import edu.uci.ics.textdb.dataflow.join.Join;
+import edu.uci.ics.textdb.plangen.operatorbuilder.OperatorBuilderUtils;
 
 /**
  * A graph of operators representing a query plan.
@@ -22,12 +32,23 @@ public class LogicalPlan implements Serializable {
     
     private static final long serialVersionUID = -4473743060478893198L;
     
+    // the types of the sources that hand out morsels (see IMorselSource), a parallel chain starts with one of them
+    private static final HashSet<String> MORSEL_SOURCE_TYPES = new HashSet<>(Arrays.asList(
+            "KeywordSource".toLowerCase()));
+    // the types of the operators that extend AbstractSingleInputOperator, the rest of a parallel chain
+    private static final HashSet<String> SINGLE_INPUT_OPERATOR_TYPES = new HashSet<>(Arrays.asList(
+            "KeywordMatcher".toLowerCase(), "RegexMatcher".toLowerCase(), "FuzzyTokenMatcher".toLowerCase(),
+            "NlpExtractor".toLowerCase(), "Projection".toLowerCase()));
+    
     // a map of an operator ID to the operator's type
     HashMap<String, String> operatorTypeMap;
     // a map of an operator ID to the operator's properties
     HashMap<String, Map<String, String>> operatorPropertyMap;
     // a map of an operator ID to operator's outputs (a set of operator IDs)
     HashMap<String, HashSet<String>> adjacencyList;
+    
+    // the number of copies of the operators before the sink that run in parallel, 1 means no parallelism
+    int parallelism = 1;
 
     
     public LogicalPlan() {
@@ -93,6 +114,27 @@ public class LogicalPlan implements Serializable {
         return adjacencyList.containsKey(operatorID);
     }
     
+    /**
+     * Sets the number of copies of the operators before the sink that run in parallel (see ParallelGatherOperator).
+     * It only applies to a plan that is a chain from a source to the sink, if the chain can be run in parallel,
+     *   otherwise the plan runs on a single thread.
+     * The results are returned in no particular order if it's more than 1, so a chain with an offset
+     *   runs on a single thread, and a limit returns any results of the chain instead of its first ones.
+     * If the plan can't be run in parallel copies, its sources search the segments of their tables concurrently instead
+     *   (see IMorselSource.setParallelism), and its branches run on their own threads: an operator with several outputs
+     *   is followed by a ConcurrentOneToNBroadcastConnector, and each input of a Join reads a PrefetchOperator.
+     * The web service sets it from the "parallelism" field of the query plan request.
+     * 
+     * @param parallelism
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+    
+    public int getParallelism() {
+        return parallelism;
+    }
+    
     /**
      * Builds and returns the query plan from the operator graph.
      * 
@@ -100,15 +142,127 @@ public class LogicalPlan implements Serializable {
      * @throws PlanGenException, if the operator graph is invalid.
      */
     public Plan buildQueryPlan() throws PlanGenException {
+        if (parallelism > 1) {
+            Plan parallelPlan = buildParallelQueryPlan();
+            if (parallelPlan != null) {
+                return parallelPlan;
+            }
+        }
+        
         HashMap<String, IOperator> operatorObjectMap = buildOperators();
         validateOperatorGraph();
-        connectOperators(operatorObjectMap);
         ISink sink = findSinkOperator(operatorObjectMap);
         
+        connectOperators(operatorObjectMap);
+        pushDownLimits(operatorObjectMap);
+        if (parallelism > 1) {
+            setSourceParallelism(operatorObjectMap);
+        }
+        
         Plan queryPlan = new Plan(sink);
         return queryPlan;
     }
     
+    /*
+     * Builds a plan that runs copies of the chain before the sink in parallel (see ParallelGatherOperator),
+     *   returns null if the operator graph is not a chain that can be run in parallel.
+     * Whether it can is decided by the operator types and properties, the operators are only built
+     *   for the copies of the chain.
+     */
+    private Plan buildParallelQueryPlan() throws PlanGenException {
+        validateOperatorGraph();
+        List<String> chain = findChainBeforeSink();
+        if (chain == null || ! isParallelizable(chain)) {
+            return null;
+        }
+        
+        String sinkID = adjacencyList.keySet().stream()
+                .filter(operator -> operatorTypeMap.get(operator).toLowerCase().contains("sink"))
+                .findFirst().get();
+        IOperator sink = PlanGenUtils.buildOperator(operatorTypeMap.get(sinkID), operatorPropertyMap.get(sinkID));
+        PlanGenUtils.planGenAssert(sink instanceof ISink, "Error: sink operator's type doesn't match.");
+        
+        ParallelGatherOperator gatherOperator;
+        try {
+            gatherOperator = new ParallelGatherOperator(parallelism, () -> buildChain(chain));
+        } catch (TextDBException e) {
+            throw new PlanGenException(e.getMessage(), e);
+        }
+        handleSetInputOperator(gatherOperator, sink);
+        gatherOperator.pushDownLimit(Integer.MAX_VALUE);
+        return new Plan((ISink) sink);
+    }
+    
+    /*
+     * Returns true if the chain can be run in parallel, the same conditions as ParallelGatherOperator.isParallelizable():
+     *   it starts with a morsel source, the other operators are single input operators,
+     *   only the last operator has a limit, and none of them has an offset.
+     */
+    private boolean isParallelizable(List<String> chain) throws PlanGenException {
+        for (int i = 0; i < chain.size(); i++) {
+            String operatorType = operatorTypeMap.get(chain.get(i)).toLowerCase();
+            Map<String, String> operatorProperties = operatorPropertyMap.get(chain.get(i));
+            if (! (i == 0 ? MORSEL_SOURCE_TYPES : SINGLE_INPUT_OPERATOR_TYPES).contains(operatorType)) {
+                return false;
+            }
+            // the results of the copies are in no particular order, an offset would skip different results every time
+            Integer offset = OperatorBuilderUtils.findOffset(operatorProperties);
+            if (offset != null && offset != 0) {
+                return false;
+            }
+            Integer limit = OperatorBuilderUtils.findLimit(operatorProperties);
+            if (i < chain.size() - 1 && limit != null && limit != Integer.MAX_VALUE) {
+                return false;
+            }
+        }
+        return ! chain.isEmpty();
+    }
+    
+    /*
+     * Finds the operators before the sink, from the source to the operator connected to the sink,
+     *   returns null if the operator graph is not a chain.
+     * 
+     * This function assumes that the operator graph is valid.
+     */
+    private List<String> findChainBeforeSink() {
+        HashMap<String, String> inputMap = new HashMap<>();
+        for (String vertexOrigin : adjacencyList.keySet()) {
+            if (adjacencyList.get(vertexOrigin).size() > 1) {
+                return null;
+            }
+            for (String vertexDestination : adjacencyList.get(vertexOrigin)) {
+                if (inputMap.put(vertexDestination, vertexOrigin) != null) {
+                    return null;
+                }
+            }
+        }
+        
+        String sinkID = adjacencyList.keySet().stream()
+                .filter(operator -> operatorTypeMap.get(operator).toLowerCase().contains("sink"))
+                .findFirst().get();
+        LinkedList<String> chain = new LinkedList<>();
+        for (String vertex = inputMap.get(sinkID); vertex != null; vertex = inputMap.get(vertex)) {
+            chain.addFirst(vertex);
+        }
+        return chain.size() + 1 == adjacencyList.size() ? chain : null;
+    }
+    
+    /*
+     * Builds a new copy of the operators of the chain, connects them, and returns the last one.
+     */
+    private IOperator buildChain(List<String> chain) throws PlanGenException {
+        IOperator lastOperator = null;
+        for (String operatorID : chain) {
+            IOperator operator = PlanGenUtils.buildOperator(
+                    operatorTypeMap.get(operatorID), operatorPropertyMap.get(operatorID));
+            if (lastOperator != null) {
+                handleSetInputOperator(lastOperator, operator);
+            }
+            lastOperator = operator;
+        }
+        return lastOperator;
+    }
+    
     /*
      * Build the operator objects from operator properties.
      */
@@ -318,8 +472,18 @@ public class LogicalPlan implements Serializable {
             IOperator currentOperator = operatorObjectMap.get(vertex);
             int outputArity = adjacencyList.get(vertex).size();
             
-            // automatically adds a OneToNBroadcastConnector if the output arity > 1
-            if (outputArity > 1) {
+            // automatically adds a OneToNBroadcastConnector if the output arity > 1,
+            //   or a ConcurrentOneToNBroadcastConnector in a parallel plan, so that each branch runs on its own thread
+            if (outputArity > 1 && parallelism > 1) {
+                ConcurrentOneToNBroadcastConnector oneToNConnector = new ConcurrentOneToNBroadcastConnector(outputArity);
+                oneToNConnector.setInputOperator(currentOperator);
+                int counter = 0;
+                for (String adjacentVertex : adjacencyList.get(vertex)) {
+                    IOperator adjacentOperator = operatorObjectMap.get(adjacentVertex);
+                    handleSetInputOperator(oneToNConnector.getOutputOperator(counter), adjacentOperator);
+                    counter++;
+                }
+            } else if (outputArity > 1) {
                 OneToNBroadcastConnector oneToNConnector = new OneToNBroadcastConnector(outputArity);
                 oneToNConnector.setInputOperator(currentOperator);
                 int counter = 0;
@@ -337,6 +501,34 @@ public class LogicalPlan implements Serializable {
         }     
     }
 
+    /*
+     * Pushes the limit of each operator down the operator graph.
+     * 
+     * This function assumes that the operators are already connected.
+     * Each operator that supports it is told the bound of its own limit, 
+     *   which it passes on to its input if it produces one tuple for each input tuple.
+     * The bound doesn't cross a OneToNBroadcastConnector, 
+     *   because the connector's input is shared by several consumers.
+     */
+    private void pushDownLimits(HashMap<String, IOperator> operatorObjectMap) {
+        for (IOperator operator : operatorObjectMap.values()) {
+            if (operator instanceof ILimitPushdown) {
+                ((ILimitPushdown) operator).pushDownLimit(Integer.MAX_VALUE);
+            }
+        }
+    }
+
+    /*
+     * Makes the sources of a plan that runs on a single thread search the segments of their tables concurrently.
+     */
+    private void setSourceParallelism(HashMap<String, IOperator> operatorObjectMap) {
+        for (IOperator operator : operatorObjectMap.values()) {
+            if (operator instanceof IMorselSource) {
+                ((IMorselSource) operator).setParallelism(parallelism);
+            }
+        }
+    }
+
     /*
      * Invoke the corresponding "setInputOperator" method of the dest operator.
      */
@@ -344,6 +536,12 @@ public class LogicalPlan implements Serializable {
         // handles Join operator differently
         if (dest instanceof Join) {
             Join join = (Join) dest;
+            // each input of the join is computed on its own thread in a parallel plan
+            if (parallelism > 1) {
+                PrefetchOperator prefetchOperator = new PrefetchOperator();
+                prefetchOperator.setInputOperator(src);
+                src = prefetchOperator;
+            }
             if (join.getInnerInputOperator() == null) {
                 join.setInnerInputOperator(src);
             } else {
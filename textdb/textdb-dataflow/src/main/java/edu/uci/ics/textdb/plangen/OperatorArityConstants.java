@@ -19,6 +19,7 @@ public class OperatorArityConstants {
     public static Map<String, Integer> fixedInputArityMap = new HashMap<String, Integer>(){{
         put("KeywordSource".toLowerCase(), 0);
         put("DictionarySource".toLowerCase(), 0);
+        put("NlpSource".toLowerCase(), 0);
         
         put("KeywordMatcher".toLowerCase(), 1);
         put("DictionaryMatcher".toLowerCase(), 1);
@@ -50,6 +51,7 @@ public class OperatorArityConstants {
         
         put("KeywordSource".toLowerCase(), 1);
         put("DictionarySource".toLowerCase(), 1);
+        put("NlpSource".toLowerCase(), 1);
         
         put("Projection".toLowerCase(), 1);
         put("Join".toLowerCase(), 1);  
@@ -15,6 +15,7 @@ import edu.uci.ics.textdb.plangen.operatorbuilder.JoinBuilder;
 import edu.uci.ics.textdb.plangen.operatorbuilder.KeywordMatcherBuilder;
 import edu.uci.ics.textdb.plangen.operatorbuilder.KeywordSourceBuilder;
 import edu.uci.ics.textdb.plangen.operatorbuilder.NlpExtractorBuilder;
+import edu.uci.ics.textdb.plangen.operatorbuilder.NlpSourceBuilder;
 import edu.uci.ics.textdb.plangen.operatorbuilder.ProjectionBuilder;
 import edu.uci.ics.textdb.plangen.operatorbuilder.RegexMatcherBuilder;
 import edu.uci.ics.textdb.plangen.operatorbuilder.TupleStreamSinkBuilder;
@@ -40,6 +41,7 @@ public class PlanGenUtils {
         operatorBuilderMap.put("FuzzyTokenMatcher".toLowerCase(), FuzzyTokenMatcherBuilder::buildOperator);
         operatorBuilderMap.put("KeywordSource".toLowerCase(), KeywordSourceBuilder::buildSourceOperator);
         operatorBuilderMap.put("DictionarySource".toLowerCase(), DictionarySourceBuilder::buildSourceOperator);
+        operatorBuilderMap.put("NlpSource".toLowerCase(), NlpSourceBuilder::buildSourceOperator);
         operatorBuilderMap.put("FileSink".toLowerCase(), FileSinkBuilder::buildSink);
         operatorBuilderMap.put("TupleStreamSink".toLowerCase(), TupleStreamSinkBuilder::buildTupleStreamSink);
         operatorBuilderMap.put("Join".toLowerCase(), JoinBuilder::buildOperator);
@@ -18,6 +18,8 @@ import edu.uci.ics.textdb.plangen.PlanGenUtils;
  * 
  *   dictionary (required)
  *   matchingType (required)
+ *   singlePass (optional), "true" to match the whole dictionary with one index query,
+ *     see DictionaryMatcherSourceOperator.setSinglePass
  *   
  *   properties required for constructing attributeList, see OperatorBuilderUtils.constructAttributeList
  *   properties required for constructing dataStore, see OperatorBuilderUtils.constructDataStore
@@ -30,6 +32,7 @@ public class DictionarySourceBuilder {
     
     public static String DICTIONARY = "dictionary";
     public static final String MATCHING_TYPE = KeywordMatcherBuilder.MATCHING_TYPE;
+    public static final String SINGLE_PASS = "singlePass";
 
     
     public static DictionaryMatcherSourceOperator buildSourceOperator(Map<String, String> operatorProperties) throws PlanGenException {
@@ -55,6 +58,11 @@ public class DictionarySourceBuilder {
                 dictionary, attributeNames, LuceneAnalyzerConstants.getStandardAnalyzer(), matchingType);
                 
         DictionaryMatcherSourceOperator sourceOperator = new DictionaryMatcherSourceOperator(predicate, tableNameStr);
+        
+        String singlePassStr = OperatorBuilderUtils.getOptionalProperty(SINGLE_PASS, operatorProperties);
+        if (singlePassStr != null) {
+            sourceOperator.setSinglePass(Boolean.parseBoolean(singlePassStr));
+        }
                 
         return sourceOperator;
     }
@@ -1,13 +1,17 @@
 package edu.uci.ics.textdb.plangen.operatorbuilder;
 
+import java.nio.file.Paths;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Stream;
 
 import edu.uci.ics.textdb.common.exception.PlanGenException;
+import edu.uci.ics.textdb.common.exception.StorageException;
+import edu.uci.ics.textdb.dataflow.nlpextrator.NlpAnnotationCache;
 import edu.uci.ics.textdb.dataflow.nlpextrator.NlpExtractor;
 import edu.uci.ics.textdb.dataflow.nlpextrator.NlpPredicate;
 import edu.uci.ics.textdb.plangen.PlanGenUtils;
+import edu.uci.ics.textdb.storage.RelationManager;
 
 /**
  * DictionaryMatcherBuilder provides a static function that builds a DictionaryMatcher.
@@ -16,6 +20,8 @@ import edu.uci.ics.textdb.plangen.PlanGenUtils;
  * DictionaryMatcherBuilder currently needs the following properties:
  * 
  *   nlpType (required)
+ *   threads (optional), the number of threads that annotate the tuples
+ *   annotationCacheTable (optional), the annotations are cached under the directory of this table
  * 
  * @author Zuozhi Wang
  *
@@ -23,6 +29,8 @@ import edu.uci.ics.textdb.plangen.PlanGenUtils;
 public class NlpExtractorBuilder {
     
     public static final String NLP_TYPE = "nlpType";
+    public static final String NUMBER_OF_THREADS = "threads";
+    public static final String ANNOTATION_CACHE_TABLE = "annotationCacheTable";
     
     /**
      * Builds a NlpExtractor according to operatorProperties.
@@ -39,6 +47,24 @@ public class NlpExtractorBuilder {
         // build NlpExtractor
         NlpPredicate predicate = new NlpPredicate(convertToNlpType(nlpTypeStr), attributeNames);
         NlpExtractor operator = new NlpExtractor(predicate);
+        
+        String numberOfThreadsStr = OperatorBuilderUtils.getOptionalProperty(NUMBER_OF_THREADS, operatorProperties);
+        if (numberOfThreadsStr != null) {
+            int numberOfThreads = Integer.parseInt(numberOfThreadsStr);
+            PlanGenUtils.planGenAssert(numberOfThreads > 0, "number of threads must be greater than 0");
+            operator.setNumberOfThreads(numberOfThreads);
+        }
+        
+        String annotationCacheTable = OperatorBuilderUtils.getOptionalProperty(ANNOTATION_CACHE_TABLE, operatorProperties);
+        if (annotationCacheTable != null) {
+            try {
+                String tableDirectory = RelationManager.getRelationManager().getTableDirectory(annotationCacheTable);
+                operator.setAnnotationCacheDirectory(
+                        Paths.get(tableDirectory, NlpAnnotationCache.CACHE_DIRECTORY_NAME).toString());
+            } catch (StorageException e) {
+                throw new PlanGenException(e.getMessage(), e);
+            }
+        }
 
         // set limit and offset
         Integer limitInt = OperatorBuilderUtils.findLimit(operatorProperties);
@@ -53,12 +79,12 @@ public class NlpExtractorBuilder {
         return operator;
     }
     
-    private static boolean isValidNlpType(String nlpTypeStr) {
+    static boolean isValidNlpType(String nlpTypeStr) {
         return Stream.of(NlpPredicate.NlpTokenType.values()).map(NlpPredicate.NlpTokenType::name)
                 .anyMatch(name -> name.toLowerCase().equals(nlpTypeStr.toLowerCase()));    
     }
     
-    private static NlpPredicate.NlpTokenType convertToNlpType(String nlpTypeStr) {
+    static NlpPredicate.NlpTokenType convertToNlpType(String nlpTypeStr) {
         return Stream.of(NlpPredicate.NlpTokenType.values())
                 .filter(nlpType -> nlpType.toString().toLowerCase().equals(nlpTypeStr.toLowerCase()))
                 .findAny().orElse(null);
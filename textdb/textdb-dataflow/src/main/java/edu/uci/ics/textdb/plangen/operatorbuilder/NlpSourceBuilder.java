@@ -0,0 +1,64 @@
+package edu.uci.ics.textdb.plangen.operatorbuilder;
+
+import java.util.List;
+import java.util.Map;
+
+import edu.uci.ics.textdb.api.exception.TextDBException;
+import edu.uci.ics.textdb.common.exception.PlanGenException;
+import edu.uci.ics.textdb.dataflow.nlpextrator.NlpPredicate;
+import edu.uci.ics.textdb.dataflow.nlpextrator.NlpSourceOperator;
+import edu.uci.ics.textdb.plangen.PlanGenUtils;
+
+/**
+ * NlpSourceBuilder provides a static function that builds a NlpSourceOperator.
+ * 
+ * NlpSourceBuilder currently needs the following properties:
+ * 
+ *   nlpType (required)
+ *   entityKeyword (optional), only the spans containing the keyword are returned
+ *   
+ *   properties required for constructing attributeList, see OperatorBuilderUtils.constructAttributeList
+ *   properties required for constructing dataStore, see OperatorBuilderUtils.constructDataStore
+ * 
+ */
+public class NlpSourceBuilder {
+    
+    public static final String ENTITY_KEYWORD = "entityKeyword";
+    
+    public static NlpSourceOperator buildSourceOperator(Map<String, String> operatorProperties) 
+            throws PlanGenException {
+        String nlpTypeStr = OperatorBuilderUtils.getRequiredProperty(
+                NlpExtractorBuilder.NLP_TYPE, operatorProperties);
+        String tableNameStr = OperatorBuilderUtils.getRequiredProperty(
+                OperatorBuilderUtils.DATA_SOURCE, operatorProperties);
+        String entityKeyword = OperatorBuilderUtils.getOptionalProperty(ENTITY_KEYWORD, operatorProperties);
+
+        // check if nlpType is valid
+        PlanGenUtils.planGenAssert(NlpExtractorBuilder.isValidNlpType(nlpTypeStr), "invalid NlpType");
+
+        // generate the attribute names
+        List<String> attributeNames = OperatorBuilderUtils.constructAttributeNames(operatorProperties);
+
+        NlpPredicate predicate = new NlpPredicate(NlpExtractorBuilder.convertToNlpType(nlpTypeStr), attributeNames);
+        
+        NlpSourceOperator sourceOperator;
+        try {
+            sourceOperator = new NlpSourceOperator(predicate, tableNameStr, entityKeyword);
+        } catch (TextDBException e) {
+            throw new PlanGenException(e.getMessage(), e);
+        }
+        
+        // set limit and offset
+        Integer limitInt = OperatorBuilderUtils.findLimit(operatorProperties);
+        if (limitInt != null) {
+            sourceOperator.setLimit(limitInt);
+        }
+        Integer offsetInt = OperatorBuilderUtils.findOffset(operatorProperties);
+        if (offsetInt != null) {
+            sourceOperator.setOffset(offsetInt);
+        }
+   
+        return sourceOperator;
+    }
+
+}
@@ -0,0 +1,109 @@
+package edu.uci.ics.textdb.dataflow.common;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.uci.ics.textdb.common.constants.LuceneAnalyzerConstants;
+import edu.uci.ics.textdb.dataflow.regexmatch.RegexMatcher;
+import edu.uci.ics.textdb.dataflow.regexmatch.RegexMatcherSourceOperator;
+import edu.uci.ics.textdb.plangen.operatorbuilder.OperatorBuilderUtils;
+import edu.uci.ics.textdb.plangen.operatorbuilder.RegexMatcherBuilder;
+
+public class CompiledQueryCacheTest {
+
+    @Before
+    public void setUp() {
+        CompiledQueryCache.clear();
+    }
+
+    @After
+    public void cleanUp() {
+        CompiledQueryCache.clear();
+    }
+
+    /*
+     * Test that a regex is compiled once for the same flags.
+     */
+    @Test
+    public void testPatternIsShared() {
+        java.util.regex.Pattern javaPattern = CompiledQueryCache.getJavaPattern("g[^\\s]*", 0);
+        Assert.assertSame(javaPattern, CompiledQueryCache.getJavaPattern("g[^\\s]*", 0));
+        Assert.assertNotSame(javaPattern,
+                CompiledQueryCache.getJavaPattern("g[^\\s]*", java.util.regex.Pattern.CASE_INSENSITIVE));
+
+        com.google.re2j.Pattern re2jPattern = CompiledQueryCache.getRe2jPattern("g[^\\s]*", 0);
+        Assert.assertSame(re2jPattern, CompiledQueryCache.getRe2jPattern("g[^\\s]*", 0));
+    }
+
+    /*
+     * Test that the lucene query of a regex is cached by the regex, the attributes and the analyzer,
+     *   different standard analyzer objects have the same key.
+     */
+    @Test
+    public void testRegexQueryIsShared() throws Exception {
+        List<String> attributeNames = Arrays.asList("content", "title");
+        RegexPredicate predicate = new RegexPredicate("george(\\s)+lin", attributeNames,
+                LuceneAnalyzerConstants.getStandardAnalyzer());
+        RegexPredicate samePredicate = new RegexPredicate("george(\\s)+lin", attributeNames,
+                LuceneAnalyzerConstants.getStandardAnalyzer());
+        RegexPredicate otherAttributesPredicate = new RegexPredicate("george(\\s)+lin", Arrays.asList("content"),
+                LuceneAnalyzerConstants.getStandardAnalyzer());
+        RegexPredicate otherAnalyzerPredicate = new RegexPredicate("george(\\s)+lin", attributeNames,
+                LuceneAnalyzerConstants.getNGramAnalyzer(3));
+
+        Assert.assertSame(RegexMatcherSourceOperator.createLuceneQuery(predicate),
+                RegexMatcherSourceOperator.createLuceneQuery(samePredicate));
+        Assert.assertNotSame(RegexMatcherSourceOperator.createLuceneQuery(predicate),
+                RegexMatcherSourceOperator.createLuceneQuery(otherAttributesPredicate));
+        Assert.assertNotSame(RegexMatcherSourceOperator.createLuceneQuery(predicate),
+                RegexMatcherSourceOperator.createLuceneQuery(otherAnalyzerPredicate));
+    }
+
+    /*
+     * Test that the regex matchers built by the plan builder share the cached query,
+     *   each of them has its own n-gram analyzer object with the same configuration.
+     */
+    @Test
+    public void testBuilderRegexQueryIsShared() throws Exception {
+        Map<String, String> operatorProperties = new HashMap<>();
+        operatorProperties.put(RegexMatcherBuilder.REGEX, "george(\\s)+lin");
+        operatorProperties.put(OperatorBuilderUtils.ATTRIBUTE_NAMES, "content,title");
+
+        RegexMatcher regexMatcher = RegexMatcherBuilder.buildRegexMatcher(operatorProperties);
+        RegexMatcher sameRegexMatcher = RegexMatcherBuilder.buildRegexMatcher(operatorProperties);
+        Assert.assertNotSame(regexMatcher.getPredicate().getLuceneAnalyzer(),
+                sameRegexMatcher.getPredicate().getLuceneAnalyzer());
+
+        Assert.assertSame(RegexMatcherSourceOperator.createLuceneQuery(regexMatcher.getPredicate()),
+                RegexMatcherSourceOperator.createLuceneQuery(sameRegexMatcher.getPredicate()));
+        Assert.assertNotSame(RegexMatcherSourceOperator.createLuceneQuery(regexMatcher.getPredicate()),
+                RegexMatcherSourceOperator.createLuceneQuery(new RegexPredicate("george(\\s)+lin",
+                        Arrays.asList("content", "title"), LuceneAnalyzerConstants.getNGramAnalyzer(2))));
+    }
+
+    /*
+     * Test that the invalid regexes are not cached, and the cache size is bounded.
+     */
+    @Test
+    public void testCacheSize() {
+        try {
+            CompiledQueryCache.getJavaPattern("(", 0);
+            Assert.fail("an invalid regex should throw an exception");
+        } catch (java.util.regex.PatternSyntaxException e) {
+            Assert.assertEquals(0, CompiledQueryCache.size());
+        }
+
+        for (int i = 0; i < CompiledQueryCache.MAX_CACHE_SIZE + 10; i++) {
+            CompiledQueryCache.getJavaPattern("regex" + i, 0);
+        }
+        Assert.assertEquals(CompiledQueryCache.MAX_CACHE_SIZE, CompiledQueryCache.size());
+    }
+
+}
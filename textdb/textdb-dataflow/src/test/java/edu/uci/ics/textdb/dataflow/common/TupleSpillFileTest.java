@@ -0,0 +1,92 @@
+package edu.uci.ics.textdb.dataflow.common;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.uci.ics.textdb.api.common.Attribute;
+import edu.uci.ics.textdb.api.common.FieldType;
+import edu.uci.ics.textdb.api.common.ITuple;
+import edu.uci.ics.textdb.api.common.Schema;
+import edu.uci.ics.textdb.common.constants.LuceneAnalyzerConstants;
+import edu.uci.ics.textdb.common.constants.SchemaConstants;
+import edu.uci.ics.textdb.common.field.CompactSpanList;
+import edu.uci.ics.textdb.common.field.DataTuple;
+import edu.uci.ics.textdb.common.field.ListField;
+import edu.uci.ics.textdb.common.field.Span;
+import edu.uci.ics.textdb.common.field.TextField;
+import edu.uci.ics.textdb.common.utils.Utils;
+
+public class TupleSpillFileTest {
+
+    private static final String CONTENT = "content";
+    private static final String TEXT = "the brown fox";
+    private static final Schema SCHEMA = new Schema(new Attribute(CONTENT, FieldType.TEXT),
+            SchemaConstants.PAYLOAD_ATTRIBUTE);
+
+    private Path spillPath;
+    private TupleSpillFile spillFile;
+
+    @Before
+    public void setUp() throws Exception {
+        spillPath = Files.createTempFile("textdb-spill-test", ".tmp");
+        spillFile = new TupleSpillFile(spillPath, SCHEMA);
+    }
+
+    @After
+    public void cleanUp() throws Exception {
+        spillFile.delete();
+    }
+
+    /*
+     * Test that a payload restricted to some terms is read back with the same restriction,
+     *   so that the spans of the other terms are still generated from the tuple.
+     */
+    @Test
+    public void testRestrictedPayload() throws Exception {
+        CompactSpanList payload = new CompactSpanList();
+        int fieldId = payload.addField(CONTENT, TEXT);
+        payload.addToken(fieldId, payload.addTerm("brown"), 4, 9, 1);
+        payload.setTermRestriction(new HashSet<>(Arrays.asList("brown")));
+
+        spillFile.write(new DataTuple(SCHEMA, new TextField(TEXT), new ListField<Span>(payload)));
+        ITuple tuple = spillFile.openReader().read();
+
+        @SuppressWarnings("unchecked")
+        List<Span> spilledPayload = (List<Span>) tuple.getField(SchemaConstants.PAYLOAD).getValue();
+        Assert.assertTrue(spilledPayload instanceof CompactSpanList);
+        Assert.assertEquals(payload.getTermRestriction(), ((CompactSpanList) spilledPayload).getTermRestriction());
+        Assert.assertEquals(payload, spilledPayload);
+
+        List<Span> foxSpans = Utils.getSpansWithKeys(tuple, Arrays.asList("fox"),
+                LuceneAnalyzerConstants.getStandardAnalyzer());
+        Assert.assertEquals(Arrays.asList(new Span(CONTENT, 10, 13, "fox", "fox", 2)), foxSpans);
+    }
+
+    /*
+     * Test that a payload that isn't restricted is read back with all its spans and no restriction.
+     */
+    @Test
+    public void testUnrestrictedPayload() throws Exception {
+        List<Span> payload = Utils.generatePayload(CONTENT, TEXT, LuceneAnalyzerConstants.getStandardAnalyzer());
+
+        spillFile.write(new DataTuple(SCHEMA, new TextField(TEXT), new ListField<Span>(payload)));
+        spillFile.write(new DataTuple(SCHEMA, new TextField(TEXT), new ListField<Span>(Collections.emptyList())));
+        TupleSpillFile.Reader reader = spillFile.openReader();
+
+        List<?> spilledPayload = (List<?>) reader.read().getField(SchemaConstants.PAYLOAD).getValue();
+        Assert.assertEquals(payload, spilledPayload);
+        Assert.assertFalse(spilledPayload instanceof CompactSpanList);
+        Assert.assertTrue(((List<?>) reader.read().getField(SchemaConstants.PAYLOAD).getValue()).isEmpty());
+        Assert.assertNull(reader.read());
+    }
+
+}
@@ -0,0 +1,164 @@
+package edu.uci.ics.textdb.dataflow.connector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import edu.uci.ics.textdb.api.common.ITuple;
+import edu.uci.ics.textdb.api.dataflow.CancellationToken;
+import edu.uci.ics.textdb.api.dataflow.IOperator;
+import edu.uci.ics.textdb.api.exception.TextDBException;
+import edu.uci.ics.textdb.common.constants.LuceneAnalyzerConstants;
+import edu.uci.ics.textdb.common.constants.TestConstants;
+import edu.uci.ics.textdb.common.exception.DataFlowException;
+import edu.uci.ics.textdb.common.exception.ErrorMessages;
+import edu.uci.ics.textdb.dataflow.source.ScanBasedSourceOperator;
+import edu.uci.ics.textdb.dataflow.utils.TestUtils;
+import edu.uci.ics.textdb.storage.DataWriter;
+import edu.uci.ics.textdb.storage.RelationManager;
+
+public class ConcurrentOneToNBroadcastConnectorTest {
+
+    public static final String PEOPLE_TABLE = "concurrent_connector_test_people";
+    
+    // the people tuples are written this many times, so that they don't fit in the queues
+    private static final int COPIES = 5;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        RelationManager relationManager = RelationManager.getRelationManager();
+
+        relationManager.createTable(PEOPLE_TABLE, "../index/test_tables/" + PEOPLE_TABLE,
+                TestConstants.SCHEMA_PEOPLE, LuceneAnalyzerConstants.standardAnalyzerString());
+
+        DataWriter peopleDataWriter = relationManager.getTableDataWriter(PEOPLE_TABLE);
+        peopleDataWriter.open();
+        for (int i = 0; i < COPIES; i++) {
+            for (ITuple tuple : TestConstants.getSamplePeopleTuples()) {
+                peopleDataWriter.insertTuple(tuple);
+            }
+        }
+        peopleDataWriter.close();
+    }
+
+    @AfterClass
+    public static void cleanUp() throws Exception {
+        RelationManager relationManager = RelationManager.getRelationManager();
+        relationManager.deleteTable(PEOPLE_TABLE);
+    }
+
+    /*
+     * This tests if every output read by its own thread gets all the tuples of the input.
+     */
+    @Test
+    public void testOutputsOnDifferentThreads() throws Exception {
+        ConcurrentOneToNBroadcastConnector connector = createConnector(3);
+        for (int i = 0; i < 3; i++) {
+            connector.getOutputOperator(i).open();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            List<Future<List<ITuple>>> futures = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                IOperator output = connector.getOutputOperator(i);
+                futures.add(executor.submit(() -> readAll(output)));
+            }
+            List<ITuple> expectedResults = getScanResults();
+            for (Future<List<ITuple>> future : futures) {
+                Assert.assertTrue(TestUtils.equals(expectedResults, future.get()));
+            }
+        } finally {
+            executor.shutdown();
+        }
+        for (int i = 0; i < 3; i++) {
+            connector.getOutputOperator(i).close();
+        }
+    }
+
+    /*
+     * This tests that an output can't be opened again before all the outputs are closed,
+     *   and the outputs can all be opened again after that.
+     */
+    @Test
+    public void testReopenOutput() throws Exception {
+        ConcurrentOneToNBroadcastConnector connector = createConnector(2);
+        IOperator output1 = connector.getOutputOperator(0);
+        IOperator output2 = connector.getOutputOperator(1);
+
+        output1.open();
+        output2.open();
+        output1.close();
+        try {
+            output1.open();
+            Assert.fail("an output can't be opened again before all the outputs are closed");
+        } catch (DataFlowException e) {
+        }
+        output2.close();
+
+        output1.open();
+        output2.open();
+        output2.close();
+        List<ITuple> expectedResults = getScanResults();
+        Assert.assertTrue(TestUtils.equals(expectedResults, readAll(output1)));
+        output1.close();
+    }
+
+    /*
+     * This tests that the input thread waiting for an output that isn't read stops once the query is cancelled,
+     *   and the outputs throw an exception.
+     */
+    @Test
+    public void testCancel() throws Exception {
+        ConcurrentOneToNBroadcastConnector connector = createConnector(2);
+        IOperator output1 = connector.getOutputOperator(0);
+        IOperator output2 = connector.getOutputOperator(1);
+
+        CancellationToken cancellationToken = new CancellationToken();
+        output1.open(cancellationToken);
+        output2.open(cancellationToken);
+        Assert.assertNotNull(output1.getNextTuple());
+
+        cancellationToken.cancel();
+        try {
+            output1.getNextTuple();
+            Assert.fail("a cancelled query should throw an exception");
+        } catch (DataFlowException e) {
+            Assert.assertEquals(ErrorMessages.QUERY_CANCELLED, e.getMessage());
+        }
+        output1.close();
+        output2.close();
+    }
+
+    private static ConcurrentOneToNBroadcastConnector createConnector(int outputNumber) throws DataFlowException {
+        ConcurrentOneToNBroadcastConnector connector = new ConcurrentOneToNBroadcastConnector(outputNumber);
+        connector.setInputOperator(new ScanBasedSourceOperator(PEOPLE_TABLE));
+        connector.setBatchSize(1);
+        return connector;
+    }
+
+    private static List<ITuple> getScanResults() throws TextDBException {
+        IOperator scanSource = new ScanBasedSourceOperator(PEOPLE_TABLE);
+        scanSource.open();
+        List<ITuple> results = readAll(scanSource);
+        scanSource.close();
+        return results;
+    }
+
+    private static List<ITuple> readAll(IOperator operator) throws TextDBException {
+        List<ITuple> results = new ArrayList<>();
+        ITuple nextTuple;
+        while ((nextTuple = operator.getNextTuple()) != null) {
+            results.add(nextTuple);
+        }
+        return results;
+    }
+
+}
@@ -15,6 +15,7 @@ import edu.uci.ics.textdb.api.common.Schema;
 import edu.uci.ics.textdb.api.dataflow.IOperator;
 import edu.uci.ics.textdb.common.constants.LuceneAnalyzerConstants;
 import edu.uci.ics.textdb.common.constants.TestConstants;
+import edu.uci.ics.textdb.common.exception.DataFlowException;
 import edu.uci.ics.textdb.common.field.DataTuple;
 import edu.uci.ics.textdb.common.field.TextField;
 import edu.uci.ics.textdb.dataflow.projection.ProjectionOperator;
@@ -160,6 +161,121 @@ public class OneToNBroadcastConnectorTest {
         Assert.assertTrue(TestUtils.equals(expectedResults, output3Results));
    
     }
-
+    
+    /*
+     * This tests if an output that lags behind reads the tuples that are spilled to disk.
+     */
+    @Test
+    public void testLaggingOutputWithSmallMemoryBudget() throws Exception {
+        IOperator sourceOperator = new ScanBasedSourceOperator(PEOPLE_TABLE);
+        
+        OneToNBroadcastConnector connector = new OneToNBroadcastConnector(3);
+        connector.setInputOperator(sourceOperator);
+        connector.setMemoryBudget(2);
+        IOperator output1 = connector.getOutputOperator(0);
+        IOperator output2 = connector.getOutputOperator(1);
+        IOperator output3 = connector.getOutputOperator(2);
+        
+        output1.open();
+        output2.open();
+        
+        // output2 reads one tuple, output3 is not opened yet
+        List<ITuple> output2Results = new ArrayList<>();
+        output2Results.add(output2.getNextTuple());
+        
+        List<ITuple> output1Results = new ArrayList<>();
+        ITuple nextTuple = null;
+        while ((nextTuple = output1.getNextTuple()) != null) {
+            output1Results.add(nextTuple);
+        }
+        output1.close();
+        
+        while ((nextTuple = output2.getNextTuple()) != null) {
+            output2Results.add(nextTuple);
+        }
+        output2.close();
+        
+        output3.open();
+        List<ITuple> output3Results = new ArrayList<>();
+        while ((nextTuple = output3.getNextTuple()) != null) {
+            output3Results.add(nextTuple);
+        }
+        output3.close();
+        
+        List<ITuple> expectedResults = TestConstants.getSamplePeopleTuples();
+        
+        Assert.assertTrue(TestUtils.equals(expectedResults, output1Results));
+        Assert.assertTrue(TestUtils.equals(expectedResults, output2Results));
+        Assert.assertTrue(TestUtils.equals(expectedResults, output3Results));
+    }
+    
+    /*
+     * This tests the outputs that are opened again after all of them are closed, 
+     *   e.g. when they are opened and closed once to get their schemas.
+     */
+    @Test
+    public void testReopenAfterAllClosed() throws Exception {
+        OneToNBroadcastConnector connector = new OneToNBroadcastConnector(2);
+        connector.setInputOperator(new ScanBasedSourceOperator(PEOPLE_TABLE));
+        IOperator output1 = connector.getOutputOperator(0);
+        IOperator output2 = connector.getOutputOperator(1);
+        
+        output1.open();
+        output1.close();
+        output2.open();
+        output2.close();
+        
+        output1.open();
+        List<ITuple> output1Results = readAll(output1);
+        output1.close();
+        
+        output2.open();
+        List<ITuple> output2Results = readAll(output2);
+        output2.close();
+        
+        List<ITuple> expectedResults = TestConstants.getSamplePeopleTuples();
+        Assert.assertTrue(TestUtils.equals(expectedResults, output1Results));
+        Assert.assertTrue(TestUtils.equals(expectedResults, output2Results));
+    }
+    
+    /*
+     * This tests that an output that's opened again reads from the first tuple,
+     *   and fails to open once the first tuple is removed.
+     */
+    @Test
+    public void testReopenClosedOutput() throws Exception {
+        OneToNBroadcastConnector connector = new OneToNBroadcastConnector(2);
+        connector.setInputOperator(new ScanBasedSourceOperator(PEOPLE_TABLE));
+        IOperator output1 = connector.getOutputOperator(0);
+        IOperator output2 = connector.getOutputOperator(1);
+        
+        // output2 hasn't read any tuple, output1 reads from the first tuple again
+        output1.open();
+        output2.open();
+        output1.getNextTuple();
+        output1.close();
+        output1.open();
+        List<ITuple> output1Results = readAll(output1);
+        Assert.assertTrue(TestUtils.equals(TestConstants.getSamplePeopleTuples(), output1Results));
+        output1.close();
+        
+        // the tuples are removed once output2 reads them
+        readAll(output2);
+        try {
+            output1.open();
+            Assert.fail("an output whose tuples are removed can't be opened again");
+        } catch (DataFlowException e) {
+        }
+        output2.close();
+    }
+    
+    private static List<ITuple> readAll(IOperator operator) throws TextDBException {
+        List<ITuple> results = new ArrayList<>();
+        ITuple nextTuple;
+        while ((nextTuple = operator.getNextTuple()) != null) {
+            results.add(nextTuple);
+        }
+        return results;
+    }
 
 }
@@ -0,0 +1,166 @@
+package edu.uci.ics.textdb.dataflow.connector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import edu.uci.ics.textdb.api.common.ITuple;
+import edu.uci.ics.textdb.api.dataflow.IOperator;
+import edu.uci.ics.textdb.api.exception.TextDBException;
+import edu.uci.ics.textdb.common.constants.LuceneAnalyzerConstants;
+import edu.uci.ics.textdb.common.constants.TestConstants;
+import edu.uci.ics.textdb.common.exception.DataFlowException;
+import edu.uci.ics.textdb.dataflow.projection.ProjectionOperator;
+import edu.uci.ics.textdb.dataflow.projection.ProjectionPredicate;
+import edu.uci.ics.textdb.dataflow.source.ScanBasedSourceOperator;
+import edu.uci.ics.textdb.dataflow.utils.TestUtils;
+import edu.uci.ics.textdb.storage.DataWriter;
+import edu.uci.ics.textdb.storage.RelationManager;
+
+public class ParallelGatherOperatorTest {
+
+    public static final String PEOPLE_TABLE = "parallel_gather_test_people";
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        RelationManager relationManager = RelationManager.getRelationManager();
+
+        relationManager.createTable(PEOPLE_TABLE, "../index/test_tables/" + PEOPLE_TABLE,
+                TestConstants.SCHEMA_PEOPLE, LuceneAnalyzerConstants.standardAnalyzerString());
+
+        // every commit writes a new segment
+        DataWriter peopleDataWriter = relationManager.getTableDataWriter(PEOPLE_TABLE);
+        for (int i = 0; i < 3; i++) {
+            peopleDataWriter.open();
+            for (ITuple tuple : TestConstants.getSamplePeopleTuples()) {
+                peopleDataWriter.insertTuple(tuple);
+            }
+            peopleDataWriter.close();
+        }
+    }
+
+    @AfterClass
+    public static void cleanUp() throws Exception {
+        RelationManager relationManager = RelationManager.getRelationManager();
+        relationManager.deleteTable(PEOPLE_TABLE);
+    }
+
+    /*
+     * This tests if the copies of the chain together return the same results as one chain.
+     */
+    @Test
+    public void testSameResultsAsOneChain() throws Exception {
+        ParallelGatherOperator gatherOperator = new ParallelGatherOperator(4, () -> buildChain(Integer.MAX_VALUE, 0));
+        gatherOperator.getMorsels().setMorselSize(2);
+        gatherOperator.setBatchSize(1);
+
+        List<ITuple> expectedResults = readAll(buildChain(Integer.MAX_VALUE, 0));
+        List<ITuple> results = readAll(gatherOperator);
+
+        Assert.assertEquals(TestConstants.getSamplePeopleTuples().size() * 3, results.size());
+        Assert.assertTrue(TestUtils.equals(expectedResults, results));
+
+        // the morsels are handed out again when it's opened again
+        Assert.assertTrue(TestUtils.equals(expectedResults, readAll(gatherOperator)));
+    }
+
+    /*
+     * This tests if the limit of the last operator applies to the gathered results,
+     *   instead of each copy of the chain.
+     */
+    @Test
+    public void testLimit() throws Exception {
+        ParallelGatherOperator gatherOperator = new ParallelGatherOperator(3, () -> buildChain(4, 0));
+        gatherOperator.getMorsels().setMorselSize(2);
+
+        Assert.assertEquals(4, gatherOperator.getLimit());
+
+        List<ITuple> allResults = readAll(buildChain(Integer.MAX_VALUE, 0));
+        List<ITuple> results = readAll(gatherOperator);
+        Assert.assertEquals(4, results.size());
+        Assert.assertTrue(allResults.containsAll(results));
+    }
+
+    /*
+     * This tests that a chain with an offset can't be run in parallel,
+     *   the gathered results are in no particular order.
+     */
+    @Test(expected = DataFlowException.class)
+    public void testOffsetNotParallelizable() throws Exception {
+        Assert.assertFalse(ParallelGatherOperator.isParallelizable(buildChain(4, 3)));
+        new ParallelGatherOperator(2, () -> buildChain(4, 3));
+    }
+
+    /*
+     * This tests that the workers give up when the consumer takes no results for the consumer timeout,
+     *   and the consumer gets an exception when it comes back.
+     */
+    @Test
+    public void testConsumerGoesAway() throws Exception {
+        ParallelGatherOperator gatherOperator = new ParallelGatherOperator(2, () -> buildChain(Integer.MAX_VALUE, 0));
+        gatherOperator.getMorsels().setMorselSize(1);
+        // the queue holds fewer batches than the results of the table
+        gatherOperator.setBatchSize(1);
+        gatherOperator.setConsumerTimeout(100, TimeUnit.MILLISECONDS);
+
+        gatherOperator.open();
+        Thread.sleep(500);
+        try {
+            while (gatherOperator.getNextTuple() != null) {
+            }
+            Assert.fail("the workers should give up");
+        } catch (DataFlowException e) {
+            Assert.assertTrue(e.getMessage().contains("took no results"));
+        } finally {
+            gatherOperator.close();
+        }
+    }
+
+    /*
+     * This tests that a chain whose inner operator has a limit can't be run in parallel.
+     */
+    @Test(expected = DataFlowException.class)
+    public void testInnerLimitNotParallelizable() throws Exception {
+        ChainWithInnerLimit chainBuilder = new ChainWithInnerLimit();
+        Assert.assertFalse(ParallelGatherOperator.isParallelizable(chainBuilder.buildChain()));
+        new ParallelGatherOperator(2, chainBuilder);
+    }
+
+    private static IOperator buildChain(int limit, int offset) throws TextDBException {
+        ProjectionOperator projection = new ProjectionOperator(
+                new ProjectionPredicate(Arrays.asList(TestConstants.FIRST_NAME, TestConstants.DESCRIPTION)));
+        projection.setInputOperator(new ScanBasedSourceOperator(PEOPLE_TABLE));
+        projection.setLimit(limit);
+        projection.setOffset(offset);
+        return projection;
+    }
+
+    private static class ChainWithInnerLimit implements ParallelGatherOperator.ChainBuilder {
+        @Override
+        public IOperator buildChain() throws TextDBException {
+            ProjectionOperator innerProjection = (ProjectionOperator) ParallelGatherOperatorTest.buildChain(2, 0);
+            ProjectionOperator projection = new ProjectionOperator(
+                    new ProjectionPredicate(Arrays.asList(TestConstants.FIRST_NAME)));
+            projection.setInputOperator(innerProjection);
+            return projection;
+        }
+    }
+
+    private static List<ITuple> readAll(IOperator operator) throws TextDBException {
+        List<ITuple> results = new ArrayList<>();
+        operator.open();
+        ITuple nextTuple;
+        while ((nextTuple = operator.getNextTuple()) != null) {
+            results.add(nextTuple);
+        }
+        operator.close();
+        return results;
+    }
+
+}
@@ -0,0 +1,166 @@
+package edu.uci.ics.textdb.dataflow.connector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import edu.uci.ics.textdb.api.common.ITuple;
+import edu.uci.ics.textdb.api.common.Schema;
+import edu.uci.ics.textdb.api.dataflow.IOperator;
+import edu.uci.ics.textdb.api.exception.TextDBException;
+import edu.uci.ics.textdb.common.constants.LuceneAnalyzerConstants;
+import edu.uci.ics.textdb.common.constants.TestConstants;
+import edu.uci.ics.textdb.common.exception.DataFlowException;
+import edu.uci.ics.textdb.dataflow.source.ScanBasedSourceOperator;
+import edu.uci.ics.textdb.dataflow.utils.TestUtils;
+import edu.uci.ics.textdb.storage.DataWriter;
+import edu.uci.ics.textdb.storage.RelationManager;
+
+public class PrefetchOperatorTest {
+
+    public static final String PEOPLE_TABLE = "prefetch_test_people";
+
+    // the people tuples are written this many times, so that they don't fit in the queue
+    private static final int COPIES = 3;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        RelationManager relationManager = RelationManager.getRelationManager();
+
+        relationManager.createTable(PEOPLE_TABLE, "../index/test_tables/" + PEOPLE_TABLE,
+                TestConstants.SCHEMA_PEOPLE, LuceneAnalyzerConstants.standardAnalyzerString());
+
+        DataWriter peopleDataWriter = relationManager.getTableDataWriter(PEOPLE_TABLE);
+        peopleDataWriter.open();
+        for (int i = 0; i < COPIES; i++) {
+            for (ITuple tuple : TestConstants.getSamplePeopleTuples()) {
+                peopleDataWriter.insertTuple(tuple);
+            }
+        }
+        peopleDataWriter.close();
+    }
+
+    @AfterClass
+    public static void cleanUp() throws Exception {
+        RelationManager relationManager = RelationManager.getRelationManager();
+        relationManager.deleteTable(PEOPLE_TABLE);
+    }
+
+    /*
+     * This tests that the input is read ahead into the queue and a spill file before the consumer starts,
+     *   and the consumer gets all the tuples in order.
+     */
+    @Test
+    public void testSpillBeforeConsumerStarts() throws Exception {
+        PrefetchOperator prefetchOperator = createPrefetchOperator();
+        List<ITuple> expectedResults = readAll(new ScanBasedSourceOperator(PEOPLE_TABLE));
+
+        prefetchOperator.open();
+        // the worker doesn't wait for the consumer
+        Thread.sleep(200);
+        List<ITuple> results = new ArrayList<>();
+        ITuple nextTuple;
+        while ((nextTuple = prefetchOperator.getNextTuple()) != null) {
+            results.add(nextTuple);
+        }
+        prefetchOperator.close();
+
+        Assert.assertEquals(expectedResults.size(), results.size());
+        for (int i = 0; i < results.size(); i++) {
+            Assert.assertTrue(TestUtils.equals(expectedResults.subList(i, i + 1), results.subList(i, i + 1)));
+        }
+    }
+
+    /*
+     * This tests that the worker gives up when the consumer takes no results for the consumer timeout,
+     *   and the consumer gets an exception when it comes back.
+     */
+    @Test
+    public void testConsumerGoesAway() throws Exception {
+        // the input gives no tuple until the consumer waits for one, so the worker doesn't spill
+        CountDownLatch consumerWaiting = new CountDownLatch(1);
+        PrefetchOperator prefetchOperator = new PrefetchOperator();
+        prefetchOperator.setInputOperator(new GatedOperator(new ScanBasedSourceOperator(PEOPLE_TABLE), consumerWaiting));
+        prefetchOperator.setBatchSize(1);
+        prefetchOperator.setConsumerTimeout(100, TimeUnit.MILLISECONDS);
+
+        prefetchOperator.open();
+        Executors.newSingleThreadScheduledExecutor().schedule(consumerWaiting::countDown, 200, TimeUnit.MILLISECONDS);
+        Assert.assertNotNull(prefetchOperator.getNextTuple());
+        Thread.sleep(500);
+        try {
+            while (prefetchOperator.getNextTuple() != null) {
+            }
+            Assert.fail("the worker should give up");
+        } catch (DataFlowException e) {
+            Assert.assertTrue(e.getMessage().contains("took no results"));
+        } finally {
+            prefetchOperator.close();
+        }
+    }
+
+    private static PrefetchOperator createPrefetchOperator() throws DataFlowException {
+        PrefetchOperator prefetchOperator = new PrefetchOperator();
+        prefetchOperator.setInputOperator(new ScanBasedSourceOperator(PEOPLE_TABLE));
+        prefetchOperator.setBatchSize(1);
+        return prefetchOperator;
+    }
+
+    private static List<ITuple> readAll(IOperator operator) throws TextDBException {
+        List<ITuple> results = new ArrayList<>();
+        operator.open();
+        ITuple nextTuple;
+        while ((nextTuple = operator.getNextTuple()) != null) {
+            results.add(nextTuple);
+        }
+        operator.close();
+        return results;
+    }
+
+    /*
+     * GatedOperator waits for the gate to open before it gives its first tuple.
+     */
+    private static class GatedOperator implements IOperator {
+        private final IOperator inputOperator;
+        private final CountDownLatch gate;
+
+        GatedOperator(IOperator inputOperator, CountDownLatch gate) {
+            this.inputOperator = inputOperator;
+            this.gate = gate;
+        }
+
+        @Override
+        public void open() throws TextDBException {
+            inputOperator.open();
+        }
+
+        @Override
+        public ITuple getNextTuple() throws TextDBException {
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DataFlowException(e.getMessage(), e);
+            }
+            return inputOperator.getNextTuple();
+        }
+
+        @Override
+        public void close() throws TextDBException {
+            inputOperator.close();
+        }
+
+        @Override
+        public Schema getOutputSchema() {
+            return inputOperator.getOutputSchema();
+        }
+    }
+
+}
@@ -0,0 +1,52 @@
+package edu.uci.ics.textdb.dataflow.dictionarymatcher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AhoCorasickAutomatonTest {
+
+    private static List<String> search(List<String> patterns, String text) {
+        List<String> matches = new ArrayList<>();
+        new AhoCorasickAutomaton(patterns).search(text, 
+                (patternIndex, start, end) -> matches.add(patterns.get(patternIndex) + ":" + start + "-" + end));
+        return matches;
+    }
+
+    /*
+     * Test that all the overlapping occurrences are found, in the order of their end offsets.
+     */
+    @Test
+    public void testOverlappingPatterns() {
+        List<String> matches = search(Arrays.asList("he", "she", "his", "hers"), "ushers");
+        Assert.assertEquals(Arrays.asList("she:1-4", "he:2-4", "hers:2-6"), matches);
+    }
+
+    /*
+     * Test that the patterns and the text are case-folded, and the offsets are in the original text.
+     */
+    @Test
+    public void testCaseInsensitive() {
+        List<String> matches = search(Arrays.asList("lin clooney", "Angry"), "Lin Clooney is Short and lin clooney is ANGRY");
+        Assert.assertEquals(Arrays.asList("lin clooney:0-11", "lin clooney:25-36", "Angry:40-45"), matches);
+    }
+
+    @Test
+    public void testChinese() {
+        List<String> matches = search(Arrays.asList("学院", "北京大学", "大学"), "北京大学计算机学院");
+        Assert.assertEquals(Arrays.asList("北京大学:0-4", "大学:2-4", "学院:7-9"), matches);
+    }
+
+    /*
+     * Test that empty patterns are ignored, and a text without any pattern has no matches.
+     */
+    @Test
+    public void testNoMatch() {
+        Assert.assertTrue(search(Arrays.asList("", "xyz"), "abc").isEmpty());
+        Assert.assertTrue(search(Arrays.asList("abc"), "").isEmpty());
+    }
+
+}
@@ -3,7 +3,9 @@ package edu.uci.ics.textdb.dataflow.dictionarymatcher;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.junit.AfterClass;
 import org.junit.Assert;
@@ -15,10 +17,13 @@ import edu.uci.ics.textdb.api.common.IDictionary;
 import edu.uci.ics.textdb.api.common.IField;
 import edu.uci.ics.textdb.api.common.ITuple;
 import edu.uci.ics.textdb.api.common.Schema;
+import edu.uci.ics.textdb.api.dataflow.CancellationToken;
 import edu.uci.ics.textdb.common.constants.DataConstants.KeywordMatchingType;
 import edu.uci.ics.textdb.common.constants.SchemaConstants;
 import edu.uci.ics.textdb.common.constants.TestConstants;
 import edu.uci.ics.textdb.common.constants.TestConstantsChinese;
+import edu.uci.ics.textdb.common.exception.DataFlowException;
+import edu.uci.ics.textdb.common.exception.ErrorMessages;
 import edu.uci.ics.textdb.common.field.DataTuple;
 import edu.uci.ics.textdb.common.field.DateField;
 import edu.uci.ics.textdb.common.field.DoubleField;
@@ -29,7 +34,10 @@ import edu.uci.ics.textdb.common.field.StringField;
 import edu.uci.ics.textdb.common.field.TextField;
 import edu.uci.ics.textdb.common.utils.Utils;
 import edu.uci.ics.textdb.dataflow.common.Dictionary;
+import edu.uci.ics.textdb.dataflow.common.DictionaryPredicate;
+import edu.uci.ics.textdb.dataflow.source.ScanBasedSourceOperator;
 import edu.uci.ics.textdb.dataflow.utils.TestUtils;
+import edu.uci.ics.textdb.storage.RelationManager;
 
 /**
  * @author rajeshyarlagadda
@@ -1076,4 +1084,146 @@ public class DictionaryMatcherTest {
         Assert.assertTrue(TestUtils.containsAll(expectedList, resultList));
     }
     
-}
\ No newline at end of file
+    /**
+     * Scenario: verifies that substring matching finds all the dictionary entries in a tuple,
+     *   the spans of the entries are returned in one tuple, ordered by their offsets.
+     */
+    @Test
+    public void testMultipleEntriesInOneTupleUsingScan() throws Exception {
+        ArrayList<String> names = new ArrayList<String>(Arrays.asList("angry", "short"));
+        IDictionary dictionary = new Dictionary(names);
+        List<String> attributeNames = Arrays.asList(TestConstants.DESCRIPTION);
+
+        List<ITuple> returnedResults = DictionaryMatcherTestHelper.getDictionarySourceResults(PEOPLE_TABLE, 
+                dictionary, attributeNames, KeywordMatchingType.SUBSTRING_SCANBASED, Integer.MAX_VALUE, 0);
+        dictionary.resetCursor();
+        Assert.assertEquals(5, returnedResults.size());
+
+        List<Span> expectedSpans = Arrays.asList(
+                new Span(TestConstants.DESCRIPTION, 15, 20, "short", "Short"),
+                new Span(TestConstants.DESCRIPTION, 40, 45, "angry", "Angry"));
+        boolean found = false;
+        for (ITuple tuple : returnedResults) {
+            if (tuple.getField(TestConstants.DESCRIPTION).getValue().equals(
+                    "Lin Clooney is Short and lin clooney is Angry")) {
+                Assert.assertEquals(expectedSpans, tuple.getField(SchemaConstants.SPAN_LIST).getValue());
+                found = true;
+            }
+        }
+        Assert.assertTrue(found);
+    }
+    
+    /**
+     * Scenario: verifies that the single-pass mode of conjunction and phrase matching returns each document once,
+     *   with the spans of all the entries it matches, the same spans as matching the entries one by one.
+     */
+    @Test
+    public void testMultipleEntriesUsingSinglePass() throws Exception {
+        ArrayList<String> names = new ArrayList<String>(Arrays.asList("short", "lin clooney", "angry", "george lin lin"));
+        IDictionary dictionary = new Dictionary(names);
+        List<String> attributeNames = Arrays.asList(TestConstants.FIRST_NAME, TestConstants.LAST_NAME,
+                TestConstants.DESCRIPTION);
+
+        for (KeywordMatchingType matchingType : Arrays.asList(KeywordMatchingType.CONJUNCTION_INDEXBASED,
+                KeywordMatchingType.PHRASE_INDEXBASED)) {
+            List<ITuple> entryResults = DictionaryMatcherTestHelper.getDictionarySourceResults(PEOPLE_TABLE, 
+                    dictionary, attributeNames, matchingType, Integer.MAX_VALUE, 0);
+            dictionary.resetCursor();
+
+            // the results of the entries are returned one entry after another, group their spans by document
+            Map<List<IField>, List<Span>> expectedSpans = new LinkedHashMap<>();
+            for (ITuple tuple : Utils.removeFields(entryResults, SchemaConstants.PAYLOAD)) {
+                List<IField> documentFields = new ArrayList<>(tuple.getFields());
+                ListField<?> spanField = (ListField<?>) documentFields.remove(documentFields.size() - 1);
+                for (Object span : spanField.getValue()) {
+                    expectedSpans.computeIfAbsent(documentFields, key -> new ArrayList<>()).add((Span) span);
+                }
+            }
+
+            DictionaryMatcherSourceOperator dictionarySource = new DictionaryMatcherSourceOperator(
+                    new DictionaryPredicate(dictionary, attributeNames, 
+                            RelationManager.getRelationManager().getTableAnalyzer(PEOPLE_TABLE), matchingType),
+                    PEOPLE_TABLE);
+            dictionarySource.setSinglePass(true);
+            List<ITuple> singlePassResults = new ArrayList<>();
+            ITuple tuple;
+            dictionarySource.open();
+            while ((tuple = dictionarySource.getNextTuple()) != null) {
+                singlePassResults.add(tuple);
+            }
+            dictionarySource.close();
+            dictionary.resetCursor();
+
+            Assert.assertTrue(expectedSpans.size() < entryResults.size());
+            Assert.assertEquals(expectedSpans.size(), singlePassResults.size());
+            for (ITuple singlePassTuple : Utils.removeFields(singlePassResults, SchemaConstants.PAYLOAD)) {
+                List<IField> documentFields = new ArrayList<>(singlePassTuple.getFields());
+                ListField<?> spanField = (ListField<?>) documentFields.remove(documentFields.size() - 1);
+                Assert.assertEquals(expectedSpans.get(documentFields), spanField.getValue());
+            }
+        }
+    }
+
+    /**
+     * Verifies that the dictionary source operator stops once the query is cancelled,
+     *   in each matching mode, in the middle of the results.
+     */
+    @Test
+    public void testCancelDictionarySource() throws Exception {
+        List<String> attributeNames = Arrays.asList(TestConstants.DESCRIPTION);
+        for (KeywordMatchingType matchingType : Arrays.asList(KeywordMatchingType.CONJUNCTION_INDEXBASED,
+                KeywordMatchingType.PHRASE_INDEXBASED, KeywordMatchingType.SUBSTRING_SCANBASED)) {
+            DictionaryMatcherSourceOperator dictionarySource = new DictionaryMatcherSourceOperator(
+                    new DictionaryPredicate(new Dictionary(Arrays.asList("angry", "short")), attributeNames,
+                            RelationManager.getRelationManager().getTableAnalyzer(PEOPLE_TABLE), matchingType),
+                    PEOPLE_TABLE);
+
+            CancellationToken cancellationToken = new CancellationToken();
+            dictionarySource.open(cancellationToken);
+            Assert.assertNotNull(dictionarySource.getNextTuple());
+
+            cancellationToken.cancel();
+            try {
+                dictionarySource.getNextTuple();
+                Assert.fail("a cancelled query should throw an exception");
+            } catch (DataFlowException e) {
+                Assert.assertEquals(ErrorMessages.QUERY_CANCELLED, e.getMessage());
+            }
+            dictionarySource.close();
+        }
+    }
+
+    /**
+     * Verifies that a DictionaryMatcher opened with a token opens its input with the same token,
+     *   and both of them stop once the query is cancelled.
+     */
+    @Test
+    public void testCancelDictionaryMatcher() throws Exception {
+        ScanBasedSourceOperator scanSource = new ScanBasedSourceOperator(PEOPLE_TABLE);
+        DictionaryMatcher dictionaryMatcher = new DictionaryMatcher(new DictionaryPredicate(
+                new Dictionary(Arrays.asList("angry", "short")), Arrays.asList(TestConstants.DESCRIPTION),
+                RelationManager.getRelationManager().getTableAnalyzer(PEOPLE_TABLE),
+                KeywordMatchingType.CONJUNCTION_INDEXBASED));
+        dictionaryMatcher.setInputOperator(scanSource);
+
+        CancellationToken cancellationToken = new CancellationToken();
+        dictionaryMatcher.open(cancellationToken);
+        Assert.assertNotNull(dictionaryMatcher.getNextTuple());
+
+        cancellationToken.cancel();
+        try {
+            dictionaryMatcher.getNextTuple();
+            Assert.fail("a cancelled query should throw an exception");
+        } catch (DataFlowException e) {
+            Assert.assertEquals(ErrorMessages.QUERY_CANCELLED, e.getMessage());
+        }
+        try {
+            scanSource.getNextTuple();
+            Assert.fail("the input of a cancelled query should throw an exception");
+        } catch (DataFlowException e) {
+            Assert.assertEquals(ErrorMessages.QUERY_CANCELLED, e.getMessage());
+        }
+        dictionaryMatcher.close();
+    }
+    
+}
@@ -1,7 +1,9 @@
 package edu.uci.ics.textdb.dataflow.join;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 import java.util.stream.Collectors;
 
 import org.junit.After;
@@ -14,11 +16,16 @@ import edu.uci.ics.textdb.api.common.FieldType;
 import edu.uci.ics.textdb.api.common.IField;
 import edu.uci.ics.textdb.api.common.ITuple;
 import edu.uci.ics.textdb.api.common.Schema;
+import edu.uci.ics.textdb.api.dataflow.CancellationToken;
+import edu.uci.ics.textdb.api.dataflow.IOperator;
 import edu.uci.ics.textdb.api.exception.TextDBException;
 import edu.uci.ics.textdb.common.constants.LuceneAnalyzerConstants;
+import edu.uci.ics.textdb.common.constants.SchemaConstants;
 import edu.uci.ics.textdb.common.constants.DataConstants.KeywordMatchingType;
 import edu.uci.ics.textdb.common.exception.DataFlowException;
+import edu.uci.ics.textdb.common.exception.ErrorMessages;
 import edu.uci.ics.textdb.common.field.DataTuple;
+import edu.uci.ics.textdb.common.field.IDField;
 import edu.uci.ics.textdb.common.field.IntegerField;
 import edu.uci.ics.textdb.common.field.ListField;
 import edu.uci.ics.textdb.common.field.Span;
@@ -27,6 +34,7 @@ import edu.uci.ics.textdb.common.field.TextField;
 import edu.uci.ics.textdb.common.utils.Utils;
 import edu.uci.ics.textdb.dataflow.common.FuzzyTokenPredicate;
 import edu.uci.ics.textdb.dataflow.common.JoinDistancePredicate;
+import edu.uci.ics.textdb.dataflow.connector.OneToNBroadcastConnector;
 import edu.uci.ics.textdb.dataflow.fuzzytokenmatcher.FuzzyTokenMatcherSourceOperator;
 import edu.uci.ics.textdb.dataflow.keywordmatch.KeywordMatcherSourceOperator;
 import edu.uci.ics.textdb.dataflow.projection.ProjectionOperator;
@@ -164,6 +172,43 @@ public class JoinDistanceTest {
         Assert.assertEquals(0, resultList.size());
     }
     
+    /*
+     * This case tests that a Join opened with a token opens both operators with the same token,
+     *   and they stop once the query is cancelled, in the middle of the results.
+     */
+    @Test
+    public void testCancelJoin() throws Exception {
+        JoinTestHelper.insertToTable(BOOK_TABLE, JoinTestConstants.bookGroup1);
+        JoinTestHelper.insertToTable(BOOK_TABLE, JoinTestConstants.bookGroup1);
+
+        KeywordMatcherSourceOperator keywordSourceOuter = 
+                JoinTestHelper.getKeywordSource(BOOK_TABLE, "special", conjunction);
+        KeywordMatcherSourceOperator keywordSourceInner = 
+                JoinTestHelper.getKeywordSource(BOOK_TABLE, "writer", conjunction);
+        Join join = new Join(new JoinDistancePredicate(JoinTestConstants.REVIEW, 20));
+        join.setOuterInputOperator(keywordSourceOuter);
+        join.setInnerInputOperator(keywordSourceInner);
+
+        CancellationToken cancellationToken = new CancellationToken();
+        join.open(cancellationToken);
+        Assert.assertNotNull(join.getNextTuple());
+
+        cancellationToken.cancel();
+        try {
+            join.getNextTuple();
+            Assert.fail("a cancelled query should throw an exception");
+        } catch (DataFlowException e) {
+            Assert.assertEquals(ErrorMessages.QUERY_CANCELLED, e.getMessage());
+        }
+        try {
+            keywordSourceOuter.getNextTuple();
+            Assert.fail("the outer operator of a cancelled query should throw an exception");
+        } catch (DataFlowException e) {
+            Assert.assertEquals(ErrorMessages.QUERY_CANCELLED, e.getMessage());
+        }
+        join.close();
+    }
+    
     // This case tests for the scenario when either/both of the operators'
     // result lists are empty (i.e. when one/both of the operators' are
     // not able to find any suitable matches)
@@ -892,4 +937,157 @@ public class JoinDistanceTest {
         }
     }
 
-}
\ No newline at end of file
+    /*
+     * This case tests the hash join when the inner operator doesn't fit in the memory budget.
+     * 
+     * Test result: The results are the same as the results of the nested loop join.
+     */
+    @Test
+    public void testHashJoinSpillsToDisk() throws Exception {
+        JoinTestHelper.insertToTable(BOOK_TABLE, JoinTestConstants.bookGroup1);
+        JoinDistancePredicate distancePredicate = new JoinDistancePredicate(JoinTestConstants.REVIEW, 90);
+
+        List<List<ITuple>> resultLists = new ArrayList<>();
+        for (boolean hashJoinEnabled : Arrays.asList(false, true)) {
+            Join join = new Join(distancePredicate);
+            join.setOuterInputOperator(JoinTestHelper.getKeywordSource(BOOK_TABLE, "typical", conjunction));
+            join.setInnerInputOperator(JoinTestHelper.getKeywordSource(BOOK_TABLE, "actually", conjunction));
+            join.setHashJoinEnabled(hashJoinEnabled);
+            join.setHashJoinMemoryBudget(1);
+
+            List<ITuple> resultList = new ArrayList<>();
+            ITuple tuple;
+            join.open();
+            while ((tuple = join.getNextTuple()) != null) {
+                resultList.add(tuple);
+            }
+            join.close();
+            resultLists.add(resultList);
+        }
+
+        Assert.assertFalse(resultLists.get(0).isEmpty());
+        Assert.assertTrue(TestUtils.equals(resultLists.get(0), resultLists.get(1)));
+    }
+
+    /*
+     * This case tests the sorted sweep of JoinDistancePredicate against comparing every pair of spans,
+     *   on span lists with overlapping spans, duplicate spans, and spans of another attribute.
+     * 
+     * Test result: The result spans are the same and in the same order.
+     */
+    @Test
+    public void testSweepMatchesNestedLoop() throws Exception {
+        String otherAttribute = "other";
+        Schema schema = new Schema(SchemaConstants._ID_ATTRIBUTE, new Attribute(JoinTestConstants.REVIEW, FieldType.TEXT),
+                SchemaConstants.SPAN_LIST_ATTRIBUTE);
+        char[] chars = new char[200];
+        Arrays.fill(chars, 'a');
+        String review = new String(chars);
+        Random random = new Random(42);
+
+        for (int threshold : Arrays.asList(0, 1, 5, 20)) {
+            JoinDistancePredicate distancePredicate = new JoinDistancePredicate(JoinTestConstants.REVIEW, threshold);
+            for (int i = 0; i < 50; i++) {
+                List<Span> outerSpans = new ArrayList<>();
+                List<Span> innerSpans = new ArrayList<>();
+                for (List<Span> spans : Arrays.asList(outerSpans, innerSpans)) {
+                    int numberOfSpans = random.nextInt(12);
+                    for (int j = 0; j < numberOfSpans; j++) {
+                        int start = random.nextInt(50);
+                        int end = start + random.nextInt(15);
+                        String attribute = random.nextInt(5) == 0 ? otherAttribute : JoinTestConstants.REVIEW;
+                        Span span = new Span(attribute, start, end, "key" + j, review.substring(start, end));
+                        spans.add(span);
+                        // duplicate spans
+                        if (random.nextInt(4) == 0) {
+                            spans.add(span);
+                        }
+                    }
+                }
+                ITuple outerTuple = new DataTuple(schema, new IDField("1"), new TextField(review), 
+                        new ListField<>(outerSpans));
+                ITuple innerTuple = new DataTuple(schema, new IDField("1"), new TextField(review), 
+                        new ListField<>(innerSpans));
+
+                List<Span> expectedSpans = new ArrayList<>();
+                for (Span outerSpan : outerSpans) {
+                    for (Span innerSpan : innerSpans) {
+                        if (outerSpan.getFieldName().equals(JoinTestConstants.REVIEW) 
+                                && innerSpan.getFieldName().equals(JoinTestConstants.REVIEW)
+                                && Math.abs(outerSpan.getStart() - innerSpan.getStart()) <= threshold
+                                && Math.abs(outerSpan.getEnd() - innerSpan.getEnd()) <= threshold) {
+                            int start = Math.min(outerSpan.getStart(), innerSpan.getStart());
+                            int end = Math.max(outerSpan.getEnd(), innerSpan.getEnd());
+                            expectedSpans.add(new Span(JoinTestConstants.REVIEW, start, end, 
+                                    outerSpan.getKey() + "_" + innerSpan.getKey(), review.substring(start, end)));
+                        }
+                    }
+                }
+
+                ITuple resultTuple = distancePredicate.joinTuples(outerTuple, innerTuple, schema);
+                if (expectedSpans.isEmpty()) {
+                    Assert.assertNull(resultTuple);
+                } else {
+                    Assert.assertEquals(expectedSpans, resultTuple.getField(SchemaConstants.SPAN_LIST).getValue());
+                }
+            }
+        }
+    }
+
+    /*
+     * This case tests a self join of the outputs of a connector,
+     *   the input of the connector is opened only once.
+     */
+    @Test
+    public void testJoinOfConnectorOutputs() throws Exception {
+        JoinTestHelper.insertToTable(BOOK_TABLE, JoinTestConstants.bookGroup1);
+        
+        List<ITuple> expectedResults = JoinTestHelper.getJoinDistanceResults(
+                JoinTestHelper.getKeywordSource(BOOK_TABLE, "special", conjunction),
+                JoinTestHelper.getKeywordSource(BOOK_TABLE, "special", conjunction),
+                new JoinDistancePredicate(JoinTestConstants.REVIEW, 20), Integer.MAX_VALUE, 0);
+        
+        OpenCountingOperator keywordSource = new OpenCountingOperator(
+                JoinTestHelper.getKeywordSource(BOOK_TABLE, "special", conjunction));
+        OneToNBroadcastConnector connector = new OneToNBroadcastConnector(2);
+        connector.setInputOperator(keywordSource);
+        List<ITuple> resultList = JoinTestHelper.getJoinDistanceResults(
+                connector.getOutputOperator(0), connector.getOutputOperator(1),
+                new JoinDistancePredicate(JoinTestConstants.REVIEW, 20), Integer.MAX_VALUE, 0);
+        
+        Assert.assertFalse(expectedResults.isEmpty());
+        Assert.assertTrue(TestUtils.equals(expectedResults, resultList));
+        Assert.assertEquals(1, keywordSource.openCount);
+    }
+    
+    private static class OpenCountingOperator implements IOperator {
+        private final IOperator inputOperator;
+        private int openCount = 0;
+        
+        OpenCountingOperator(IOperator inputOperator) {
+            this.inputOperator = inputOperator;
+        }
+        
+        @Override
+        public void open() throws TextDBException {
+            openCount++;
+            inputOperator.open();
+        }
+        
+        @Override
+        public ITuple getNextTuple() throws TextDBException {
+            return inputOperator.getNextTuple();
+        }
+        
+        @Override
+        public void close() throws TextDBException {
+            inputOperator.close();
+        }
+        
+        @Override
+        public Schema getOutputSchema() {
+            return inputOperator.getOutputSchema();
+        }
+    }
+
+}
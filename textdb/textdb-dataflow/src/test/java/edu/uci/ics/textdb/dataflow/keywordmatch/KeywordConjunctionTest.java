@@ -2,6 +2,7 @@ package edu.uci.ics.textdb.dataflow.keywordmatch;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import edu.uci.ics.textdb.api.exception.TextDBException;
@@ -15,10 +16,13 @@ import edu.uci.ics.textdb.api.common.Attribute;
 import edu.uci.ics.textdb.api.common.IField;
 import edu.uci.ics.textdb.api.common.ITuple;
 import edu.uci.ics.textdb.api.common.Schema;
+import edu.uci.ics.textdb.api.dataflow.CancellationToken;
 import edu.uci.ics.textdb.common.constants.DataConstants.KeywordMatchingType;
 import edu.uci.ics.textdb.common.constants.SchemaConstants;
 import edu.uci.ics.textdb.common.constants.TestConstants;
 import edu.uci.ics.textdb.common.constants.TestConstantsChinese;
+import edu.uci.ics.textdb.common.exception.DataFlowException;
+import edu.uci.ics.textdb.common.exception.ErrorMessages;
 import edu.uci.ics.textdb.common.field.DataTuple;
 import edu.uci.ics.textdb.common.field.DateField;
 import edu.uci.ics.textdb.common.field.DoubleField;
@@ -28,7 +32,10 @@ import edu.uci.ics.textdb.common.field.Span;
 import edu.uci.ics.textdb.common.field.StringField;
 import edu.uci.ics.textdb.common.field.TextField;
 import edu.uci.ics.textdb.common.utils.Utils;
+import edu.uci.ics.textdb.dataflow.common.KeywordPredicate;
+import edu.uci.ics.textdb.dataflow.source.ScanBasedSourceOperator;
 import edu.uci.ics.textdb.dataflow.utils.TestUtils;
+import edu.uci.ics.textdb.storage.RelationManager;
 
 /**
  * @author Prakul
@@ -61,6 +68,40 @@ public class KeywordConjunctionTest {
      * 
      * @throws Exception
      */
+    /**
+     * Verifies that a KeywordMatcher opened with a token opens its input with the same token,
+     *   and both of them stop once the query is cancelled.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testCancelKeywordMatcher() throws Exception {
+        ScanBasedSourceOperator scanSource = new ScanBasedSourceOperator(PEOPLE_TABLE);
+        KeywordMatcher keywordMatcher = new KeywordMatcher(new KeywordPredicate("angry",
+                Arrays.asList(TestConstants.DESCRIPTION),
+                RelationManager.getRelationManager().getTableAnalyzer(PEOPLE_TABLE), conjunction));
+        keywordMatcher.setInputOperator(scanSource);
+
+        CancellationToken cancellationToken = new CancellationToken();
+        keywordMatcher.open(cancellationToken);
+        Assert.assertNotNull(keywordMatcher.getNextTuple());
+
+        cancellationToken.cancel();
+        try {
+            keywordMatcher.getNextTuple();
+            Assert.fail("a cancelled query should throw an exception");
+        } catch (DataFlowException e) {
+            Assert.assertEquals(ErrorMessages.QUERY_CANCELLED, e.getMessage());
+        }
+        try {
+            scanSource.getNextTuple();
+            Assert.fail("the input of a cancelled query should throw an exception");
+        } catch (DataFlowException e) {
+            Assert.assertEquals(ErrorMessages.QUERY_CANCELLED, e.getMessage());
+        }
+        keywordMatcher.close();
+    }
+
     @Test
     public void testKeywordMatcher() throws Exception {
         // Prepare the query
@@ -516,4 +557,39 @@ public class KeywordConjunctionTest {
         Assert.assertTrue(contains);
     }
 
+    /*
+     * The payload of a keyword source only has the spans of its own query tokens,
+     *   test that a keyword matcher after it can still match other tokens.
+     */
+    @Test
+    public void testKeywordMatcherAfterKeywordSource() throws Exception {
+        List<String> attributeNames = new ArrayList<>();
+        attributeNames.add(TestConstants.DESCRIPTION);
+
+        RelationManager relationManager = RelationManager.getRelationManager();
+        KeywordMatcherSourceOperator keywordSource = new KeywordMatcherSourceOperator(
+                new KeywordPredicate("angry", attributeNames, relationManager.getTableAnalyzer(PEOPLE_TABLE),
+                        conjunction), PEOPLE_TABLE);
+        KeywordMatcher keywordMatcher = new KeywordMatcher(
+                new KeywordPredicate("short", attributeNames, relationManager.getTableAnalyzer(PEOPLE_TABLE),
+                        conjunction));
+        keywordMatcher.setInputOperator(keywordSource);
+
+        List<ITuple> results = new ArrayList<>();
+        ITuple tuple;
+        keywordMatcher.open();
+        while ((tuple = keywordMatcher.getNextTuple()) != null) {
+            results.add(tuple);
+        }
+        keywordMatcher.close();
+
+        // "Lin Clooney is Short and lin clooney is Angry", "Short angry"
+        Assert.assertEquals(2, results.size());
+        for (ITuple result : results) {
+            @SuppressWarnings("unchecked")
+            List<Span> spanList = (List<Span>) result.getField(SchemaConstants.SPAN_LIST).getValue();
+            Assert.assertTrue(spanList.stream().anyMatch(span -> span.getKey().equals("short")));
+        }
+    }
+
 }
@@ -1,9 +1,12 @@
 package edu.uci.ics.textdb.dataflow.nlpextractor;
 
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.FSDirectory;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Assert;
@@ -15,6 +18,7 @@ import edu.uci.ics.textdb.api.exception.TextDBException;
 import edu.uci.ics.textdb.common.constants.LuceneAnalyzerConstants;
 import edu.uci.ics.textdb.common.constants.SchemaConstants;
 import edu.uci.ics.textdb.common.utils.Utils;
+import edu.uci.ics.textdb.dataflow.nlpextrator.NlpAnnotationCache;
 import edu.uci.ics.textdb.dataflow.nlpextrator.NlpExtractor;
 import edu.uci.ics.textdb.dataflow.nlpextrator.NlpPredicate;
 import edu.uci.ics.textdb.dataflow.source.ScanBasedSourceOperator;
@@ -79,12 +83,18 @@ public class NlpExtractorTest {
     
     public List<ITuple> getQueryResults(String tableName, List<String> attributeNames,
             NlpPredicate.NlpTokenType nlpTokenType, int limit, int offset) throws Exception {
+        return getQueryResults(tableName, attributeNames, nlpTokenType, limit, offset, 1);
+    }
+    
+    public List<ITuple> getQueryResults(String tableName, List<String> attributeNames,
+            NlpPredicate.NlpTokenType nlpTokenType, int limit, int offset, int numberOfThreads) throws Exception {
         
         ScanBasedSourceOperator scanSource = new ScanBasedSourceOperator(tableName);
 
         NlpPredicate nlpPredicate = new NlpPredicate(nlpTokenType, attributeNames);
         NlpExtractor nlpExtractor = new NlpExtractor(nlpPredicate);
         nlpExtractor.setInputOperator(scanSource);
+        nlpExtractor.setNumberOfThreads(numberOfThreads);
 
         nlpExtractor.setLimit(limit);
         nlpExtractor.setOffset(offset);
@@ -434,6 +444,75 @@ public class NlpExtractorTest {
         Assert.assertTrue(TestUtils.containsAll(expectedResults, returnedResults));
     }
     
+    /*
+     * Test that the results of multiple threads are the same as one thread, in the same order.
+     */
+    @Test
+    public void getNextTupleTestWithMultipleThreads() throws Exception {
+        List<ITuple> data = NlpExtractorTestConstants.getOneSentenceTestTuple();
+
+        DataWriter oneSentenceDataWriter = RelationManager.getRelationManager().getTableDataWriter(ONE_SENTENCE_TABLE);
+        oneSentenceDataWriter.open();
+        for (ITuple tuple : data) {
+            oneSentenceDataWriter.insertTuple(tuple);
+        }
+        oneSentenceDataWriter.close();
+        
+        List<String> attributeNames = Arrays.asList(NlpExtractorTestConstants.SENTENCE_ONE);
+        
+        List<ITuple> expectedResults = getQueryResults(ONE_SENTENCE_TABLE, attributeNames, 
+                NlpPredicate.NlpTokenType.Noun, Integer.MAX_VALUE, 0, 1);
+        List<ITuple> returnedResults = getQueryResults(ONE_SENTENCE_TABLE, attributeNames, 
+                NlpPredicate.NlpTokenType.Noun, Integer.MAX_VALUE, 0, 4);
+        
+        Assert.assertFalse(expectedResults.isEmpty());
+        Assert.assertEquals(expectedResults, returnedResults);
+    }
+    
+    /*
+     * Test that the results are the same when the annotations are cached, and read from the cache.
+     */
+    @Test
+    public void getNextTupleTestWithAnnotationCache() throws Exception {
+        List<ITuple> data = NlpExtractorTestConstants.getOneSentenceTestTuple();
+
+        DataWriter oneSentenceDataWriter = RelationManager.getRelationManager().getTableDataWriter(ONE_SENTENCE_TABLE);
+        oneSentenceDataWriter.open();
+        for (ITuple tuple : data) {
+            oneSentenceDataWriter.insertTuple(tuple);
+        }
+        oneSentenceDataWriter.close();
+        
+        List<String> attributeNames = Arrays.asList(NlpExtractorTestConstants.SENTENCE_ONE);
+        String cacheDirectory = Paths.get(RelationManager.getRelationManager().getTableDirectory(ONE_SENTENCE_TABLE), 
+                NlpAnnotationCache.CACHE_DIRECTORY_NAME).toString();
+        
+        List<ITuple> expectedResults = getQueryResults(ONE_SENTENCE_TABLE, attributeNames, NlpPredicate.NlpTokenType.Verb);
+        
+        List<List<ITuple>> cachedResults = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            NlpExtractor nlpExtractor = new NlpExtractor(
+                    new NlpPredicate(NlpPredicate.NlpTokenType.Verb, attributeNames));
+            nlpExtractor.setInputOperator(new ScanBasedSourceOperator(ONE_SENTENCE_TABLE));
+            nlpExtractor.setAnnotationCacheDirectory(cacheDirectory);
+            
+            List<ITuple> results = new ArrayList<>();
+            ITuple nextTuple;
+            nlpExtractor.open();
+            while ((nextTuple = nlpExtractor.getNextTuple()) != null) {
+                results.add(nextTuple);
+            }
+            nlpExtractor.close();
+            cachedResults.add(results);
+            
+            Assert.assertTrue(DirectoryReader.indexExists(FSDirectory.open(Paths.get(cacheDirectory))));
+        }
+        
+        Assert.assertFalse(expectedResults.isEmpty());
+        Assert.assertEquals(expectedResults, cachedResults.get(0));
+        Assert.assertEquals(expectedResults, cachedResults.get(1));
+    }
+    
     public void getNextTupleTestWithLimitOffset() throws Exception {
         List<ITuple> data = NlpExtractorTestConstants.getOneSentenceTestTuple();
 
@@ -0,0 +1,144 @@
+package edu.uci.ics.textdb.dataflow.nlpextractor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import edu.uci.ics.textdb.api.common.ITuple;
+import edu.uci.ics.textdb.api.dataflow.IOperator;
+import edu.uci.ics.textdb.api.exception.TextDBException;
+import edu.uci.ics.textdb.common.constants.LuceneAnalyzerConstants;
+import edu.uci.ics.textdb.common.constants.SchemaConstants;
+import edu.uci.ics.textdb.common.field.Span;
+import edu.uci.ics.textdb.common.utils.Utils;
+import edu.uci.ics.textdb.dataflow.nlpextrator.NlpExtractor;
+import edu.uci.ics.textdb.dataflow.nlpextrator.NlpPredicate;
+import edu.uci.ics.textdb.dataflow.nlpextrator.NlpSourceOperator;
+import edu.uci.ics.textdb.dataflow.nlpextrator.PosSpanAnnotator;
+import edu.uci.ics.textdb.dataflow.source.ScanBasedSourceOperator;
+import edu.uci.ics.textdb.storage.DataWriter;
+import edu.uci.ics.textdb.storage.RelationManager;
+
+/*
+ * The tables are annotated by PosSpanAnnotator,
+ *   because the named entity recognizer is much slower than the part of speech tagger.
+ */
+public class NlpSourceOperatorTest {
+
+    public static final String ANNOTATED_TABLE = "nlp_source_test_annotated";
+    public static final String NOT_ANNOTATED_TABLE = "nlp_source_test_not_annotated";
+
+    @BeforeClass
+    public static void setUp() throws TextDBException {
+        RelationManager relationManager = RelationManager.getRelationManager();
+
+        relationManager.createTable(ANNOTATED_TABLE, "../index/test_tables/" + ANNOTATED_TABLE,
+                NlpExtractorTestConstants.SCHEMA_ONE_SENTENCE, LuceneAnalyzerConstants.standardAnalyzerString(),
+                false, new PosSpanAnnotator());
+        relationManager.createTable(NOT_ANNOTATED_TABLE, "../index/test_tables/" + NOT_ANNOTATED_TABLE,
+                NlpExtractorTestConstants.SCHEMA_ONE_SENTENCE, LuceneAnalyzerConstants.standardAnalyzerString());
+
+        for (String tableName : Arrays.asList(ANNOTATED_TABLE, NOT_ANNOTATED_TABLE)) {
+            DataWriter dataWriter = relationManager.getTableDataWriter(tableName);
+            dataWriter.open();
+            for (ITuple tuple : NlpExtractorTestConstants.getOneSentenceTestTuple()) {
+                dataWriter.insertTuple(tuple);
+            }
+            dataWriter.close();
+        }
+    }
+
+    @AfterClass
+    public static void cleanUp() throws Exception {
+        RelationManager relationManager = RelationManager.getRelationManager();
+        relationManager.deleteTable(ANNOTATED_TABLE);
+        relationManager.deleteTable(NOT_ANNOTATED_TABLE);
+    }
+
+    /*
+     * Test that the spans read from the annotation index are the same as the spans of NlpExtractor.
+     */
+    @Test
+    public void testAnnotatedTable() throws Exception {
+        List<String> attributeNames = Arrays.asList(NlpExtractorTestConstants.SENTENCE_ONE);
+        NlpPredicate predicate = new NlpPredicate(NlpPredicate.NlpTokenType.Noun, attributeNames);
+
+        Assert.assertTrue(RelationManager.getRelationManager().getTableSpanAnnotator(ANNOTATED_TABLE)
+                instanceof PosSpanAnnotator);
+
+        NlpSourceOperator nlpSource = new NlpSourceOperator(predicate, ANNOTATED_TABLE);
+        Assert.assertTrue(nlpSource.isAnnotationIndexUsed());
+
+        List<ITuple> expectedResults = getExtractorResults(ANNOTATED_TABLE, predicate);
+        List<ITuple> returnedResults = getResults(nlpSource);
+
+        Assert.assertFalse(expectedResults.isEmpty());
+        Assert.assertEquals(expectedResults, returnedResults);
+    }
+
+    /*
+     * Test that only the spans containing the keyword are returned.
+     */
+    @Test
+    public void testAnnotatedTableWithKeyword() throws Exception {
+        List<String> attributeNames = Arrays.asList(NlpExtractorTestConstants.SENTENCE_ONE);
+        NlpPredicate predicate = new NlpPredicate(NlpPredicate.NlpTokenType.Noun, attributeNames);
+
+        List<ITuple> returnedResults = getResults(new NlpSourceOperator(predicate, ANNOTATED_TABLE, "Google"));
+
+        // "Microsoft, Google and Facebook are organizations." and the same sentence with persons
+        Assert.assertEquals(2, returnedResults.size());
+        for (ITuple tuple : returnedResults) {
+            @SuppressWarnings("unchecked")
+            List<Span> spanList = (List<Span>) tuple.getField(SchemaConstants.SPAN_LIST).getValue();
+            Assert.assertEquals(1, spanList.size());
+            Assert.assertEquals("Google", spanList.get(0).getValue());
+            Assert.assertEquals(NlpPredicate.NlpTokenType.Noun.toString(), spanList.get(0).getKey());
+        }
+    }
+
+    /*
+     * Test that the table is scanned if it's not annotated, or the token type is not annotated.
+     */
+    @Test
+    public void testNotAnnotatedTable() throws Exception {
+        List<String> attributeNames = Arrays.asList(NlpExtractorTestConstants.SENTENCE_ONE);
+        NlpPredicate predicate = new NlpPredicate(NlpPredicate.NlpTokenType.Verb, attributeNames);
+
+        NlpSourceOperator nlpSource = new NlpSourceOperator(predicate, NOT_ANNOTATED_TABLE);
+        Assert.assertFalse(nlpSource.isAnnotationIndexUsed());
+
+        List<ITuple> expectedResults = getExtractorResults(NOT_ANNOTATED_TABLE, predicate);
+        List<ITuple> returnedResults = getResults(nlpSource);
+
+        Assert.assertFalse(expectedResults.isEmpty());
+        Assert.assertEquals(expectedResults, returnedResults);
+
+        NlpPredicate namedEntityPredicate = new NlpPredicate(NlpPredicate.NlpTokenType.Location, attributeNames);
+        Assert.assertFalse(new NlpSourceOperator(namedEntityPredicate, ANNOTATED_TABLE).isAnnotationIndexUsed());
+    }
+
+    private static List<ITuple> getExtractorResults(String tableName, NlpPredicate predicate) throws TextDBException {
+        NlpExtractor nlpExtractor = new NlpExtractor(predicate);
+        nlpExtractor.setInputOperator(new ScanBasedSourceOperator(tableName));
+        // NlpSourceOperator doesn't add the payload
+        return Utils.removeFields(getResults(nlpExtractor), SchemaConstants.PAYLOAD);
+    }
+
+    private static List<ITuple> getResults(IOperator operator) throws TextDBException {
+        List<ITuple> results = new ArrayList<>();
+        ITuple nextTuple;
+        operator.open();
+        while ((nextTuple = operator.getNextTuple()) != null) {
+            results.add(nextTuple);
+        }
+        operator.close();
+        return results;
+    }
+
+}
@@ -117,5 +117,31 @@ public class ProjectionOperatorTest {
         
         Assert.assertTrue(TestUtils.equals(expectedResults, returnedResults));
     }
+    
+    /*
+     * Test that the batches have the same tuples as getNextTuple(), with the limit and the offset.
+     */
+    @Test
+    public void testProjectionBatch() throws Exception {
+        List<String> projectionFields = Arrays.asList(TestConstants.FIRST_NAME);
+        ProjectionOperator projection = new ProjectionOperator(new ProjectionPredicate(projectionFields));
+        projection.setInputOperator(new ScanBasedSourceOperator(PEOPLE_TABLE));
+        projection.setOffset(1);
+        projection.setLimit(4);
+        projection.open();
+        
+        List<ITuple> returnedResults = new ArrayList<>();
+        List<ITuple> tupleBatch;
+        while (! (tupleBatch = projection.getNextBatch(3)).isEmpty()) {
+            Assert.assertTrue(tupleBatch.size() <= 3);
+            returnedResults.addAll(tupleBatch);
+        }
+        projection.close();
+        
+        List<ITuple> expectedResults = getProjectionResults(new ScanBasedSourceOperator(PEOPLE_TABLE), projectionFields)
+                .subList(1, 5);
+        Assert.assertEquals(4, returnedResults.size());
+        Assert.assertTrue(TestUtils.equals(expectedResults, returnedResults));
+    }
 
 }
@@ -0,0 +1,135 @@
+package edu.uci.ics.textdb.dataflow.regexmatch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import edu.uci.ics.textdb.api.common.Attribute;
+import edu.uci.ics.textdb.api.common.FieldType;
+import edu.uci.ics.textdb.api.common.ITuple;
+import edu.uci.ics.textdb.api.common.Schema;
+import edu.uci.ics.textdb.api.exception.TextDBException;
+import edu.uci.ics.textdb.common.constants.LuceneAnalyzerConstants;
+import edu.uci.ics.textdb.common.field.DataTuple;
+import edu.uci.ics.textdb.common.field.TextField;
+import edu.uci.ics.textdb.dataflow.common.RegexPredicate;
+import edu.uci.ics.textdb.dataflow.utils.TestUtils;
+import edu.uci.ics.textdb.storage.DataWriter;
+import edu.uci.ics.textdb.storage.RelationManager;
+
+public class GramQueryCostModelTest {
+
+    public static final String COST_TABLE = "regex_test_cost";
+    public static final String CONTENT = "content";
+    public static final Schema SCHEMA_COST = new Schema(new Attribute(CONTENT, FieldType.TEXT));
+
+    @BeforeClass
+    public static void setUp() throws TextDBException {
+        RelationManager relationManager = RelationManager.getRelationManager();
+        relationManager.createTable(COST_TABLE, "../index/test_tables/" + COST_TABLE,
+                SCHEMA_COST, LuceneAnalyzerConstants.nGramAnalyzerString(3));
+
+        DataWriter dataWriter = relationManager.getTableDataWriter(COST_TABLE);
+        dataWriter.open();
+        // every document has the gram "com", only one of them has "xyz"
+        for (int i = 0; i < 20; i++) {
+            dataWriter.insertTuple(new DataTuple(SCHEMA_COST, new TextField("a common document " + i)));
+        }
+        dataWriter.insertTuple(new DataTuple(SCHEMA_COST, new TextField("a common document with xyz")));
+        dataWriter.close();
+    }
+
+    @AfterClass
+    public static void cleanUp() throws TextDBException {
+        RelationManager.getRelationManager().deleteTable(COST_TABLE);
+    }
+
+    /*
+     * Test that a selective gram query uses the index.
+     */
+    @Test
+    public void testSelectiveQueryUsesIndex() throws Exception {
+        RegexMatcherSourceOperator regexSource = createRegexSource("xyz");
+
+        Assert.assertTrue(regexSource.isIndexUsed());
+        Assert.assertEquals(1.0 / 21, regexSource.getEstimatedSelectivity(), 1e-9);
+        assertSameResults("xyz", regexSource, 1);
+    }
+
+    /*
+     * Test that a gram query that matches every document scans the table instead.
+     */
+    @Test
+    public void testWeakQueryUsesScan() throws Exception {
+        RegexMatcherSourceOperator regexSource = createRegexSource("com");
+
+        Assert.assertFalse(regexSource.isIndexUsed());
+        Assert.assertEquals(1.0, regexSource.getEstimatedSelectivity(), 1e-9);
+        assertSameResults("com", regexSource, 21);
+    }
+
+    /*
+     * Test the selectivity of conjunctions and disjunctions, assuming the grams are independent.
+     */
+    @Test
+    public void testSelectivityEstimation() throws Exception {
+        RegexPredicate predicate = new RegexPredicate("comxyz", Arrays.asList(CONTENT),
+                RelationManager.getRelationManager().getTableAnalyzer(COST_TABLE));
+        GramQueryCostModel conjunctionCost = new GramQueryCostModel(COST_TABLE,
+                RegexMatcherSourceOperator.createGramQuery(predicate));
+        // "com" and "xyz" are required, the other grams of "comxyz" don't exist
+        Assert.assertEquals(0.0, conjunctionCost.getEstimatedSelectivity(), 1e-9);
+        Assert.assertTrue(conjunctionCost.isIndexCheaper());
+
+        predicate = new RegexPredicate("com|xyz", Arrays.asList(CONTENT),
+                RelationManager.getRelationManager().getTableAnalyzer(COST_TABLE));
+        GramQueryCostModel disjunctionCost = new GramQueryCostModel(COST_TABLE,
+                RegexMatcherSourceOperator.createGramQuery(predicate));
+        Assert.assertEquals(1.0, disjunctionCost.getEstimatedSelectivity(), 1e-9);
+        Assert.assertFalse(disjunctionCost.isIndexCheaper());
+    }
+
+    /*
+     * Test that a scan verifies every document, and the index only verifies the matching documents.
+     */
+    @Test
+    public void testVerificationCost() throws Exception {
+        RegexPredicate predicate = new RegexPredicate("xyz", Arrays.asList(CONTENT),
+                RelationManager.getRelationManager().getTableAnalyzer(COST_TABLE));
+        GramQueryCostModel costModel = new GramQueryCostModel(COST_TABLE,
+                RegexMatcherSourceOperator.createGramQuery(predicate));
+
+        Assert.assertEquals(21 * (1.0 + GramQueryCostModel.VERIFICATION_COST), costModel.getScanCost(), 1e-9);
+        // "xyz" has one posting, and matches one document
+        Assert.assertEquals(GramQueryCostModel.POSTING_COST 
+                + GramQueryCostModel.INDEX_DOCUMENT_COST + GramQueryCostModel.VERIFICATION_COST, 
+                costModel.getIndexCost(), 1e-9);
+    }
+
+    private static RegexMatcherSourceOperator createRegexSource(String regex) throws TextDBException {
+        RegexPredicate predicate = new RegexPredicate(regex, Arrays.asList(CONTENT),
+                RelationManager.getRelationManager().getTableAnalyzer(COST_TABLE));
+        return new RegexMatcherSourceOperator(predicate, COST_TABLE);
+    }
+
+    private static void assertSameResults(String regex, RegexMatcherSourceOperator regexSource, int expectedSize)
+            throws TextDBException {
+        List<ITuple> expectedResults = RegexMatcherTestHelper.getScanSourceResults(COST_TABLE, regex,
+                Arrays.asList(CONTENT), Integer.MAX_VALUE, 0);
+        List<ITuple> returnedResults = new ArrayList<>();
+        ITuple tuple;
+        regexSource.open();
+        while ((tuple = regexSource.getNextTuple()) != null) {
+            returnedResults.add(tuple);
+        }
+        regexSource.close();
+        Assert.assertEquals(expectedSize, returnedResults.size());
+        Assert.assertTrue(TestUtils.equals(expectedResults, returnedResults));
+    }
+
+}
@@ -0,0 +1,68 @@
+package edu.uci.ics.textdb.dataflow.regexmatch;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RegexLiteralInfoTest {
+
+    /*
+     * Test the literals that every match contains, the literals in optional parts and alternatives are not required.
+     */
+    @Test
+    public void testRequiredLiterals() {
+        Assert.assertEquals(Arrays.asList("follow", "up"),
+                RegexLiteralInfo.analyze("follow(-| )?up", false).getRequiredLiterals());
+        Assert.assertEquals(Arrays.asList("ab", "ab"),
+                RegexLiteralInfo.analyze("(ab)+x*(cd)*(ab){2}", false).getRequiredLiterals());
+        Assert.assertEquals(Arrays.asList(),
+                RegexLiteralInfo.analyze("george|lin", false).getRequiredLiterals());
+        // RE2J doesn't support backreferences
+        Assert.assertEquals(Arrays.asList(),
+                RegexLiteralInfo.analyze("(g)e\\1", false).getRequiredLiterals());
+    }
+
+    /*
+     * Test the maximum length of a match.
+     */
+    @Test
+    public void testMaxMatchLength() {
+        // a character class may match a surrogate pair
+        Assert.assertEquals(10, RegexLiteralInfo.analyze("follow(-| )?up", false).getMaxMatchLength());
+        Assert.assertEquals(10, RegexLiteralInfo.analyze("ab[0-9]{1,3}cd", false).getMaxMatchLength());
+        Assert.assertEquals(RegexLiteralInfo.UNBOUNDED, RegexLiteralInfo.analyze("g[^\\s]*", false).getMaxMatchLength());
+        Assert.assertEquals(RegexLiteralInfo.UNBOUNDED, RegexLiteralInfo.analyze("(g)e\\1", false).getMaxMatchLength());
+    }
+
+    /*
+     * Test the windows around the occurrences of a literal, the overlapping windows are merged.
+     */
+    @Test
+    public void testCandidateWindows() {
+        RegexLiteralInfo literalInfo = RegexLiteralInfo.analyze("ab[0-9]{1,3}cd", false);
+        Assert.assertTrue(literalInfo.hasCandidateWindows());
+
+        String text = "ab1cd                    ab12cd ab123cd";
+        List<int[]> windows = literalInfo.getCandidateWindows(text);
+        Assert.assertEquals(2, windows.size());
+        Assert.assertArrayEquals(new int[] { 0, 10 }, windows.get(0));
+        Assert.assertArrayEquals(new int[] { 17, 39 }, windows.get(1));
+
+        Assert.assertTrue(literalInfo.getCandidateWindows("AB1CD").isEmpty());
+        Assert.assertEquals(1, RegexLiteralInfo.analyze("ab[0-9]{1,3}cd", true).getCandidateWindows("AB1CD").size());
+    }
+
+    /*
+     * Test that the regexes that are unbounded, have no literal, or have an assertion are matched on the whole text.
+     */
+    @Test
+    public void testNoCandidateWindows() {
+        Assert.assertFalse(RegexLiteralInfo.analyze("g[^\\s]*", false).hasCandidateWindows());
+        Assert.assertFalse(RegexLiteralInfo.analyze("[a-z]{3}", false).hasCandidateWindows());
+        Assert.assertFalse(RegexLiteralInfo.analyze("\\bgeorge", false).hasCandidateWindows());
+        Assert.assertFalse(RegexLiteralInfo.analyze("^george$", false).hasCandidateWindows());
+    }
+
+}
@@ -2,24 +2,36 @@ package edu.uci.ics.textdb.dataflow.regexmatch;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
 import org.junit.AfterClass;
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import edu.uci.ics.textdb.api.common.Attribute;
+import edu.uci.ics.textdb.api.common.FieldType;
 import edu.uci.ics.textdb.api.common.IField;
 import edu.uci.ics.textdb.api.common.ITuple;
 import edu.uci.ics.textdb.api.common.Schema;
 import edu.uci.ics.textdb.api.exception.TextDBException;
+import edu.uci.ics.textdb.common.constants.LuceneAnalyzerConstants;
 import edu.uci.ics.textdb.common.constants.SchemaConstants;
 import edu.uci.ics.textdb.common.constants.TestConstants;
+import edu.uci.ics.textdb.common.exception.DataFlowException;
 import edu.uci.ics.textdb.common.field.DataTuple;
 import edu.uci.ics.textdb.common.field.ListField;
 import edu.uci.ics.textdb.common.field.Span;
+import edu.uci.ics.textdb.common.field.TextField;
 import edu.uci.ics.textdb.common.utils.Utils;
+import edu.uci.ics.textdb.dataflow.common.RegexPredicate;
+import edu.uci.ics.textdb.dataflow.source.ScanBasedSourceOperator;
+import edu.uci.ics.textdb.dataflow.source.TupleStreamSourceOperator;
 import edu.uci.ics.textdb.dataflow.utils.TestUtils;
+import edu.uci.ics.textdb.storage.RelationManager;
 
 /**
  * Unit tests for RegexMatcher. Integration tests with RegexToGramTranslator.
@@ -45,6 +57,158 @@ public class RegexMatcherTest {
         RegexMatcherTestHelper.deleteTestTables();
     }
 
+    /*
+     * Test that the regexes with repetitions are matched by RE2J,
+     *   and the regexes without repetitions or with Java-only features are matched by Java Regex.
+     */
+    @Test
+    public void testRegexEngineSelection() throws Exception {
+        Assert.assertEquals("RE2J", getRegexEngine("g[^\\s]*"));
+        Assert.assertEquals("RE2J", getRegexEngine("(a+)+b"));
+        Assert.assertEquals("JavaRegex", getRegexEngine("george|lin"));
+        Assert.assertEquals("JavaRegex", getRegexEngine("(g)e\\1*"));
+        Assert.assertEquals("JavaRegex", getRegexEngine("(?=g)george"));
+    }
+
+    /*
+     * Test that a match of Java Regex that exceeds the step limit is aborted and matched by RE2J,
+     *   or throws an exception if RE2J doesn't support the regex.
+     */
+    @Test
+    public void testJavaRegexStepLimit() throws Exception {
+        String regex = "g[^\\s]*";
+        List<ITuple> expectedResults = RegexMatcherTestHelper.getScanSourceResults(
+                PEOPLE_TABLE, regex, Arrays.asList(TestConstants.FIRST_NAME), Integer.MAX_VALUE, 0);
+
+        RegexMatcher regexMatcher = createScanRegexMatcher(regex);
+        regexMatcher.setRegexEngineToJava();
+        regexMatcher.setMatchStepsPerCharacter(0);
+        List<ITuple> returnedResults = new ArrayList<>();
+        ITuple tuple;
+        regexMatcher.open();
+        while ((tuple = regexMatcher.getNextTuple()) != null) {
+            returnedResults.add(tuple);
+        }
+        Assert.assertEquals("RE2J", regexMatcher.getRegexEngineString());
+        regexMatcher.close();
+        Assert.assertTrue(TestUtils.equals(expectedResults, returnedResults));
+
+        RegexMatcher lookaroundMatcher = createScanRegexMatcher("(?=g)george");
+        lookaroundMatcher.setMatchStepsPerCharacter(0);
+        lookaroundMatcher.open();
+        try {
+            lookaroundMatcher.getNextTuple();
+            Assert.fail("the match should be aborted");
+        } catch (DataFlowException e) {
+        } finally {
+            lookaroundMatcher.close();
+        }
+    }
+
+    /*
+     * Test that a regex without repetition can still backtrack exponentially,
+     *   and its match is aborted by the default step limit and matched by RE2J.
+     */
+    @Test
+    public void testBacktrackingWithoutRepetition() throws Exception {
+        // 20 times of (a|aa) followed by b
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            regex.append("(a|aa)");
+        }
+        regex.append("b");
+        String as = String.join("", Collections.nCopies(20, "a"));
+
+        Schema schema = new Schema(new Attribute(RegexTestConstantsText.CONTENT, FieldType.TEXT));
+        List<ITuple> inputTuples = Arrays.asList(
+                // every way to split the a's is tried before the match fails at c
+                new DataTuple(schema, new TextField(as + as.substring(10) + "cb")),
+                new DataTuple(schema, new TextField(as + "b")));
+        RegexPredicate regexPredicate = new RegexPredicate(regex.toString(),
+                Arrays.asList(RegexTestConstantsText.CONTENT), LuceneAnalyzerConstants.getStandardAnalyzer());
+        RegexMatcher regexMatcher = new RegexMatcher(regexPredicate);
+        regexMatcher.setInputOperator(new TupleStreamSourceOperator(inputTuples, schema));
+
+        List<ITuple> returnedResults = new ArrayList<>();
+        ITuple tuple;
+        regexMatcher.open();
+        Assert.assertEquals("JavaRegex", regexMatcher.getRegexEngineString());
+        while ((tuple = regexMatcher.getNextTuple()) != null) {
+            returnedResults.add(tuple);
+        }
+        Assert.assertEquals("RE2J", regexMatcher.getRegexEngineString());
+        regexMatcher.close();
+
+        Assert.assertEquals(1, returnedResults.size());
+        @SuppressWarnings("unchecked")
+        List<Span> spans = (List<Span>) returnedResults.get(0).getField(SchemaConstants.SPAN_LIST).getValue();
+        Assert.assertEquals(Arrays.asList(new Span(RegexTestConstantsText.CONTENT, 0, 21, regex.toString(), as + "b")),
+                spans);
+    }
+
+    /*
+     * Test that the grams of a required literal are also required to be adjacent,
+     *   and the results are the same as a scan.
+     */
+    @Test
+    public void testPositionalGramQuery() throws Exception {
+        String regex = "follow(-| )?up";
+        RegexPredicate regexPredicate = new RegexPredicate(regex, Arrays.asList(RegexTestConstantsText.CONTENT),
+                RelationManager.getRelationManager().getTableAnalyzer(TEXT_TABLE));
+        Query luceneQuery = RegexMatcherSourceOperator.createLuceneQuery(regexPredicate);
+
+        Assert.assertTrue(luceneQuery instanceof BooleanQuery);
+        Assert.assertTrue(luceneQuery.toString().contains("content:\"fol oll llo low\""));
+        Assert.assertFalse(luceneQuery.toString().contains("content:\"up\""));
+
+        List<ITuple> scanSourceResults = RegexMatcherTestHelper.getScanSourceResults(
+                TEXT_TABLE, regex, Arrays.asList(RegexTestConstantsText.CONTENT), Integer.MAX_VALUE, 0);
+        List<ITuple> regexSourceResults = RegexMatcherTestHelper.getRegexSourceResults(
+                TEXT_TABLE, regex, Arrays.asList(RegexTestConstantsText.CONTENT), Integer.MAX_VALUE, 0);
+
+        // "followup", "follow up" and "follow-up" are in 3 tuples
+        Assert.assertEquals(3, scanSourceResults.size());
+        Assert.assertTrue(TestUtils.equals(scanSourceResults, regexSourceResults));
+    }
+
+    /*
+     * Test that the batches of RegexMatcher have the same tuples as getNextTuple().
+     */
+    @Test
+    public void testGetNextBatch() throws Exception {
+        String regex = "g[^\\s]*";
+        List<ITuple> expectedResults = RegexMatcherTestHelper.getScanSourceResults(
+                PEOPLE_TABLE, regex, Arrays.asList(TestConstants.FIRST_NAME), Integer.MAX_VALUE, 0);
+
+        RegexMatcher regexMatcher = createScanRegexMatcher(regex);
+        List<ITuple> returnedResults = new ArrayList<>();
+        List<ITuple> tupleBatch;
+        regexMatcher.open();
+        while (! (tupleBatch = regexMatcher.getNextBatch(2)).isEmpty()) {
+            returnedResults.addAll(tupleBatch);
+        }
+        regexMatcher.close();
+
+        Assert.assertFalse(expectedResults.isEmpty());
+        Assert.assertTrue(TestUtils.equals(expectedResults, returnedResults));
+    }
+
+    private static RegexMatcher createScanRegexMatcher(String regex) throws TextDBException {
+        RegexPredicate regexPredicate = new RegexPredicate(regex, Arrays.asList(TestConstants.FIRST_NAME),
+                RelationManager.getRelationManager().getTableAnalyzer(PEOPLE_TABLE));
+        RegexMatcher regexMatcher = new RegexMatcher(regexPredicate);
+        regexMatcher.setInputOperator(new ScanBasedSourceOperator(PEOPLE_TABLE));
+        return regexMatcher;
+    }
+
+    private static String getRegexEngine(String regex) throws TextDBException {
+        RegexMatcher regexMatcher = createScanRegexMatcher(regex);
+        regexMatcher.open();
+        String regexEngine = regexMatcher.getRegexEngineString();
+        regexMatcher.close();
+        return regexEngine;
+    }
+
     @Test
     public void testGetNextTuplePeopleFirstName() throws Exception {
         String query = "g[^\\s]*";
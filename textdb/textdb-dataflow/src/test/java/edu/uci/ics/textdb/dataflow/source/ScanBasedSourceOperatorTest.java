@@ -6,6 +6,7 @@ package edu.uci.ics.textdb.dataflow.source;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import edu.uci.ics.textdb.api.exception.TextDBException;
 import org.junit.AfterClass;
@@ -14,8 +15,10 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import edu.uci.ics.textdb.api.common.ITuple;
+import edu.uci.ics.textdb.api.dataflow.CancellationToken;
 import edu.uci.ics.textdb.common.constants.LuceneAnalyzerConstants;
 import edu.uci.ics.textdb.common.constants.TestConstants;
+import edu.uci.ics.textdb.common.exception.ErrorMessages;
 import edu.uci.ics.textdb.dataflow.utils.TestUtils;
 import edu.uci.ics.textdb.storage.DataWriter;
 import edu.uci.ics.textdb.storage.RelationManager;
@@ -69,4 +72,47 @@ public class ScanBasedSourceOperatorTest {
         scanBasedSourceOperator.close();
     }
 
+    /*
+     * This tests that the scan stops once the query is cancelled, instead of returning the rest of the tuples.
+     */
+    @Test
+    public void testCancel() throws TextDBException {
+        CancellationToken cancellationToken = new CancellationToken();
+        ScanBasedSourceOperator scanBasedSourceOperator = new ScanBasedSourceOperator(PEOPLE_TABLE);
+        scanBasedSourceOperator.open(cancellationToken);
+        Assert.assertNotNull(scanBasedSourceOperator.getNextTuple());
+
+        cancellationToken.cancel();
+        try {
+            scanBasedSourceOperator.getNextTuple();
+            Assert.fail("a cancelled scan should throw an exception");
+        } catch (TextDBException e) {
+            Assert.assertEquals(ErrorMessages.QUERY_CANCELLED, e.getMessage());
+        } finally {
+            scanBasedSourceOperator.close();
+        }
+        Assert.assertFalse(cancellationToken.isDeadlineExceeded());
+
+        // the token is not kept after the operator is closed
+        scanBasedSourceOperator.open();
+        Assert.assertNotNull(scanBasedSourceOperator.getNextTuple());
+        scanBasedSourceOperator.close();
+    }
+
+    @Test
+    public void testDeadline() throws TextDBException {
+        CancellationToken cancellationToken = CancellationToken.withTimeout(0, TimeUnit.MILLISECONDS);
+        ScanBasedSourceOperator scanBasedSourceOperator = new ScanBasedSourceOperator(PEOPLE_TABLE);
+        scanBasedSourceOperator.open(cancellationToken);
+        try {
+            scanBasedSourceOperator.getNextTuple();
+            Assert.fail("a query after its deadline should throw an exception");
+        } catch (TextDBException e) {
+            Assert.assertEquals(ErrorMessages.QUERY_CANCELLED, e.getMessage());
+        } finally {
+            scanBasedSourceOperator.close();
+        }
+        Assert.assertTrue(cancellationToken.isDeadlineExceeded());
+    }
+
 }
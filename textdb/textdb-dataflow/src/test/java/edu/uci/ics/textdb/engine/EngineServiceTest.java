@@ -0,0 +1,294 @@
+package edu.uci.ics.textdb.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.uci.ics.textdb.api.common.Schema;
+import edu.uci.ics.textdb.api.dataflow.CancellationToken;
+import edu.uci.ics.textdb.api.dataflow.ISink;
+import edu.uci.ics.textdb.api.plan.Plan;
+import edu.uci.ics.textdb.common.exception.DataFlowException;
+import edu.uci.ics.textdb.dataflow.common.JoinDistancePredicate;
+import edu.uci.ics.textdb.dataflow.connector.OneToNBroadcastConnector;
+import edu.uci.ics.textdb.dataflow.join.Join;
+import edu.uci.ics.textdb.dataflow.nlpextrator.NlpExtractor;
+import edu.uci.ics.textdb.dataflow.nlpextrator.NlpPredicate;
+import edu.uci.ics.textdb.dataflow.sink.TupleStreamSink;
+import edu.uci.ics.textdb.dataflow.source.TupleStreamSourceOperator;
+
+public class EngineServiceTest {
+
+    private EngineService engineService;
+    // released at the end of each test, so that the blocked queries finish
+    private final CountDownLatch releaseLatch = new CountDownLatch(1);
+
+    @After
+    public void cleanUp() {
+        releaseLatch.countDown();
+        if (engineService != null) {
+            engineService.shutdown();
+        }
+    }
+
+    @Test
+    public void testSubmitEvaluatesPlan() throws Exception {
+        engineService = new EngineService(2, 1, 4, 1000);
+        RecordingSink sink = new RecordingSink();
+
+        QueryHandle<Void> queryHandle = engineService.submit(new Plan(sink));
+        queryHandle.get(10, TimeUnit.SECONDS);
+
+        Assert.assertEquals(QueryHandle.QueryState.SUCCEEDED, queryHandle.getState());
+        Assert.assertEquals(Arrays.asList("open", "processTuples", "close"), sink.calls);
+    }
+
+    /*
+     * This tests that a query whose task throws an Error fails, instead of blocking the callers of get().
+     */
+    @Test
+    public void testTaskError() throws Exception {
+        engineService = new EngineService(1, 1, 4, 1000);
+
+        QueryHandle<Integer> failedQuery = engineService.submit(mockLightPlan(), (plan, token) -> {
+            throw new StackOverflowError();
+        });
+        try {
+            failedQuery.get(10, TimeUnit.SECONDS);
+            Assert.fail("a failed query has no result");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof StackOverflowError);
+        }
+        Assert.assertEquals(QueryHandle.QueryState.FAILED, failedQuery.getState());
+
+        // the worker is released
+        Assert.assertEquals(Integer.valueOf(1),
+                engineService.submit(mockLightPlan(), (plan, token) -> 1).get(10, TimeUnit.SECONDS));
+    }
+
+    /*
+     * This tests that a query is rejected when the queue is full.
+     */
+    @Test(expected = DataFlowException.class)
+    public void testQueueFull() throws Exception {
+        engineService = new EngineService(1, 1, 1, 1000);
+        CountDownLatch startedLatch = new CountDownLatch(1);
+
+        engineService.submit(mockLightPlan(), blockingTask(startedLatch));
+        Assert.assertTrue(startedLatch.await(10, TimeUnit.SECONDS));
+        engineService.submit(mockLightPlan(), (plan, token) -> 1);
+        Assert.assertEquals(1, engineService.getQueuedQueries());
+
+        engineService.submit(mockLightPlan(), (plan, token) -> 2);
+    }
+
+    @Test
+    public void testCancelQueuedQuery() throws Exception {
+        engineService = new EngineService(1, 1, 4, 1000);
+        CountDownLatch startedLatch = new CountDownLatch(1);
+
+        QueryHandle<Integer> runningQuery = engineService.submit(mockLightPlan(), blockingTask(startedLatch));
+        Assert.assertTrue(startedLatch.await(10, TimeUnit.SECONDS));
+        QueryHandle<Integer> queuedQuery = engineService.submit(mockLightPlan(), (plan, token) -> 1);
+
+        Assert.assertTrue(queuedQuery.cancel(true));
+        Assert.assertTrue(queuedQuery.isCancelled());
+        Assert.assertTrue(queuedQuery.isDone());
+        Assert.assertEquals(0, engineService.getQueuedQueries());
+        try {
+            queuedQuery.get();
+            Assert.fail("a cancelled query has no result");
+        } catch (CancellationException e) {
+        }
+
+        // a running query is only cancelled by its token
+        Assert.assertFalse(runningQuery.cancel(false));
+        releaseLatch.countDown();
+        Assert.assertEquals(Integer.valueOf(0), runningQuery.get(10, TimeUnit.SECONDS));
+    }
+
+    /*
+     * This tests that a running query is cancelled by its token, and its worker is released once it stops.
+     */
+    @Test
+    public void testCancelRunningQuery() throws Exception {
+        engineService = new EngineService(1, 1, 4, 1000);
+        CountDownLatch startedLatch = new CountDownLatch(1);
+
+        QueryHandle<Integer> runningQuery = engineService.submit(mockLightPlan(), (plan, token) -> {
+            startedLatch.countDown();
+            while (! token.isCancelled()) {
+                Thread.sleep(1);
+            }
+            throw new DataFlowException("cancelled");
+        });
+        Assert.assertTrue(startedLatch.await(10, TimeUnit.SECONDS));
+        QueryHandle<Integer> nextQuery = engineService.submit(mockLightPlan(), (plan, token) -> 1);
+
+        Assert.assertTrue(runningQuery.cancel(true));
+        Assert.assertTrue(runningQuery.isCancelled());
+        Assert.assertTrue(runningQuery.getCancellationToken().isCancelled());
+        try {
+            runningQuery.get();
+            Assert.fail("a cancelled query has no result");
+        } catch (CancellationException e) {
+        }
+        Assert.assertEquals(Integer.valueOf(1), nextQuery.get(10, TimeUnit.SECONDS));
+    }
+
+    /*
+     * This tests that a queued query whose token is cancelled is never started.
+     */
+    @Test
+    public void testCancelledTokenNotStarted() throws Exception {
+        engineService = new EngineService(1, 1, 4, 1000);
+        CountDownLatch startedLatch = new CountDownLatch(1);
+
+        QueryHandle<Integer> runningQuery = engineService.submit(mockLightPlan(), blockingTask(startedLatch));
+        Assert.assertTrue(startedLatch.await(10, TimeUnit.SECONDS));
+        CancellationToken cancellationToken = new CancellationToken();
+        QueryHandle<Integer> queuedQuery = engineService.submit(mockLightPlan(), (plan, token) -> 1, cancellationToken);
+        cancellationToken.cancel();
+
+        releaseLatch.countDown();
+        Assert.assertEquals(Integer.valueOf(0), runningQuery.get(10, TimeUnit.SECONDS));
+        try {
+            queuedQuery.get(10, TimeUnit.SECONDS);
+            Assert.fail("a cancelled query has no result");
+        } catch (CancellationException e) {
+        }
+    }
+
+    /*
+     * This tests that the queries whose memory budgets don't fit together run one after another.
+     */
+    @Test
+    public void testMemoryBudget() throws Exception {
+        engineService = new EngineService(2, 1, 4, 100);
+        try {
+            engineService.submit(mockLightPlan(), (plan, token) -> 1, 101);
+            Assert.fail("a memory budget larger than the capacity should be rejected");
+        } catch (DataFlowException e) {
+        }
+
+        CountDownLatch startedLatch = new CountDownLatch(1);
+        QueryHandle<Integer> firstQuery = engineService.submit(mockLightPlan(), blockingTask(startedLatch), 60);
+        Assert.assertTrue(startedLatch.await(10, TimeUnit.SECONDS));
+        QueryHandle<Integer> secondQuery = engineService.submit(mockLightPlan(), (plan, token) -> 2, 60);
+
+        Assert.assertEquals(QueryHandle.QueryState.QUEUED, secondQuery.getState());
+        Assert.assertEquals(60, engineService.getReservedMemory());
+
+        releaseLatch.countDown();
+        Assert.assertEquals(Integer.valueOf(0), firstQuery.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(Integer.valueOf(2), secondQuery.get(10, TimeUnit.SECONDS));
+    }
+
+    /*
+     * This tests that a light query isn't blocked by a heavy query waiting for another heavy query.
+     */
+    @Test
+    public void testHeavyQueriesLimited() throws Exception {
+        engineService = new EngineService(3, 1, 4, 1000);
+        CountDownLatch startedLatch = new CountDownLatch(1);
+
+        QueryHandle<Integer> firstHeavyQuery = engineService.submit(mockHeavyPlan(), blockingTask(startedLatch));
+        Assert.assertTrue(startedLatch.await(10, TimeUnit.SECONDS));
+        QueryHandle<Integer> secondHeavyQuery = engineService.submit(mockHeavyPlan(), (plan, token) -> 2);
+        QueryHandle<Integer> lightQuery = engineService.submit(mockLightPlan(), (plan, token) -> 3);
+
+        Assert.assertEquals(Integer.valueOf(3), lightQuery.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(QueryHandle.QueryState.QUEUED, secondHeavyQuery.getState());
+
+        releaseLatch.countDown();
+        Assert.assertEquals(Integer.valueOf(0), firstHeavyQuery.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(Integer.valueOf(2), secondHeavyQuery.get(10, TimeUnit.SECONDS));
+    }
+
+    /*
+     * This tests that the memory budget of a query is divided among its hash joins and broadcast connectors.
+     */
+    @Test
+    public void testMemoryBudgetApplied() throws Exception {
+        engineService = new EngineService(1, 1, 4, 100 * PlanCost.ESTIMATED_TUPLE_SIZE);
+        OneToNBroadcastConnector connector = new OneToNBroadcastConnector(2);
+        connector.setInputOperator(new TupleStreamSourceOperator(new ArrayList<>(), new Schema()));
+        Join join = new Join(new JoinDistancePredicate("content", 10));
+        join.setInnerInputOperator(connector.getOutputOperator(0));
+        join.setOuterInputOperator(connector.getOutputOperator(1));
+        TupleStreamSink sink = new TupleStreamSink();
+        sink.setInputOperator(join);
+        Plan plan = new Plan(sink);
+
+        Assert.assertEquals(2, PlanCost.estimate(plan).getMemoryBoundedOperatorCount());
+        engineService.submit(plan, (queryPlan, token) -> 0, 60 * PlanCost.ESTIMATED_TUPLE_SIZE)
+                .get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(30, join.getHashJoinMemoryBudget());
+        Assert.assertEquals(30, connector.getMemoryBudget());
+    }
+
+    @Test
+    public void testEstimatePlanCost() throws Exception {
+        Assert.assertFalse(PlanCost.estimate(mockLightPlan()).isHeavy());
+        Assert.assertTrue(PlanCost.estimate(mockHeavyPlan()).isHeavy());
+    }
+
+    /*
+     * Returns a task that waits until the test releases it.
+     */
+    private EngineService.QueryTask<Integer> blockingTask(CountDownLatch startedLatch) {
+        return (plan, token) -> {
+            startedLatch.countDown();
+            releaseLatch.await();
+            return 0;
+        };
+    }
+
+    /*
+     * The plans below are only used for their costs, they are never opened.
+     */
+    private static Plan mockLightPlan() {
+        return new Plan(new TupleStreamSink());
+    }
+
+    private static Plan mockHeavyPlan() {
+        NlpExtractor nlpExtractor = new NlpExtractor(
+                new NlpPredicate(NlpPredicate.NlpTokenType.Location, Arrays.asList("content")));
+        TupleStreamSink sink = new TupleStreamSink();
+        sink.setInputOperator(nlpExtractor);
+        return new Plan(sink);
+    }
+
+    private static class RecordingSink implements ISink {
+        private final List<String> calls = new ArrayList<>();
+
+        @Override
+        public void open() {
+            calls.add("open");
+        }
+
+        @Override
+        public void processTuples() {
+            calls.add("processTuples");
+        }
+
+        @Override
+        public void close() {
+            calls.add("close");
+        }
+
+        @Override
+        public Schema getOutputSchema() {
+            return null;
+        }
+    }
+
+}
@@ -17,12 +17,16 @@ import edu.uci.ics.textdb.api.plan.Plan;
 import edu.uci.ics.textdb.common.constants.LuceneAnalyzerConstants;
 import edu.uci.ics.textdb.common.exception.PlanGenException;
 import edu.uci.ics.textdb.common.exception.StorageException;
+import edu.uci.ics.textdb.dataflow.connector.ConcurrentOneToNBroadcastConnector;
 import edu.uci.ics.textdb.dataflow.connector.OneToNBroadcastConnector;
 import edu.uci.ics.textdb.dataflow.connector.OneToNBroadcastConnector.ConnectorOutputOperator;
+import edu.uci.ics.textdb.dataflow.connector.PrefetchOperator;
+import edu.uci.ics.textdb.dataflow.connector.ParallelGatherOperator;
 import edu.uci.ics.textdb.dataflow.fuzzytokenmatcher.FuzzyTokenMatcher;
 import edu.uci.ics.textdb.dataflow.join.Join;
 import edu.uci.ics.textdb.dataflow.keywordmatch.KeywordMatcherSourceOperator;
 import edu.uci.ics.textdb.dataflow.nlpextrator.NlpExtractor;
+import edu.uci.ics.textdb.dataflow.projection.ProjectionOperator;
 import edu.uci.ics.textdb.dataflow.regexmatch.RegexMatcher;
 import edu.uci.ics.textdb.dataflow.sink.FileSink;
 import edu.uci.ics.textdb.dataflow.sink.TupleStreamSink;
@@ -256,6 +260,48 @@ public class LogicalPlanTest {
         Assert.assertTrue(keywordSource instanceof KeywordMatcherSourceOperator);
     }
 
+    /*
+     * Test that with a parallelism the branches run on their own threads:
+     *   the source is broadcast by a concurrent connector, and the inputs of the Join are prefetched.
+     *                  -> RegexMatcher -->
+     * KeywordSource --<                     >-- Join --> FileSink
+     *                  -> NlpExtractor -->
+     * 
+     */
+    @Test
+    public void testParallelBranches() throws Exception {
+        LogicalPlan logicalPlan = getLogicalPlan2();
+        logicalPlan.setParallelism(2);
+
+        Plan queryPlan = logicalPlan.buildQueryPlan();
+
+        IOperator join = ((FileSink) queryPlan.getRoot()).getInputOperator();
+        Assert.assertTrue(join instanceof Join);
+
+        IOperator prefetch1 = ((Join) join).getInnerInputOperator();
+        Assert.assertTrue(prefetch1 instanceof PrefetchOperator);
+        IOperator joinInput1 = ((PrefetchOperator) prefetch1).getInputOperator();
+        Assert.assertTrue(joinInput1 instanceof RegexMatcher);
+
+        IOperator prefetch2 = ((Join) join).getOuterInputOperator();
+        Assert.assertTrue(prefetch2 instanceof PrefetchOperator);
+        IOperator joinInput2 = ((PrefetchOperator) prefetch2).getInputOperator();
+        Assert.assertTrue(joinInput2 instanceof NlpExtractor);
+
+        IOperator connectorOut1 = ((RegexMatcher) joinInput1).getInputOperator();
+        Assert.assertTrue(connectorOut1 instanceof ConcurrentOneToNBroadcastConnector.ConnectorOutputOperator);
+
+        IOperator connectorOut2 = ((NlpExtractor) joinInput2).getInputOperator();
+        Assert.assertTrue(connectorOut2 instanceof ConcurrentOneToNBroadcastConnector.ConnectorOutputOperator);
+
+        ConcurrentOneToNBroadcastConnector connector1 =
+                ((ConcurrentOneToNBroadcastConnector.ConnectorOutputOperator) connectorOut1).getOwnerConnector();
+        ConcurrentOneToNBroadcastConnector connector2 =
+                ((ConcurrentOneToNBroadcastConnector.ConnectorOutputOperator) connectorOut2).getOwnerConnector();
+        Assert.assertSame(connector1, connector2);
+        Assert.assertTrue(connector1.getInputOperator() instanceof KeywordMatcherSourceOperator);
+    }
+
     /*
      * Test a valid operator graph.
      * 
@@ -321,6 +367,161 @@ public class LogicalPlanTest {
     }
 
 
+    /*
+     * Test that the limit of an operator is pushed down through one-to-one operators.
+     * 
+     * KeywordSource --> Projection (limit 5, offset 2) --> TupleStreamSink
+     * 
+     * The projection never pulls more than 7 tuples from the keyword source.
+     */
+    @Test
+    public void testLimitPushdown() throws Exception {
+        HashMap<String, String> conjunctionSourceProperties = new HashMap<>(keywordSourceProperties);
+        conjunctionSourceProperties.put(KeywordMatcherBuilder.MATCHING_TYPE, "CONJUNCTION_INDEXBASED");
+        
+        HashMap<String, String> projectionProperties = new HashMap<>();
+        projectionProperties.put(OperatorBuilderUtils.ATTRIBUTE_NAMES, "city, content");
+        projectionProperties.put(OperatorBuilderUtils.ATTRIBUTE_TYPES, "string, text");
+        projectionProperties.put(OperatorBuilderUtils.LIMIT, "5");
+        projectionProperties.put(OperatorBuilderUtils.OFFSET, "2");
+        
+        LogicalPlan logicalPlan = new LogicalPlan();
+        logicalPlan.addOperator("source", "KeywordSource", conjunctionSourceProperties);
+        logicalPlan.addOperator("projection", "Projection", projectionProperties);
+        logicalPlan.addOperator("sink", "TupleStreamSink", new HashMap<String, String>());
+        logicalPlan.addLink("source", "projection");
+        logicalPlan.addLink("projection", "sink");
+        
+        Plan queryPlan = logicalPlan.buildQueryPlan();
+        
+        IOperator projection = ((TupleStreamSink) queryPlan.getRoot()).getInputOperator();
+        Assert.assertTrue(projection instanceof ProjectionOperator);
+        Assert.assertEquals(5, ((ProjectionOperator) projection).getLimit());
+        
+        IOperator keywordSource = ((ProjectionOperator) projection).getInputOperator();
+        Assert.assertTrue(keywordSource instanceof KeywordMatcherSourceOperator);
+        Assert.assertEquals(7, ((KeywordMatcherSourceOperator) keywordSource).getLimit());
+    }
+    
+    /*
+     * Test that a chain runs in parallel copies, and the limit is applied after the gather.
+     * 
+     * KeywordSource --> Projection (limit 5) --> TupleStreamSink
+     */
+    @Test
+    public void testParallelChain() throws Exception {
+        HashMap<String, String> projectionProperties = new HashMap<>();
+        projectionProperties.put(OperatorBuilderUtils.ATTRIBUTE_NAMES, "city, content");
+        projectionProperties.put(OperatorBuilderUtils.ATTRIBUTE_TYPES, "string, text");
+        projectionProperties.put(OperatorBuilderUtils.LIMIT, "5");
+        
+        LogicalPlan logicalPlan = new LogicalPlan();
+        logicalPlan.addOperator("source", "KeywordSource", keywordSourceProperties);
+        logicalPlan.addOperator("projection", "Projection", projectionProperties);
+        logicalPlan.addOperator("sink", "TupleStreamSink", new HashMap<String, String>());
+        logicalPlan.addLink("source", "projection");
+        logicalPlan.addLink("projection", "sink");
+        logicalPlan.setParallelism(3);
+        
+        Plan queryPlan = logicalPlan.buildQueryPlan();
+        
+        IOperator gatherOperator = ((TupleStreamSink) queryPlan.getRoot()).getInputOperator();
+        Assert.assertTrue(gatherOperator instanceof ParallelGatherOperator);
+        Assert.assertEquals(3, ((ParallelGatherOperator) gatherOperator).getParallelism());
+        Assert.assertEquals(5, ((ParallelGatherOperator) gatherOperator).getLimit());
+        
+        for (IOperator chain : ((ParallelGatherOperator) gatherOperator).getChainList()) {
+            Assert.assertTrue(chain instanceof ProjectionOperator);
+            Assert.assertTrue(((ProjectionOperator) chain).getInputOperator() instanceof KeywordMatcherSourceOperator);
+        }
+    }
+    
+    /*
+     * Test that a chain with an offset runs on a single thread,
+     *   the results of parallel copies are in no particular order.
+     * 
+     * KeywordSource --> Projection (limit 5, offset 2) --> TupleStreamSink
+     */
+    @Test
+    public void testOffsetChainNotParallel() throws Exception {
+        HashMap<String, String> projectionProperties = new HashMap<>();
+        projectionProperties.put(OperatorBuilderUtils.ATTRIBUTE_NAMES, "city, content");
+        projectionProperties.put(OperatorBuilderUtils.ATTRIBUTE_TYPES, "string, text");
+        projectionProperties.put(OperatorBuilderUtils.LIMIT, "5");
+        projectionProperties.put(OperatorBuilderUtils.OFFSET, "2");
+        
+        LogicalPlan logicalPlan = new LogicalPlan();
+        logicalPlan.addOperator("source", "KeywordSource", keywordSourceProperties);
+        logicalPlan.addOperator("projection", "Projection", projectionProperties);
+        logicalPlan.addOperator("sink", "TupleStreamSink", new HashMap<String, String>());
+        logicalPlan.addLink("source", "projection");
+        logicalPlan.addLink("projection", "sink");
+        logicalPlan.setParallelism(3);
+        
+        Plan queryPlan = logicalPlan.buildQueryPlan();
+        
+        IOperator projection = ((TupleStreamSink) queryPlan.getRoot()).getInputOperator();
+        Assert.assertTrue(projection instanceof ProjectionOperator);
+        Assert.assertEquals(5, ((ProjectionOperator) projection).getLimit());
+        Assert.assertEquals(2, ((ProjectionOperator) projection).getOffset());
+    }
+    
+    /*
+     * Test that a chain with a limit before its last operator runs on a single thread.
+     * 
+     * KeywordSource (limit 5) --> Projection --> TupleStreamSink
+     */
+    @Test
+    public void testLimitedChainNotParallel() throws Exception {
+        HashMap<String, String> limitedKeywordSourceProperties = new HashMap<>(keywordSourceProperties);
+        limitedKeywordSourceProperties.put(OperatorBuilderUtils.LIMIT, "5");
+        HashMap<String, String> projectionProperties = new HashMap<>();
+        projectionProperties.put(OperatorBuilderUtils.ATTRIBUTE_NAMES, "city, content");
+        projectionProperties.put(OperatorBuilderUtils.ATTRIBUTE_TYPES, "string, text");
+        
+        LogicalPlan logicalPlan = new LogicalPlan();
+        logicalPlan.addOperator("source", "KeywordSource", limitedKeywordSourceProperties);
+        logicalPlan.addOperator("projection", "Projection", projectionProperties);
+        logicalPlan.addOperator("sink", "TupleStreamSink", new HashMap<String, String>());
+        logicalPlan.addLink("source", "projection");
+        logicalPlan.addLink("projection", "sink");
+        logicalPlan.setParallelism(3);
+        
+        Plan queryPlan = logicalPlan.buildQueryPlan();
+        
+        IOperator projection = ((TupleStreamSink) queryPlan.getRoot()).getInputOperator();
+        Assert.assertTrue(projection instanceof ProjectionOperator);
+        IOperator keywordSource = ((ProjectionOperator) projection).getInputOperator();
+        Assert.assertTrue(keywordSource instanceof KeywordMatcherSourceOperator);
+        Assert.assertEquals(5, ((KeywordMatcherSourceOperator) keywordSource).getLimit());
+    }
+    
+    /*
+     * Test that the limit is not pushed through a filtering operator.
+     * 
+     * KeywordSource --> RegexMatcher (limit 5) --> FileSink
+     */
+    @Test
+    public void testLimitNotPushedThroughFilter() throws Exception {
+        HashMap<String, String> limitedRegexProperties = new HashMap<>(regexMatcherProperties);
+        limitedRegexProperties.put(OperatorBuilderUtils.LIMIT, "5");
+        
+        LogicalPlan logicalPlan = new LogicalPlan();
+        logicalPlan.addOperator("source", "KeywordSource", keywordSourceProperties);
+        logicalPlan.addOperator("regex", "RegexMatcher", limitedRegexProperties);
+        logicalPlan.addOperator("sink", "FileSink", fileSinkProperties);
+        logicalPlan.addLink("source", "regex");
+        logicalPlan.addLink("regex", "sink");
+        
+        Plan queryPlan = logicalPlan.buildQueryPlan();
+        
+        RegexMatcher regexMatcher = (RegexMatcher) ((FileSink) queryPlan.getRoot()).getInputOperator();
+        Assert.assertEquals(5, regexMatcher.getLimit());
+        
+        KeywordMatcherSourceOperator keywordSource = (KeywordMatcherSourceOperator) regexMatcher.getInputOperator();
+        Assert.assertEquals(Integer.MAX_VALUE, keywordSource.getLimit());
+    }
+
     /*
      * Test a operator graph without a source operator
      * 
@@ -0,0 +1,136 @@
+package edu.uci.ics.textdb.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.OutputStreamDataOutput;
+import org.apache.lucene.util.BytesRef;
+
+import edu.uci.ics.textdb.common.field.Span;
+import edu.uci.ics.textdb.common.utils.Utils;
+
+/**
+ * AnnotationCodec converts the spans of an ISpanAnnotator to the fields of a Lucene document, and back.
+ *
+ * The spans are indexed in the ANNOTATION_FIELD by two kinds of terms:
+ *   a type term for each span, e.g. "content:Location", see getTypeTerm(),
+ *   and a value term for each term of the span's value analyzed by the table's analyzer,
+ *     e.g. "content:Location:york", see getValueTerm(),
+ *   so that a query can find the documents that have a Location in the "content" field containing "york".
+ *
+ * The spans themselves are stored as a binary field, the format is (all integers are variable-length):
+ *   numberOfSpans, (fieldName, start, end, key, value, tokenOffset) * numberOfSpans
+ *
+ */
+public final class AnnotationCodec {
+
+    // the name of the indexed field of the annotations
+    public static final String ANNOTATION_FIELD = "_annotation";
+    // the name of the stored field that contains the binary annotation spans
+    static final String STORED_ANNOTATION_FIELD = "_annotation_spans";
+
+    private AnnotationCodec() {
+    }
+
+    /**
+     * Returns the term of the spans of a type in a field.
+     */
+    public static String getTypeTerm(String fieldName, String key) {
+        return fieldName + ":" + key;
+    }
+
+    /**
+     * Returns the term of the spans of a type in a field, whose value contains the (analyzed) term.
+     */
+    public static String getValueTerm(String fieldName, String key, String term) {
+        return fieldName + ":" + key + ":" + term;
+    }
+
+    /*
+     * Returns the terms that index the spans.
+     */
+    static List<String> getIndexTerms(List<Span> spans, Analyzer analyzer) {
+        Set<String> indexTerms = new LinkedHashSet<>();
+        for (Span span : spans) {
+            indexTerms.add(getTypeTerm(span.getFieldName(), span.getKey()));
+            for (String term : Utils.tokenizeQuery(analyzer, span.getValue())) {
+                indexTerms.add(getValueTerm(span.getFieldName(), span.getKey(), term));
+            }
+        }
+        return new ArrayList<>(indexTerms);
+    }
+
+    static BytesRef encode(List<Span> spans) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        OutputStreamDataOutput output = new OutputStreamDataOutput(outputStream);
+        output.writeVInt(spans.size());
+        for (Span span : spans) {
+            output.writeString(span.getFieldName());
+            output.writeVInt(span.getStart());
+            output.writeVInt(span.getEnd());
+            output.writeString(span.getKey());
+            output.writeString(span.getValue());
+            // token offset is -1 if it's invalid, so it's shifted by 1 to keep it non-negative
+            output.writeVInt(span.getTokenOffset() + 1);
+        }
+        output.close();
+        return new BytesRef(outputStream.toByteArray());
+    }
+
+    static List<Span> decode(BytesRef storedSpans) throws IOException {
+        ByteArrayDataInput input = new ByteArrayDataInput(storedSpans.bytes, storedSpans.offset,
+                storedSpans.length);
+        int numberOfSpans = input.readVInt();
+        List<Span> spans = new ArrayList<>(numberOfSpans);
+        for (int i = 0; i < numberOfSpans; i++) {
+            String fieldName = input.readString();
+            int start = input.readVInt();
+            int end = input.readVInt();
+            String key = input.readString();
+            String value = input.readString();
+            int tokenOffset = input.readVInt() - 1;
+            spans.add(new Span(fieldName, start, end, key, value, tokenOffset));
+        }
+        return spans;
+    }
+
+    /*
+     * A token stream of the given terms, they are indexed as they are.
+     */
+    static final class TermListTokenStream extends TokenStream {
+
+        private final List<String> terms;
+        private final CharTermAttribute termAttribute = addAttribute(CharTermAttribute.class);
+        private Iterator<String> termIterator;
+
+        TermListTokenStream(List<String> terms) {
+            this.terms = terms;
+        }
+
+        @Override
+        public void reset() throws IOException {
+            super.reset();
+            termIterator = terms.iterator();
+        }
+
+        @Override
+        public boolean incrementToken() throws IOException {
+            if (! termIterator.hasNext()) {
+                return false;
+            }
+            clearAttributes();
+            termAttribute.setEmpty().append(termIterator.next());
+            return true;
+        }
+    }
+
+}
@@ -4,31 +4,41 @@ import java.io.IOException;
 import java.nio.file.Paths;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.PostingsEnum;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
-import org.apache.lucene.search.ScoreDoc;
-import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.store.Directory;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
 
 import edu.uci.ics.textdb.api.common.Attribute;
 import edu.uci.ics.textdb.api.common.FieldType;
 import edu.uci.ics.textdb.api.common.IField;
 import edu.uci.ics.textdb.api.common.ITuple;
 import edu.uci.ics.textdb.api.common.Schema;
+import edu.uci.ics.textdb.api.dataflow.CancellationToken;
 import edu.uci.ics.textdb.api.storage.IDataReader;
 import edu.uci.ics.textdb.common.constants.SchemaConstants;
 import edu.uci.ics.textdb.common.exception.ErrorMessages;
 import edu.uci.ics.textdb.common.exception.StorageException;
+import edu.uci.ics.textdb.common.field.CompactSpanList;
 import edu.uci.ics.textdb.common.field.DataTuple;
 import edu.uci.ics.textdb.common.field.ListField;
 import edu.uci.ics.textdb.common.field.Span;
@@ -40,13 +50,35 @@ import edu.uci.ics.textdb.common.utils.Utils;
  *   
  * DataReader can get tuples from the Lucene index folder by a lucene query,
  *   and return the tuples in an iterative way through "getNextTuple()"
+ * Matching documents are not collected up front, DataReader walks them lazily segment by segment,
+ *   so a consumer that stops early (e.g. because of a limit) doesn't pay for the rest of the matches.
+ *   Tuples are returned in index order, not in the order of their Lucene scores.
+ * With "setParallelism()", the segments are searched concurrently, and the stored fields and the payload of
+ *   the tuples are loaded by the workers of the segments (see ParallelSegmentSearch),
+ *   then tuples are returned in no particular order.
+ * With "setMorsels()", DataReader shares the reading of the table with other DataReaders,
+ *   it only reads the morsels (ranges of docIDs in a segment) it takes from the shared IndexMorsels.
  * 
  * DataReader currently has the option to append a "payload" field to a tuple, the "payload" field is a list of spans. 
  * Each span contains the start, end, and token offset position of a token in the original document.
- * The "payload" contains spans for EVERY token in tuple.
+ * By default, the "payload" contains spans for EVERY token in tuple.
+ * The payload is a CompactSpanList, which stores the tokens in primitive arrays and only creates a Span when it's retrieved.
+ * If the table stores the payload (see DataWriter.setPayloadStored), the stored binary payload is decoded directly,
+ *   otherwise the payload is rebuilt from the term vectors.
+ * The payload can be restricted to a set of terms (e.g. the query tokens of a matcher) by "setPayloadTerms()",
+ *   then it only contains the spans of those terms, and it's marked with the restriction
+ *   (see CompactSpanList.getTermRestriction). Operators that need the spans of other terms
+ *   must not assume the payload is complete, Utils.getSpansWithKeys() regenerates the spans if it's not.
  * 
  * The purpose of the "payload" field is to make subsequent keyword match, fuzzy token match, and dictionary match faster,
  * because they don't need to tokenize the tuple every time.
+ * 
+ * DataReader opened with a CancellationToken checks it before each tuple, and the workers of a parallel search
+ *   stop once it's cancelled, getNextTuple() then throws a StorageException instead of returning the rest of the tuples.
+ * 
+ * DataReader can also add an "annotation" field, which is the list of spans annotated by the table's
+ *   span annotator when the tuple is written (see DataWriter.setSpanAnnotator),
+ *   the list is empty if the tuple is not annotated.
  *   
  * 
  * DataReader for a specific table is only accessible from RelationManager.
@@ -65,11 +97,41 @@ public class DataReader implements IDataReader {
 
     private IndexReader luceneIndexReader;
     private IndexSearcher luceneIndexSearcher;
-    private ScoreDoc[] scoreDocs;
+
+    // the matching documents are iterated lazily, one index segment at a time
+    private Weight luceneQueryWeight;
+    private Iterator<LeafReaderContext> leafContextIterator;
+    private DocIdSetIterator leafDocIterator;
+    private Bits leafLiveDocs;
+    private int leafDocBase;
+    // the range of the docIDs (relative to the segment) that are read from the current segment
+    private int leafDocStart;
+    private int leafDocEnd;
+
+    // the morsels of the table shared with other DataReaders, null if the whole table is read
+    private IndexMorsels morsels;
+
+    // the number of segments searched concurrently, 1 means the segments are searched by the consumer
+    private int parallelism = 1;
+    private ParallelSegmentSearch parallelSearch;
+
+    private CancellationToken cancellationToken = CancellationToken.NONE;
 
     private int cursor = CLOSED;
+    // the list returned by getNextBatch()
+    private final List<ITuple> tupleBatch = new ArrayList<>();
+    
+    // the maximum number of tuples to return, the query is not evaluated further once it's reached
+    private int limit = Integer.MAX_VALUE;
 
     private boolean payloadAdded;
+    private boolean annotationAdded = false;
+    // only the spans of these terms are added to the payload, all spans are added if it's null
+    private Set<String> payloadTerms = null;
+    private List<BytesRef> payloadTermBytes = null;
+    
+    // the stored fields to load from a document
+    private Set<String> fieldsToLoad;
 
     /*
      * The package-only level constructor is only accessible inside the storage package.
@@ -86,19 +148,36 @@ public class DataReader implements IDataReader {
         this.payloadAdded = payloadAdded;
     }
 
+    @Override
+    public void open(CancellationToken cancellationToken) throws StorageException {
+        if (cursor != CLOSED) {
+            return;
+        }
+        this.cancellationToken = cancellationToken;
+        open();
+    }
+
     @Override
     public void open() throws StorageException {
         if (cursor != CLOSED) {
             return;
         }
         try {
-            String indexDirectoryStr = this.dataStore.getDataDirectory();
-            Directory indexDirectory = FSDirectory.open(Paths.get(indexDirectoryStr));
-            luceneIndexReader = DirectoryReader.open(indexDirectory);
-            luceneIndexSearcher = new IndexSearcher(luceneIndexReader);
+            // borrow the shared searcher of this table instead of opening the index again
+            if (morsels != null) {
+                if (! morsels.getIndexDirectory().equals(this.dataStore.getDataDirectory())) {
+                    throw new StorageException("the morsels are not from the table of the DataReader");
+                }
+                luceneIndexSearcher = morsels.attach();
+            } else {
+                luceneIndexSearcher = IndexReaderRegistry.acquire(this.dataStore.getDataDirectory());
+            }
+            luceneIndexReader = luceneIndexSearcher.getIndexReader();
 
-            TopDocs topDocs = luceneIndexSearcher.search(query, Integer.MAX_VALUE);
-            scoreDocs = topDocs.scoreDocs;
+            // scores are not needed, documents are returned in index order
+            luceneQueryWeight = luceneIndexSearcher.createNormalizedWeight(query, false);
+            leafContextIterator = luceneIndexReader.leaves().iterator();
+            leafDocIterator = null;
 
             inputSchema = this.dataStore.getSchema();
             if (payloadAdded) {
@@ -106,8 +185,26 @@ public class DataReader implements IDataReader {
             } else {
                 outputSchema = inputSchema;
             }
+            if (annotationAdded) {
+                outputSchema = Utils.addAttributeToSchema(outputSchema, SchemaConstants.ANNOTATION_ATTRIBUTE);
+            }
+            
+            fieldsToLoad = new HashSet<>(inputSchema.getAttributeNames());
+            if (payloadAdded) {
+                fieldsToLoad.add(PayloadCodec.STORED_PAYLOAD_FIELD);
+            }
+            if (annotationAdded) {
+                fieldsToLoad.add(AnnotationCodec.STORED_ANNOTATION_FIELD);
+            }
+
+            // the workers are started last, constructTuple() needs the schemas and the fields to load
+            if (morsels == null && parallelism > 1 && luceneIndexReader.leaves().size() > 1) {
+                parallelSearch = new ParallelSegmentSearch(luceneQueryWeight, luceneIndexReader.leaves(),
+                        parallelism, cancellationToken, this::constructTuple);
+            }
 
         } catch (IOException e) {
+            releaseSearcher();
             throw new StorageException(e.getMessage(), e);
         }
 
@@ -120,45 +217,177 @@ public class DataReader implements IDataReader {
             throw new StorageException(ErrorMessages.OPERATOR_NOT_OPENED);
         }
 
-        ITuple resultTuple;
-        try {
-            if (cursor >= scoreDocs.length) {
-                return null;
-            }
-            int docID = scoreDocs[cursor].doc;
-            resultTuple = constructTuple(docID);
+        if (cursor >= limit) {
+            return null;
+        }
 
-        } catch (IOException | ParseException e) {
-            throw new StorageException(e.getMessage(), e);
+        ITuple resultTuple = nextMatchingTuple();
+        if (resultTuple == null) {
+            return null;
         }
 
         cursor++;
         return resultTuple;
     }
 
+    /**
+     * Returns the next tuples in one pass over the matching documents,
+     *   the returned list is reused by the next call.
+     */
+    @Override
+    public List<ITuple> getNextBatch(int maxTuples) throws StorageException {
+        if (cursor == CLOSED) {
+            throw new StorageException(ErrorMessages.OPERATOR_NOT_OPENED);
+        }
+
+        tupleBatch.clear();
+        while (tupleBatch.size() < maxTuples && cursor < limit) {
+            ITuple resultTuple = nextMatchingTuple();
+            if (resultTuple == null) {
+                break;
+            }
+            tupleBatch.add(resultTuple);
+            cursor++;
+        }
+        return tupleBatch;
+    }
+
     @Override
     public void close() throws StorageException {
         cursor = CLOSED;
-        if (luceneIndexReader != null) {
-            try {
-                luceneIndexReader.close();
-                luceneIndexReader = null;
-            } catch (IOException e) {
-                throw new StorageException(e.getMessage(), e);
+        cancellationToken = CancellationToken.NONE;
+        releaseSearcher();
+    }
+    
+    /*
+     * Gives the shared searcher back to the registry, the reader is not closed by DataReader itself.
+     * The workers of a parallel search are stopped first, they may still be reading the index.
+     */
+    private void releaseSearcher() throws StorageException {
+        ParallelSegmentSearch search = parallelSearch;
+        parallelSearch = null;
+        try {
+            if (search != null) {
+                search.stop();
+            }
+        } finally {
+            IndexSearcher indexSearcher = luceneIndexSearcher;
+            luceneIndexSearcher = null;
+            luceneIndexReader = null;
+            luceneQueryWeight = null;
+            leafContextIterator = null;
+            leafDocIterator = null;
+            leafLiveDocs = null;
+            if (morsels == null) {
+                IndexReaderRegistry.release(indexSearcher);
+            } else if (indexSearcher != null) {
+                morsels.detach();
             }
         }
     }
+    
+    /*
+     * Returns the next tuple of a matching document, null if there's none.
+     */
+    private ITuple nextMatchingTuple() throws StorageException {
+        if (cancellationToken.isCancelled()) {
+            throw new StorageException(ErrorMessages.QUERY_CANCELLED);
+        }
+        if (parallelSearch != null) {
+            ITuple resultTuple = parallelSearch.next();
+            // the workers stop early if the query is cancelled
+            if (resultTuple == null && cancellationToken.isCancelled()) {
+                throw new StorageException(ErrorMessages.QUERY_CANCELLED);
+            }
+            return resultTuple;
+        }
+        try {
+            int docID = nextMatchingDocID();
+            if (docID == DocIdSetIterator.NO_MORE_DOCS) {
+                return null;
+            }
+            return constructTuple(docID);
+        } catch (IOException | ParseException e) {
+            throw new StorageException(e.getMessage(), e);
+        }
+    }
+
+    /*
+     * Advances to the next live document that matches the query, moving on to the next segment 
+     *   (or the next morsel) when the current one is exhausted. Returns the top-level docID, or NO_MORE_DOCS.
+     */
+    private int nextMatchingDocID() throws IOException {
+        while (true) {
+            if (leafDocIterator == null) {
+                LeafReaderContext leafContext;
+                if (morsels != null) {
+                    IndexMorsels.Morsel morsel = morsels.nextMorsel();
+                    if (morsel == null) {
+                        return DocIdSetIterator.NO_MORE_DOCS;
+                    }
+                    leafContext = morsel.leafContext;
+                    leafDocStart = morsel.start;
+                    leafDocEnd = morsel.end;
+                } else {
+                    if (! leafContextIterator.hasNext()) {
+                        return DocIdSetIterator.NO_MORE_DOCS;
+                    }
+                    leafContext = leafContextIterator.next();
+                    leafDocStart = 0;
+                    leafDocEnd = DocIdSetIterator.NO_MORE_DOCS;
+                }
+                Scorer leafScorer = luceneQueryWeight.scorer(leafContext);
+                if (leafScorer == null) {
+                    // no document in this segment matches the query
+                    continue;
+                }
+                leafDocIterator = leafScorer.iterator();
+                leafLiveDocs = leafContext.reader().getLiveDocs();
+                leafDocBase = leafContext.docBase;
+            }
+            
+            // the iterator is not positioned before the first call, a morsel may start in the middle of the segment
+            int leafDocID = leafDocIterator.docID() < leafDocStart ? 
+                    leafDocIterator.advance(leafDocStart) : leafDocIterator.nextDoc();
+            if (leafDocID >= leafDocEnd) {
+                leafDocIterator = null;
+                continue;
+            }
+            // scorers don't skip deleted documents
+            if (leafLiveDocs != null && ! leafLiveDocs.get(leafDocID)) {
+                continue;
+            }
+            return leafDocBase + leafDocID;
+        }
+    }
 
     private ITuple constructTuple(int docID) throws IOException, ParseException {
-        Document luceneDocument = luceneIndexSearcher.doc(docID);
+        Document luceneDocument = luceneIndexSearcher.doc(docID, fieldsToLoad);
         ArrayList<IField> docFields = documentToFields(luceneDocument);
 
         if (payloadAdded) {
-            ArrayList<Span> payloadSpanList = buildPayloadFromTermVector(docFields, docID);
+            CompactSpanList payloadSpanList;
+            BytesRef storedPayload = luceneDocument.getBinaryValue(PayloadCodec.STORED_PAYLOAD_FIELD);
+            if (storedPayload != null) {
+                payloadSpanList = PayloadCodec.decode(storedPayload,
+                        fieldName -> docFields.get(inputSchema.getIndex(fieldName)).getValue().toString(),
+                        payloadTerms);
+            } else {
+                // the tuple is written without the stored payload
+                payloadSpanList = buildPayloadFromTermVector(docFields, docID);
+            }
+            payloadSpanList.setTermRestriction(payloadTerms);
             ListField<Span> payloadField = new ListField<Span>(payloadSpanList);
             docFields.add(payloadField);
         }
 
+        if (annotationAdded) {
+            BytesRef storedAnnotation = luceneDocument.getBinaryValue(AnnotationCodec.STORED_ANNOTATION_FIELD);
+            List<Span> annotation = storedAnnotation == null ? 
+                    new ArrayList<>() : AnnotationCodec.decode(storedAnnotation);
+            docFields.add(new ListField<Span>(annotation));
+        }
+
         DataTuple resultTuple = new DataTuple(outputSchema, docFields.stream().toArray(IField[]::new));
         return resultTuple;
     }
@@ -173,8 +402,14 @@ public class DataReader implements IDataReader {
         return fields;
     }
 
-    private ArrayList<Span> buildPayloadFromTermVector(List<IField> fields, int docID) throws IOException {
-        ArrayList<Span> payloadSpanList = new ArrayList<>();
+    /*
+     * The payload is built as a CompactSpanList, Span objects are only created 
+     *   for the tokens that are retrieved by the operators.
+     * If the payload terms are set, only these terms are looked up in the term vectors,
+     *   instead of going through every term of the document.
+     */
+    private CompactSpanList buildPayloadFromTermVector(List<IField> fields, int docID) throws IOException {
+        CompactSpanList payloadSpanList = new CompactSpanList();
 
         for (Attribute attr : inputSchema.getAttributes()) {
             String fieldName = attr.getFieldName();
@@ -193,25 +428,20 @@ public class DataReader implements IDataReader {
                 continue;
             }
 
+            int fieldId = payloadSpanList.addField(fieldName, fieldValue);
             TermsEnum termsEnum = termVector.iterator();
             PostingsEnum termPostings = null;
-            // go through document terms
-            while ((termsEnum.next()) != null) {
-                termPostings = termsEnum.postings(termPostings, PostingsEnum.ALL);
-                if (termPostings.nextDoc() == DocIdSetIterator.NO_MORE_DOCS) {
-                    continue;
+            if (payloadTerms == null) {
+                // go through document terms
+                while ((termsEnum.next()) != null) {
+                    termPostings = addTermTokens(payloadSpanList, fieldId, termsEnum, termPostings);
                 }
-                // for each term, go through its postings
-                for (int i = 0; i < termPostings.freq(); i++) {
-                    int tokenPosition = termPostings.nextPosition(); // nextPosition needs to be called first
-                    int charStart = termPostings.startOffset();
-                    int charEnd = termPostings.endOffset();
-                    String analyzedTermStr = termsEnum.term().utf8ToString();
-                    String originalTermStr = fieldValue.substring(charStart, charEnd);
-
-                    Span span = new Span(fieldName, charStart, charEnd, analyzedTermStr, originalTermStr,
-                            tokenPosition);
-                    payloadSpanList.add(span);
+            } else {
+                // only seek the requested terms
+                for (BytesRef payloadTerm : payloadTermBytes) {
+                    if (termsEnum.seekExact(payloadTerm)) {
+                        termPostings = addTermTokens(payloadSpanList, fieldId, termsEnum, termPostings);
+                    }
                 }
             }
         }
@@ -219,6 +449,28 @@ public class DataReader implements IDataReader {
         return payloadSpanList;
     }
     
+    /*
+     * Adds the tokens of the current term of termsEnum to the payload.
+     * Returns the PostingsEnum so that it can be reused for the next term.
+     */
+    private static PostingsEnum addTermTokens(CompactSpanList payloadSpanList, int fieldId, TermsEnum termsEnum,
+            PostingsEnum termPostings) throws IOException {
+        termPostings = termsEnum.postings(termPostings, PostingsEnum.ALL);
+        if (termPostings.nextDoc() == DocIdSetIterator.NO_MORE_DOCS) {
+            return termPostings;
+        }
+        int termId = payloadSpanList.addTerm(termsEnum.term().utf8ToString());
+        // for each term, go through its postings
+        for (int i = 0; i < termPostings.freq(); i++) {
+            int tokenPosition = termPostings.nextPosition(); // nextPosition needs to be called first
+            int charStart = termPostings.startOffset();
+            int charEnd = termPostings.endOffset();
+
+            payloadSpanList.addToken(fieldId, termId, charStart, charEnd, tokenPosition);
+        }
+        return termPostings;
+    }
+    
     public boolean isPayloadAdded() {
         return this.payloadAdded;
     }
@@ -226,11 +478,97 @@ public class DataReader implements IDataReader {
     public void setPayloadAdded(boolean payloadAdded) {
         this.payloadAdded = payloadAdded;
     }
+    
+    public boolean isAnnotationAdded() {
+        return this.annotationAdded;
+    }
+    
+    /**
+     * Sets whether the "annotation" field is added to the tuples (see SchemaConstants.ANNOTATION_ATTRIBUTE).
+     * 
+     * @param annotationAdded
+     */
+    public void setAnnotationAdded(boolean annotationAdded) {
+        this.annotationAdded = annotationAdded;
+    }
+
+    /**
+     * Restricts the payload to the spans of the given terms.
+     * The terms must be analyzed in the same way as the table, 
+     *   e.g. the query tokens of a keyword matcher. 
+     * Null means all the spans are added, which is the default.
+     * The payload is marked with the restriction (see CompactSpanList.setTermRestriction),
+     *   so that an operator that needs the spans of other terms can generate them itself.
+     * 
+     * @param payloadTerms
+     */
+    public void setPayloadTerms(Collection<String> payloadTerms) {
+        if (payloadTerms == null) {
+            this.payloadTerms = null;
+            this.payloadTermBytes = null;
+        } else {
+            this.payloadTerms = Collections.unmodifiableSet(new HashSet<>(payloadTerms));
+            // sorted, so that the term vectors are always sought forward
+            this.payloadTermBytes = this.payloadTerms.stream().map(term -> new BytesRef(term))
+                    .sorted().collect(Collectors.toList());
+        }
+    }
+    
+    public Collection<String> getPayloadTerms() {
+        return this.payloadTerms;
+    }
 
     public Schema getOutputSchema() {
         return outputSchema;
     }
     
+    /**
+     * Sets the maximum number of tuples DataReader returns after it's opened.
+     * It's used by the upper-level operators to push their limit down to the index,
+     *   the matching documents after the limit are never read.
+     * 
+     * @param limit
+     */
+    public void setLimit(int limit) {
+        this.limit = limit;
+    }
+    
+    public int getLimit() {
+        return this.limit;
+    }
+
+    /**
+     * Sets the number of index segments that are searched concurrently after DataReader is opened,
+     *   the stored fields and the payload of a tuple are also loaded by the worker of its segment.
+     * Tuples are returned in no particular order if it's more than 1.
+     * The default is 1, the segments are searched one by one in the consumer's thread.
+     * 
+     * @param parallelism
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+    
+    public int getParallelism() {
+        return this.parallelism;
+    }
+
+    /**
+     * Makes DataReader only read the morsels it takes from the shared morsels of its table,
+     *   the other morsels are read by the other DataReaders that share them (see IndexMorsels).
+     * The segments are not searched in parallel by DataReader itself then.
+     * Null means the whole table is read, which is the default.
+     * 
+     * @param morsels
+     */
+    public void setMorsels(IndexMorsels morsels) {
+        this.morsels = morsels;
+    }
+    
+    public IndexMorsels getMorsels() {
+        return this.morsels;
+    }
+    
     public static boolean checkIndexExistence(String directory) {
         try {
             return DirectoryReader.indexExists(
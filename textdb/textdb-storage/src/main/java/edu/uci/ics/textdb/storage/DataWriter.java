@@ -3,11 +3,15 @@ package edu.uci.ics.textdb.storage;
 import java.io.IOException;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.Term;
@@ -20,6 +24,7 @@ import edu.uci.ics.textdb.api.common.FieldType;
 import edu.uci.ics.textdb.api.common.IField;
 import edu.uci.ics.textdb.api.common.ITuple;
 import edu.uci.ics.textdb.api.common.Schema;
+import edu.uci.ics.textdb.api.exception.TextDBException;
 import edu.uci.ics.textdb.api.storage.IDataStore;
 import edu.uci.ics.textdb.api.storage.IDataWriter;
 import edu.uci.ics.textdb.common.constants.SchemaConstants;
@@ -27,6 +32,7 @@ import edu.uci.ics.textdb.common.exception.ErrorMessages;
 import edu.uci.ics.textdb.common.exception.StorageException;
 import edu.uci.ics.textdb.common.field.DataTuple;
 import edu.uci.ics.textdb.common.field.IDField;
+import edu.uci.ics.textdb.common.field.Span;
 import edu.uci.ics.textdb.common.utils.Utils;
 
 /**
@@ -46,6 +52,16 @@ import edu.uci.ics.textdb.common.utils.Utils;
  * Update Operations:
  *   DataWriter can update the tuple, with the tuple's _id remaining the same.
  *   
+ * Stored Payload:
+ *   A table can optionally store the "payload" of every tuple as a binary field,
+ *   so that DataReader can decode it instead of rebuilding it from the term vectors.
+ *   The option is saved in the commit data of the index, and is inherited by all the writers of the table.
+ *   
+ * Span Annotator:
+ *   A table can optionally have an ISpanAnnotator (e.g. an NLP annotator) that annotates every tuple
+ *   when it's written, the spans are indexed and stored with the tuple (see AnnotationCodec).
+ *   The class name of the annotator is saved in the commit data of the index in the same way.
+ *   
  *   
  * DataWriter for a specific table is only accessible from RelationManager.
  * 
@@ -63,6 +79,20 @@ public class DataWriter implements IDataWriter {
     private IndexWriter luceneIndexWriter;
     
     private boolean isOpen = false;
+    
+    // the key in the index commit data that marks a table with stored payload
+    static final String PAYLOAD_STORED_KEY = "payloadStored";
+    
+    private boolean payloadStored = false;
+    // whether payloadStored is set on this writer, or read from the index
+    private boolean payloadStoredSet = false;
+    
+    // the key in the index commit data of the class name of the table's span annotator
+    static final String SPAN_ANNOTATOR_KEY = "spanAnnotator";
+    
+    private ISpanAnnotator spanAnnotator = null;
+    // whether spanAnnotator is set on this writer, or read from the index
+    private boolean spanAnnotatorSet = false;
 
     /*
      * The package-only level constructor is only accessible inside the storage package.
@@ -91,6 +121,18 @@ public class DataWriter implements IDataWriter {
                 IndexWriterConfig conf = new IndexWriterConfig(analyzer);
                 this.luceneIndexWriter = new IndexWriter(directory, conf);
                 this.isOpen = true;
+                if (payloadStoredSet) {
+                    writePayloadStoredOption();
+                } else {
+                    this.payloadStored = Boolean.parseBoolean(
+                            this.luceneIndexWriter.getCommitData().get(PAYLOAD_STORED_KEY));
+                }
+                if (spanAnnotatorSet) {
+                    writeSpanAnnotatorOption();
+                } else {
+                    this.spanAnnotator = createSpanAnnotator(
+                            this.luceneIndexWriter.getCommitData().get(SPAN_ANNOTATOR_KEY));
+                }
             } catch (IOException e) {
                 throw new StorageException(e.getMessage(), e);
             }
@@ -102,12 +144,82 @@ public class DataWriter implements IDataWriter {
             try {
                 this.luceneIndexWriter.close();
                 this.isOpen = false;
+                // make the committed changes visible to the readers of this table
+                IndexReaderRegistry.refresh(this.indexDirectory);
             } catch (IOException e) {
                 throw new StorageException(e.getMessage(), e);
             }
         }
     }
 
+    /**
+     * Sets whether the payload of the tuples is stored in the index.
+     * The option applies to the tuples inserted or updated after it's set,
+     *   and it's saved to the table when the writer is closed.
+     * 
+     * @param payloadStored
+     */
+    public void setPayloadStored(boolean payloadStored) {
+        this.payloadStored = payloadStored;
+        this.payloadStoredSet = true;
+        if (isOpen) {
+            writePayloadStoredOption();
+        }
+    }
+    
+    public boolean isPayloadStored() {
+        return this.payloadStored;
+    }
+    
+    private void writePayloadStoredOption() {
+        Map<String, String> commitData = new HashMap<>(this.luceneIndexWriter.getCommitData());
+        commitData.put(PAYLOAD_STORED_KEY, Boolean.toString(this.payloadStored));
+        this.luceneIndexWriter.setCommitData(commitData);
+    }
+    
+    /**
+     * Sets the span annotator of the table, or null if the tuples are not annotated.
+     * The option applies to the tuples inserted or updated after it's set,
+     *   and it's saved to the table (by the class name of the annotator) when the writer is closed.
+     * 
+     * @param spanAnnotator
+     */
+    public void setSpanAnnotator(ISpanAnnotator spanAnnotator) {
+        this.spanAnnotator = spanAnnotator;
+        this.spanAnnotatorSet = true;
+        if (isOpen) {
+            writeSpanAnnotatorOption();
+        }
+    }
+    
+    public ISpanAnnotator getSpanAnnotator() {
+        return this.spanAnnotator;
+    }
+    
+    private void writeSpanAnnotatorOption() {
+        Map<String, String> commitData = new HashMap<>(this.luceneIndexWriter.getCommitData());
+        if (this.spanAnnotator == null) {
+            commitData.remove(SPAN_ANNOTATOR_KEY);
+        } else {
+            commitData.put(SPAN_ANNOTATOR_KEY, this.spanAnnotator.getClass().getName());
+        }
+        this.luceneIndexWriter.setCommitData(commitData);
+    }
+    
+    /*
+     * Creates the span annotator saved in the table, or returns null if the table doesn't have one.
+     */
+    static ISpanAnnotator createSpanAnnotator(String spanAnnotatorClassName) throws StorageException {
+        if (spanAnnotatorClassName == null) {
+            return null;
+        }
+        try {
+            return (ISpanAnnotator) Class.forName(spanAnnotatorClassName).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new StorageException("cannot create the span annotator " + spanAnnotatorClassName, e);
+        }
+    }
+
     @Override
     public void clearData() throws StorageException {
         if (! isOpen) {
@@ -216,9 +328,11 @@ public class DataWriter implements IDataWriter {
     }
 
     /*
-     * Converts a TextDB tuple to a Lucene document
+     * Converts a TextDB tuple to a Lucene document,
+     *   adds the encoded payload of the tuple if the payload is stored,
+     *   and adds the annotation spans if the table has a span annotator.
      */
-    private static Document getLuceneDocument(ITuple tuple) {
+    private Document getLuceneDocument(ITuple tuple) throws IOException, StorageException {
         List<IField> fields = tuple.getFields();
         List<Attribute> attributes = tuple.getSchema().getAttributes();
         Document doc = new Document();
@@ -228,6 +342,21 @@ public class DataWriter implements IDataWriter {
             FieldType fieldType = attr.getFieldType();
             doc.add(Utils.getLuceneField(fieldType, attr.getFieldName(), field.getValue()));
         }
+        if (payloadStored) {
+            List<Span> payload = Utils.generatePayloadFromTuple(tuple, analyzer);
+            doc.add(new StoredField(PayloadCodec.STORED_PAYLOAD_FIELD, PayloadCodec.encode(payload)));
+        }
+        if (spanAnnotator != null) {
+            List<Span> annotation;
+            try {
+                annotation = spanAnnotator.annotate(tuple);
+            } catch (TextDBException e) {
+                throw new StorageException(e.getMessage(), e);
+            }
+            doc.add(new TextField(AnnotationCodec.ANNOTATION_FIELD,
+                    new AnnotationCodec.TermListTokenStream(AnnotationCodec.getIndexTerms(annotation, analyzer))));
+            doc.add(new StoredField(AnnotationCodec.STORED_ANNOTATION_FIELD, AnnotationCodec.encode(annotation)));
+        }
         return doc;
     }
     
@@ -0,0 +1,24 @@
+package edu.uci.ics.textdb.storage;
+
+import java.util.List;
+
+import edu.uci.ics.textdb.api.common.ITuple;
+import edu.uci.ics.textdb.api.exception.TextDBException;
+import edu.uci.ics.textdb.common.field.Span;
+
+/**
+ * ISpanAnnotator annotates a tuple with spans (e.g. named entities) when the tuple is written to a table,
+ *   so that the annotations are computed once at indexing time instead of every time the table is queried.
+ *
+ * The key of a span is its annotation type (e.g. "Location"),
+ *   and the spans are indexed by their field, type and terms (see AnnotationCodec).
+ *
+ * An annotator is saved to the table by its class name (see DataWriter.setSpanAnnotator),
+ *   so it must have a public constructor without arguments.
+ *
+ */
+public interface ISpanAnnotator {
+
+    List<Span> annotate(ITuple tuple) throws TextDBException;
+
+}
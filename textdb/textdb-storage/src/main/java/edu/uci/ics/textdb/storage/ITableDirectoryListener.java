@@ -0,0 +1,16 @@
+package edu.uci.ics.textdb.storage;
+
+/**
+ * ITableDirectoryListener is told by RelationManager when the directory of a table is cleared (by createTable)
+ *   or deleted (by deleteTable), so that what's cached about the directory (e.g. the NLP annotation cache
+ *   kept under it) can be dropped.
+ *
+ * Listeners are registered by RelationManager.addTableDirectoryListener,
+ *   they are called before the directory is changed.
+ *
+ */
+public interface ITableDirectoryListener {
+
+    void invalidateTableDirectory(String tableDirectory);
+
+}
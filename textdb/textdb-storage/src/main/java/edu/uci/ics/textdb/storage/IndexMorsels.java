@@ -0,0 +1,124 @@
+package edu.uci.ics.textdb.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.IndexSearcher;
+
+import edu.uci.ics.textdb.common.exception.StorageException;
+
+/**
+ * IndexMorsels divides the documents of a table into morsels, which are ranges of docIDs in one segment,
+ *   and hands them out to the DataReaders that share the reading of the table (see DataReader.setMorsels).
+ *
+ * A DataReader takes the next morsel whenever it finishes one,
+ *   so the reader of a faster consumer reads more morsels, and every document is read by exactly one reader.
+ * All the readers search the same snapshot of the index: the first reader that's opened borrows
+ *   the shared searcher of the table, and the last reader that's closed gives it back.
+ *   The readers must all be opened before any of them is closed, otherwise the morsels are handed out again.
+ *
+ * IndexMorsels of a table is only created by RelationManager.
+ *
+ */
+public class IndexMorsels {
+
+    public static final int DEFAULT_MORSEL_SIZE = 10000;
+
+    private final String indexDirectory;
+    private int morselSize = DEFAULT_MORSEL_SIZE;
+
+    private IndexSearcher indexSearcher;
+    private int attachedReaders = 0;
+    private volatile List<Morsel> morsels;
+    private final AtomicInteger nextMorselIndex = new AtomicInteger();
+
+    IndexMorsels(String indexDirectory) {
+        this.indexDirectory = indexDirectory;
+    }
+
+    String getIndexDirectory() {
+        return indexDirectory;
+    }
+
+    /**
+     * Sets the maximum number of documents in a morsel, it takes effect when the morsels are handed out again.
+     *
+     * @param morselSize
+     */
+    public void setMorselSize(int morselSize) {
+        this.morselSize = Math.max(1, morselSize);
+    }
+
+    public int getMorselSize() {
+        return morselSize;
+    }
+
+    /**
+     * Borrows the searcher of the snapshot, the morsels are created by the first reader.
+     *
+     * @return
+     * @throws StorageException
+     */
+    synchronized IndexSearcher attach() throws StorageException {
+        if (attachedReaders == 0) {
+            indexSearcher = IndexReaderRegistry.acquire(indexDirectory);
+            morsels = createMorsels(indexSearcher.getIndexReader().leaves(), morselSize);
+            nextMorselIndex.set(0);
+        }
+        attachedReaders++;
+        return indexSearcher;
+    }
+
+    /**
+     * Gives the searcher back, it's released to the registry by the last reader.
+     *
+     * @throws StorageException
+     */
+    synchronized void detach() throws StorageException {
+        attachedReaders--;
+        if (attachedReaders == 0) {
+            IndexSearcher releasedSearcher = indexSearcher;
+            indexSearcher = null;
+            morsels = null;
+            IndexReaderRegistry.release(releasedSearcher);
+        }
+    }
+
+    /**
+     * Returns the next morsel that hasn't been handed out, null if there's none.
+     */
+    Morsel nextMorsel() {
+        List<Morsel> currentMorsels = morsels;
+        int morselIndex = nextMorselIndex.getAndIncrement();
+        return currentMorsels == null || morselIndex >= currentMorsels.size() ? null : currentMorsels.get(morselIndex);
+    }
+
+    private static List<Morsel> createMorsels(List<LeafReaderContext> leafContexts, int morselSize) {
+        List<Morsel> morsels = new ArrayList<>();
+        for (LeafReaderContext leafContext : leafContexts) {
+            int maxDoc = leafContext.reader().maxDoc();
+            for (int start = 0; start < maxDoc; start += morselSize) {
+                morsels.add(new Morsel(leafContext, start, (int) Math.min(maxDoc, (long) start + morselSize)));
+            }
+        }
+        return morsels;
+    }
+
+    /**
+     * Morsel is the range [start, end) of the docIDs of a segment, relative to the segment.
+     */
+    static class Morsel {
+        final LeafReaderContext leafContext;
+        final int start;
+        final int end;
+
+        Morsel(LeafReaderContext leafContext, int start, int end) {
+            this.leafContext = leafContext;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+}
@@ -0,0 +1,203 @@
+package edu.uci.ics.textdb.storage;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.FSDirectory;
+
+import edu.uci.ics.textdb.common.exception.StorageException;
+
+/**
+ * IndexReaderRegistry keeps one shared Lucene searcher for each index directory,
+ *   so that DataReaders over the same table don't re-open the index every time.
+ *
+ * A searcher is borrowed by "acquire" and must be given back by "release".
+ * The underlying IndexReader is reference counted, a reader is only closed after
+ *   it's replaced by a newer one AND every borrower has released it.
+ *
+ * DataWriter calls "refresh" after it commits, so that subsequent acquires
+ *   see the newly written data. RelationManager calls "invalidate" before
+ *   it deletes a table's directory.
+ *
+ * The FSDirectory of an index is opened with its searcher manager, and closed once the manager
+ *   is dropped and every reader opened by the manager is closed.
+ *
+ * IndexReaderRegistry is only accessible inside the storage package.
+ *
+ */
+final class IndexReaderRegistry {
+
+    private static final ConcurrentHashMap<String, RegisteredIndex> registeredIndexMap = new ConcurrentHashMap<>();
+
+    private IndexReaderRegistry() {
+    }
+
+    /**
+     * Borrows the current searcher of an index directory.
+     * The searcher must be given back using "release".
+     *
+     * @param indexDirectory
+     * @return
+     * @throws StorageException
+     */
+    static IndexSearcher acquire(String indexDirectory) throws StorageException {
+        String key = getKey(indexDirectory);
+        while (true) {
+            RegisteredIndex registeredIndex = getRegisteredIndex(key);
+            try {
+                return registeredIndex.searcherManager.acquire();
+            } catch (AlreadyClosedException e) {
+                // the manager is invalidated concurrently, remove it and try again with a new one
+                registeredIndexMap.remove(key, registeredIndex);
+            } catch (IOException e) {
+                throw new StorageException(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Gives back a searcher obtained from "acquire".
+     * The searcher must not be used after it's released.
+     *
+     * @param indexSearcher
+     * @throws StorageException
+     */
+    static void release(IndexSearcher indexSearcher) throws StorageException {
+        if (indexSearcher == null) {
+            return;
+        }
+        try {
+            // the reader is decRef'ed directly, so that a searcher can still be released
+            //   after its manager has been invalidated
+            indexSearcher.getIndexReader().decRef();
+        } catch (IOException e) {
+            throw new StorageException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Makes the latest commit of an index directory visible to subsequent acquires.
+     * Searchers that are already borrowed are not affected.
+     *
+     * @param indexDirectory
+     */
+    static void refresh(String indexDirectory) {
+        String key = getKey(indexDirectory);
+        RegisteredIndex registeredIndex = registeredIndexMap.get(key);
+        if (registeredIndex == null) {
+            return;
+        }
+        try {
+            registeredIndex.searcherManager.maybeRefreshBlocking();
+        } catch (IOException | AlreadyClosedException e) {
+            // if the index can't be refreshed, drop the searcher,
+            //   the next acquire will open the index again
+            closeRegisteredIndex(key);
+        }
+    }
+
+    /**
+     * Drops the searcher of an index directory,
+     *   it should be called before the directory is deleted.
+     * Searchers that are already borrowed remain usable until they are released,
+     *   the directory is closed after the last of them is released.
+     *
+     * @param indexDirectory
+     */
+    static void invalidate(String indexDirectory) {
+        closeRegisteredIndex(getKey(indexDirectory));
+    }
+
+    private static RegisteredIndex getRegisteredIndex(String key) throws StorageException {
+        RegisteredIndex registeredIndex = registeredIndexMap.get(key);
+        if (registeredIndex != null) {
+            return registeredIndex;
+        }
+        synchronized (registeredIndexMap) {
+            registeredIndex = registeredIndexMap.get(key);
+            if (registeredIndex == null) {
+                FSDirectory directory = null;
+                try {
+                    directory = FSDirectory.open(Paths.get(key));
+                    registeredIndex = new RegisteredIndex(directory);
+                } catch (IOException e) {
+                    closeDirectory(directory);
+                    throw new StorageException(e.getMessage(), e);
+                }
+                registeredIndexMap.put(key, registeredIndex);
+            }
+            return registeredIndex;
+        }
+    }
+
+    private static void closeRegisteredIndex(String key) {
+        RegisteredIndex registeredIndex = registeredIndexMap.remove(key);
+        if (registeredIndex != null) {
+            registeredIndex.close();
+        }
+    }
+
+    private static void closeDirectory(FSDirectory directory) {
+        // the files of the index are held by the readers, the directory itself only holds its path
+        if (directory != null) {
+            directory.close();
+        }
+    }
+
+    /*
+     * Different strings of the same directory (relative, absolute, trailing slash) share one searcher.
+     */
+    private static String getKey(String indexDirectory) {
+        return Paths.get(indexDirectory).toAbsolutePath().normalize().toString();
+    }
+
+    /*
+     * The searcher manager of an index directory, and the directory it reads from.
+     * The readers opened by the manager are counted, the directory is closed once the manager 
+     *   is closed and none of its readers is open.
+     */
+    private static final class RegisteredIndex {
+        private final FSDirectory directory;
+        private final SearcherManager searcherManager;
+        private final AtomicInteger openReaders = new AtomicInteger();
+        private volatile boolean closed = false;
+
+        private RegisteredIndex(FSDirectory directory) throws IOException {
+            this.directory = directory;
+            this.searcherManager = new SearcherManager(directory, new SearcherFactory() {
+                @Override
+                public IndexSearcher newSearcher(IndexReader reader, IndexReader previousReader) throws IOException {
+                    openReaders.incrementAndGet();
+                    reader.addReaderClosedListener(closedReader -> readerClosed());
+                    return super.newSearcher(reader, previousReader);
+                }
+            });
+        }
+
+        private void readerClosed() {
+            if (openReaders.decrementAndGet() == 0 && closed) {
+                closeDirectory(directory);
+            }
+        }
+
+        private void close() {
+            closed = true;
+            try {
+                searcherManager.close();
+            } catch (IOException e) {
+                // the current reader is only decRef'ed, there's nothing else to clean up
+            }
+            if (openReaders.get() == 0) {
+                closeDirectory(directory);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,42 @@
+package edu.uci.ics.textdb.storage;
+
+import java.util.Map;
+
+import org.apache.lucene.index.Term;
+
+/**
+ * IndexStatistics is a snapshot of the statistics of a table's index:
+ *   the number of documents, and the document frequencies of some terms,
+ *   they are used to estimate the number of documents that match a query.
+ *
+ * The statistics are obtained from RelationManager.getTableIndexStatistics.
+ * Deleted documents that are not merged away yet are counted, so the numbers are estimates.
+ *
+ */
+public class IndexStatistics {
+
+    private final int numberOfDocuments;
+    private final Map<Term, Integer> documentFrequencies;
+
+    IndexStatistics(int numberOfDocuments, Map<Term, Integer> documentFrequencies) {
+        this.numberOfDocuments = numberOfDocuments;
+        this.documentFrequencies = documentFrequencies;
+    }
+
+    public int getNumberOfDocuments() {
+        return numberOfDocuments;
+    }
+
+    /**
+     * Returns the number of documents that contain the term,
+     *   the term must be one of the terms passed to RelationManager.getTableIndexStatistics.
+     */
+    public int getDocumentFrequency(Term term) {
+        Integer documentFrequency = documentFrequencies.get(term);
+        if (documentFrequency == null) {
+            throw new IllegalArgumentException("the document frequency of " + term + " is not collected");
+        }
+        return documentFrequency;
+    }
+
+}
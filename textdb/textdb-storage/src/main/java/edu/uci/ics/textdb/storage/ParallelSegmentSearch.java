@@ -0,0 +1,234 @@
+package edu.uci.ics.textdb.storage;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Bits;
+
+import edu.uci.ics.textdb.api.common.ITuple;
+import edu.uci.ics.textdb.api.dataflow.CancellationToken;
+import edu.uci.ics.textdb.common.exception.StorageException;
+
+/**
+ * ParallelSegmentSearch searches the segments of an index concurrently for a DataReader (see DataReader.setParallelism).
+ *
+ * Each worker takes the next segment that hasn't been searched, and constructs the tuples of its matching documents,
+ *   which includes loading the stored fields and building the payload.
+ *   The tuples are handed to the consumer through a bounded queue, so the workers never run too far ahead of it.
+ *   The tuples of a segment are in index order, but the tuples of different segments are interleaved.
+ *
+ * The workers are started by the first call of next(), so a reader that's opened but not read yet holds no threads.
+ * A worker waits without polling while the queue is full, it's woken up when the consumer takes a tuple,
+ *   when the search is stopped, or when the query is cancelled (see CancellationToken).
+ * The workers stop once the query is cancelled, the consumer then gets no more tuples.
+ * If the consumer takes no tuple from a full queue for CONSUMER_TIMEOUT_MINUTES (e.g. it went away without
+ *   closing the reader), the workers give up, and the consumer gets an exception if it comes back.
+ *
+ * The workers run on a shared pool of daemon threads. The pool creates threads on demand,
+ *   so the workers of a reader whose consumer is slow never hold up the workers of another reader.
+ *
+ */
+class ParallelSegmentSearch {
+
+    /**
+     * TupleConstructor constructs the tuple of a document, it's called by multiple workers at the same time.
+     */
+    interface TupleConstructor {
+        ITuple constructTuple(int docID) throws IOException, ParseException;
+    }
+
+    public static final int QUEUE_CAPACITY = 1024;
+
+    // how long the workers wait for the consumer to take a tuple from a full queue
+    public static final long CONSUMER_TIMEOUT_MINUTES = 10;
+
+    private static final ExecutorService SEGMENT_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "textdb-segment-search");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // put to the queue by a worker when it's finished
+    private static final Object WORKER_FINISHED = new Object();
+
+    private final Weight queryWeight;
+    private final List<LeafReaderContext> leafContexts;
+    private final CancellationToken cancellationToken;
+    private final TupleConstructor tupleConstructor;
+
+    private final AtomicInteger nextLeafIndex = new AtomicInteger();
+    // a worker takes a permit before it puts a tuple, the consumer gives it back when it takes the tuple,
+    //   WORKER_FINISHED and the failures are put without a permit, so they never wait
+    private final LinkedBlockingQueue<Object> tupleQueue = new LinkedBlockingQueue<>();
+    private final Semaphore tuplePermits = new Semaphore(QUEUE_CAPACITY);
+    private final int workerCount;
+    private final CountDownLatch workersStopped;
+    private final Runnable cancelListener = this::wakeUpWorkers;
+    private volatile boolean stopped = false;
+    private boolean started = false;
+
+    // the workers whose WORKER_FINISHED hasn't been taken by the consumer
+    private int runningWorkers;
+
+    ParallelSegmentSearch(Weight queryWeight, List<LeafReaderContext> leafContexts, int parallelism,
+            CancellationToken cancellationToken, TupleConstructor tupleConstructor) {
+        this.queryWeight = queryWeight;
+        this.leafContexts = leafContexts;
+        this.cancellationToken = cancellationToken;
+        this.tupleConstructor = tupleConstructor;
+        this.workerCount = Math.max(1, Math.min(parallelism, leafContexts.size()));
+        this.runningWorkers = workerCount;
+        this.workersStopped = new CountDownLatch(workerCount);
+    }
+
+    /**
+     * Returns the next tuple, waits until a worker constructs it, null if all the segments are searched.
+     *
+     * @return
+     * @throws StorageException, if a worker fails, or the consumer is interrupted
+     */
+    ITuple next() throws StorageException {
+        if (! started) {
+            start();
+        }
+        try {
+            while (runningWorkers > 0) {
+                Object item = tupleQueue.take();
+                if (item == WORKER_FINISHED) {
+                    runningWorkers--;
+                } else if (item instanceof WorkerFailure) {
+                    Exception e = ((WorkerFailure) item).exception;
+                    throw new StorageException(e.getMessage(), e);
+                } else {
+                    tuplePermits.release();
+                    return (ITuple) item;
+                }
+            }
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Stops the workers and waits for them, the index reader must not be released before.
+     *
+     * @throws StorageException, if it's interrupted
+     */
+    void stop() throws StorageException {
+        stopped = true;
+        if (! started) {
+            return;
+        }
+        cancellationToken.removeCancelListener(cancelListener);
+        wakeUpWorkers();
+        try {
+            workersStopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException(e.getMessage(), e);
+        }
+    }
+
+    private void start() {
+        started = true;
+        cancellationToken.addCancelListener(cancelListener);
+        for (int i = 0; i < workerCount; i++) {
+            SEGMENT_EXECUTOR.execute(() -> runWorker());
+        }
+    }
+
+    /*
+     * Wakes up the workers that wait for a permit, they check if the search is stopped or cancelled.
+     */
+    private void wakeUpWorkers() {
+        tuplePermits.release(workerCount);
+    }
+
+    private void runWorker() {
+        try {
+            int leafIndex;
+            while (! stopped && (leafIndex = nextLeafIndex.getAndIncrement()) < leafContexts.size()) {
+                if (! searchSegment(leafContexts.get(leafIndex))) {
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            // the other workers stop as well, the consumer fails once it takes the failure
+            stopped = true;
+            tupleQueue.add(new WorkerFailure(e));
+        } finally {
+            tupleQueue.add(WORKER_FINISHED);
+            workersStopped.countDown();
+        }
+    }
+
+    /*
+     * Constructs the tuples of the matching live documents of a segment.
+     * Returns false if the search is stopped, or the query is cancelled.
+     */
+    private boolean searchSegment(LeafReaderContext leafContext) 
+            throws IOException, ParseException, InterruptedException, StorageException {
+        Scorer leafScorer = queryWeight.scorer(leafContext);
+        if (leafScorer == null) {
+            return true;
+        }
+        DocIdSetIterator leafDocIterator = leafScorer.iterator();
+        Bits leafLiveDocs = leafContext.reader().getLiveDocs();
+        int leafDocID;
+        while ((leafDocID = leafDocIterator.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+            // scorers don't skip deleted documents
+            if (leafLiveDocs != null && ! leafLiveDocs.get(leafDocID)) {
+                continue;
+            }
+            if (stopped || cancellationToken.isCancelled() 
+                    || ! put(tupleConstructor.constructTuple(leafContext.docBase + leafDocID))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Puts a tuple to the queue, waits while the queue is full.
+     * Returns false if the search is stopped, or the query is cancelled.
+     */
+    private boolean put(ITuple tuple) throws InterruptedException, StorageException {
+        long waitNanos = Math.min(TimeUnit.MINUTES.toNanos(CONSUMER_TIMEOUT_MINUTES), 
+                cancellationToken.getRemainingNanos());
+        if (! tuplePermits.tryAcquire(waitNanos, TimeUnit.NANOSECONDS)) {
+            if (cancellationToken.isCancelled()) {
+                return false;
+            }
+            throw new StorageException("the consumer of the parallel search took no tuple in " 
+                    + CONSUMER_TIMEOUT_MINUTES + " minutes");
+        }
+        if (stopped || cancellationToken.isCancelled()) {
+            return false;
+        }
+        tupleQueue.add(tuple);
+        return true;
+    }
+
+    private static class WorkerFailure {
+        private final Exception exception;
+
+        WorkerFailure(Exception exception) {
+            this.exception = exception;
+        }
+    }
+
+}
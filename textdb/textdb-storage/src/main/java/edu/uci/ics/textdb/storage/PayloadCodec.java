@@ -0,0 +1,126 @@
+package edu.uci.ics.textdb.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.Function;
+
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.OutputStreamDataOutput;
+import org.apache.lucene.util.BytesRef;
+
+import edu.uci.ics.textdb.common.field.CompactSpanList;
+import edu.uci.ics.textdb.common.field.Span;
+
+/**
+ * PayloadCodec converts the payload of a tuple to a binary value that is stored in the index,
+ *   and converts it back to a CompactSpanList when the tuple is read.
+ *
+ * The tokens are grouped by their analyzed terms, and the length of each group is written before it,
+ *   so that the groups of the terms that are not needed can be skipped without being decoded.
+ *
+ * Format (all integers are variable-length):
+ *   numberOfFields, fieldName * numberOfFields,
+ *   numberOfTerms, (term, groupLength, numberOfTokens, (fieldId, start, end, tokenOffset) * numberOfTokens) * numberOfTerms
+ *
+ * The original text of the spans is not stored, it's taken from the field values of the tuple.
+ *
+ */
+final class PayloadCodec {
+
+    // the name of the stored field that contains the binary payload
+    static final String STORED_PAYLOAD_FIELD = "_payload";
+
+    private PayloadCodec() {
+    }
+
+    static BytesRef encode(List<Span> payload) throws IOException {
+        List<String> fieldNames = new ArrayList<>();
+        LinkedHashMap<String, List<Span>> termSpanMap = new LinkedHashMap<>();
+        for (Span span : payload) {
+            if (! fieldNames.contains(span.getFieldName())) {
+                fieldNames.add(span.getFieldName());
+            }
+            termSpanMap.computeIfAbsent(span.getKey(), term -> new ArrayList<>()).add(span);
+        }
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        OutputStreamDataOutput output = new OutputStreamDataOutput(outputStream);
+        output.writeVInt(fieldNames.size());
+        for (String fieldName : fieldNames) {
+            output.writeString(fieldName);
+        }
+
+        output.writeVInt(termSpanMap.size());
+        ByteArrayOutputStream groupStream = new ByteArrayOutputStream();
+        for (String term : termSpanMap.keySet()) {
+            List<Span> termSpans = termSpanMap.get(term);
+
+            groupStream.reset();
+            OutputStreamDataOutput groupOutput = new OutputStreamDataOutput(groupStream);
+            groupOutput.writeVInt(termSpans.size());
+            for (Span span : termSpans) {
+                groupOutput.writeVInt(fieldNames.indexOf(span.getFieldName()));
+                groupOutput.writeVInt(span.getStart());
+                groupOutput.writeVInt(span.getEnd());
+                // token offset is -1 if it's invalid, so it's shifted by 1 to keep it non-negative
+                groupOutput.writeVInt(span.getTokenOffset() + 1);
+            }
+
+            output.writeString(term);
+            output.writeVInt(groupStream.size());
+            output.writeBytes(groupStream.toByteArray(), groupStream.size());
+        }
+        output.close();
+
+        return new BytesRef(outputStream.toByteArray());
+    }
+
+    /**
+     * Decodes a binary payload.
+     *
+     * @param storedPayload, the binary value written by encode()
+     * @param fieldValueFunction, gets the value of a field by its name
+     * @param payloadTerms, only the spans of these terms are decoded, all spans are decoded if it's null
+     * @return
+     */
+    static CompactSpanList decode(BytesRef storedPayload, Function<String, String> fieldValueFunction,
+            Collection<String> payloadTerms) throws IOException {
+        ByteArrayDataInput input = new ByteArrayDataInput(storedPayload.bytes, storedPayload.offset,
+                storedPayload.length);
+        CompactSpanList payload = new CompactSpanList();
+
+        int numberOfFields = input.readVInt();
+        int[] fieldIds = new int[numberOfFields];
+        for (int i = 0; i < numberOfFields; i++) {
+            String fieldName = input.readString();
+            fieldIds[i] = payload.addField(fieldName, fieldValueFunction.apply(fieldName));
+        }
+
+        int numberOfTerms = input.readVInt();
+        for (int i = 0; i < numberOfTerms; i++) {
+            String term = input.readString();
+            int groupLength = input.readVInt();
+            if (payloadTerms != null && ! payloadTerms.contains(term)) {
+                input.skipBytes(groupLength);
+                continue;
+            }
+
+            int termId = payload.addTerm(term);
+            int numberOfTokens = input.readVInt();
+            for (int j = 0; j < numberOfTokens; j++) {
+                int fieldId = fieldIds[input.readVInt()];
+                int start = input.readVInt();
+                int end = input.readVInt();
+                int tokenOffset = input.readVInt() - 1;
+                payload.addToken(fieldId, termId, start, end, tokenOffset);
+            }
+        }
+
+        return payload;
+    }
+
+}
@@ -1,12 +1,21 @@
 package edu.uci.ics.textdb.storage;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.TermQuery;
 
@@ -22,13 +31,34 @@ import edu.uci.ics.textdb.common.exception.StorageException;
 import edu.uci.ics.textdb.common.field.IDField;
 import edu.uci.ics.textdb.common.utils.Utils;
 
+/**
+ * RelationManager manages the tables and their information in the catalog:
+ *   the table catalog has the directory and the Lucene analyzer of each table,
+ *   the schema catalog has the attributes of each table.
+ * 
+ * The catalog is read from the catalog tables once, when the RelationManager is created,
+ *   and kept in memory, so that looking up a table (e.g. by the constructor of every source operator)
+ *   doesn't search the catalog tables.
+ *   createTable() and deleteTable() write the changes through to both the catalog tables and the memory.
+ *   The catalog tables must only be modified by the RelationManager of one process.
+ * Before the directory of a table is cleared or deleted, the registered ITableDirectoryListeners are told,
+ *   so that the caches kept for the directory are dropped.
+ * 
+ */
 public class RelationManager {
     
     private static volatile RelationManager singletonRelationManager = null;
     
+    // the catalog in memory, by table name
+    private final ConcurrentHashMap<String, TableCatalogEntry> tableCatalog = new ConcurrentHashMap<>();
+    
+    private final List<ITableDirectoryListener> tableDirectoryListeners = new CopyOnWriteArrayList<>();
+    
     private RelationManager() throws StorageException {
         if (! checkCatalogExistence()) {
             initializeCatalog();
+        } else {
+            loadCatalog();
         }
     }
 
@@ -51,13 +81,11 @@ public class RelationManager {
      * @return
      */
     public boolean checkTableExistence(String tableName) {
-        try {
-            String tableDirectory = getTableDirectory(tableName);
-            getTableSchema(tableName);
-            return DataReader.checkIndexExistence(tableDirectory);
-        } catch (StorageException e) {
+        TableCatalogEntry catalogEntry = tableCatalog.get(tableName);
+        if (catalogEntry == null || catalogEntry.schema == null) {
             return false;
         }
+        return DataReader.checkIndexExistence(catalogEntry.directory);
     }
 
     /**
@@ -77,6 +105,47 @@ public class RelationManager {
      */
     public void createTable(String tableName, String indexDirectory, Schema schema, String luceneAnalyzerString)
             throws StorageException {
+        createTable(tableName, indexDirectory, schema, luceneAnalyzerString, false);
+    }
+    
+    /**
+     * Creates a new table, and sets whether the payload of the tuples is stored in the table.
+     * 
+     * If the payload is stored, it's encoded when a tuple is inserted, 
+     *   and the DataReaders of the table decode it instead of rebuilding it from the term vectors.
+     *   It makes reading the payload faster at the cost of a larger index.
+     * 
+     * @param tableName
+     * @param indexDirectory
+     * @param schema
+     * @param luceneAnalyzerString
+     * @param payloadStored
+     * @throws StorageException
+     */
+    public void createTable(String tableName, String indexDirectory, Schema schema, String luceneAnalyzerString,
+            boolean payloadStored) throws StorageException {
+        createTable(tableName, indexDirectory, schema, luceneAnalyzerString, payloadStored, null);
+    }
+    
+    /**
+     * Creates a new table, and sets whether the payload of the tuples is stored in the table,
+     *   and the span annotator of the table.
+     * 
+     * If the table has a span annotator, every tuple is annotated once when it's inserted,
+     *   and the annotation spans are indexed and stored with the tuple,
+     *   so that the operators can find the annotations by a Lucene query instead of annotating the whole table.
+     *   The annotator is saved by its class name, so it must have a public constructor without arguments.
+     * 
+     * @param tableName
+     * @param indexDirectory
+     * @param schema
+     * @param luceneAnalyzerString
+     * @param payloadStored
+     * @param spanAnnotator, null if the tuples are not annotated
+     * @throws StorageException
+     */
+    public synchronized void createTable(String tableName, String indexDirectory, Schema schema,
+            String luceneAnalyzerString, boolean payloadStored, ISpanAnnotator spanAnnotator) throws StorageException {
         // table should not exist
         if (checkTableExistence(tableName)) {
             throw new StorageException(String.format("Table %s already exists.", tableName));
@@ -94,6 +163,9 @@ public class RelationManager {
         Schema tableSchema = Utils.getSchemaWithID(schema);
         DataStore tableDataStore = new DataStore(indexDirectory, tableSchema);
         DataWriter dataWriter = new DataWriter(tableDataStore, luceneAnalyzer);
+        dataWriter.setPayloadStored(payloadStored);
+        dataWriter.setSpanAnnotator(spanAnnotator);
+        invalidateTableDirectory(indexDirectory);
         dataWriter.open();
         dataWriter.clearData();
         dataWriter.close();
@@ -111,7 +183,7 @@ public class RelationManager {
      * @param tableName
      * @throws StorageException
      */
-    public void deleteTable(String tableName) throws StorageException {
+    public synchronized void deleteTable(String tableName) throws StorageException {
         // User can't delete catalog table
         if (isSystemCatalog(tableName)) {
             throw new StorageException("Deleting a system catalog table is prohibited.");
@@ -121,12 +193,16 @@ public class RelationManager {
             return;
         }
         
+        String tableDirectory = getTableDirectory(tableName);
+        invalidateTableDirectory(tableDirectory);
+        
         // try to clear all data in the table
         DataWriter dataWriter = new DataWriter(getTableDataStore(tableName), getTableAnalyzer(tableName));
         dataWriter.open();
         dataWriter.clearData();
         dataWriter.close();
-        Utils.deleteDirectory(getTableDirectory(tableName));
+        IndexReaderRegistry.invalidate(tableDirectory);
+        Utils.deleteDirectory(tableDirectory);
 
 
         // generate a query for the table name
@@ -145,6 +221,27 @@ public class RelationManager {
         schemaCatalogWriter.open();
         schemaCatalogWriter.deleteTuple(catalogTableNameQuery);
         schemaCatalogWriter.close();
+        
+        tableCatalog.remove(tableName);
+    }
+    
+    /**
+     * Registers a listener that's told when the directory of a table is cleared or deleted.
+     * 
+     * @param listener
+     */
+    public void addTableDirectoryListener(ITableDirectoryListener listener) {
+        tableDirectoryListeners.add(listener);
+    }
+    
+    public void removeTableDirectoryListener(ITableDirectoryListener listener) {
+        tableDirectoryListeners.remove(listener);
+    }
+    
+    private void invalidateTableDirectory(String tableDirectory) {
+        for (ITableDirectoryListener listener : tableDirectoryListeners) {
+            listener.invalidateTableDirectory(tableDirectory);
+        }
     }
     
     /**
@@ -200,6 +297,17 @@ public class RelationManager {
         return new DataReader(tableDataStore, tupleQuery);
     }
     
+    /**
+     * Gets the morsels of a table, which are shared by the DataReaders that read the table together.
+     * 
+     * @param tableName
+     * @return
+     * @throws StorageException
+     */
+    public IndexMorsels getTableMorsels(String tableName) throws StorageException {
+        return new IndexMorsels(getTableDirectory(tableName));
+    }
+    
     /**
      * Gets the DataStore(directory and schema) of a table.
      * 
@@ -221,23 +329,11 @@ public class RelationManager {
      * @throws StorageException
      */
     public String getTableDirectory(String tableName) throws StorageException {
-        // get the tuples with tableName from the table catalog
-        Query tableNameQuery = new TermQuery(new Term(CatalogConstants.TABLE_NAME, tableName));
-        DataReader tableCatalogDataReader = new DataReader(CatalogConstants.TABLE_CATALOG_DATASTORE, tableNameQuery);
-        tableCatalogDataReader.setPayloadAdded(false);
-        
-        tableCatalogDataReader.open();
-        ITuple nextTuple = tableCatalogDataReader.getNextTuple();
-        tableCatalogDataReader.close();
-        
-        // if the tuple is not found, then the table name is not found
-        if (nextTuple == null) {
+        TableCatalogEntry catalogEntry = tableCatalog.get(tableName);
+        if (catalogEntry == null) {
             throw new StorageException(String.format("The directory for table %s is not found.", tableName));
         }
-        
-        // get the directory field
-        IField directoryField = nextTuple.getField(CatalogConstants.TABLE_DIRECTORY);
-        return directoryField.getValue().toString();
+        return catalogEntry.directory;
     }
 
     /**
@@ -248,24 +344,17 @@ public class RelationManager {
      * @throws StorageException
      */
     public Schema getTableSchema(String tableName) throws StorageException {
-        // get the tuples with tableName from the schema catalog
-        Query tableNameQuery = new TermQuery(new Term(CatalogConstants.TABLE_NAME, tableName));
-        DataReader schemaCatalogDataReader = new DataReader(CatalogConstants.SCHEMA_CATALOG_DATASTORE, tableNameQuery);
-        
-        
-        // read the tuples into a list
-        schemaCatalogDataReader.open();    
-        List<ITuple> tableAttributeTuples = new ArrayList<>();
-        ITuple nextTuple;
-        while ((nextTuple = schemaCatalogDataReader.getNextTuple()) != null) {
-            tableAttributeTuples.add(nextTuple);
-        }
-
-        // if the list is empty, then the schema is not found
-        if (tableAttributeTuples.isEmpty()) {
+        TableCatalogEntry catalogEntry = tableCatalog.get(tableName);
+        if (catalogEntry == null || catalogEntry.schema == null) {
             throw new StorageException(String.format("The schema of table %s is not found.", tableName));
         }
-        
+        return catalogEntry.schema;
+    }
+
+    /*
+     * Converts the schema catalog tuples of a table to its schema.
+     */
+    private static Schema convertAttributeTuples(List<ITuple> tableAttributeTuples) {
         // convert the unordered list of tuples to an order list of attributes
         List<Attribute> tableSchemaData = tableAttributeTuples.stream()
                 // sort the tuples based on the attributePosition field.
@@ -287,26 +376,13 @@ public class RelationManager {
      * @throws StorageException
      */
     public Analyzer getTableAnalyzer(String tableName) throws StorageException {
-        // get the tuples with tableName from the table catalog
-        Query tableNameQuery = new TermQuery(new Term(CatalogConstants.TABLE_NAME, tableName));
-
-        DataReader tableCatalogDataReader = new DataReader(CatalogConstants.TABLE_CATALOG_DATASTORE, tableNameQuery);
-        tableCatalogDataReader.setPayloadAdded(false);
-        
-        tableCatalogDataReader.open();
-        ITuple nextTuple = tableCatalogDataReader.getNextTuple();
-        tableCatalogDataReader.close();
-        
-        // if the tuple is not found, then the table name is not found
-        if (nextTuple == null) {
+        TableCatalogEntry catalogEntry = tableCatalog.get(tableName);
+        if (catalogEntry == null) {
             throw new StorageException(String.format("The analyzer for table %s is not found.", tableName));
         }
+        String analyzerString = catalogEntry.luceneAnalyzerString;
         
-        // get the lucene analyzer string
-        IField analyzerField = nextTuple.getField(CatalogConstants.TABLE_LUCENE_ANALYZER);
-        String analyzerString = analyzerField.getValue().toString();
-        
-        // convert a lucene analyzer string to an analyzer object
+        // convert a lucene analyzer string to an analyzer object, a new one for each caller
         Analyzer luceneAnalyzer = null;
         try {
             luceneAnalyzer = LuceneAnalyzerConstants.getLuceneAnalyzer(analyzerString);
@@ -317,6 +393,56 @@ public class RelationManager {
         return luceneAnalyzer;
     }
     
+    /**
+     * Gets the span annotator of a table, or null if the table doesn't have one.
+     * 
+     * @param tableName
+     * @return
+     * @throws StorageException
+     */
+    public ISpanAnnotator getTableSpanAnnotator(String tableName) throws StorageException {
+        String tableDirectory = getTableDirectory(tableName);
+        
+        // the annotator is saved in the commit data of the table's index
+        IndexSearcher indexSearcher = IndexReaderRegistry.acquire(tableDirectory);
+        try {
+            String spanAnnotatorClassName = ((DirectoryReader) indexSearcher.getIndexReader())
+                    .getIndexCommit().getUserData().get(DataWriter.SPAN_ANNOTATOR_KEY);
+            return DataWriter.createSpanAnnotator(spanAnnotatorClassName);
+        } catch (IOException e) {
+            throw new StorageException(e.getMessage(), e);
+        } finally {
+            IndexReaderRegistry.release(indexSearcher);
+        }
+    }
+    
+    /**
+     * Gets the number of documents of a table, and the document frequencies of the given terms.
+     * 
+     * @param tableName
+     * @param terms
+     * @return
+     * @throws StorageException
+     */
+    public IndexStatistics getTableIndexStatistics(String tableName, Collection<Term> terms) throws StorageException {
+        String tableDirectory = getTableDirectory(tableName);
+        
+        IndexSearcher indexSearcher = IndexReaderRegistry.acquire(tableDirectory);
+        try {
+            IndexReader indexReader = indexSearcher.getIndexReader();
+            HashMap<Term, Integer> documentFrequencies = new HashMap<>();
+            for (Term term : terms) {
+                documentFrequencies.put(term, indexReader.docFreq(term));
+            }
+            // docFreq counts the deleted documents as well, so they are counted here too
+            return new IndexStatistics(indexReader.maxDoc(), documentFrequencies);
+        } catch (IOException e) {
+            throw new StorageException(e.getMessage(), e);
+        } finally {
+            IndexReaderRegistry.release(indexSearcher);
+        }
+    }
+    
     /*
      * This is a helper function that writes the table information to 
      *   the table catalog and the schema catalog.
@@ -327,8 +453,9 @@ public class RelationManager {
         DataStore tableCatalogStore = new DataStore(CatalogConstants.TABLE_CATALOG_DIRECTORY,
                 CatalogConstants.TABLE_CATALOG_SCHEMA);
         DataWriter dataWriter = new DataWriter(tableCatalogStore, LuceneAnalyzerConstants.getStandardAnalyzer());
+        ITuple tableCatalogTuple = CatalogConstants.getTableCatalogTuple(tableName, indexDirectory, luceneAnalyzerString);
         dataWriter.open();
-        dataWriter.insertTuple(CatalogConstants.getTableCatalogTuple(tableName, indexDirectory, luceneAnalyzerString));
+        dataWriter.insertTuple(tableCatalogTuple);
         dataWriter.close();
        
         // write schema catalog
@@ -336,12 +463,51 @@ public class RelationManager {
         DataStore schemaCatalogStore = new DataStore(CatalogConstants.SCHEMA_CATALOG_DIRECTORY,
                 CatalogConstants.SCHEMA_CATALOG_SCHEMA);
         dataWriter = new DataWriter(schemaCatalogStore, LuceneAnalyzerConstants.getStandardAnalyzer());
+        List<ITuple> schemaCatalogTuples = CatalogConstants.getSchemaCatalogTuples(tableName, tableSchema);
         // each attribute in the table schema will be one row in schema catalog
         dataWriter.open();
-        for (ITuple tuple : CatalogConstants.getSchemaCatalogTuples(tableName, tableSchema)) {
+        for (ITuple tuple : schemaCatalogTuples) {
             dataWriter.insertTuple(tuple);
         }
         dataWriter.close();
+        
+        // the catalog in memory has the same information as the tuples
+        tableCatalog.put(tableName, new TableCatalogEntry(tableCatalogTuple, convertAttributeTuples(schemaCatalogTuples)));
+    }
+    
+    /*
+     * Reads the catalog tables into the catalog in memory.
+     * If the table catalog has more than one tuple of a table, the first one is used,
+     *   all the schema catalog tuples of a table are its attributes.
+     */
+    private void loadCatalog() throws StorageException {
+        HashMap<String, ITuple> tableCatalogTuples = new HashMap<>();
+        DataReader tableCatalogDataReader = new DataReader(CatalogConstants.TABLE_CATALOG_DATASTORE,
+                new MatchAllDocsQuery());
+        tableCatalogDataReader.setPayloadAdded(false);
+        tableCatalogDataReader.open();
+        ITuple nextTuple;
+        while ((nextTuple = tableCatalogDataReader.getNextTuple()) != null) {
+            tableCatalogTuples.putIfAbsent(nextTuple.getField(CatalogConstants.TABLE_NAME).getValue().toString(), 
+                    nextTuple);
+        }
+        tableCatalogDataReader.close();
+        
+        HashMap<String, List<ITuple>> schemaCatalogTuples = new HashMap<>();
+        DataReader schemaCatalogDataReader = new DataReader(CatalogConstants.SCHEMA_CATALOG_DATASTORE,
+                new MatchAllDocsQuery());
+        schemaCatalogDataReader.open();
+        while ((nextTuple = schemaCatalogDataReader.getNextTuple()) != null) {
+            schemaCatalogTuples.computeIfAbsent(nextTuple.getField(CatalogConstants.TABLE_NAME).getValue().toString(),
+                    tableName -> new ArrayList<>()).add(nextTuple);
+        }
+        schemaCatalogDataReader.close();
+        
+        for (String tableName : tableCatalogTuples.keySet()) {
+            List<ITuple> tableAttributeTuples = schemaCatalogTuples.get(tableName);
+            tableCatalog.put(tableName, new TableCatalogEntry(tableCatalogTuples.get(tableName),
+                    tableAttributeTuples == null ? null : convertAttributeTuples(tableAttributeTuples)));
+        }
     }
     
     /*
@@ -387,4 +553,23 @@ public class RelationManager {
                 .findAny().orElse(null);
     }
     
+    /*
+     * The information of a table in the catalog.
+     */
+    private static class TableCatalogEntry {
+        
+        private final String directory;
+        private final String luceneAnalyzerString;
+        // null if the schema catalog doesn't have the table
+        private final Schema schema;
+        
+        TableCatalogEntry(ITuple tableCatalogTuple, Schema schema) {
+            IField directoryField = tableCatalogTuple.getField(CatalogConstants.TABLE_DIRECTORY);
+            IField analyzerField = tableCatalogTuple.getField(CatalogConstants.TABLE_LUCENE_ANALYZER);
+            this.directory = directoryField.getValue().toString();
+            this.luceneAnalyzerString = analyzerField.getValue().toString();
+            this.schema = schema;
+        }
+    }
+    
 }
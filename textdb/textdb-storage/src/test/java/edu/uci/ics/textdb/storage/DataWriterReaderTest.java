@@ -14,6 +14,7 @@ import edu.uci.ics.textdb.api.exception.TextDBException;
 import edu.uci.ics.textdb.common.constants.LuceneAnalyzerConstants;
 import edu.uci.ics.textdb.common.constants.SchemaConstants;
 import edu.uci.ics.textdb.common.constants.TestConstants;
+import edu.uci.ics.textdb.common.field.IDField;
 import edu.uci.ics.textdb.common.utils.Utils;
 
 public class DataWriterReaderTest {
@@ -60,6 +61,178 @@ public class DataWriterReaderTest {
         Assert.assertTrue(equals);
     }
 
+    /*
+     * Test that a deleted tuple is not returned by DataReader.
+     */
+    @Test
+    public void testDeletedTupleNotReturned() throws Exception {
+        RelationManager relationManager = RelationManager.getRelationManager();
+        
+        DataWriter peopleDataWriter = relationManager.getTableDataWriter(PEOPLE_TABLE);
+        peopleDataWriter.open();
+        IDField idField = peopleDataWriter.insertTuple(TestConstants.getSamplePeopleTuples().get(0));
+        peopleDataWriter.close();
+        
+        peopleDataWriter.open();
+        peopleDataWriter.deleteTupleByID(idField);
+        peopleDataWriter.close();
+        
+        DataReader dataReader = relationManager.getTableDataReader(PEOPLE_TABLE, new MatchAllDocsQuery());
+        
+        ITuple nextTuple = null;
+        List<ITuple> returnedTuples = new ArrayList<ITuple>();
+        
+        dataReader.open();
+        while ((nextTuple = dataReader.getNextTuple()) != null) {
+            returnedTuples.add(nextTuple);
+        }
+        dataReader.close();
+        
+        Assert.assertNull(relationManager.getTupleByID(PEOPLE_TABLE, idField));
+        Assert.assertTrue(containsAllResults(TestConstants.getSamplePeopleTuples(), returnedTuples));
+    }
+
+    /*
+     * Test that DataReader stops after returning "limit" tuples.
+     */
+    @Test
+    public void testReadDataWithLimit() throws Exception {
+        DataReader dataReader = RelationManager.getRelationManager().getTableDataReader(
+                PEOPLE_TABLE, new MatchAllDocsQuery());
+        dataReader.setLimit(2);
+        
+        ITuple nextTuple = null;
+        List<ITuple> returnedTuples = new ArrayList<ITuple>();
+        
+        dataReader.open();
+        while ((nextTuple = dataReader.getNextTuple()) != null) {
+            returnedTuples.add(nextTuple);
+        }
+        dataReader.close();
+        
+        Assert.assertEquals(2, returnedTuples.size());
+        Assert.assertTrue(Utils.removeFields(TestConstants.getSamplePeopleTuples(), SchemaConstants._ID).containsAll(
+                Utils.removeFields(returnedTuples, SchemaConstants._ID)));
+    }
+
+    /*
+     * Test that the batches of DataReader have the same tuples as getNextTuple(), with the limit.
+     */
+    @Test
+    public void testReadDataInBatches() throws Exception {
+        DataReader dataReader = RelationManager.getRelationManager().getTableDataReader(
+                PEOPLE_TABLE, new MatchAllDocsQuery());
+        
+        List<ITuple> returnedTuples = new ArrayList<ITuple>();
+        List<ITuple> tupleBatch;
+        
+        dataReader.open();
+        while (! (tupleBatch = dataReader.getNextBatch(4)).isEmpty()) {
+            Assert.assertTrue(tupleBatch.size() <= 4);
+            returnedTuples.addAll(tupleBatch);
+        }
+        dataReader.close();
+        
+        Assert.assertTrue(containsAllResults(TestConstants.getSamplePeopleTuples(), returnedTuples));
+        
+        dataReader.setLimit(5);
+        dataReader.open();
+        Assert.assertEquals(4, dataReader.getNextBatch(4).size());
+        Assert.assertEquals(1, dataReader.getNextBatch(4).size());
+        Assert.assertTrue(dataReader.getNextBatch(4).isEmpty());
+        dataReader.close();
+    }
+
+    /*
+     * Test that the segments searched in parallel return the same tuples as the sequential read, with the limit.
+     */
+    @Test
+    public void testParallelRead() throws Exception {
+        RelationManager relationManager = RelationManager.getRelationManager();
+        String segmentsTable = "data_writer_reader_test_segments";
+        relationManager.createTable(segmentsTable, "../index/test_tables/" + segmentsTable, 
+                TestConstants.SCHEMA_PEOPLE, LuceneAnalyzerConstants.standardAnalyzerString());
+        
+        // every commit writes a new segment
+        DataWriter dataWriter = relationManager.getTableDataWriter(segmentsTable);
+        for (int i = 0; i < 3; i++) {
+            dataWriter.open();
+            for (ITuple tuple : TestConstants.getSamplePeopleTuples()) {
+                dataWriter.insertTuple(tuple);
+            }
+            dataWriter.close();
+        }
+        
+        DataReader dataReader = relationManager.getTableDataReader(segmentsTable, new MatchAllDocsQuery());
+        dataReader.setPayloadAdded(true);
+        List<ITuple> sequentialTuples = new ArrayList<ITuple>();
+        ITuple nextTuple;
+        dataReader.open();
+        while ((nextTuple = dataReader.getNextTuple()) != null) {
+            sequentialTuples.add(nextTuple);
+        }
+        dataReader.close();
+        
+        dataReader.setParallelism(4);
+        List<ITuple> parallelTuples = new ArrayList<ITuple>();
+        List<ITuple> tupleBatch;
+        dataReader.open();
+        while (! (tupleBatch = dataReader.getNextBatch(4)).isEmpty()) {
+            parallelTuples.addAll(tupleBatch);
+        }
+        dataReader.close();
+        
+        Assert.assertEquals(TestConstants.getSamplePeopleTuples().size() * 3, parallelTuples.size());
+        Assert.assertTrue(containsAllResults(sequentialTuples, parallelTuples));
+        
+        // the workers that are still running are stopped by close()
+        dataReader.setLimit(2);
+        dataReader.open();
+        Assert.assertNotNull(dataReader.getNextTuple());
+        Assert.assertNotNull(dataReader.getNextTuple());
+        Assert.assertNull(dataReader.getNextTuple());
+        dataReader.close();
+        
+        relationManager.deleteTable(segmentsTable);
+    }
+
+    /*
+     * Test that the DataReaders that share the morsels of a table read every document exactly once.
+     */
+    @Test
+    public void testReadWithMorsels() throws Exception {
+        RelationManager relationManager = RelationManager.getRelationManager();
+        IndexMorsels morsels = relationManager.getTableMorsels(PEOPLE_TABLE);
+        morsels.setMorselSize(2);
+        
+        List<DataReader> dataReaders = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            DataReader dataReader = relationManager.getTableDataReader(PEOPLE_TABLE, new MatchAllDocsQuery());
+            dataReader.setMorsels(morsels);
+            dataReaders.add(dataReader);
+        }
+        // all the readers are opened before any of them is closed
+        for (DataReader dataReader : dataReaders) {
+            dataReader.open();
+        }
+        List<ITuple> returnedTuples = new ArrayList<ITuple>();
+        ITuple nextTuple;
+        while ((nextTuple = dataReaders.get(0).getNextTuple()) != null) {
+            returnedTuples.add(nextTuple);
+            if ((nextTuple = dataReaders.get(1).getNextTuple()) != null) {
+                returnedTuples.add(nextTuple);
+            }
+        }
+        while ((nextTuple = dataReaders.get(2).getNextTuple()) != null) {
+            returnedTuples.add(nextTuple);
+        }
+        for (DataReader dataReader : dataReaders) {
+            dataReader.close();
+        }
+        
+        Assert.assertTrue(containsAllResults(TestConstants.getSamplePeopleTuples(), returnedTuples));
+    }
+
     public static boolean containsAllResults(List<ITuple> expectedResults, List<ITuple> exactResults) {
         expectedResults = Utils.removeFields(expectedResults, SchemaConstants._ID, SchemaConstants.PAYLOAD);
         exactResults = Utils.removeFields(exactResults, SchemaConstants._ID, SchemaConstants.PAYLOAD);
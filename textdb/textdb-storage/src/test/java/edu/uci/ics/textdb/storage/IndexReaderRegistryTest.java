@@ -0,0 +1,107 @@
+package edu.uci.ics.textdb.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.Directory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.uci.ics.textdb.api.common.ITuple;
+import edu.uci.ics.textdb.api.exception.TextDBException;
+import edu.uci.ics.textdb.common.constants.LuceneAnalyzerConstants;
+import edu.uci.ics.textdb.common.constants.TestConstants;
+
+public class IndexReaderRegistryTest {
+
+    public static final String PEOPLE_TABLE = "index_reader_registry_test_people";
+
+    private RelationManager relationManager;
+    private String tableDirectory;
+
+    @Before
+    public void setUp() throws TextDBException {
+        relationManager = RelationManager.getRelationManager();
+        relationManager.createTable(PEOPLE_TABLE, "../index/test_tables/" + PEOPLE_TABLE,
+                TestConstants.SCHEMA_PEOPLE, LuceneAnalyzerConstants.standardAnalyzerString());
+        tableDirectory = relationManager.getTableDirectory(PEOPLE_TABLE);
+    }
+
+    @After
+    public void cleanUp() throws TextDBException {
+        relationManager.deleteTable(PEOPLE_TABLE);
+    }
+
+    /*
+     * Test that two acquires of the same table share one reader.
+     */
+    @Test
+    public void testReaderIsShared() throws Exception {
+        IndexSearcher searcher1 = IndexReaderRegistry.acquire(tableDirectory);
+        IndexSearcher searcher2 = IndexReaderRegistry.acquire(tableDirectory + "/");
+
+        Assert.assertSame(searcher1.getIndexReader(), searcher2.getIndexReader());
+
+        IndexReaderRegistry.release(searcher1);
+        IndexReaderRegistry.release(searcher2);
+    }
+
+    /*
+     * Test that the data written by a DataWriter is visible after the writer is closed,
+     *   and that a searcher borrowed before the write still sees the old data.
+     */
+    @Test
+    public void testRefreshAfterWrite() throws Exception {
+        IndexSearcher oldSearcher = IndexReaderRegistry.acquire(tableDirectory);
+        Assert.assertEquals(0, oldSearcher.getIndexReader().numDocs());
+
+        DataWriter dataWriter = relationManager.getTableDataWriter(PEOPLE_TABLE);
+        dataWriter.open();
+        for (ITuple tuple : TestConstants.getSamplePeopleTuples()) {
+            dataWriter.insertTuple(tuple);
+        }
+        dataWriter.close();
+
+        DataReader dataReader = relationManager.getTableDataReader(PEOPLE_TABLE, new MatchAllDocsQuery());
+        List<ITuple> results = new ArrayList<>();
+        ITuple tuple;
+        dataReader.open();
+        while ((tuple = dataReader.getNextTuple()) != null) {
+            results.add(tuple);
+        }
+        dataReader.close();
+
+        Assert.assertTrue(DataWriterReaderTest.containsAllResults(TestConstants.getSamplePeopleTuples(), results));
+
+        // the old searcher is still usable until it's released
+        Assert.assertEquals(0, oldSearcher.getIndexReader().numDocs());
+        IndexReaderRegistry.release(oldSearcher);
+    }
+
+    /*
+     * Test that the directory of an invalidated searcher is closed after the last borrower releases it.
+     */
+    @Test
+    public void testDirectoryClosedAfterRelease() throws Exception {
+        IndexSearcher searcher = IndexReaderRegistry.acquire(tableDirectory);
+        Directory directory = ((DirectoryReader) searcher.getIndexReader()).directory();
+
+        IndexReaderRegistry.invalidate(tableDirectory);
+        // the borrowed searcher can still read the directory
+        Assert.assertNotNull(directory.listAll());
+
+        IndexReaderRegistry.release(searcher);
+        try {
+            directory.listAll();
+            Assert.fail("the directory should be closed");
+        } catch (AlreadyClosedException e) {
+        }
+    }
+
+}
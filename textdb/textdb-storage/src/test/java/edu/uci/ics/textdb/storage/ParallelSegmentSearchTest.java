@@ -0,0 +1,138 @@
+package edu.uci.ics.textdb.storage;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.uci.ics.textdb.api.common.Attribute;
+import edu.uci.ics.textdb.api.common.FieldType;
+import edu.uci.ics.textdb.api.common.Schema;
+import edu.uci.ics.textdb.api.dataflow.CancellationToken;
+import edu.uci.ics.textdb.common.field.DataTuple;
+import edu.uci.ics.textdb.common.field.IntegerField;
+
+public class ParallelSegmentSearchTest {
+
+    // every segment has more documents than the queue holds
+    public static final int SEGMENT_SIZE = ParallelSegmentSearch.QUEUE_CAPACITY + 100;
+    public static final int SEGMENT_COUNT = 3;
+
+    private static final Schema DOC_ID_SCHEMA = new Schema(new Attribute("docID", FieldType.INTEGER));
+
+    private RAMDirectory directory;
+    private DirectoryReader indexReader;
+    private IndexSearcher indexSearcher;
+    private AtomicInteger constructedTuples;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = new RAMDirectory();
+        IndexWriter indexWriter = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer()));
+        // every commit writes a new segment
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            for (int j = 0; j < SEGMENT_SIZE; j++) {
+                Document document = new Document();
+                document.add(new StoredField("number", j));
+                indexWriter.addDocument(document);
+            }
+            indexWriter.commit();
+        }
+        indexWriter.close();
+        indexReader = DirectoryReader.open(directory);
+        indexSearcher = new IndexSearcher(indexReader);
+        constructedTuples = new AtomicInteger();
+    }
+
+    @After
+    public void cleanUp() throws Exception {
+        indexReader.close();
+        directory.close();
+    }
+
+    private ParallelSegmentSearch createSearch(int parallelism, CancellationToken cancellationToken)
+            throws Exception {
+        return new ParallelSegmentSearch(indexSearcher.createNormalizedWeight(new MatchAllDocsQuery(), false),
+                indexReader.leaves(), parallelism, cancellationToken, docID -> {
+                    constructedTuples.incrementAndGet();
+                    return new DataTuple(DOC_ID_SCHEMA, new IntegerField(docID));
+                });
+    }
+
+    /*
+     * Test that every document is returned exactly once.
+     */
+    @Test
+    public void testSearchAllSegments() throws Exception {
+        Assert.assertEquals(SEGMENT_COUNT, indexReader.leaves().size());
+        ParallelSegmentSearch search = createSearch(2, CancellationToken.NONE);
+        boolean[] returned = new boolean[SEGMENT_SIZE * SEGMENT_COUNT];
+        int returnedCount = 0;
+        DataTuple tuple;
+        while ((tuple = (DataTuple) search.next()) != null) {
+            int docID = ((IntegerField) tuple.getField(0)).getValue();
+            Assert.assertFalse(returned[docID]);
+            returned[docID] = true;
+            returnedCount++;
+        }
+        search.stop();
+
+        Assert.assertEquals(SEGMENT_SIZE * SEGMENT_COUNT, returnedCount);
+    }
+
+    /*
+     * Test that the workers are only started by the first call of next().
+     */
+    @Test
+    public void testWorkersStartOnFirstNext() throws Exception {
+        ParallelSegmentSearch search = createSearch(2, CancellationToken.NONE);
+        Thread.sleep(100);
+        Assert.assertEquals(0, constructedTuples.get());
+
+        Assert.assertNotNull(search.next());
+        search.stop();
+        Assert.assertTrue(constructedTuples.get() > 0);
+    }
+
+    /*
+     * Test that the workers waiting for a full queue stop once the query is cancelled,
+     *   the consumer then only gets the tuples that were queued before.
+     */
+    @Test
+    public void testCancelWaitingWorkers() throws Exception {
+        CancellationToken cancellationToken = new CancellationToken();
+        ParallelSegmentSearch search = createSearch(2, cancellationToken);
+        Assert.assertNotNull(search.next());
+
+        // wait until the workers fill the queue
+        long deadline = System.currentTimeMillis() + 10000;
+        while (constructedTuples.get() < ParallelSegmentSearch.QUEUE_CAPACITY
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        cancellationToken.cancel();
+        int constructedBeforeCancel = constructedTuples.get();
+
+        int returnedCount = 1;
+        while (search.next() != null) {
+            returnedCount++;
+        }
+        search.stop();
+
+        // a worker may have been constructing one more tuple when the query was cancelled
+        Assert.assertTrue(constructedTuples.get() <= constructedBeforeCancel + 2);
+        Assert.assertTrue(returnedCount < SEGMENT_SIZE * SEGMENT_COUNT);
+    }
+
+}
@@ -1,6 +1,9 @@
 package edu.uci.ics.textdb.storage;
 
 import java.io.File;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
@@ -351,4 +354,62 @@ public class RelationManagerTest {
     }
     
     
+    /*
+     * Test that the catalog in memory is written through by createTable() and deleteTable(),
+     *   and a RelationManager that loads the catalog tables has the same catalog.
+     */
+    @Test
+    public void testCatalogInMemory() throws Exception {
+        String tableName = "relation_manager_test_catalog_table";
+        Schema tableSchema = new Schema(
+                new Attribute("city", FieldType.STRING), new Attribute("description", FieldType.TEXT));
+        RelationManager relationManager = RelationManager.getRelationManager();
+        relationManager.deleteTable(tableName);
+        relationManager.createTable(tableName, "./index/test_catalog_table", tableSchema,
+                LuceneAnalyzerConstants.nGramAnalyzerString(3));
+        
+        // the schema is not read from the catalog tables again
+        Assert.assertSame(relationManager.getTableSchema(tableName), relationManager.getTableSchema(tableName));
+        
+        Constructor<RelationManager> constructor = RelationManager.class.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        RelationManager loadedRelationManager = constructor.newInstance();
+        Assert.assertEquals(relationManager.getTableDirectory(tableName), 
+                loadedRelationManager.getTableDirectory(tableName));
+        Assert.assertEquals(relationManager.getTableSchema(tableName), loadedRelationManager.getTableSchema(tableName));
+        Assert.assertEquals(relationManager.getTableSchema(CatalogConstants.SCHEMA_CATALOG), 
+                loadedRelationManager.getTableSchema(CatalogConstants.SCHEMA_CATALOG));
+        Assert.assertTrue(loadedRelationManager.checkTableExistence(tableName));
+        
+        relationManager.deleteTable(tableName);
+        Assert.assertFalse(relationManager.checkTableExistence(tableName));
+        Assert.assertFalse(constructor.newInstance().checkTableExistence(tableName));
+    }
+    
+    /*
+     * Test that the table directory listeners are told when a table is created and deleted.
+     */
+    @Test
+    public void testTableDirectoryListener() throws Exception {
+        String tableName = "relation_manager_test_table_listener";
+        String tableDirectory = "./index/test_table_listener/";
+        Schema tableSchema = new Schema(new Attribute("content", FieldType.STRING));
+        
+        List<String> invalidatedDirectories = new ArrayList<>();
+        ITableDirectoryListener listener = directory -> invalidatedDirectories.add(directory);
+        relationManager.addTableDirectoryListener(listener);
+        try {
+            relationManager.createTable(tableName, tableDirectory, tableSchema, 
+                    LuceneAnalyzerConstants.standardAnalyzerString());
+            String canonicalDirectory = relationManager.getTableDirectory(tableName);
+            relationManager.deleteTable(tableName);
+            
+            Assert.assertEquals(2, invalidatedDirectories.size());
+            Assert.assertEquals(new File(invalidatedDirectories.get(0)).getCanonicalPath(), canonicalDirectory);
+            Assert.assertEquals(canonicalDirectory, invalidatedDirectories.get(1));
+        } finally {
+            relationManager.removeTableDirectoryListener(listener);
+        }
+    }
+    
 }
@@ -0,0 +1,123 @@
+package edu.uci.ics.textdb.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import edu.uci.ics.textdb.api.common.ITuple;
+import edu.uci.ics.textdb.api.exception.TextDBException;
+import edu.uci.ics.textdb.common.constants.LuceneAnalyzerConstants;
+import edu.uci.ics.textdb.common.constants.SchemaConstants;
+import edu.uci.ics.textdb.common.constants.TestConstants;
+import edu.uci.ics.textdb.common.field.Span;
+
+public class StoredPayloadTest {
+
+    public static final String PEOPLE_TABLE = "stored_payload_test_people";
+    public static final String PEOPLE_TABLE_STORED_PAYLOAD = "stored_payload_test_people_stored";
+
+    @BeforeClass
+    public static void setUp() throws TextDBException {
+        RelationManager relationManager = RelationManager.getRelationManager();
+
+        relationManager.createTable(PEOPLE_TABLE, "../index/test_tables/" + PEOPLE_TABLE,
+                TestConstants.SCHEMA_PEOPLE, LuceneAnalyzerConstants.standardAnalyzerString());
+        relationManager.createTable(PEOPLE_TABLE_STORED_PAYLOAD, "../index/test_tables/" + PEOPLE_TABLE_STORED_PAYLOAD,
+                TestConstants.SCHEMA_PEOPLE, LuceneAnalyzerConstants.standardAnalyzerString(), true);
+
+        for (String tableName : Arrays.asList(PEOPLE_TABLE, PEOPLE_TABLE_STORED_PAYLOAD)) {
+            DataWriter dataWriter = relationManager.getTableDataWriter(tableName);
+            dataWriter.open();
+            for (ITuple tuple : TestConstants.getSamplePeopleTuples()) {
+                dataWriter.insertTuple(tuple);
+            }
+            dataWriter.close();
+        }
+    }
+
+    @AfterClass
+    public static void cleanUp() throws TextDBException {
+        RelationManager relationManager = RelationManager.getRelationManager();
+        relationManager.deleteTable(PEOPLE_TABLE);
+        relationManager.deleteTable(PEOPLE_TABLE_STORED_PAYLOAD);
+    }
+
+    /*
+     * Test that the option is saved to the table and inherited by a new writer.
+     */
+    @Test
+    public void testPayloadStoredOption() throws Exception {
+        RelationManager relationManager = RelationManager.getRelationManager();
+
+        DataWriter dataWriter = relationManager.getTableDataWriter(PEOPLE_TABLE_STORED_PAYLOAD);
+        dataWriter.open();
+        Assert.assertTrue(dataWriter.isPayloadStored());
+        dataWriter.close();
+
+        dataWriter = relationManager.getTableDataWriter(PEOPLE_TABLE);
+        dataWriter.open();
+        Assert.assertFalse(dataWriter.isPayloadStored());
+        dataWriter.close();
+    }
+
+    /*
+     * Test that the decoded payload has the same spans as the payload built from the term vectors.
+     */
+    @Test
+    public void testStoredPayloadEqualsTermVectorPayload() throws Exception {
+        List<List<Span>> expectedPayloads = readPayloads(PEOPLE_TABLE, null);
+        List<List<Span>> storedPayloads = readPayloads(PEOPLE_TABLE_STORED_PAYLOAD, null);
+
+        Assert.assertEquals(expectedPayloads.size(), storedPayloads.size());
+        for (int i = 0; i < expectedPayloads.size(); i++) {
+            Assert.assertFalse(expectedPayloads.get(i).isEmpty());
+            Assert.assertEquals(new HashSet<>(expectedPayloads.get(i)), new HashSet<>(storedPayloads.get(i)));
+        }
+    }
+
+    /*
+     * Test that only the spans of the given terms are added to the payload, in both modes.
+     */
+    @Test
+    public void testPayloadTerms() throws Exception {
+        for (String tableName : Arrays.asList(PEOPLE_TABLE, PEOPLE_TABLE_STORED_PAYLOAD)) {
+            List<List<Span>> payloads = readPayloads(tableName, Arrays.asList("angry"));
+
+            List<Span> angrySpans = new ArrayList<>();
+            payloads.forEach(payload -> angrySpans.addAll(payload));
+
+            // "Tall Angry", "White Angry", "... is Angry", "Short angry"
+            Assert.assertEquals(4, angrySpans.size());
+            for (Span span : angrySpans) {
+                Assert.assertEquals("angry", span.getKey());
+                Assert.assertEquals("angry", span.getValue().toLowerCase());
+            }
+        }
+    }
+
+    private static List<List<Span>> readPayloads(String tableName, List<String> payloadTerms) throws Exception {
+        DataReader dataReader = RelationManager.getRelationManager().getTableDataReader(
+                tableName, new MatchAllDocsQuery());
+        dataReader.setPayloadAdded(true);
+        dataReader.setPayloadTerms(payloadTerms);
+
+        List<List<Span>> payloads = new ArrayList<>();
+        ITuple nextTuple;
+        dataReader.open();
+        while ((nextTuple = dataReader.getNextTuple()) != null) {
+            @SuppressWarnings("unchecked")
+            List<Span> payload = (List<Span>) nextTuple.getField(SchemaConstants.PAYLOAD).getValue();
+            payloads.add(payload);
+        }
+        dataReader.close();
+        return payloads;
+    }
+
+}
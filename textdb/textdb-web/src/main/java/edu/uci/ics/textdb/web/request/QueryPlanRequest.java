@@ -22,6 +22,12 @@ public class QueryPlanRequest {
     private ArrayList<OperatorBean> operatorBeans;
     @JsonProperty("links")
     private ArrayList<OperatorLinkBean> operatorLinkBeans;
+    // the query is cancelled if it's not finished within the timeout, null means there's no timeout
+    @JsonProperty("timeoutMillis")
+    private Long timeoutMillis;
+    // the number of copies of the plan's chain that run in parallel, null means the plan runs on one thread
+    @JsonProperty("parallelism")
+    private Integer parallelism;
     private HashMap<String, HashMap<String, String>> operatorProperties;
     private LogicalPlan logicalPlan;
 
@@ -71,6 +77,26 @@ public class QueryPlanRequest {
         this.operatorLinkBeans = operatorLinkBeans;
     }
 
+    @JsonProperty("timeoutMillis")
+    public Long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    @JsonProperty("timeoutMillis")
+    public void setTimeoutMillis(Long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @JsonProperty("parallelism")
+    public Integer getParallelism() {
+        return parallelism;
+    }
+
+    @JsonProperty("parallelism")
+    public void setParallelism(Integer parallelism) {
+        this.parallelism = parallelism;
+    }
+
     public HashMap<String, HashMap<String, String>> getOperatorProperties() {
         return operatorProperties;
     }
@@ -121,6 +147,9 @@ public class QueryPlanRequest {
         }
 
         logicalPlan = new LogicalPlan();
+        if (parallelism != null) {
+            logicalPlan.setParallelism(parallelism);
+        }
 
         // Adding operatorBeans to the logical plan
         for(Iterator<OperatorBean> iterator = operatorBeans.iterator(); iterator.hasNext(); ) {
@@ -3,19 +3,28 @@ package edu.uci.ics.textdb.web.resource;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import edu.uci.ics.textdb.api.common.ITuple;
+import edu.uci.ics.textdb.api.dataflow.CancellationToken;
 import edu.uci.ics.textdb.api.plan.Plan;
+import edu.uci.ics.textdb.common.exception.DataFlowException;
 import edu.uci.ics.textdb.common.utils.Utils;
 import edu.uci.ics.textdb.dataflow.sink.TupleStreamSink;
 import edu.uci.ics.textdb.engine.Engine;
+import edu.uci.ics.textdb.engine.EngineService;
+import edu.uci.ics.textdb.engine.QueryHandle;
 import edu.uci.ics.textdb.web.request.QueryPlanRequest;
 import edu.uci.ics.textdb.web.response.SampleResponse;
 
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.ws.rs.Consumes;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.ConnectionCallback;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
@@ -31,13 +40,17 @@ public class QueryPlanResource {
 
     /**
      * This is the edu.uci.ics.textdb.web.request handler for the execution of a Query Plan.
+     * The plan is run by the engine service, the response is resumed by the worker that runs the plan.
+     * The query is cancelled if the client disconnects, or if it's not finished within the timeout of the request.
      * @param queryPlanRequest - An object that models the query plan edu.uci.ics.textdb.web.request that will be POSTed
-     * @return - Generic response object for now, which wjust verifies the creation of operator properties' hashmap
+     * @param asyncResponse - The suspended response of the request, it's resumed with the results of the query,
+     *                        or with an error response if the query fails, times out, or is rejected
      * @throws Exception
      */
     @POST
     @Path("/execute")
-    public Response executeQueryPlan(QueryPlanRequest queryPlanRequest) throws Exception {
+    public void executeQueryPlan(QueryPlanRequest queryPlanRequest, @Suspended AsyncResponse asyncResponse)
+            throws Exception {
         // Aggregating all the operator properties, and creating a logical plan object
         boolean aggregatePropertiesFlag = queryPlanRequest.aggregateOperatorProperties();
         boolean createLogicalPlanFlag = queryPlanRequest.createLogicalPlan();
@@ -46,42 +59,110 @@ public class QueryPlanResource {
         if(aggregatePropertiesFlag && createLogicalPlanFlag) {
             // generate the physical plan
             Plan plan = queryPlanRequest.getLogicalPlan().buildQueryPlan();
-            
+
+            EngineService.QueryTask<Response> queryTask;
             // if the sink is TupleStreamSink, send the response back to front-end
             if (plan.getRoot() instanceof TupleStreamSink) {
-                TupleStreamSink sink = (TupleStreamSink) plan.getRoot();
-                
-                // get all the results and send them to front-end
-                // returning all the results at once is a **temporary** solution
-                // TODO: in the future, request some number of results at a time
-                sink.open();
-                List<ITuple> results = sink.collectAllTuples();
-                sink.close();
-                
-                SampleResponse sampleResponse = new SampleResponse(0, Utils.getTupleListJSON(results).toString());
-                return Response.status(200)
-                        .entity(objectMapper.writeValueAsString(sampleResponse))
-                        .build();
-                
+                queryTask = (queryPlan, cancellationToken) -> {
+                    TupleStreamSink sink = (TupleStreamSink) queryPlan.getRoot();
+
+                    // get all the results and send them to front-end
+                    // returning all the results at once is a **temporary** solution
+                    // TODO: in the future, request some number of results at a time
+                    sink.open(cancellationToken);
+                    List<ITuple> results;
+                    try {
+                        results = sink.collectAllTuples();
+                    } finally {
+                        sink.close();
+                    }
+
+                    SampleResponse sampleResponse = new SampleResponse(0, Utils.getTupleListJSON(results).toString());
+                    return Response.status(200)
+                            .entity(objectMapper.writeValueAsString(sampleResponse))
+                            .build();
+                };
             } else {
                 // if the sink is not TupleStreamSink, execute the plan directly
-                Engine.getEngine().evaluate(plan);    
-                SampleResponse sampleResponse = new SampleResponse(0, "Plan Successfully Executed");
-                return Response.status(200)
-                        .entity(objectMapper.writeValueAsString(sampleResponse))
-                        .build();
+                queryTask = (queryPlan, cancellationToken) -> {
+                    Engine.getEngine().evaluate(queryPlan, cancellationToken);
+                    SampleResponse sampleResponse = new SampleResponse(0, "Plan Successfully Executed");
+                    return Response.status(200)
+                            .entity(objectMapper.writeValueAsString(sampleResponse))
+                            .build();
+                };
             }
+            submitQuery(plan, queryTask, queryPlanRequest.getTimeoutMillis(), asyncResponse, objectMapper);
         }
         else {
             // Temporary sample response when the operator properties aggregation does not function
             SampleResponse sampleResponse = new SampleResponse(1, "Unsuccessful");
-            return Response.status(400)
+            asyncResponse.resume(Response.status(400)
                     .entity(objectMapper.writeValueAsString(sampleResponse))
                     .header("Access-Control-Allow-Origin", "*")
                     .header("Access-Control-Allow-Methods", "OPTIONS,GET,PUT,POST,DELETE,HEAD")
                     .header("Access-Control-Allow-Headers", "X-Requested-With,Content-Type,Accept,Origin")
                     .header("Access-Control-Max-Age", "1728000")
-                    .build();
+                    .build());
+        }
+    }
+
+    /*
+     * Submits the query to the engine service, the worker resumes the response with the result of the task.
+     * The query is cancelled when the client disconnects, or when the timeout has passed,
+     *   a query that's still queued then is removed from the queue.
+     * The token is cancelled even if the client disconnects before submit() returns,
+     *   the engine service then drops the query instead of starting it.
+     */
+    private static void submitQuery(Plan plan, EngineService.QueryTask<Response> queryTask, Long timeoutMillis,
+            AsyncResponse asyncResponse, ObjectMapper objectMapper) throws Exception {
+        CancellationToken cancellationToken = timeoutMillis == null ? new CancellationToken()
+                : CancellationToken.withTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+        Response timeoutResponse = errorResponse(objectMapper, 408,
+                "The query is not finished within " + timeoutMillis + " milliseconds");
+
+        // the callbacks are registered before the query is submitted, the query may finish right away
+        AtomicReference<QueryHandle<Void>> queryHandle = new AtomicReference<>();
+        asyncResponse.register((ConnectionCallback) disconnectedResponse ->
+                cancelQuery(cancellationToken, queryHandle.get()));
+        if (timeoutMillis != null) {
+            asyncResponse.setTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+            asyncResponse.setTimeoutHandler(timedOutResponse -> {
+                cancelQuery(cancellationToken, queryHandle.get());
+                timedOutResponse.resume(timeoutResponse);
+            });
         }
+
+        try {
+            queryHandle.set(Engine.getEngine().getService().submit(plan, (queryPlan, token) -> {
+                try {
+                    asyncResponse.resume(queryTask.execute(queryPlan, token));
+                } catch (Exception e) {
+                    asyncResponse.resume(token.isDeadlineExceeded() ? timeoutResponse : e);
+                    throw e;
+                }
+                return null;
+            }, cancellationToken));
+        } catch (DataFlowException e) {
+            // the engine doesn't admit the query, e.g. too many queries are waiting
+            asyncResponse.resume(errorResponse(objectMapper, 503, e.getMessage()));
+        }
+    }
+
+    /*
+     * Cancels the token, and the query if it's already submitted, so that a queued query leaves the queue right away.
+     */
+    private static void cancelQuery(CancellationToken cancellationToken, QueryHandle<Void> queryHandle) {
+        cancellationToken.cancel();
+        if (queryHandle != null) {
+            queryHandle.cancel(true);
+        }
+    }
+
+    private static Response errorResponse(ObjectMapper objectMapper, int status, String message) throws Exception {
+        SampleResponse sampleResponse = new SampleResponse(1, message);
+        return Response.status(status)
+                .entity(objectMapper.writeValueAsString(sampleResponse))
+                .build();
     }
-}
\ No newline at end of file
+}